@@ -0,0 +1,227 @@
+package bench;
+
+import backend.CodeGenManager;
+import driver.CompilationContext;
+import driver.CompilerDriverRaw;
+import driver.Config;
+import frontend.Visitor;
+import ir.MyModule;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.tree.ParseTree;
+import pass.PassManager;
+import pass.PassTimer;
+import util.Mylogger;
+
+/**
+ * 编译器各个阶段的 benchmark，默认跑 testcases/performance_test 和 performance_test_pro
+ * <p>
+ * 用法：java -Xss256m -cp ... bench.StageBenchmark [-stages a,b,...] [-wi N] [-i N] [-per-file] [-linear-scan] [文件或目录...]
+ * <p>
+ * 阶段：parse（词法+语法分析）、irgen（Visitor 生成 IR）、codegen（CodeGenManager.load + MachineCodeGeneration）、
+ * genARM（输出到空 Writer），其他名字都当作 pass 名字（gvngcm、loopUnroll、RegAlloc ...），一次编译里这个 pass 所有运行加起来算一次。
+ * -linear-scan 的时候寄存器分配是 LinearScanRegAlloc 阶段。
+ * <p>
+ * 没有办法复制一份 IR 快照，所以每次测量都在新的 CompilationContext 里从源码完整编译一遍（-O2，不输出 out.ll），
+ * 只计被测阶段本身的时间，它的输入就是真实流水线里的输入。源码预先读进内存。
+ * 先跑 -wi 轮预热，再跑 -i 轮测量，每轮把整个语料库编译一遍，报告每个阶段每轮的总时间和分配量
+ */
+public class StageBenchmark {
+
+  private static final List<String> DEFAULT_STAGES = List
+      .of("parse", "irgen", "gvngcm", "loopUnroll", "codegen", "RegAlloc", "genARM");
+  private static final List<String> DEFAULT_CORPUS = List
+      .of("testcases/performance_test", "testcases/performance_test_pro");
+
+  // 一个阶段在一次编译里的时间和分配量
+  private static class Sample {
+
+    long nanos;
+    long bytes;
+  }
+
+  public static void main(String[] args) throws Exception {
+    List<String> stages = DEFAULT_STAGES;
+    int warmup = 3;
+    int iterations = 5;
+    boolean perFile = false;
+    boolean linearScan = false;
+    var inputs = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-stages")) {
+        stages = Arrays.asList(args[++i].split(","));
+      } else if (args[i].equals("-wi")) {
+        warmup = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-i")) {
+        iterations = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-per-file")) {
+        perFile = true;
+      } else if (args[i].equals("-linear-scan")) {
+        linearScan = true;
+      } else {
+        inputs.add(args[i]);
+      }
+    }
+    if (inputs.isEmpty()) {
+      inputs.addAll(DEFAULT_CORPUS);
+    }
+
+    Mylogger.init();
+    Mylogger.loadLogConfig(false);
+
+    var files = new ArrayList<Path>();
+    for (var input : inputs) {
+      var path = Paths.get(input);
+      if (Files.isDirectory(path)) {
+        try (Stream<Path> list = Files.list(path)) {
+          files.addAll(list.filter(p -> p.toString().endsWith(".sy")).sorted()
+              .collect(Collectors.toList()));
+        }
+      } else {
+        files.add(path);
+      }
+    }
+    var sources = new ArrayList<String>();
+    for (var file : files) {
+      sources.add(Files.readString(file));
+    }
+
+    // [stage][file][iteration]
+    int n = files.size();
+    var results = new LinkedHashMap<String, Sample[][]>();
+    for (var stage : stages) {
+      results.put(stage, new Sample[n][iterations]);
+    }
+
+    for (int iter = -warmup; iter < iterations; iter++) {
+      long start = System.nanoTime();
+      for (int f = 0; f < n; f++) {
+        var samples = compile(files.get(f).toString(), sources.get(f), stages, linearScan);
+        if (iter >= 0) {
+          for (var stage : stages) {
+            results.get(stage)[f][iter] = samples.get(stage);
+          }
+        }
+      }
+      System.err.printf("# %s iteration %d: %.1f ms%n", iter < 0 ? "warmup" : "measure",
+          iter < 0 ? iter + warmup + 1 : iter + 1, (System.nanoTime() - start) / 1e6);
+    }
+
+    System.out.printf("%-20s %5s %12s %10s %12s %14s%n", "Benchmark", "Cnt", "Score", "Error",
+        "Min", "Alloc(MB)");
+    for (var entry : results.entrySet()) {
+      var byFile = entry.getValue();
+      double[] perIter = new double[iterations];
+      double alloc = 0;
+      for (int iter = 0; iter < iterations; iter++) {
+        for (int f = 0; f < n; f++) {
+          perIter[iter] += byFile[f][iter].nanos / 1e6;
+          alloc += byFile[f][iter].bytes / 1e6;
+        }
+      }
+      printRow(entry.getKey(), perIter, alloc / iterations, "ms/corpus");
+      if (perFile) {
+        for (int f = 0; f < n; f++) {
+          double[] ms = new double[iterations];
+          double fileAlloc = 0;
+          for (int iter = 0; iter < iterations; iter++) {
+            ms[iter] = byFile[f][iter].nanos / 1e6;
+            fileAlloc += byFile[f][iter].bytes / 1e6;
+          }
+          printRow("  " + files.get(f).getFileName(), ms, fileAlloc / iterations, "ms/op");
+        }
+      }
+    }
+  }
+
+  private static void printRow(String name, double[] scores, double alloc, String unit) {
+    double mean = Arrays.stream(scores).average().orElse(0);
+    double variance = Arrays.stream(scores).map(x -> (x - mean) * (x - mean)).sum()
+        / Math.max(1, scores.length - 1);
+    double min = Arrays.stream(scores).min().orElse(0);
+    System.out.printf("%-20s %5d %12.3f +- %8.3f %12.3f %14.2f  %s%n", name, scores.length, mean,
+        Math.sqrt(variance), min, alloc, unit);
+  }
+
+  /**
+   * 在新的 context 里完整编译一次，返回每个阶段的时间和分配量
+   */
+  private static LinkedHashMap<String, Sample> compile(String name, String source,
+      List<String> stages, boolean linearScan) throws Exception {
+    var samples = new LinkedHashMap<String, Sample>();
+    for (var stage : stages) {
+      samples.put(stage, new Sample());
+    }
+    new CompilationContext().call(() -> {
+      var config = Config.getInstance();
+      config.isO2 = true;
+      config.timePasses = true;
+      config.linearScan = linearScan;
+      var pm = PassManager.getPassManager();
+
+      var input = CharStreams.fromString(source, name);
+      var usage = begin();
+      ParseTree tree = CompilerDriverRaw.parse(input);
+      end(samples.get("parse"), usage);
+
+      usage = begin();
+      MyModule.getInstance().init();
+      new Visitor().visit(tree);
+      end(samples.get("irgen"), usage);
+
+      CompilerDriverRaw.openPasses(pm);
+      pm.openedPasses_.remove("emitllvm");
+      pm.runIRPasses(MyModule.getInstance());
+
+      usage = begin();
+      var cgm = CodeGenManager.getInstance();
+      cgm.load(MyModule.getInstance());
+      cgm.MachineCodeGeneration();
+      end(samples.get("codegen"), usage);
+
+      pm.runMCPasses(cgm);
+
+      usage = begin();
+      try (Writer out = Writer.nullWriter()) {
+        cgm.genARM(out);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      end(samples.get("genARM"), usage);
+
+      for (var record : pm.getTimer().getRecords()) {
+        var sample = samples.get(record.getName());
+        if (sample != null) {
+          sample.nanos += record.getWallNanos();
+          sample.bytes += record.getAllocatedBytes();
+        }
+      }
+      return null;
+    });
+    return samples;
+  }
+
+  // {开始的时间, 开始时已经分配的字节数}
+  private static long[] begin() {
+    var usage = PassTimer.threadUsage();
+    return new long[]{System.nanoTime(), usage[1]};
+  }
+
+  private static void end(Sample sample, long[] start) {
+    if (sample == null) {
+      return;
+    }
+    sample.nanos += System.nanoTime() - start[0];
+    sample.bytes += PassTimer.threadUsage()[1] - start[1];
+  }
+}
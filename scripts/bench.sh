@@ -0,0 +1,8 @@
+#!/bin/bash
+# 编译器各阶段的 benchmark，参数原样传给 bench.StageBenchmark，例如
+#   bash scripts/bench.sh -stages gvngcm,RegAlloc -wi 2 -i 5 testcases/performance_test
+cp=lib/antlr4-runtime-4.8.jar:lib/argparse4j-0.9.0.jar
+
+mkdir -p build/bench-classes
+javac -nowarn -encoding UTF-8 -d build/bench-classes -cp $cp $(find src bench/src -name "*.java") || exit 1
+java -Xss256m -cp build/bench-classes:$cp bench.StageBenchmark "$@"
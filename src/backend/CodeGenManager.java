@@ -14,12 +14,17 @@ import backend.machinecodes.MCLongMul;
 import backend.machinecodes.MCMove;
 import backend.machinecodes.MCReturn;
 import backend.machinecodes.MCStore;
+import backend.machinecodes.MCVector;
 import backend.machinecodes.MachineBlock;
 import backend.machinecodes.MachineCode;
 import backend.machinecodes.MachineFunction;
 import backend.reg.MachineOperand;
 import backend.reg.Reg;
+import backend.reg.VectorRegisters;
 import backend.reg.VirtualReg;
+import driver.CompilationContext;
+import driver.Config;
+import ir.Analysis.AnalysisManager;
 import ir.MyModule;
 import ir.types.ArrayType;
 import ir.types.IntegerType;
@@ -38,6 +43,8 @@ import ir.values.instructions.MemInst;
 import ir.values.instructions.MemInst.Phi;
 import ir.values.instructions.TerminatorInst;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -60,7 +67,7 @@ public class CodeGenManager {
     private ArrayList<MachineFunction> machineFunctions = new ArrayList<>();
 
     //ir moudle
-    private static MyModule myModule;
+    private MyModule myModule;
 
     private boolean isO2 = true;
 
@@ -80,8 +87,6 @@ public class CodeGenManager {
         myModule = m;
     }
 
-    private static CodeGenManager codeGenManager;
-
     public static boolean canEncodeImm(int imm) {
         int n = imm;
         for (int ror = 0; ror < 32; ror += 2) {
@@ -109,10 +114,24 @@ public class CodeGenManager {
 
     //ir->machinecode
     public static CodeGenManager getInstance() {
-        if (codeGenManager == null) {
-            codeGenManager = new CodeGenManager();
-        }
-        return codeGenManager;
+        return CompilationContext.current().get(CodeGenManager.class, CodeGenManager::new);
+    }
+
+    // 虚拟寄存器、基本块和指令的编号，每次编译从 0 开始，label 名字和单独编译一个文件时一样
+    private int virtualRegCount = 0;
+    private int machineBlockCount = 0;
+    private int machineCodeCount = 0;
+
+    public int nextVirtualRegId() {
+        return virtualRegCount++;
+    }
+
+    public int nextMachineBlockId() {
+        return machineBlockCount++;
+    }
+
+    public int nextMachineCodeId() {
+        return machineCodeCount++;
     }
 
     public ArrayList<MachineFunction> getMachineFunctions() {
@@ -437,175 +456,92 @@ public class CodeGenManager {
 
     }
 
-    int mcOffset = 0;
-    int strOffset = 0;
-
-    public void addOffset(int off, int strLen) {
-        this.mcOffset += off * 4;
-    }
-
-    ArrayList<MCLoad> globalLoad = new ArrayList<>();
-    HashMap<MCLoad, Pair<Integer, Integer>> accessGlobalOffset = new HashMap<>();
-    HashMap<VirtualReg, Integer> globalOffsetMap = new HashMap<>();
-
-    public void setGlobalInfo(MCLoad load) {
-        assert (load.getAddr() instanceof VirtualReg && ((VirtualReg) (load.getAddr())).isGlobal());
-        globalLoad.add(load);
-        accessGlobalOffset.put(load, new Pair<>(mcOffset, strOffset));
-    }
-
-
-    public String genARM() {
-        String arm = "";
-        arm += ".arch armv7ve\n";
-        arm += ".text\n";
-        Iterator<MachineFunction> mfIte = machineFunctions.iterator();
-        while (mfIte.hasNext()) {
-            this.mcOffset = 0;
-            globalLoad.clear();
-            MachineFunction mf = mfIte.next();
+    /**
+     * 直接把汇编写进 out（比如一个 BufferedWriter），不在内存里拼出整个 .s 文件
+     */
+    public void genARM(Appendable out) throws IOException {
+        boolean blockComment = Config.getInstance().isDebugMode;
+        out.append(".arch armv7ve\n");
+        if (Config.getInstance().vectorize) {
+            out.append(".fpu neon\n");
+        }
+        out.append(".text\n");
+        for (MachineFunction mf : machineFunctions) {
             // fixed: move to reg alloc
             // fixStack(mf);
-            arm += "\n.global\t";
-            arm += mf.getName() + "\n";
-            arm += mf.getName() + ":\n";
+            out.append("\n.global\t");
+            out.append(mf.getName()).append("\n");
+            out.append(mf.getName()).append(":\n");
             StringBuilder sb = new StringBuilder();
             mf.getUsedSavedRegs().forEach(phyReg -> {
                 sb.append(phyReg.getName());
                 sb.append(", ");
             });
             if (mf.isUsedLr() || !mf.getUsedSavedRegs().isEmpty()) {
-                String s = sb.toString();
-                int l = s.lastIndexOf(',');
-                s = s.substring(0, l);
-                arm += "\tpush\t{";
-                arm += s;
-                arm += "}\n";
-                mcOffset += 4;
+                int l = sb.lastIndexOf(",");
+                out.append("\tpush\t{");
+                out.append(sb, 0, l);
+                out.append("}\n");
             }
             if (mf.getStackSize() != 0) {
                 String op = canEncodeImm(-mf.getStackSize()) ? "add" : "sub";
                 MachineOperand v1 = canEncodeImm(-mf.getStackSize()) ? new MachineOperand(-mf.getStackSize()) : new MachineOperand(mf.getStackSize());
                 if (canEncodeImm(mf.getStackSize()) || canEncodeImm(-mf.getStackSize())) {
-                    arm += op;
-                    arm += "\tsp, sp, " + v1.getName() + "\n";
+                    out.append(op);
+                    out.append("\tsp, sp, ").append(v1.getName()).append("\n");
                 } else {
                     MCMove mv = new MCMove();
                     mv.setRhs(v1);
                     mv.setDst(mf.getPhyReg("r5"));
-                    arm += mv.toString();
-                    arm += op + "\tsp,\tsp,\t" + mf.getPhyReg(5).getName() + "\n";
+                    mv.appendTo(out);
+                    out.append(op).append("\tsp,\tsp,\t").append(mf.getPhyReg(5).getName()).append("\n");
                 }
-                mcOffset += 4;
             }
-            Iterator<INode<MachineBlock, MachineFunction>> mbIte = mf.getmbList().iterator();
-            while (mbIte.hasNext()) {
-                INode<MachineBlock, MachineFunction> mbNode = mbIte.next();
+            for (INode<MachineBlock, MachineFunction> mbNode : mf.getmbList()) {
                 MachineBlock mb = mbNode.getVal();
-                arm += mb.getName() + ":\n";
-                arm += "@predBB:";
-                StringBuilder sb1 = new StringBuilder();
-                if (mb.getPred() != null) {
-                    mb.getPred().forEach(p -> {
-                        sb1.append(p.getName());
-                        sb1.append(" ");
-                    });
-                }
-                arm += sb1.toString() + "\n";
-                if (mb.getTrueSucc() != null) {
-                    arm += "@trueSucc: " + mb.getTrueSucc().getName() + "\n";
-                }
-                if (mb.getFalseSucc() != null) {
-                    arm += "@falseSucc: " + mb.getFalseSucc().getName() + "\n";
-                }
-                strOffset = arm.length();
-                Iterator<INode<MachineCode, MachineBlock>> mcIte = mb.getmclist().iterator();
-                while (mcIte.hasNext()) {
-                    INode<MachineCode, MachineBlock> mcNode = mcIte.next();
-                    MachineCode mc = mcNode.getVal();
-                    String str = mc.toString();
-//                    if(mc instanceof MCMove ||mc instanceof MCLoad||mc instanceof MCBinary){
-//                        if(mc instanceof MCMove){
-//                            str+=((MCMove)mc).getDst().getName();
-//                            if(((MCMove)mc).getDst() instanceof VirtualReg){
-//                                str+=" cost:"+((VirtualReg)((MCMove)mc).getDst()).getCost();
-//                            }
-//                            str+="\n";
-//                        }else if(mc instanceof MCLoad){
-//                            str+=((MCLoad)mc).getDst().getName();
-//                            if(((MCLoad)mc).getDst() instanceof VirtualReg){
-//                                str+=" cost:"+((VirtualReg)((MCLoad)mc).getDst()).getCost();
-//                            }
-//                            str+="\n";
-//                        }else{
-//                            str+=((MCBinary)mc).getDst().getName();
-//                            if(((MCBinary)mc).getDst() instanceof VirtualReg){
-//                                str+=" cost:"+((VirtualReg)((MCBinary)mc).getDst()).getCost();
-//                            }
-//                            str+="\n";
-//                        }
-//                    }
-                    arm += str;
-                    strOffset += str.length();
-                }
-                arm += "\n";
-            }
-            StringBuffer sbf = new StringBuffer(arm);
-            ArrayList<VirtualReg> globalAddress = new ArrayList<>();
-            for (int i = globalLoad.size() - 1; i >= 0; i--) {
-                MCLoad load = globalLoad.get(i);
-                int strOffset = accessGlobalOffset.get(load).getSecond();
-                int thisOffset = accessGlobalOffset.get(load).getFirst();
-                int absOffset = this.mcOffset - thisOffset;
-                MachineOperand addr = load.getAddr();
-                MachineOperand dst = load.getDst();
-                CondType cond = load.getCond();
-                String access;
-                int idx = globalAddress.indexOf(addr) + 1;
-                if (idx == 0) {
-                    globalAddress.add((VirtualReg) addr);
-                    idx = globalAddress.size();
+                out.append(mb.getName()).append(":\n");
+                // 前驱后继的注释只在 debug 模式下输出
+                if (blockComment) {
+                    out.append("@predBB:");
+                    if (mb.getPred() != null) {
+                        for (MachineBlock p : mb.getPred()) {
+                            out.append(p.getName()).append(" ");
+                        }
+                    }
+                    out.append("\n");
+                    if (mb.getTrueSucc() != null) {
+                        out.append("@trueSucc: ").append(mb.getTrueSucc().getName()).append("\n");
+                    }
+                    if (mb.getFalseSucc() != null) {
+                        out.append("@falseSucc: ").append(mb.getFalseSucc().getName()).append("\n");
+                    }
                 }
-                if (absOffset < 4000) {
-                    access = "\tldr\t" + dst.getName() + ",\t" + addr.getName() + "_" + mf.getName() + "\n";
-                } else {
-                    MCMove mv = new MCMove();
-                    //减8是因为arm中真实的pc比当前指令的pc值大8，详见https://azeria-labs.com/arm-data-types-and-registers-part-2/
-                    mv.setRhs(new MachineOperand(absOffset + idx * 4 - 8));
-                    mv.setCond(load.getCond());
-                    mv.setDst(load.getDst());
-                    access = mv.toString();
-                    access += "\tldr" + load.condString(cond) + "\t" + dst.getName() + ",\t[" + mf.getPhyReg("pc").getName();
-                    access += ",\t" + dst.getName() + "]\n";
+                for (INode<MachineCode, MachineBlock> mcNode : mb.getmclist()) {
+                    mcNode.getVal().appendTo(out);
                 }
-                sbf.insert(strOffset, access);
-                //absoffset>4000时由于move的偏移在toString方法中计算了，所以只用算ldr的偏移，所以两种情况下偏移都只+4
-                this.mcOffset += 4;
-            }
-            arm = sbf.toString();
-            for (VirtualReg gv : globalAddress) {
-                arm += gv.getName() + "_" + mf.getName() + ":\t.word\t" + gv.getName() + "\n";
+                out.append("\n");
             }
-            arm += "\n";
+            out.append("\n");
+        }
+        var parallelEntries = ParallelRuntime.entries(myModule);
+        if (!parallelEntries.isEmpty()) {
+            ParallelRuntime.appendText(out, parallelEntries);
         }
         ArrayList<GlobalVariable> gVs = myModule.__globalVariables;
         if (!gVs.isEmpty()) {
-            arm += "\n\n.data\n";
-            arm += ".align 4\n";
+            out.append("\n\n.data\n");
+            out.append(".align 4\n");
         }
-        int globalOffset = 0;
         for (GlobalVariable gv : gVs) {
             assert irMap.containsKey(gv);
-            globalOffsetMap.put(irMap.get(gv), globalOffset);
-            arm += ".global\t" + irMap.get(gv).getName() + "\n";
-            arm += irMap.get(gv).getName() + ":\n";
+            out.append(".global\t").append(irMap.get(gv).getName()).append("\n");
+            out.append(irMap.get(gv).getName()).append(":\n");
             PointerType p = (PointerType) gv.getType();
             if (p.getContained() instanceof IntegerType) {
-                globalOffset += 4;
-                arm += "\t.word\t";
+                out.append("\t.word\t");
                 assert (gv.init != null);
-                arm += ((Constants.ConstantInt) gv.init).getVal();
-                arm += "\n";
+                out.append(String.valueOf(((Constants.ConstantInt) gv.init).getVal()));
+                out.append("\n");
             } else {
                 assert (p.getContained() instanceof ArrayType);
                 if (gv.init == null) {
@@ -614,12 +550,17 @@ public class CodeGenManager {
                     for (Integer d : dims) {
                         n *= d;
                     }
-                    globalOffset += 4 * n;
-//                    arm += "\t.fill\t" + n + ",\t4,\t0\n";
-                    arm += "\t.zero\t" + n * 4 + "\n";
+//                    out.append("\t.fill\t" + n + ",\t4,\t0\n");
+                    out.append("\t.zero\t").append(String.valueOf(n * 4)).append("\n");
+                } else if (((Constants.ConstantArray) gv.init).isCompact()) {
+                    var init = (Constants.ConstantArray) gv.init;
+                    for (int i = 0; i < init.size(); ) {
+                        int end = init.runEnd(i);
+                        appendRun(out, init.getInt(i), end - i);
+                        i = end;
+                    }
                 } else {
                     ArrayList<Constant> initValues = ((Constants.ConstantArray) gv.init).getConst_arr_();
-                    globalOffset += 4 * initValues.size();
                     int lastv = ((Constants.ConstantInt) initValues.get(0)).getVal();
                     int count = 0;
                     for (Constant c : initValues) {
@@ -627,34 +568,39 @@ public class CodeGenManager {
                         if (v == lastv) {
                             count++;
                         } else {
-                            if (count == 1) {
-                                arm += "\t.word\t" + lastv + "\n";
-                            } else {
-                                if (lastv == 0) {
-                                    arm += "\t.zero\t" + (count * 4) + "\n";
-                                } else {
-                                    arm += "\t.fill\t" + count + ",\t4,\t" + lastv + "\n";
-                                }
-                            }
+                            appendRun(out, lastv, count);
                             lastv = v;
                             count = 1;
                         }
                     }
-                    if (count == 1) {
-                        arm += "\t.word\t" + lastv + "\n";
-                    } else {
-                        if (lastv == 0) {
-                            arm += "\t.zero\t" + (count * 4) + "\n";
-                        } else {
-                            arm += "\t.fill\t" + count + ",\t4,\t" + lastv + "\n";
-                        }
-                    }
+                    appendRun(out, lastv, count);
                 }
 
             }
         }
+        if (!parallelEntries.isEmpty()) {
+            ParallelRuntime.appendData(out);
+        }
+    }
 
-        return arm;
+    private static void appendRun(Appendable out, int v, int count) throws IOException {
+        if (count == 1) {
+            out.append("\t.word\t").append(String.valueOf(v)).append("\n");
+        } else if (v == 0) {
+            out.append("\t.zero\t").append(String.valueOf(count * 4)).append("\n");
+        } else {
+            out.append("\t.fill\t").append(String.valueOf(count)).append(",\t4,\t").append(String.valueOf(v)).append("\n");
+        }
+    }
+
+    public String genARM() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            genARM(sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
     }
 
     HashMap<Value, VirtualReg> irMap = new HashMap<>();
@@ -685,7 +631,7 @@ public class CodeGenManager {
                 continue;
             }
             mf = fMap.get(f);
-            f.getLoopInfo().computeLoopInfo(f);
+            AnalysisManager.getInstance().requireLoopInfo(f);
             machineFunctions.add(mf);
             IList<BasicBlock, Function> bList = f.getList_();
             Iterator<INode<BasicBlock, Function>> bIt = bList.iterator();
@@ -734,6 +680,10 @@ public class CodeGenManager {
                     logger.info(bb.getName() + "Map phi target to phi set");
                     for (INode<Instruction, BasicBlock> irNode : irList) {
                         Instruction ir = irNode.getVal();
+                        if (ir.tag == Instruction.TAG_.Phi && ir.getType().isVectorTy()) {
+                            // 向量 phi 和它的 incoming 在同一个 q 寄存器里，不用 move
+                            continue;
+                        }
                         if (ir.tag == Instruction.TAG_.Phi) {
                             String comment = "phi target:";
                             //如果phi指令的参数中有字面量，那也不用调用genImm，因为字面量肯定最后放在前驱块的copy中，所以isInsert设置为false表明这一点
@@ -767,6 +717,9 @@ public class CodeGenManager {
                         HashMap<MachineOperand, MachineOperand> edges = new HashMap<>();
                         for (INode<Instruction, BasicBlock> irrNode : irrList) {
                             Instruction ir = irrNode.getVal();
+                            if (ir.tag == Instruction.TAG_.Phi && ir.getType().isVectorTy()) {
+                                continue;
+                            }
                             if (ir.tag == Instruction.TAG_.Phi) {
                                 MachineOperand phiTarget = analyzeValue(ir, mbb, false);
                                 assert (phiTarget instanceof VirtualReg);
@@ -855,6 +808,9 @@ public class CodeGenManager {
 
             HashMap<BasicBlock, Boolean> VisitMap = new HashMap<>();
             //处理其余指令
+            if (Config.getInstance().vectorize) {
+                vectorRegs = VectorRegisters.assign(f);
+            }
             bfsBB(f.getList_().getEntry().getVal());
             handlePhi.handlephi();
             DFSSerialize s = () -> {
@@ -978,6 +934,76 @@ public class CodeGenManager {
         divMap.put(new Pair<>(new Pair<>(lhs, new MachineOperand(imm)),mb), (VirtualReg) dst);
     }
 
+    // LoopVectorize 生成的向量值所在的 q 寄存器，见 VectorRegisters
+    HashMap<Value, Integer> vectorRegs = new HashMap<>();
+    // 每个 lane 都是同一个标量的 InsertEle 链，链头已经 vdup 过了，后面的不用再插
+    HashMap<Value, Value> splatOf = new HashMap<>();
+
+    private boolean isVectorCode(Instruction ir) {
+        return ir.getType().isVectorTy() || ir.tag == Instruction.TAG_.ExtractEle
+                || (ir.tag == Instruction.TAG_.Store && ir.getOperands().get(0).getType().isVectorTy());
+    }
+
+    private void genVector(Instruction ir, MachineBlock mb) {
+        var ops = ir.getOperands();
+        switch (ir.tag) {
+            case Load -> {
+                var addr = analyzeValue(ops.get(0), mb, true);
+                var load = new MCVector(MCVector.Kind.Load, mb);
+                load.setQd(vectorRegs.get(ir));
+                load.setScalar(addr);
+            }
+            case Store -> {
+                var addr = analyzeValue(ops.get(1), mb, true);
+                var store = new MCVector(MCVector.Kind.Store, mb);
+                store.setQd(vectorRegs.get(ops.get(0)));
+                store.setScalar(addr);
+            }
+            case Add, Sub, Mul -> {
+                var kind = ir.tag == Instruction.TAG_.Add ? MCVector.Kind.Add
+                        : ir.tag == Instruction.TAG_.Sub ? MCVector.Kind.Sub : MCVector.Kind.Mul;
+                var binary = new MCVector(kind, mb);
+                binary.setQd(vectorRegs.get(ir));
+                binary.setQn(vectorRegs.get(ops.get(0)));
+                binary.setQm(vectorRegs.get(ops.get(1)));
+            }
+            case InsertEle -> {
+                var vector = ops.get(0);
+                var scalar = ops.get(1);
+                int lane = ((Constants.ConstantInt) ops.get(2)).getVal();
+                if (!vectorRegs.containsKey(vector)) {
+                    var value = analyzeNoImm(scalar, mb);
+                    var dup = new MCVector(MCVector.Kind.Dup, mb);
+                    dup.setQd(vectorRegs.get(ir));
+                    dup.setScalar(value);
+                    splatOf.put(ir, scalar);
+                } else if (sameScalar(splatOf.get(vector), scalar)) {
+                    splatOf.put(ir, scalar);
+                } else {
+                    var value = analyzeNoImm(scalar, mb);
+                    var insert = new MCVector(MCVector.Kind.InsertLane, mb);
+                    insert.setQd(vectorRegs.get(ir));
+                    insert.setLane(lane);
+                    insert.setScalar(value);
+                }
+            }
+            case ExtractEle -> {
+                var extract = new MCVector(MCVector.Kind.ExtractLane, mb);
+                extract.setQn(vectorRegs.get(ops.get(0)));
+                extract.setLane(((Constants.ConstantInt) ops.get(1)).getVal());
+                extract.setScalar(analyzeValue(ir, mb, false));
+            }
+            default -> throw new IllegalStateException("Unexpected vector instruction: " + ir);
+        }
+    }
+
+    private static boolean sameScalar(Value a, Value b) {
+        if (a instanceof Constants.ConstantInt && b instanceof Constants.ConstantInt) {
+            return ((Constants.ConstantInt) a).getVal() == ((Constants.ConstantInt) b).getVal();
+        }
+        return a != null && a == b;
+    }
+
     private void processBB(BasicBlock bb) {
         MachineBlock mb = bMap.get(bb);
 //        MCComment bc = new MCComment("bb:" + bb.getName(), mb);
@@ -988,6 +1014,8 @@ public class CodeGenManager {
             }
             if (ir.tag == Instruction.TAG_.Phi) {
                 continue;
+            } else if (isVectorCode(ir)) {
+                genVector(ir, mb);
             } else if (ir instanceof BinaryInst && ((BinaryInst) ir).isDiv()) {
                 MachineOperand lhs = analyzeNoImm(ir.getOperands().get(0), mb);
                 MachineOperand rhs;
@@ -0,0 +1,175 @@
+package backend;
+
+import ir.MyModule;
+import ir.values.Function;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * MarkParallel 拆出来的并行循环用的运行时，直接写成汇编跟在生成的函数后面，不依赖 libc 的 pthread
+ * <p>
+ * 每个并行循环有一个入口 xxx_run(begin, end[, p])，把拆出去的函数地址放进 ip，跳到 __ayame_parallel_for。
+ * __ayame_parallel_for 把 [begin, end) 按静态调度分成 THREADS 段：用 clone 开 THREADS - 1 个线程（共享地址空间，
+ * 栈是 .bss 里每个 STACK_SIZE 大小的一块），自己跑第 0 段，然后在计数器上 futex 等其他线程跑完。
+ * 子线程跑完自己那段，用 ldrex/strex 把计数器减一，futex 唤醒主线程，exit 退出（只退出这个线程）。
+ * clone 失败的那一段由主线程自己跑。迭代次数少于 THREADS 的直接在当前线程上跑
+ * <p>
+ * 拆出去的函数是普通的函数，遵守调用约定，r4-r11 由它自己保存
+ */
+public final class ParallelRuntime {
+
+    public static final int THREADS = 4;
+    public static final int STACK_SIZE = 1 << 20;
+
+    // clone 的参数：CLONE_VM | CLONE_FS | CLONE_FILES | CLONE_SIGHAND | CLONE_THREAD | CLONE_SYSVSEM
+    private static final int CLONE_FLAGS = 0x50f00;
+    private static final int SYS_EXIT = 1;
+    private static final int SYS_CLONE = 120;
+    private static final int SYS_FUTEX = 240;
+    private static final int FUTEX_WAIT_PRIVATE = 128;
+    private static final int FUTEX_WAKE_PRIVATE = 129;
+
+    // 共享状态：函数地址、begin、迭代次数、指针参数、还没跑完的子线程数
+    private static final int FN = 0;
+    private static final int BEGIN = 4;
+    private static final int COUNT = 8;
+    private static final int POINTER = 12;
+    private static final int REMAINING = 16;
+
+    private ParallelRuntime() {
+    }
+
+    /**
+     * @return 模块里所有并行循环的入口，没有的话不用生成运行时
+     */
+    public static ArrayList<Function> entries(MyModule module) {
+        var entries = new ArrayList<Function>();
+        for (var funcNode : module.__functions) {
+            if (funcNode.getVal().getParallelBody() != null) {
+                entries.add(funcNode.getVal());
+            }
+        }
+        return entries;
+    }
+
+    public static void appendText(Appendable out, ArrayList<Function> entries) throws IOException {
+        for (var entry : entries) {
+            out.append("\n").append(entry.getName()).append(":\n");
+            appendAddress(out, "ip", entry.getParallelBody().getName());
+            out.append("\tb\t__ayame_parallel_for\n");
+        }
+
+        out.append("\n__ayame_parallel_for:\n");
+        out.append("\tpush\t{r4, r5, r6, r7, r8, lr}\n");
+        out.append("\tsub\tr3, r1, r0\n");
+        out.append("\tcmp\tr3, #").append(String.valueOf(THREADS)).append("\n");
+        out.append("\tbge\t.Lpar_fork\n");
+        out.append("\tblx\tip\n");
+        out.append("\tpop\t{r4, r5, r6, r7, r8, pc}\n");
+        out.append(".Lpar_fork:\n");
+        appendAddress(out, "r4", "__ayame_parallel_state");
+        out.append("\tstr\tip, [r4, #").append(String.valueOf(FN)).append("]\n");
+        out.append("\tstr\tr0, [r4, #").append(String.valueOf(BEGIN)).append("]\n");
+        out.append("\tstr\tr3, [r4, #").append(String.valueOf(COUNT)).append("]\n");
+        out.append("\tstr\tr2, [r4, #").append(String.valueOf(POINTER)).append("]\n");
+        out.append("\tmov\tr5, #").append(String.valueOf(THREADS - 1)).append("\n");
+        out.append("\tstr\tr5, [r4, #").append(String.valueOf(REMAINING)).append("]\n");
+        out.append("\tdmb\tish\n");
+        out.append("\tmov\tr5, #1\n");
+        out.append(".Lpar_clone:\n");
+        out.append("\tmovw\tr0, #").append(String.valueOf(CLONE_FLAGS & 0xffff)).append("\n");
+        out.append("\tmovt\tr0, #").append(String.valueOf(CLONE_FLAGS >>> 16)).append("\n");
+        appendAddress(out, "r1", "__ayame_parallel_stacks");
+        out.append("\tadd\tr1, r1, r5, lsl #").append(String.valueOf(Integer.numberOfTrailingZeros(STACK_SIZE))).append("\n");
+        out.append("\tmov\tr7, #").append(String.valueOf(SYS_CLONE)).append("\n");
+        out.append("\tsvc\t#0\n");
+        out.append("\tcmp\tr0, #0\n");
+        out.append("\tbeq\t.Lpar_child\n");
+        out.append("\tblt\t.Lpar_inline\n");
+        out.append(".Lpar_next:\n");
+        out.append("\tadd\tr5, r5, #1\n");
+        out.append("\tcmp\tr5, #").append(String.valueOf(THREADS)).append("\n");
+        out.append("\tblt\t.Lpar_clone\n");
+        out.append("\tmov\tr0, #0\n");
+        out.append("\tbl\t__ayame_parallel_chunk\n");
+        // 等计数器变成 0，futex 发现值已经变了会马上返回，重新读一遍
+        out.append(".Lpar_join:\n");
+        out.append("\tldr\tr2, [r4, #").append(String.valueOf(REMAINING)).append("]\n");
+        out.append("\tcmp\tr2, #0\n");
+        out.append("\tbeq\t.Lpar_done\n");
+        out.append("\tadd\tr0, r4, #").append(String.valueOf(REMAINING)).append("\n");
+        out.append("\tmov\tr1, #").append(String.valueOf(FUTEX_WAIT_PRIVATE)).append("\n");
+        out.append("\tmov\tr3, #0\n");
+        out.append("\tmov\tr7, #").append(String.valueOf(SYS_FUTEX)).append("\n");
+        out.append("\tsvc\t#0\n");
+        out.append("\tb\t.Lpar_join\n");
+        out.append(".Lpar_done:\n");
+        out.append("\tdmb\tish\n");
+        out.append("\tpop\t{r4, r5, r6, r7, r8, pc}\n");
+        // clone 失败（返回负的 errno）：第 r5 段在当前线程上跑，计数器照样减一，不然 join 永远等不到 0
+        out.append(".Lpar_inline:\n");
+        out.append("\tmov\tr0, r5\n");
+        out.append("\tbl\t__ayame_parallel_chunk\n");
+        appendRelease(out, ".Lpar_inline_leave");
+        out.append("\tb\t.Lpar_next\n");
+        // 子线程：r4、r5 是 clone 之前的值，sp 是新栈
+        out.append(".Lpar_child:\n");
+        out.append("\tmov\tr0, r5\n");
+        out.append("\tbl\t__ayame_parallel_chunk\n");
+        appendRelease(out, ".Lpar_leave");
+        out.append("\tmov\tr1, #").append(String.valueOf(FUTEX_WAKE_PRIVATE)).append("\n");
+        out.append("\tmov\tr2, #1\n");
+        out.append("\tmov\tr7, #").append(String.valueOf(SYS_FUTEX)).append("\n");
+        out.append("\tsvc\t#0\n");
+        out.append("\tmov\tr0, #0\n");
+        out.append("\tmov\tr7, #").append(String.valueOf(SYS_EXIT)).append("\n");
+        out.append("\tsvc\t#0\n");
+
+        // 第 r0 段：每段 count / THREADS 次，前 count % THREADS 段多一次
+        out.append("\n__ayame_parallel_chunk:\n");
+        out.append("\tpush\t{r4, lr}\n");
+        appendAddress(out, "r3", "__ayame_parallel_state");
+        out.append("\tldr\tr1, [r3, #").append(String.valueOf(COUNT)).append("]\n");
+        out.append("\tlsr\tr2, r1, #").append(String.valueOf(Integer.numberOfTrailingZeros(THREADS))).append("\n");
+        out.append("\tand\tr1, r1, #").append(String.valueOf(THREADS - 1)).append("\n");
+        out.append("\tmul\tip, r2, r0\n");
+        out.append("\tcmp\tr0, r1\n");
+        out.append("\taddlt\tip, ip, r0\n");
+        out.append("\taddge\tip, ip, r1\n");
+        out.append("\taddlt\tr2, r2, #1\n");
+        out.append("\tldr\tr4, [r3, #").append(String.valueOf(BEGIN)).append("]\n");
+        out.append("\tadd\tr0, r4, ip\n");
+        out.append("\tadd\tr1, r0, r2\n");
+        out.append("\tldr\tr2, [r3, #").append(String.valueOf(POINTER)).append("]\n");
+        out.append("\tldr\tip, [r3, #").append(String.valueOf(FN)).append("]\n");
+        out.append("\tblx\tip\n");
+        out.append("\tpop\t{r4, pc}\n");
+    }
+
+    public static void appendData(Appendable out) throws IOException {
+        out.append("\n.bss\n");
+        out.append(".align 4\n");
+        out.append("__ayame_parallel_state:\n");
+        out.append("\t.zero\t").append(String.valueOf(REMAINING + 4)).append("\n");
+        out.append(".align 4\n");
+        out.append("__ayame_parallel_stacks:\n");
+        out.append("\t.zero\t").append(String.valueOf((THREADS - 1) * STACK_SIZE)).append("\n");
+    }
+
+    // 跑完一段后把计数器原子地减一，r0 留着计数器的地址
+    private static void appendRelease(Appendable out, String label) throws IOException {
+        out.append("\tdmb\tish\n");
+        out.append("\tadd\tr0, r4, #").append(String.valueOf(REMAINING)).append("\n");
+        out.append(label).append(":\n");
+        out.append("\tldrex\tr1, [r0]\n");
+        out.append("\tsub\tr1, r1, #1\n");
+        out.append("\tstrex\tr2, r1, [r0]\n");
+        out.append("\tcmp\tr2, #0\n");
+        out.append("\tbne\t").append(label).append("\n");
+    }
+
+    private static void appendAddress(Appendable out, String reg, String label) throws IOException {
+        out.append("\tmovw\t").append(reg).append(", #:lower16:").append(label).append("\n");
+        out.append("\tmovt\t").append(reg).append(", #:upper16:").append(label).append("\n");
+    }
+}
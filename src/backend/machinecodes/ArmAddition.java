@@ -150,7 +150,7 @@ public class ArmAddition {
 
         @Override
         public int hashCode() {
-            return Objects.hash(imm, t, reg);
+            return Objects.hash(imm, t.ordinal(), reg);
         }
     }
 }
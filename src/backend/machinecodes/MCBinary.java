@@ -1,9 +1,9 @@
 package backend.machinecodes;
 
-import backend.CodeGenManager;
 import backend.reg.PhyReg;
 import backend.reg.VirtualReg;
 import backend.reg.MachineOperand;
+import java.io.IOException;
 
 /**
  * Add,Sub,Rsb, Mul, Div, Mod, Lt, Le, Ge, Gt, Eq, Ne, And, Or
@@ -62,7 +62,7 @@ public class MCBinary extends MachineCode{
     }
 
     @Override
-    public String toString(){
+    public void appendTo(Appendable out) throws IOException {
         String op="";
         if(getTag()==TAG.Add){
             op="add";
@@ -80,9 +80,7 @@ public class MCBinary extends MachineCode{
         else{
             assert(false);
         }
-        String res="\t"+op+condString(cond)+"\t"+dst.getName()+",\t"+lhs.getName()+",\t"+rhs.getName()+getShift().toString()+"\n";
-        CodeGenManager.getInstance().addOffset(1,res.length());
-        return res;
+        out.append("\t").append(op).append(condString(cond)).append("\t").append(dst.getName()).append(",\t").append(lhs.getName()).append(",\t").append(rhs.getName()).append(getShift().toString()).append("\n");
     }
 
     public MachineOperand getRhs() {
@@ -1,6 +1,6 @@
 package backend.machinecodes;
 
-import backend.CodeGenManager;
+import java.io.IOException;
 
 /**
  * Branch
@@ -21,10 +21,8 @@ public class MCBranch extends MachineCode{
     }
 
     @Override
-    public String toString(){
-        String res="\tb"+ condString(cond)+"\t"+target.getName()+"\n";
-        CodeGenManager.getInstance().addOffset(1,res.length());
-        return res;
+    public void appendTo(Appendable out) throws IOException {
+        out.append("\tb").append(condString(cond)).append("\t").append(target.getName()).append("\n");
     }
 
     @Override
@@ -1,6 +1,6 @@
 package backend.machinecodes;
 
-import backend.CodeGenManager;
+import java.io.IOException;
 
 public class MCCall extends MachineCode{
 
@@ -17,10 +17,8 @@ public class MCCall extends MachineCode{
     private static  int chi=0;
 
     @Override
-    public String toString(){
-        String res="\tbl\t"+func.getName()+"\n";
-        CodeGenManager.getInstance().addOffset(1,res.length());
-        return res;
+    public void appendTo(Appendable out) throws IOException {
+        out.append("\tbl\t").append(func.getName()).append("\n");
     }
 
     public MCCall(MachineBlock mb){
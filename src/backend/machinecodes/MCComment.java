@@ -2,7 +2,7 @@ package backend.machinecodes;
 
 import backend.reg.MachineOperand;
 import backend.reg.VirtualReg;
-
+import java.io.IOException;
 
 public class MCComment extends MachineCode{
 
@@ -16,8 +16,7 @@ public class MCComment extends MachineCode{
     }
 
     @Override
-    public String toString(){
-        String res="@"+str+"\n";
-        return res;
+    public void appendTo(Appendable out) throws IOException {
+        out.append("@").append(str).append("\n");
     }
 }
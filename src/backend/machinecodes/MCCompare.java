@@ -1,8 +1,8 @@
 package backend.machinecodes;
 
-import backend.CodeGenManager;
 import backend.reg.MachineOperand;
 import backend.reg.VirtualReg;
+import java.io.IOException;
 
 public class MCCompare extends MachineCode{
 
@@ -45,15 +45,9 @@ public class MCCompare extends MachineCode{
     private MachineOperand rhs;
 
     @Override
-    public String toString(){
-        String res;
-        if(isCmn){
-            res="\tcmn\t"+lhs.getName()+",\t"+rhs.getName()+getShift().toString()+"\n";
-        }else{
-            res="\tcmp\t"+lhs.getName()+",\t"+rhs.getName()+getShift().toString()+"\n";
-        }
-        CodeGenManager.getInstance().addOffset(1,res.length());
-        return res;
+    public void appendTo(Appendable out) throws IOException {
+        out.append(isCmn ? "\tcmn\t" : "\tcmp\t");
+        out.append(lhs.getName()).append(",\t").append(rhs.getName()).append(getShift().toString()).append("\n");
     }
 
     public MCCompare(MachineBlock mb){
@@ -1,8 +1,8 @@
 package backend.machinecodes;
 
-import backend.CodeGenManager;
 import backend.reg.MachineOperand;
 import backend.reg.VirtualReg;
+import java.io.IOException;
 
 /**
  * Fma
@@ -42,12 +42,11 @@ public class MCFma extends MachineCode {
 
     private ArmAddition.CondType cond= ArmAddition.CondType.Any;
 
-    public String toString() {
-        String res = sign ? "\tsm" : "\t";
-        res += add ? "mla" : "mls";
-        res += condString(cond) + "\t" + dst.getName() + ",\t" + lhs.getName() + ",\t" + rhs.getName() + ",\t" + acc.getName() + "\n";
-        CodeGenManager.getInstance().addOffset(1,res.length());
-        return res;
+    @Override
+    public void appendTo(Appendable out) throws IOException {
+        out.append(sign ? "\tsm" : "\t");
+        out.append(add ? "mla" : "mls");
+        out.append(condString(cond)).append("\t").append(dst.getName()).append(",\t").append(lhs.getName()).append(",\t").append(rhs.getName()).append(",\t").append(acc.getName()).append("\n");
     }
 
     public void calcCost(){
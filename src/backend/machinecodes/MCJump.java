@@ -1,6 +1,6 @@
 package backend.machinecodes;
 
-import backend.CodeGenManager;
+import java.io.IOException;
 
 /**
  * Branch
@@ -18,10 +18,8 @@ public class MCJump extends MachineCode{
     private MachineBlock target;
 
     @Override
-    public String toString(){
-        String res="\tb\t"+target.getName()+"\n";
-        CodeGenManager.getInstance().addOffset(1,res.length());
-        return res;
+    public void appendTo(Appendable out) throws IOException {
+        out.append("\tb\t").append(target.getName()).append("\n");
     }
 
     public MCJump( MachineBlock mb){
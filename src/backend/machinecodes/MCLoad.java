@@ -1,9 +1,9 @@
 package backend.machinecodes;
 
-import backend.CodeGenManager;
 import backend.reg.MachineOperand;
 import backend.reg.PhyReg;
 import backend.reg.VirtualReg;
+import java.io.IOException;
 
 public class MCLoad extends MachineCode {
 
@@ -78,17 +78,14 @@ public class MCLoad extends MachineCode {
     }
 
     @Override
-    public String toString() {
+    public void appendTo(Appendable out) throws IOException {
         if (addr instanceof VirtualReg && ((VirtualReg) addr).isGlobal()) {
-            String res = "\tmovw" + condString(cond) + "\t" + dst.getName() + ",\t:lower16:" + addr.getName() + "\n";
-            res += "\tmovt" + condString(cond) + "\t" + dst.getName() + ",\t:upper16:" + addr.getName() + "\n";
-            return res;
+            out.append("\tmovw").append(condString(cond)).append("\t").append(dst.getName()).append(",\t:lower16:").append(addr.getName()).append("\n");
+            out.append("\tmovt").append(condString(cond)).append("\t").append(dst.getName()).append(",\t:upper16:").append(addr.getName()).append("\n");
+            return;
         }
-        String res = "";
-        res = "\tldr" + condString(cond) + "\t" + dst.getName() + ",\t[" + addr.getName();
-        res += ",\t" + offset.getName() + getShift().toString() + "]\n";
-        CodeGenManager.getInstance().addOffset(1, res.length());
-        return res;
+        out.append("\tldr").append(condString(cond)).append("\t").append(dst.getName()).append(",\t[").append(addr.getName());
+        out.append(",\t").append(offset.getName()).append(getShift().toString()).append("]\n");
     }
 
     public MCLoad(MachineBlock mb) {
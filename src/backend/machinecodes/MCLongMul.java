@@ -1,9 +1,9 @@
 package backend.machinecodes;
 
-import backend.CodeGenManager;
 import backend.reg.MachineOperand;
 import backend.reg.PhyReg;
 import backend.reg.VirtualReg;
+import java.io.IOException;
 
 /**
  * LongMul
@@ -21,10 +21,9 @@ public class MCLongMul extends MachineCode {
         super(TAG.LongMul, mb);
     }
 
-    public String toString() {
-        String res = "\tsmmul\t" + condString(cond) + dst.getName() + ",\t" + lhs.getName() + ",\t" + rhs.getName() + "\n";
-        CodeGenManager.getInstance().addOffset(1, res.length());
-        return res;
+    @Override
+    public void appendTo(Appendable out) throws IOException {
+        out.append("\tsmmul\t").append(condString(cond)).append(dst.getName()).append(",\t").append(lhs.getName()).append(",\t").append(rhs.getName()).append("\n");
     }
 
     public MachineOperand getDst() {
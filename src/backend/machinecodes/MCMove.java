@@ -4,6 +4,7 @@ import backend.CodeGenManager;
 import backend.reg.MachineOperand;
 import backend.reg.PhyReg;
 import backend.reg.VirtualReg;
+import java.io.IOException;
 
 public class MCMove extends MachineCode implements Comparable<MCMove> {
 
@@ -57,28 +58,22 @@ public class MCMove extends MachineCode implements Comparable<MCMove> {
     }
 
     @Override
-    public String toString() {
-        String res = "\t";
+    public void appendTo(Appendable out) throws IOException {
+        out.append("\t");
         if (rhs.getState() == MachineOperand.state.imm && CodeGenManager.canEncodeImm(~(rhs.getImm()))) {
             int imm = ~rhs.getImm();
-            res += "mvn" + condString(cond) + "\t" + dst.getName() + ",\t#" + imm + "\n";
-            CodeGenManager.getInstance().addOffset(1, res.length());
+            out.append("mvn").append(condString(cond)).append("\t").append(dst.getName()).append(",\t#").append(String.valueOf(imm)).append("\n");
         } else if (rhs.getState() == MachineOperand.state.imm && !CodeGenManager.canEncodeImm(rhs.getImm())) {
             int imm = rhs.getImm();
             int immH = imm >>> 16;
             int immL = (imm << 16) >>> 16;
-            int offnum = 1;
-            res += "movw" + condString(cond) + "\t" + dst.getName() + ",\t#" + immL + "\n";
+            out.append("movw").append(condString(cond)).append("\t").append(dst.getName()).append(",\t#").append(String.valueOf(immL)).append("\n");
             if (immH != 0) {
-                res += "\tmovt" + condString(cond) + "\t" + dst.getName() + ",\t#" + immH + "\n";
-                offnum++;
+                out.append("\tmovt").append(condString(cond)).append("\t").append(dst.getName()).append(",\t#").append(String.valueOf(immH)).append("\n");
             }
-            CodeGenManager.getInstance().addOffset(offnum, res.length());
         } else {
-            res += "mov" + condString(cond) + "\t" + dst.getName() + ",\t" + rhs.getName() + getShift().toString() + "\n";
-            CodeGenManager.getInstance().addOffset(1, res.length());
+            out.append("mov").append(condString(cond)).append("\t").append(dst.getName()).append(",\t").append(rhs.getName()).append(getShift().toString()).append("\n");
         }
-        return res;
     }
 
     public void setCond(ArmAddition.CondType cond) {
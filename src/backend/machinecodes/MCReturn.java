@@ -5,6 +5,7 @@ import backend.CodeGenManager;
 import backend.reg.PhyReg;
 import backend.reg.Reg;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import static backend.CodeGenManager.canEncodeImm;
@@ -12,25 +13,21 @@ import static backend.CodeGenManager.canEncodeImm;
 public class MCReturn extends MachineCode{
 
     @Override
-    public String toString(){
-        String res="";
+    public void appendTo(Appendable out) throws IOException {
         int stackSize=getMb().getMF().getStackSize();
         MachineFunction mf=getMb().getMF();
-        int mcNum=0;
         if(stackSize>0){
             String op = canEncodeImm(-stackSize) ? "sub" : "add";
             MachineOperand v1 = canEncodeImm(-stackSize) ? new MachineOperand(-stackSize) : new MachineOperand(stackSize);
             if(canEncodeImm(stackSize)||canEncodeImm(-stackSize)){
-                res+="\t"+op;
-                res+="\tsp, sp, "+v1.getName()+"\n";
-                mcNum+=1;
+                out.append("\t").append(op);
+                out.append("\tsp, sp, ").append(v1.getName()).append("\n");
             }else{
                 MCMove mv=new MCMove();
                 mv.setRhs(v1);
                 mv.setDst(mf.getPhyReg("r5"));
-                res+=mv.toString();
-                res+="\t"+op+"\tsp,\tsp,\t"+mf.getPhyReg(5).getName()+"\n";
-                mcNum+=2;
+                mv.appendTo(out);
+                out.append("\t").append(op).append("\tsp,\tsp,\t").append(mf.getPhyReg(5).getName()).append("\n");
             }
 
         }
@@ -51,20 +48,14 @@ public class MCReturn extends MachineCode{
 //        });
 
         if (mf.isUsedLr()||!mf.getUsedSavedRegs().isEmpty()) {
-            String s=sb.toString();
-            int l=s.lastIndexOf(',');
-            s = s.substring(0,l);
-            res += "\tpop\t{";
-            res += s;
-            res += "}\n";
-            mcNum+=1;
+            int l=sb.lastIndexOf(",");
+            out.append("\tpop\t{");
+            out.append(sb, 0, l);
+            out.append("}\n");
         }
         if(!usedLR){
-            res+="\tbx\tlr\n";
-            mcNum+=1;
+            out.append("\tbx\tlr\n");
         }
-        CodeGenManager.getInstance().addOffset(mcNum,res.length());
-        return res;
     }
 
     static ArrayList<Reg> use=new ArrayList<>();
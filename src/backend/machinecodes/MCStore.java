@@ -1,7 +1,7 @@
 package backend.machinecodes;
 
-import backend.CodeGenManager;
 import backend.reg.MachineOperand;
+import java.io.IOException;
 
 public class MCStore extends MachineCode{
 
@@ -58,11 +58,9 @@ public class MCStore extends MachineCode{
     }
 
     @Override
-    public String toString(){
-        String res="\tstr"+ condString(cond)+"\t"+data.getName()+",\t["+addr.getName();
-        res+=",\t"+offset.getName()+getShift().toString()+"]\n";
-        CodeGenManager.getInstance().addOffset(1,res.length());
-        return res;
+    public void appendTo(Appendable out) throws IOException {
+        out.append("\tstr").append(condString(cond)).append("\t").append(data.getName()).append(",\t[").append(addr.getName());
+        out.append(",\t").append(offset.getName()).append(getShift().toString()).append("]\n");
     }
 
 
@@ -0,0 +1,102 @@
+package backend.machinecodes;
+
+import backend.reg.MachineOperand;
+import java.io.IOException;
+
+/**
+ * NEON 的 <4 x i32> 运算，来自 LoopVectorize
+ * <p>
+ * q 寄存器在 CodeGenManager 里直接分好（q8-q15），不进寄存器分配，只用编号表示，qN 就是 d(2N) 和 d(2N+1)。
+ * 核心寄存器的操作数只有一个：Load/Store 的地址，Dup/InsertLane 的标量，ExtractLane 的目的寄存器
+ * <p>
+ * Load/Store: vld1.32/vst1.32 {dA-dB}, [addr]
+ * Add/Sub/Mul: v{add,sub,mul}.i32 qd, qn, qm
+ * Dup: vdup.32 qd, scalar
+ * InsertLane: vmov.32 dX[i], scalar
+ * ExtractLane: vmov.32 scalar, dX[i]
+ */
+public class MCVector extends MachineCode {
+
+    public enum Kind {
+        Load,
+        Store,
+        Add,
+        Sub,
+        Mul,
+        Dup,
+        InsertLane,
+        ExtractLane
+    }
+
+    private final Kind kind;
+
+    private int qd;
+
+    private int qn;
+
+    private int qm;
+
+    private int lane;
+
+    private MachineOperand scalar = null;
+
+    public MCVector(Kind kind, MachineBlock mb) {
+        super(TAG.Vector, mb);
+        this.kind = kind;
+    }
+
+    @Override
+    public void appendTo(Appendable out) throws IOException {
+        switch (kind) {
+            case Load, Store -> out.append(kind == Kind.Load ? "\tvld1.32\t{d" : "\tvst1.32\t{d").append(String.valueOf(2 * qd))
+                    .append("-d").append(String.valueOf(2 * qd + 1)).append("},\t[").append(scalar.getName()).append("]\n");
+            case Add, Sub, Mul -> out.append("\tv").append(kind.name().toLowerCase()).append(".i32\tq").append(String.valueOf(qd))
+                    .append(",\tq").append(String.valueOf(qn)).append(",\tq").append(String.valueOf(qm)).append("\n");
+            case Dup -> out.append("\tvdup.32\tq").append(String.valueOf(qd)).append(",\t").append(scalar.getName()).append("\n");
+            case InsertLane -> out.append("\tvmov.32\t").append(laneName(qd)).append(",\t").append(scalar.getName()).append("\n");
+            case ExtractLane -> out.append("\tvmov.32\t").append(scalar.getName()).append(",\t").append(laneName(qn)).append("\n");
+        }
+    }
+
+    private String laneName(int q) {
+        return "d" + (2 * q + lane / 2) + "[" + lane % 2 + "]";
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public boolean isLoad() {
+        return kind == Kind.Load;
+    }
+
+    public boolean isStore() {
+        return kind == Kind.Store;
+    }
+
+    public MachineOperand getScalar() {
+        return scalar;
+    }
+
+    // ExtractLane 定义 scalar，其他的使用 scalar
+    public void setScalar(MachineOperand scalar) {
+        dealReg(this.scalar, scalar, kind != Kind.ExtractLane);
+        this.scalar = scalar;
+    }
+
+    public void setQd(int qd) {
+        this.qd = qd;
+    }
+
+    public void setQn(int qn) {
+        this.qn = qn;
+    }
+
+    public void setQm(int qm) {
+        this.qm = qm;
+    }
+
+    public void setLane(int lane) {
+        this.lane = lane;
+    }
+}
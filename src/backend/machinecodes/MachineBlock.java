@@ -1,5 +1,6 @@
 package backend.machinecodes;
 
+import backend.CodeGenManager;
 import backend.reg.VirtualReg;
 import util.IList;
 import util.IList.INode;
@@ -14,7 +15,6 @@ public class MachineBlock {
         return node;
     }
 
-    private static int index=0;
 
     private int loopDepth;
 
@@ -28,6 +28,9 @@ public class MachineBlock {
 
     private String name;
 
+    // 和 MachineCode 一样，用编号当 hashCode
+    private final int id;
+
     //basic struct
     private INode<MachineBlock, MachineFunction> node;
 
@@ -71,8 +74,13 @@ public class MachineBlock {
         this.mf=mf;
         node=new INode<>(this);
         node.setParent(mf.getmbList());
-        this.name=".__MB__"+((Integer)index).toString();
-        index++;
+        this.id=CodeGenManager.getInstance().nextMachineBlockId();
+        this.name=".__MB__"+id;
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
     }
 
     public String getName(){return name;}
@@ -1,32 +1,40 @@
 package backend.machinecodes;
 
+import backend.CodeGenManager;
 import backend.reg.*;
 import ir.types.Type;
 import backend.reg.MachineOperand;
 import backend.machinecodes.ArmAddition.Shift;
 import util.IList;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 public class MachineCode implements Cloneable {
 
-    private static int ID = 0;
-
     int slotIndex;
 
-    int id;
+    // 寄存器分配里 MCMove 放在 HashSet 里，用编号当 hashCode，遍历顺序不随 identityHashCode 变，每次编译输出一样
+    int id = CodeGenManager.getInstance().nextMachineCodeId();
 
     public Object clone(){
         MachineCode mc=null;
         try{
             mc=(MachineCode)super.clone();
+            mc.id=CodeGenManager.getInstance().nextMachineCodeId();
         }catch (Exception e){
 
         }
         return mc;
     }
 
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
     public enum TAG {
         Add,
         Sub,
@@ -47,6 +55,7 @@ public class MachineCode implements Cloneable {
         Store,
         Compare,
         Call,
+        Vector,
         Global,
         Comment,
         Phi
@@ -147,8 +156,11 @@ public class MachineCode implements Cloneable {
         return regDef;
     }
 
+    /**
+     * 机器指令层面的 def：比较和调用还定义 cspr。返回新的 list，不改 regDef
+     */
     public ArrayList<Reg> getMCDef() {
-        var defs = this.getDef();
+        var defs = new ArrayList<>(this.getDef());
         var cond = new PhyReg(16);
         if (this instanceof MCCompare || this instanceof MCCall) {
             defs.add(cond);
@@ -156,8 +168,11 @@ public class MachineCode implements Cloneable {
         return defs;
     }
 
+    /**
+     * 机器指令层面的 use：条件执行的指令还使用 cspr，调用还使用 sp。返回新的 list，不改 regUse
+     */
     public ArrayList<Reg> getMCUse() {
-        var uses = this.getUse();
+        var uses = new ArrayList<>(this.getUse());
         var cond = new PhyReg(16);
         if (this.getCond() != ArmAddition.CondType.Any) {
             uses.add(cond);
@@ -255,6 +270,23 @@ public class MachineCode implements Cloneable {
         }
     }
 
+    /**
+     * 把这条指令的汇编直接写进 out，genARM 输出时不再为每条指令拼一个 String
+     */
+    public void appendTo(Appendable out) throws IOException {
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            appendTo(sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
     public void insertBeforeNode(MachineCode mc) {
         node.setParent(mc.node.getParent());
         this.node.insertBefore(mc.node);
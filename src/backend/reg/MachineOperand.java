@@ -63,7 +63,7 @@ public class MachineOperand implements Comparable<MachineOperand> {
 
     @Override
     public int hashCode() {
-        return Objects.hash(imme, s);
+        return Objects.hash(imme, s.ordinal());
     }
 
     @Override
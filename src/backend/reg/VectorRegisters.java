@@ -0,0 +1,223 @@
+package backend.reg;
+
+import ir.values.BasicBlock;
+import ir.values.Function;
+import ir.values.Value;
+import ir.values.instructions.Instruction;
+import ir.values.instructions.Instruction.TAG_;
+import ir.values.instructions.MemInst.Phi;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * 给 LoopVectorize 生成的 <4 x i32> 值分配 q 寄存器
+ * <p>
+ * 向量值不进 RegAllocator，在 IR 上直接分：phi 和它的 incoming、InsertEle 和它插入的向量合成一组，
+ * 组之间做一遍只有向量值的活跃分析，冲突的组分不同的寄存器。用的是 q8-q15（d16-d31），调用约定里是调用者保存的，
+ * LoopVectorize 保证向量值活跃的地方没有调用，而且打包每个循环之前都用 fits 确认过分得下
+ */
+public final class VectorRegisters {
+
+    public static final int FIRST = 8;
+    public static final int COUNT = 8;
+
+    private VectorRegisters() {
+    }
+
+    /**
+     * @return 每个向量值的 q 寄存器编号，函数里没有向量值时是空的
+     */
+    public static HashMap<Value, Integer> assign(Function func) {
+        var result = tryAssign(func);
+        if (result == null) {
+            // LoopVectorize 每打包一个循环都用 fits 检查过，分不下的循环不会打包
+            throw new IllegalStateException("out of vector registers in " + func.getName());
+        }
+        return result;
+    }
+
+    /**
+     * 函数里的向量值能不能放进 COUNT 个 q 寄存器
+     */
+    public static boolean fits(Function func) {
+        return tryAssign(func) != null;
+    }
+
+    // 分不下时返回 null
+    private static HashMap<Value, Integer> tryAssign(Function func) {
+        var index = new HashMap<Value, Integer>();
+        var values = new ArrayList<Value>();
+        for (var bbNode : func.getList_()) {
+            for (var instNode : bbNode.getVal().getList()) {
+                var inst = instNode.getVal();
+                if (inst.getType().isVectorTy()) {
+                    index.put(inst, values.size());
+                    values.add(inst);
+                }
+            }
+        }
+        var result = new HashMap<Value, Integer>();
+        if (values.isEmpty()) {
+            return result;
+        }
+
+        // 并查集，组号按第一次出现的顺序重新编
+        int[] parent = new int[values.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        for (var value : values) {
+            var inst = (Instruction) value;
+            if (inst instanceof Phi) {
+                for (var incoming : ((Phi) inst).getIncomingVals()) {
+                    if (index.containsKey(incoming)) {
+                        union(parent, index.get(value), index.get(incoming));
+                    }
+                }
+            } else if (inst.tag == TAG_.InsertEle && index.containsKey(inst.getOperands().get(0))) {
+                union(parent, index.get(value), index.get(inst.getOperands().get(0)));
+            }
+        }
+        int[] group = new int[values.size()];
+        var groupOfRoot = new HashMap<Integer, Integer>();
+        for (int i = 0; i < values.size(); i++) {
+            group[i] = groupOfRoot.computeIfAbsent(find(parent, i), r -> groupOfRoot.size());
+        }
+        int groups = groupOfRoot.size();
+
+        // 活跃分析：phi 的 incoming 算在前驱的出口，phi 的定义算在块的入口
+        var blocks = new ArrayList<BasicBlock>();
+        for (var bbNode : func.getList_()) {
+            blocks.add(bbNode.getVal());
+        }
+        var gen = new HashMap<BasicBlock, BitSet>();
+        var kill = new HashMap<BasicBlock, BitSet>();
+        var phiUses = new HashMap<BasicBlock, BitSet>();
+        var liveIn = new HashMap<BasicBlock, BitSet>();
+        var liveOut = new HashMap<BasicBlock, BitSet>();
+        for (var bb : blocks) {
+            gen.put(bb, new BitSet(groups));
+            kill.put(bb, new BitSet(groups));
+            phiUses.put(bb, new BitSet(groups));
+            liveIn.put(bb, new BitSet(groups));
+            liveOut.put(bb, new BitSet(groups));
+        }
+        for (var bb : blocks) {
+            var bbGen = gen.get(bb);
+            var bbKill = kill.get(bb);
+            for (var instNode : bb.getList()) {
+                var inst = instNode.getVal();
+                if (inst instanceof Phi) {
+                    if (index.containsKey(inst)) {
+                        bbKill.set(group[index.get(inst)]);
+                        var incomingVals = ((Phi) inst).getIncomingVals();
+                        for (int i = 0; i < incomingVals.size(); i++) {
+                            if (index.containsKey(incomingVals.get(i))) {
+                                phiUses.get(bb.getPredecessor_().get(i)).set(group[index.get(incomingVals.get(i))]);
+                            }
+                        }
+                    }
+                    continue;
+                }
+                for (var operand : inst.getOperands()) {
+                    if (index.containsKey(operand) && !bbKill.get(group[index.get(operand)])) {
+                        bbGen.set(group[index.get(operand)]);
+                    }
+                }
+                if (index.containsKey(inst)) {
+                    bbKill.set(group[index.get(inst)]);
+                }
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = blocks.size() - 1; b >= 0; b--) {
+                var bb = blocks.get(b);
+                var out = (BitSet) phiUses.get(bb).clone();
+                for (var succ : bb.getSuccessor_()) {
+                    out.or(liveIn.get(succ));
+                }
+                var in = (BitSet) out.clone();
+                in.andNot(kill.get(bb));
+                in.or(gen.get(bb));
+                if (!out.equals(liveOut.get(bb)) || !in.equals(liveIn.get(bb))) {
+                    liveOut.put(bb, out);
+                    liveIn.put(bb, in);
+                    changed = true;
+                }
+            }
+        }
+
+        // 冲突图：每个定义和定义之后还活跃的组冲突
+        var interfere = new BitSet[groups];
+        for (int g = 0; g < groups; g++) {
+            interfere[g] = new BitSet(groups);
+        }
+        for (var bb : blocks) {
+            var live = (BitSet) liveOut.get(bb).clone();
+            var phiDefs = new BitSet(groups);
+            for (var instNode = bb.getList().getLast(); instNode != null; instNode = instNode.getPrev()) {
+                var inst = instNode.getVal();
+                if (inst instanceof Phi) {
+                    if (index.containsKey(inst)) {
+                        phiDefs.set(group[index.get(inst)]);
+                    }
+                    continue;
+                }
+                if (index.containsKey(inst)) {
+                    int def = group[index.get(inst)];
+                    addEdges(interfere, def, live);
+                    live.clear(def);
+                }
+                for (var operand : inst.getOperands()) {
+                    if (index.containsKey(operand)) {
+                        live.set(group[index.get(operand)]);
+                    }
+                }
+            }
+            live.or(phiDefs);
+            for (int def = phiDefs.nextSetBit(0); def >= 0; def = phiDefs.nextSetBit(def + 1)) {
+                addEdges(interfere, def, live);
+            }
+        }
+
+        int[] color = new int[groups];
+        for (int g = 0; g < groups; g++) {
+            var used = new BitSet(COUNT);
+            for (int n = interfere[g].nextSetBit(0); n >= 0 && n < g; n = interfere[g].nextSetBit(n + 1)) {
+                used.set(color[n]);
+            }
+            color[g] = used.nextClearBit(0);
+            if (color[g] >= COUNT) {
+                return null;
+            }
+        }
+        for (int i = 0; i < values.size(); i++) {
+            result.put(values.get(i), FIRST + color[group[i]]);
+        }
+        return result;
+    }
+
+    private static void addEdges(BitSet[] interfere, int def, BitSet live) {
+        for (int g = live.nextSetBit(0); g >= 0; g = live.nextSetBit(g + 1)) {
+            if (g != def) {
+                interfere[def].set(g);
+                interfere[g].set(def);
+            }
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        parent[find(parent, a)] = find(parent, b);
+    }
+}
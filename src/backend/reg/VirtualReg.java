@@ -1,5 +1,6 @@
 package backend.reg;
 
+import backend.CodeGenManager;
 import backend.machinecodes.MachineCode;
 
 import java.util.HashMap;
@@ -10,7 +11,6 @@ public class VirtualReg extends Reg {
     //是否是由SSA指令定义的
     private boolean isSSA=false;
 
-    private static int Name = 0;
 
     public boolean isGlobal() {
         return isGlobal;
@@ -87,7 +87,7 @@ public class VirtualReg extends Reg {
     public VirtualReg(String name){
         super(state.virtual);
         if(name==""){
-            this.name="%%"+Integer.toString(Name++);
+            this.name="%%"+Integer.toString(CodeGenManager.getInstance().nextVirtualRegId());
         }else{
             this.name=name;
         }
@@ -95,7 +95,7 @@ public class VirtualReg extends Reg {
 
     public VirtualReg(){
         super(state.virtual);
-        this.name="$"+Integer.toString(Name++);
+        this.name="$"+Integer.toString(CodeGenManager.getInstance().nextVirtualRegId());
     }
 
     public VirtualReg(String name, boolean isGlobal){
@@ -0,0 +1,155 @@
+package driver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个 JVM 里编译一批源文件：Compiler -S a.sy b.sy ... -d out/ [-j N] [-O2 ...]
+ * <p>
+ * 每个文件在自己的 CompilationContext 里编译，最多 N 个同时进行（默认是 CPU 数），单个文件内部的 function pass 不再并行。
+ * a.sy 输出 out/a.s 和 out/a.ll；不同目录下有同名文件时，输出名用整个路径，'/' 换成 '_'。
+ * 按输入顺序报告每个文件的耗时，最后报告总的吞吐
+ */
+public class BatchCompiler {
+
+  // 和 -Xss256m 一样
+  private static final long STACK_SIZE = 256L << 20;
+
+  private static class Result {
+
+    boolean ok = true;
+    long nanos;
+    long lines;
+    String message = "";
+  }
+
+  /**
+   * @param options 每个文件都带上的其他参数，比如 -O2、-debug
+   * @param passTimingJson 每个文件的 pass 统计写到 out/a.passes.json
+   * @return 失败的文件数
+   */
+  public static int run(List<String> sources, Path outDir, List<String> options, int workers,
+      boolean passTimingJson, PrintStream report) throws Exception {
+    Files.createDirectories(outDir);
+    var stems = outputStems(sources);
+
+    AtomicInteger id = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers), r -> {
+      var thread = new Thread(null, r, "batch-worker-" + id.getAndIncrement(), STACK_SIZE);
+      thread.setDaemon(true);
+      return thread;
+    });
+    long start = System.nanoTime();
+    var futures = new ArrayList<Future<Result>>();
+    for (int i = 0; i < sources.size(); i++) {
+      String source = sources.get(i);
+      String stem = stems.get(i);
+      futures.add(pool.submit(() -> compileOne(source, outDir, stem, options, passTimingJson)));
+    }
+
+    int failed = 0;
+    long busy = 0;
+    long lines = 0;
+    try {
+      for (int i = 0; i < sources.size(); i++) {
+        Result result;
+        try {
+          result = futures.get(i).get();
+        } catch (ExecutionException e) {
+          result = new Result();
+          result.ok = false;
+          result.message = String.valueOf(e.getCause());
+        }
+        if (!result.ok) {
+          failed++;
+        }
+        busy += result.nanos;
+        lines += result.lines;
+        report.printf("%-4s %10.1f ms  %s%n", result.ok ? "ok" : "FAIL", result.nanos / 1e6,
+            sources.get(i));
+        report.print(result.message);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    double wall = (System.nanoTime() - start) / 1e9;
+    report.printf("%d files (%d failed), %d lines in %.2f s: %.1f files/s, %.0f lines/s, "
+            + "%.2f s compiling on %d workers (%.2fx)%n", sources.size(), failed, lines, wall,
+        sources.size() / wall, lines / wall, busy / 1e9, Math.max(1, workers), busy / 1e9 / wall);
+    return failed;
+  }
+
+  private static Result compileOne(String source, Path outDir, String stem, List<String> options,
+      boolean passTimingJson) throws Exception {
+    var result = new Result();
+    var diagBytes = new ByteArrayOutputStream();
+    var diag = new PrintStream(diagBytes, true, StandardCharsets.UTF_8);
+    var args = new ArrayList<String>();
+    args.add("-S");
+    args.add(source);
+    args.add("-o");
+    args.add(outDir.resolve(stem + ".s").toString());
+    args.addAll(options);
+    if (passTimingJson) {
+      args.add("-time-passes-json");
+      args.add(outDir.resolve(stem + ".passes.json").toString());
+    }
+
+    long start = System.nanoTime();
+    try {
+      new CompilationContext().call(() -> {
+        Config.getInstance().llvmOutput = outDir.resolve(stem + ".ll").toString();
+        CompilerDriverRaw.compile(args.toArray(new String[0]), diag);
+        return null;
+      });
+    } catch (Throwable e) {
+      result.ok = false;
+      var trace = new StringWriter();
+      e.printStackTrace(new PrintWriter(trace));
+      diag.print(trace);
+    }
+    result.nanos = System.nanoTime() - start;
+    try (var stream = Files.lines(Paths.get(source))) {
+      result.lines = stream.count();
+    } catch (Exception e) {
+      // 读不了的源文件上面已经报错了
+    }
+    result.message = diagBytes.toString(StandardCharsets.UTF_8);
+    return result;
+  }
+
+  private static List<String> outputStems(List<String> sources) {
+    var count = new HashMap<String, Integer>();
+    for (var source : sources) {
+      count.merge(stem(Paths.get(source).getFileName().toString()), 1, Integer::sum);
+    }
+    var stems = new ArrayList<String>();
+    for (var source : sources) {
+      String stem = stem(Paths.get(source).getFileName().toString());
+      if (count.get(stem) > 1) {
+        stem = stem(Paths.get(source).normalize().toString()).replace('/', '_');
+      }
+      stems.add(stem);
+    }
+    return stems;
+  }
+
+  private static String stem(String name) {
+    return name.endsWith(".sy") ? name.substring(0, name.length() - ".sy".length()) : name;
+  }
+}
@@ -0,0 +1,57 @@
+package driver;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+
+/**
+ * 一次编译的全部状态：MyModule、CodeGenManager、PassManager、Config、AnalysisManager 这些原来的单例都挂在这里
+ * <p>
+ * 各个类的 getInstance() 从当前线程绑定的 context 里取，第一次取的时候创建。命令行编译不绑定，用全局的那一个；
+ * daemon 每个请求 new 一个 context，请求之间不共享任何 IR 和后端状态，可以同时编译
+ */
+public final class CompilationContext {
+
+  private static final CompilationContext global = new CompilationContext();
+  private static final ThreadLocal<CompilationContext> bound = new ThreadLocal<>();
+
+  private final HashMap<Class<?>, Object> components = new HashMap<>();
+
+  public static CompilationContext current() {
+    var context = bound.get();
+    return context != null ? context : global;
+  }
+
+  /**
+   * 取这个 context 里 key 对应的对象，没有的话用 factory 创建
+   * <p>
+   * factory 里可以再调别的类的 getInstance()，比如 PassManager 的构造方法里会取 AnalysisManager
+   */
+  public synchronized <T> T get(Class<T> key, Supplier<T> factory) {
+    Object component = components.get(key);
+    if (component == null) {
+      component = factory.get();
+      components.put(key, component);
+    }
+    return key.cast(component);
+  }
+
+  /**
+   * 在当前线程上以这个 context 运行 task，结束后恢复原来绑定的 context
+   * <p>
+   * 并行 pass 的工作线程也要通过它绑定，否则 getInstance() 拿到的是全局的 context
+   */
+  public <T> T call(Callable<T> task) throws Exception {
+    var previous = bound.get();
+    bound.set(this);
+    try {
+      return task.call();
+    } finally {
+      if (previous == null) {
+        bound.remove();
+      } else {
+        bound.set(previous);
+      }
+    }
+  }
+}
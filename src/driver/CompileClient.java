@@ -0,0 +1,40 @@
+package driver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+
+/**
+ * CompileServer 的客户端，只负责转发，不加载编译器本身的类
+ * <p>
+ * 用法：java -cp ... driver.CompileClient ADDRESS [和 Compiler 一样的参数]，退出码是服务端编译的结果
+ */
+public class CompileClient {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: CompileClient ADDRESS [compiler args...]");
+      System.exit(2);
+    }
+    int status;
+    try (var channel = SocketChannel.open(CompileServer.parseAddress(args[0]))) {
+      var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      out.writeUTF(Paths.get("").toAbsolutePath().toString());
+      out.writeInt(args.length - 1);
+      for (int i = 1; i < args.length; i++) {
+        out.writeUTF(args[i]);
+      }
+      out.flush();
+
+      var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+      status = in.readInt();
+      System.err.print(in.readUTF());
+    }
+    System.exit(status);
+  }
+}
@@ -0,0 +1,123 @@
+package driver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+import util.Mylogger;
+
+/**
+ * 常驻的编译服务：JVM、ANTLR 的 ATN、JIT 过的代码在请求之间都是热的
+ * <p>
+ * 每个连接一个请求：
+ * <pre>
+ *   请求  工作目录(UTF) 参数个数(int) 参数(UTF)...   参数和直接运行 Compiler 时一样
+ *   响应  退出码(int) 诊断信息(UTF)
+ * </pre>
+ * 每个请求在自己的线程上、用新的 CompilationContext 编译，请求之间不共享状态；同时编译的请求数不超过 workers
+ */
+public class CompileServer {
+
+  // 和 -Xss256m 一样
+  private static final long STACK_SIZE = 256L << 20;
+  // writeUTF 最多 64K
+  private static final int MAX_MESSAGE = 60000;
+
+  /**
+   * @param address unix:/path/to/socket、host:port 或者 port（只监听 127.0.0.1）
+   */
+  public static void serve(String address, int workers) throws IOException {
+    Logger log = Mylogger.getLogger(CompileServer.class);
+    var socketAddress = parseAddress(address);
+    boolean unix = socketAddress instanceof UnixDomainSocketAddress;
+    if (unix) {
+      Files.deleteIfExists(((UnixDomainSocketAddress) socketAddress).getPath());
+    }
+    Semaphore slots = new Semaphore(Math.max(1, workers));
+    try (var server = ServerSocketChannel
+        .open(unix ? StandardProtocolFamily.UNIX : StandardProtocolFamily.INET)) {
+      server.bind(socketAddress);
+      log.info("compile server listening on " + address);
+      while (true) {
+        SocketChannel channel = server.accept();
+        slots.acquireUninterruptibly();
+        var thread = new Thread(null, () -> {
+          try {
+            handle(channel);
+          } finally {
+            slots.release();
+          }
+        }, "compile-" + channel.hashCode(), STACK_SIZE);
+        thread.start();
+      }
+    }
+  }
+
+  public static SocketAddress parseAddress(String address) {
+    if (address.startsWith("unix:")) {
+      return UnixDomainSocketAddress.of(address.substring("unix:".length()));
+    }
+    int colon = address.lastIndexOf(':');
+    if (colon < 0) {
+      return new InetSocketAddress("127.0.0.1", Integer.parseInt(address));
+    }
+    return new InetSocketAddress(address.substring(0, colon),
+        Integer.parseInt(address.substring(colon + 1)));
+  }
+
+  private static void handle(SocketChannel channel) {
+    try (channel) {
+      var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+      var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      Path workDir = Paths.get(in.readUTF());
+      String[] args = new String[in.readInt()];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = in.readUTF();
+      }
+
+      var diagBytes = new ByteArrayOutputStream();
+      var diag = new PrintStream(diagBytes, true, StandardCharsets.UTF_8);
+      int status = 0;
+      try {
+        new CompilationContext().call(() -> {
+          Config.getInstance().workDir = workDir;
+          CompilerDriverRaw.compile(args, diag);
+          return null;
+        });
+      } catch (Throwable e) {
+        status = 1;
+        var trace = new StringWriter();
+        e.printStackTrace(new PrintWriter(trace));
+        diag.print(trace);
+      }
+
+      String message = diagBytes.toString(StandardCharsets.UTF_8);
+      if (message.length() > MAX_MESSAGE) {
+        message = message.substring(0, MAX_MESSAGE) + "\n...\n";
+      }
+      out.writeInt(status);
+      out.writeUTF(message);
+      out.flush();
+    } catch (IOException e) {
+      System.err.println("compile request failed: " + e);
+    }
+  }
+}
@@ -4,16 +4,28 @@ import backend.CodeGenManager;
 import frontend.SysYLexer;
 import frontend.SysYParser;
 import frontend.Visitor;
+import ir.Analysis.AnalysisManager;
 import ir.MyModule;
-import java.io.File;
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
 import pass.PassManager;
 import util.Mylogger;
 
@@ -30,6 +42,78 @@ public class CompilerDriverRaw {
 
   public static void run(String[] args) {
     Mylogger.init();
+    var cmds = Arrays.asList(args);
+    int daemon = cmds.indexOf("-daemon");
+    if (daemon >= 0 && daemon + 1 < args.length) {
+      int j = cmds.indexOf("-j");
+      int workers = j >= 0 && j + 1 < args.length ? Integer.parseInt(args[j + 1])
+          : Runtime.getRuntime().availableProcessors();
+      try {
+        CompileServer.serve(args[daemon + 1], workers);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+    int outDir = cmds.indexOf("-d");
+    if (outDir >= 0 && outDir + 1 < args.length) {
+      runBatch(args, outDir);
+      return;
+    }
+
+    try {
+      compile(args, System.err);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * -S a.sy b.sy ... -d DIR [-j N]：-j 是同时编译的文件数，其余参数每个文件都带上；
+   * -time-passes-json 的文件名忽略，每个源文件写到 DIR 下自己的 .passes.json
+   */
+  private static void runBatch(String[] args, int outDir) {
+    var sources = new ArrayList<String>();
+    var options = new ArrayList<String>();
+    int workers = Runtime.getRuntime().availableProcessors();
+    boolean passTimingJson = false;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (i == outDir) {
+        i++;
+      } else if ((arg.equals("-j") || arg.equals("-o") || arg.equals("-time-passes-json"))
+          && i + 1 < args.length) {
+        if (arg.equals("-j")) {
+          workers = Integer.parseInt(args[i + 1]);
+        }
+        if (arg.equals("-time-passes-json")) {
+          passTimingJson = true;
+        }
+        i++;
+      } else if (arg.endsWith(".sy")) {
+        sources.add(arg);
+      } else if (!arg.equals("-S")) {
+        options.add(arg);
+      }
+    }
+    try {
+      int failed = BatchCompiler.run(sources, Paths.get(args[outDir + 1]), options, workers,
+          passTimingJson, System.err);
+      if (failed > 0) {
+        System.exit(1);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  /**
+   * 在当前的 CompilationContext 里编译一个文件，相对路径按 Config.workDir 解析
+   *
+   * @param diag 诊断输出（-debug 的分析统计、-time-passes 的表），daemon 里会转发给客户端
+   */
+  public static void compile(String[] args, PrintStream diag) throws IOException {
     Config config = Config.getInstance();
     PassManager pm = PassManager.getPassManager();
 
@@ -46,7 +130,40 @@ public class CompilerDriverRaw {
         continue;
       }
       if (cmd.equals("-O2")) {
-        Config.getInstance().isO2 = true;
+        config.isO2 = true;
+      }
+      if (cmd.equals("-j")) {
+        config.jobs = Math.max(1, Integer.parseInt(iter.next()));
+        continue;
+      }
+      if (cmd.equals("-debug")) {
+        config.isDebugMode = true;
+      }
+      if (cmd.equals("-time-passes")) {
+        config.timePasses = true;
+      }
+      if (cmd.equals("-linear-scan")) {
+        config.linearScan = true;
+      }
+      if (cmd.equals("-linear-scan-threshold")) {
+        config.linearScanThreshold = Integer.parseInt(iter.next());
+        continue;
+      }
+      if (cmd.equals("-stream-parse")) {
+        config.streamParse = true;
+      }
+      if (cmd.equals("-vectorize")) {
+        config.vectorize = true;
+      }
+      if (cmd.equals("-parallel")) {
+        config.parallel = true;
+      }
+      if (cmd.equals("-loop-idiom")) {
+        config.loopIdiom = true;
+      }
+      if (cmd.equals("-time-passes-json")) {
+        config.timePassesJson = iter.next();
+        continue;
       }
       if (cmd.endsWith(".sy")) {
         source = cmd;
@@ -56,62 +173,127 @@ public class CompilerDriverRaw {
     assert source != null;
     assert target != null;
 
-    try {
-      Mylogger.init();
-      CharStream input = CharStreams.fromFileName(source);
-
-      SysYLexer lexer = new SysYLexer(input);
-      CommonTokenStream tokens = new CommonTokenStream(lexer);
-
-      SysYParser parser = new SysYParser(tokens);
-      ParseTree tree = parser.program();
+    CharStream input = CharStreams.fromPath(config.workDir.resolve(source));
+    if (config.streamParse) {
+      MyModule.getInstance().init();
+      parse(input, () -> {
+        MyModule.getInstance().clear();
+        return new Visitor().streamingListener();
+      });
+    } else {
+      ParseTree tree = parse(input);
 
       MyModule.getInstance().init();
       Visitor visitor = new Visitor(/* OptionsTable table */);
       visitor.visit(tree);
-      pm.openedPasses_.add("bbPredSucc");
-      pm.openedPasses_.add("Mem2reg");
-      pm.openedPasses_.add("RegAlloc");
-      pm.openedPasses_.add("gvngcm");
-      pm.openedPasses_.add("interproceduralAnalysis");
-      if (Config.getInstance().isO2) {
-//        pm.openedPasses_.add("gvlocalize");
-        pm.openedPasses_.add("branchOptimization");
-        pm.openedPasses_.add("emitllvm");
-        pm.openedPasses_.add("deadcodeemit");
-        pm.openedPasses_.add("funcinline");
-        pm.openedPasses_.add("interproceduraldce");
-        pm.openedPasses_.add("markConstantArray");
-        pm.openedPasses_.add("ListScheduling");
-        pm.openedPasses_.add("Peephole");
-        pm.openedPasses_.add("CondExec");
-        pm.openedPasses_.add("loopInfoFullAnalysis");
-        pm.openedPasses_.add("LCSSA");
-        pm.openedPasses_.add("loopUnroll");
-        pm.openedPasses_.add("constantLoopUnroll");
-        pm.openedPasses_.add("MergeMachineBlock");
-        pm.openedPasses_.add("redundantLoop");
-        pm.openedPasses_.add("loopIdiom");
-        pm.openedPasses_.add("loopMergeLastBreak");
-        pm.openedPasses_.add("promotion");
-        pm.openedPasses_.add("loopFusion");
-      }
+    }
+    openPasses(pm);
 
-      pm.runIRPasses(MyModule.getInstance());
+    pm.runIRPasses(MyModule.getInstance());
 
-      CodeGenManager cgm = CodeGenManager.getInstance();
-      cgm.load(MyModule.getInstance());
+    CodeGenManager cgm = CodeGenManager.getInstance();
+    cgm.load(MyModule.getInstance());
 
-      cgm.MachineCodeGeneration();
-      pm.runMCPasses(CodeGenManager.getInstance());
+    cgm.MachineCodeGeneration();
+    pm.runMCPasses(CodeGenManager.getInstance());
 
-      File f = new File(target);
-      FileWriter fw = new FileWriter(f);
-      fw.append(cgm.genARM());
-      fw.append("@ver: final-1");
-      fw.close();
-    } catch (IOException e) {
-      e.printStackTrace();
+    try (BufferedWriter bw = new BufferedWriter(
+        new FileWriter(config.workDir.resolve(target).toFile()), 1 << 16)) {
+      cgm.genARM(bw);
+      bw.append("@ver: final-1");
+    }
+    if (config.isDebugMode) {
+      diag.print(AnalysisManager.getInstance().dumpCounters());
+    }
+    if (config.timePasses) {
+      diag.print(pm.getTimer().table());
+    }
+    if (config.timePassesJson != null) {
+      Files.writeString(config.workDir.resolve(config.timePassesJson), pm.getTimer().json());
+    }
+  }
+
+  public static ParseTree parse(CharStream input) {
+    return parse(input, null);
+  }
+
+  /**
+   * 两阶段分析：先用 SLL 预测，出错直接放弃（BailErrorStrategy），SysY 的程序基本都能这样一遍分析完；
+   * 失败了（真的有语法错误，或者 SLL 判断不了）再倒回开头，用完整的 LL 和默认的错误恢复重新分析
+   *
+   * @param listeners 不为 null 时每一遍分析前取一个 parse listener 挂上
+   */
+  private static ParseTree parse(CharStream input, Supplier<ParseTreeListener> listeners) {
+    SysYLexer lexer = new SysYLexer(input);
+    CommonTokenStream tokens = new CommonTokenStream(lexer);
+
+    SysYParser parser = new SysYParser(tokens);
+    parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+    parser.removeErrorListeners();
+    parser.setErrorHandler(new BailErrorStrategy());
+    if (listeners != null) {
+      parser.setTrimParseTree(true);
+      parser.addParseListener(listeners.get());
+    }
+    try {
+      return parser.program();
+    } catch (ParseCancellationException e) {
+      parser.reset();
+      parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+      parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+      parser.setErrorHandler(new DefaultErrorStrategy());
+      if (listeners != null) {
+        parser.removeParseListeners();
+        parser.setTrimParseTree(true);
+        parser.addParseListener(listeners.get());
+      }
+      return parser.program();
+    }
+  }
+
+  /**
+   * 打开这次编译要跑的 pass，-O2、-linear-scan 要在这之前设置好
+   */
+  public static void openPasses(PassManager pm) {
+    pm.openedPasses_.add("bbPredSucc");
+    pm.openedPasses_.add("Mem2reg");
+    if (Config.getInstance().linearScan || !Config.getInstance().isO2) {
+      pm.openedPasses_.add("LinearScanRegAlloc");
+    } else {
+      pm.openedPasses_.add("RegAlloc");
+    }
+    pm.openedPasses_.add("gvngcm");
+    pm.openedPasses_.add("interproceduralAnalysis");
+    if (Config.getInstance().isO2) {
+//        pm.openedPasses_.add("gvlocalize");
+      pm.openedPasses_.add("branchOptimization");
+      pm.openedPasses_.add("emitllvm");
+      pm.openedPasses_.add("deadcodeemit");
+      pm.openedPasses_.add("funcinline");
+      pm.openedPasses_.add("interproceduraldce");
+      pm.openedPasses_.add("markConstantArray");
+      pm.openedPasses_.add("ListScheduling");
+      pm.openedPasses_.add("Peephole");
+      pm.openedPasses_.add("CondExec");
+      pm.openedPasses_.add("loopInfoFullAnalysis");
+      pm.openedPasses_.add("LCSSA");
+      pm.openedPasses_.add("loopUnroll");
+      pm.openedPasses_.add("constantLoopUnroll");
+      pm.openedPasses_.add("MergeMachineBlock");
+      pm.openedPasses_.add("redundantLoop");
+      pm.openedPasses_.add("loopMergeLastBreak");
+      pm.openedPasses_.add("promotion");
+      pm.openedPasses_.add("loopFusion");
+      pm.openedPasses_.add("licm");
+      if (Config.getInstance().vectorize) {
+        pm.openedPasses_.add("loopVectorize");
+      }
+      if (Config.getInstance().parallel) {
+        pm.openedPasses_.add("markParallel");
+      }
+      if (Config.getInstance().loopIdiom) {
+        pm.openedPasses_.add("loopIdiom");
+      }
     }
   }
 }
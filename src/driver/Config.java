@@ -1,5 +1,7 @@
 package driver;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /***
  * This is the config file of the compiler
@@ -7,18 +9,27 @@ package driver;
  ***/
 public class Config {
 
-  private static Config config = new Config();
-
   public static Config getInstance() {
 
-    return config;
+    return CompilationContext.current().get(Config.class, Config::new);
   }
 
-  public boolean isDebugMode = false;
+  public boolean isDebugMode = false; // -debug: 汇编里带上基本块前驱后继的注释
   public boolean isIRMode = false;
   public boolean isOutPutMode = false;
   public boolean isO2 = false;
   public boolean runStableRegAlloc = false;
+  public boolean linearScan = false; // -linear-scan: 用线性扫描分配寄存器，不带 -O2 时也是
+  public int linearScanThreshold = 20000; // -linear-scan-threshold N: -O2 下机器指令超过 N 条的函数也用线性扫描，0 表示不切换
+  public boolean streamParse = false; // -stream-parse: 边分析边生成 IR，不保留整棵语法树
+  public boolean vectorize = false; // -vectorize: -O2 下把 LoopUnroll 展开的最内层循环打包成 NEON 向量运算
+  public boolean parallel = false; // -parallel: -O2 下把没有跨迭代依赖的循环拆到 4 个核上跑
+  public boolean loopIdiom = false; // -loop-idiom: -O2 下用 ScalarEvolution 算出只做算数的循环的退出值，删掉循环
+  public Path workDir = Paths.get(""); // 相对路径（源文件、输出、out.ll）相对于它，daemon 里是客户端的工作目录
+  public String llvmOutput = "out.ll"; // emitllvm 的输出，批量编译时每个源文件一个
+  public boolean timePasses = false; // -time-passes: 编译结束时打印每个 pass 的时间、分配量、IR 大小
+  public String timePassesJson = null; // -time-passes-json FILE: 同样的数据写成 JSON
+  public int jobs = 1; // -j N: 并行跑 function pass 的线程数，1 就是原来的串行
 
   private Config() {
   }
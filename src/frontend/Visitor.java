@@ -14,6 +14,7 @@ import ir.values.BasicBlock;
 import ir.values.Constant;
 import ir.values.Constants.ConstantArray;
 import ir.values.Constants.ConstantInt;
+import ir.values.Constants.IntArray;
 import ir.values.Function;
 import ir.values.Value;
 import ir.values.ValueCloner;
@@ -30,6 +31,10 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.logging.Logger;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
 
 import ir.values.instructions.Instruction;
 import util.Mylogger;
@@ -140,6 +145,11 @@ public class Visitor extends SysYBaseVisitor<Void> {
    */
   @Override
   public Void visitProgram(ProgramContext ctx) {
+    declareBuiltins();
+    return super.visitProgram(ctx);
+  }
+
+  private void declareBuiltins() {
     log.info("Syntax begin");
     IntegerType i32Type = f.getI32Ty();
     VoidType voidType = f.getVoidTy();
@@ -170,8 +180,38 @@ public class Visitor extends SysYBaseVisitor<Void> {
     scope_
         .put("stoptime",
             f.buildFunction("_sysy_stoptime", f.getFuncTy(voidType, params_int), true));
+  }
 
-    return super.visitProgram(ctx);
+  /**
+   * -stream-parse：作为 parse listener 挂到 parser 上，不等整棵树建完，每分析完一个顶层的 funcDef/decl 就翻译，
+   * 翻译完从 compUnit 上摘掉，同一时间只有一个顶层定义的子树留在内存里
+   */
+  public ParseTreeListener streamingListener() {
+    return new ParseTreeListener() {
+      @Override
+      public void visitTerminal(TerminalNode node) {
+      }
+
+      @Override
+      public void visitErrorNode(ErrorNode node) {
+      }
+
+      @Override
+      public void enterEveryRule(ParserRuleContext ctx) {
+        if (ctx instanceof ProgramContext) {
+          declareBuiltins();
+        }
+      }
+
+      @Override
+      public void exitEveryRule(ParserRuleContext ctx) {
+        if ((ctx instanceof FuncDefContext || ctx instanceof DeclContext)
+            && ctx.getParent() instanceof CompUnitContext) {
+          visit(ctx);
+          ctx.getParent().removeLastChild();
+        }
+      }
+    };
   }
 
   /**
@@ -204,6 +244,15 @@ public class Visitor extends SysYBaseVisitor<Void> {
     return null;
   }
 
+  // 全局数组的初始值都是 ConstantInt，只留下值，plainInit 和 fixedInit 共用
+  private IntArray packInts(ArrayList<Value> inits) {
+    var values = new int[inits.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = ((ConstantInt) inits.get(i)).getVal();
+    }
+    return IntArray.of(values);
+  }
+
   //把一堆Constant封装为一个按照dims排列的ConstArr
   public Constant genConstArr(ArrayList<Integer> dims, ArrayList<Value> inits) {
     var curDimLength = dims.get(0);
@@ -263,11 +312,9 @@ public class Visitor extends SysYBaseVisitor<Void> {
           globalInit_ = true;
           visit(ctx.constInitVal());//dim.size()=n
           globalInit_ = false;
-          var arr = tmpArr_;
-          ArrayList<Constant> g = new ArrayList<>();
-          arr.forEach(i -> g.add(((ConstantInt) i)));
-          var plainInit = new ConstantArray(arrty, g);
-          var foldedInit = genConstArr(dims, tmpArr_);
+          var values = packInts(tmpArr_);
+          var plainInit = f.getConstantArray(arrty, values, true);
+          var foldedInit = f.getConstantArray(arrty, values, false);
           var variable = f.getGlobalvariable(ctx.IDENT().getText(), arrty, foldedInit, plainInit);
           variable.setConst();
           scope_.put(ctx.IDENT().getText(), variable);
@@ -414,11 +461,9 @@ public class Visitor extends SysYBaseVisitor<Void> {
           visit(ctx.initVal());
           globalInit_ = false;
 
-          var arr = tmpArr_;
-          ArrayList<Constant> g = new ArrayList<>();
-          arr.forEach(i -> g.add(((ConstantInt) i)));
-          var plainInit = new ConstantArray(arrTy, g);
-          var fixedInit = genConstArr(dims, arr);
+          var values = packInts(tmpArr_);
+          var plainInit = f.getConstantArray(arrTy, values, true);
+          var fixedInit = f.getConstantArray(arrTy, values, false);
           var glo = f.getGlobalvariable(ctx.IDENT().getText(), arrTy, fixedInit, plainInit);
           scope_.put(ctx.IDENT().getText(), glo);
         } else {
@@ -0,0 +1,346 @@
+package ir.Analysis;
+
+import driver.CompilationContext;
+import ir.values.BasicBlock;
+import ir.values.Function;
+import ir.values.GlobalVariable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Logger;
+import util.IList.INode;
+import util.Mylogger;
+
+/**
+ * 函数级分析结果的缓存。
+ * <p>
+ * Pass 通过 require* 拿分析结果，结果按 Function 缓存；PassManager 在每个 pass 之后把它没有声明保留的分析作废。
+ * 缓存的时候同时记下 CFG 的快照（基本块顺序 + pred/succ），取缓存前先对一下快照， pass 内部改了 CFG 却没有作废的情况也能发现并重算。
+ * <p>
+ * function pass 并行的时候不同线程处理不同的函数，缓存按函数分开，互不干扰。
+ * <p>
+ * alias 信息不在这里：ArrayAliasAnalysis 会往 IR 里插 MemPhi，每次都要重新跑，能缓存的只是它依赖的支配信息，
+ * 以及它查询函数调用时用到的函数-全局变量关系。
+ */
+public class AnalysisManager {
+
+  public enum AnalysisKind {
+    DOMINANCE,
+    DOMINANCE_FRONTIER,
+    LOOP_INFO
+  }
+
+  // 只依赖 CFG 的分析，不动 CFG 的 pass 都可以保留
+  public static final Set<AnalysisKind> CFG_ANALYSES = Collections
+      .unmodifiableSet(EnumSet.allOf(AnalysisKind.class));
+  // 改了 CFG 但是通过 beginCFGUpdate/endCFGUpdate 维护了支配树的 pass 保留这个
+  public static final Set<AnalysisKind> DOMINANCE_ONLY = Collections
+      .unmodifiableSet(EnumSet.of(AnalysisKind.DOMINANCE));
+  public static final Set<AnalysisKind> NONE = Collections
+      .unmodifiableSet(EnumSet.noneOf(AnalysisKind.class));
+
+  private final Logger log = Mylogger.getLogger(AnalysisManager.class);
+  private final ConcurrentHashMap<Function, EnumMap<AnalysisKind, CFGSnapshot>> cache =
+      new ConcurrentHashMap<>();
+  // 正在改 CFG 的函数，见 beginCFGUpdate
+  private final ConcurrentHashMap<Function, CFGUpdate> updates = new ConcurrentHashMap<>();
+  // 支配树是在有不可达基本块的 CFG 上用迭代算法算的，不能在上面增量更新
+  private final Set<Function> partialDomTrees = ConcurrentHashMap.newKeySet();
+  private final EnumMap<AnalysisKind, AtomicIntegerArray> counters = new EnumMap<>(AnalysisKind.class);
+
+  // ArrayAliasAnalysis.callAlias 用的函数-全局变量关系，PassManager 在每个 pass 开始前算好，pass 运行期间只读
+  private volatile Map<Function, Set<GlobalVariable>> relatedGlobals = Collections.emptyMap();
+
+  private static final int COMPUTED = 0;
+  private static final int REUSED = 1;
+  private static final int CFG_CHANGED = 2;
+  private static final int UPDATED = 3;
+
+  private AnalysisManager() {
+    for (var kind : AnalysisKind.values()) {
+      counters.put(kind, new AtomicIntegerArray(4));
+    }
+  }
+
+  public static AnalysisManager getInstance() {
+    return CompilationContext.current().get(AnalysisManager.class, AnalysisManager::new);
+  }
+
+  /**
+   * 保证 func 上每个基本块的 domers/idoms/idomer/domLevel 是最新的
+   */
+  public void requireDomInfo(Function func) {
+    if (isValid(func, AnalysisKind.DOMINANCE)) {
+      return;
+    }
+    if (DomInfo.computeDominanceInfo(func)) {
+      partialDomTrees.remove(func);
+    } else {
+      partialDomTrees.add(func);
+    }
+    // CFG 改到一半重算了支配树，之前的增量更新不能再往上做
+    var update = updates.get(func);
+    if (update != null) {
+      update.valid = false;
+    }
+    // 依赖支配树的结果跟着作废
+    invalidate(func, AnalysisKind.DOMINANCE_FRONTIER);
+    invalidate(func, AnalysisKind.LOOP_INFO);
+    markValid(func, AnalysisKind.DOMINANCE);
+  }
+
+  public void requireDominanceFrontier(Function func) {
+    requireDomInfo(func);
+    if (isValid(func, AnalysisKind.DOMINANCE_FRONTIER)) {
+      return;
+    }
+    DomInfo.computeDominanceFrontier(func);
+    markValid(func, AnalysisKind.DOMINANCE_FRONTIER);
+  }
+
+  /**
+   * 只保证循环结构（bbLoopMap、循环树）是最新的，indVar/exit 这些跟指令有关的信息要调用方自己 computeAdditionalLoopInfo
+   */
+  public LoopInfo requireLoopInfo(Function func) {
+    requireDomInfo(func);
+    if (!isValid(func, AnalysisKind.LOOP_INFO)) {
+      func.getLoopInfo().computeLoopInfo(func);
+      markValid(func, AnalysisKind.LOOP_INFO);
+    }
+    return func.getLoopInfo();
+  }
+
+  /**
+   * 开始改 func 的 CFG。缓存的支配树正好对应当前 CFG 的话，之后的改动通过 edgeInserted/edgeDeleted/blockContracted/
+   * deadBlocksRemoved 增量更新到支配树上，endCFGUpdate 时重新记为有效；否则 endCFGUpdate 时作废，下次用到再重算。
+   * 依赖支配树的其他分析直接作废
+   */
+  public void beginCFGUpdate(Function func) {
+    var entry = cache.remove(func);
+    var snapshot = entry == null ? null : entry.get(AnalysisKind.DOMINANCE);
+    if (snapshot != null && !partialDomTrees.contains(func) && snapshot.matches(func)) {
+      updates.put(func, new CFGUpdate());
+    } else {
+      updates.remove(func);
+    }
+  }
+
+  public void endCFGUpdate(Function func) {
+    var update = updates.remove(func);
+    if (update != null && update.valid && update.unreachable.isEmpty()) {
+      cache.computeIfAbsent(func, f -> new EnumMap<>(AnalysisKind.class))
+          .put(AnalysisKind.DOMINANCE, new CFGSnapshot(func));
+    } else {
+      cache.remove(func);
+    }
+  }
+
+  /**
+   * CFG 上插入了一条边 from -> to（pred/succ 已经改好）
+   */
+  public void edgeInserted(Function func, BasicBlock from, BasicBlock to) {
+    var update = activeUpdate(func);
+    if (update == null) {
+      return;
+    }
+    if (!update.unreachable.isEmpty()) {
+      // 还有没删掉的不可达基本块，插边可能让它们重新可达
+      update.valid = false;
+      return;
+    }
+    DomInfo.insertEdge(from, to);
+    counters.get(AnalysisKind.DOMINANCE).incrementAndGet(UPDATED);
+  }
+
+  /**
+   * CFG 上删掉了一条边 from -> to（pred/succ 已经改好）。变得不可达的基本块要在 endCFGUpdate 之前删掉并通过
+   * deadBlocksRemoved 告知
+   */
+  public void edgeDeleted(Function func, BasicBlock from, BasicBlock to) {
+    var update = activeUpdate(func);
+    if (update == null || update.unreachable.contains(from)) {
+      return;
+    }
+    update.unreachable.addAll(DomInfo.deleteEdge(from, to));
+    counters.get(AnalysisKind.DOMINANCE).incrementAndGet(UPDATED);
+  }
+
+  /**
+   * bb 只有一个后继或者只有一个前驱，已经从函数里删掉，原来经过它的边都直接连到了它的后继/前驱上
+   */
+  public void blockContracted(Function func, BasicBlock bb) {
+    var update = activeUpdate(func);
+    if (update == null || update.unreachable.remove(bb)) {
+      return;
+    }
+    if (bb.getIdomer() == null) {
+      // 删掉的是 entry
+      update.valid = false;
+      return;
+    }
+    DomInfo.contractBlock(bb);
+    counters.get(AnalysisKind.DOMINANCE).incrementAndGet(UPDATED);
+  }
+
+  /**
+   * 删掉了 blocks 这些不可达的基本块
+   */
+  public void deadBlocksRemoved(Function func, Collection<BasicBlock> blocks) {
+    var update = activeUpdate(func);
+    if (update == null) {
+      return;
+    }
+    for (var bb : blocks) {
+      // 支配树上还算可达的块被当成死块删了，说明 CFG 有没通知到的改动
+      if (!update.unreachable.remove(bb)) {
+        update.valid = false;
+        return;
+      }
+    }
+  }
+
+  private CFGUpdate activeUpdate(Function func) {
+    var update = updates.get(func);
+    return update != null && update.valid ? update : null;
+  }
+
+  public void invalidate(Function func) {
+    cache.remove(func);
+  }
+
+  public void invalidate(Function func, AnalysisKind kind) {
+    var entry = cache.get(func);
+    if (entry != null) {
+      entry.remove(kind);
+    }
+  }
+
+  /**
+   * 一个 pass 跑完之后调用，把所有函数上不在 preserved 里的分析作废
+   */
+  public void invalidateAllExcept(Set<AnalysisKind> preserved) {
+    if (preserved.containsAll(CFG_ANALYSES)) {
+      return;
+    }
+    if (!preserved.contains(AnalysisKind.DOMINANCE)) {
+      cache.clear();
+      return;
+    }
+    for (var entry : cache.values()) {
+      entry.keySet().retainAll(preserved);
+    }
+  }
+
+  private boolean isValid(Function func, AnalysisKind kind) {
+    var entry = cache.get(func);
+    var snapshot = entry == null ? null : entry.get(kind);
+    if (snapshot == null) {
+      counters.get(kind).incrementAndGet(COMPUTED);
+      return false;
+    }
+    if (!snapshot.matches(func)) {
+      log.info(kind + " of " + func.getName() + " is out of date, the CFG changed without invalidation");
+      counters.get(kind).incrementAndGet(COMPUTED);
+      counters.get(kind).incrementAndGet(CFG_CHANGED);
+      return false;
+    }
+    counters.get(kind).incrementAndGet(REUSED);
+    return true;
+  }
+
+  private void markValid(Function func, AnalysisKind kind) {
+    var entry = cache.computeIfAbsent(func, f -> new EnumMap<>(AnalysisKind.class));
+    // 同一个 CFG 上的几个分析共用一份快照
+    CFGSnapshot snapshot = null;
+    for (var other : entry.values()) {
+      if (other.matches(func)) {
+        snapshot = other;
+        break;
+      }
+    }
+    entry.put(kind, snapshot != null ? snapshot : new CFGSnapshot(func));
+  }
+
+  public Map<Function, Set<GlobalVariable>> getRelatedGlobals() {
+    return relatedGlobals;
+  }
+
+  public void setRelatedGlobals(Map<Function, Set<GlobalVariable>> relatedGlobals) {
+    this.relatedGlobals = relatedGlobals;
+  }
+
+  public String dumpCounters() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-20s %10s %10s %12s %10s%n", "analysis", "computed", "reused",
+        "cfg-changed", "updated"));
+    for (var kind : AnalysisKind.values()) {
+      var cnt = counters.get(kind);
+      sb.append(String.format("%-20s %10d %10d %12d %10d%n", kind, cnt.get(COMPUTED),
+          cnt.get(REUSED), cnt.get(CFG_CHANGED), cnt.get(UPDATED)));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * 基本块的顺序和每个块的 pred/succ，全部按引用比较
+   */
+  private static class CFGSnapshot {
+
+    private final ArrayList<BasicBlock> blocks = new ArrayList<>();
+    private final ArrayList<BasicBlock[]> preds = new ArrayList<>();
+    private final ArrayList<BasicBlock[]> succs = new ArrayList<>();
+
+    CFGSnapshot(Function func) {
+      for (INode<BasicBlock, Function> bbNode : func.getList_()) {
+        var bb = bbNode.getVal();
+        blocks.add(bb);
+        preds.add(bb.getPredecessor_().toArray(new BasicBlock[0]));
+        succs.add(bb.getSuccessor_().toArray(new BasicBlock[0]));
+      }
+    }
+
+    boolean matches(Function func) {
+      int i = 0;
+      for (INode<BasicBlock, Function> bbNode : func.getList_()) {
+        var bb = bbNode.getVal();
+        if (i >= blocks.size() || blocks.get(i) != bb
+            || !sameList(preds.get(i), bb.getPredecessor_())
+            || !sameList(succs.get(i), bb.getSuccessor_())) {
+          return false;
+        }
+        i++;
+      }
+      return i == blocks.size();
+    }
+
+    private static boolean sameList(BasicBlock[] recorded, ArrayList<BasicBlock> current) {
+      if (recorded.length != current.size()) {
+        return false;
+      }
+      for (int i = 0; i < recorded.length; i++) {
+        if (recorded[i] != current.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * 一次 beginCFGUpdate/endCFGUpdate 之间的状态
+   */
+  private static class CFGUpdate {
+
+    // 有改动没法增量更新，结束时作废
+    boolean valid = true;
+    // 删边之后不可达、还没从函数里删掉的基本块，支配信息已经清空
+    final HashSet<BasicBlock> unreachable = new HashSet<>();
+  }
+}
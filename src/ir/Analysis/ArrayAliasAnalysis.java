@@ -25,6 +25,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.Set;
 import java.util.Stack;
 import java.util.stream.Collectors;
 import util.IList.INode;
@@ -32,12 +33,6 @@ import util.IList.INode;
 public class ArrayAliasAnalysis {
 
   private static final MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
-  public static ArrayList<ArrayDefUses> arrays = new ArrayList<>();
-
-  private static MyModule m;
-  private static HashMap<GlobalVariable, ArrayList<Function>> gvUserFunc = new HashMap<>();
-  private static HashMap<Function, HashSet<GlobalVariable>> relatedGVs = new HashMap<>();
-  private static HashSet<Function> visitfunc = new HashSet<>();
 
   public static class ArrayDefUses {
 
@@ -185,7 +180,8 @@ public class ArrayAliasAnalysis {
       return true;
     }
 
-    if (isGlobal(arr) && relatedGVs.get(callinst.getFunc()).contains(arr)) {
+    if (isGlobal(arr) && AnalysisManager.getInstance().getRelatedGlobals().get(callinst.getFunc())
+        .contains(arr)) {
       return true;
     }
 
@@ -200,7 +196,7 @@ public class ArrayAliasAnalysis {
     return false;
   }
 
-  public static void runLoadDependStore(Function function) {
+  public static void runLoadDependStore(Function function, ArrayList<ArrayDefUses> arrays) {
     HashMap<Value, Integer> arraysLookup = new HashMap<>();
     ArrayList<ArrayList<BasicBlock>> defBlocks = new ArrayList<>();
 
@@ -353,7 +349,7 @@ public class ArrayAliasAnalysis {
   }
 
   // avoid gcm breaks the dependence
-  public static void runStoreDependLoad(Function function) {
+  public static void runStoreDependLoad(Function function, ArrayList<ArrayDefUses> arrays) {
     ArrayList<LoadInst> loads = new ArrayList<>();
     HashMap<LoadInst, Integer> loadsLookup = new HashMap<>();
 //    ArrayList<ArrayList<BasicBlock>> defBlocks = new ArrayList<>();
@@ -487,7 +483,8 @@ public class ArrayAliasAnalysis {
     }
   }
 
-  private static void loadUserFuncs() {
+  private static void loadUserFuncs(MyModule m,
+      HashMap<GlobalVariable, ArrayList<Function>> gvUserFunc) {
     m.__globalVariables.forEach(
         gv -> {
           ArrayList<Function> parents = new ArrayList<>();
@@ -503,7 +500,8 @@ public class ArrayAliasAnalysis {
     );
   }
 
-  private static boolean bfsFuncs(Function start, GlobalVariable gv) {
+  private static boolean bfsFuncs(Function start, GlobalVariable gv,
+      HashMap<GlobalVariable, ArrayList<Function>> gvUserFunc, HashSet<Function> visitfunc) {
     if (visitfunc.contains(start)) {
       return false;
     }
@@ -513,39 +511,41 @@ public class ArrayAliasAnalysis {
     }
     var result = false;
     for (Function callee : start.getCalleeList()) {
-      result |= bfsFuncs(callee, gv);
+      result |= bfsFuncs(callee, gv, gvUserFunc, visitfunc);
     }
     return result;
   }
 
 
-  private static void findRelatedFunc() {
+  /**
+   * 重新算 callAlias 用到的函数（以及它调用的函数）-全局变量关系，存到 AnalysisManager 里。要读所有全局变量的 use 链表，只能在没有
+   * pass 并行运行的时候调用
+   */
+  public static void computeRelatedGlobals(MyModule m) {
+    HashMap<GlobalVariable, ArrayList<Function>> gvUserFunc = new HashMap<>();
+    HashSet<Function> visitfunc = new HashSet<>();
+    HashMap<Function, Set<GlobalVariable>> result = new HashMap<>();
+    loadUserFuncs(m, gvUserFunc);
     for (INode<Function, MyModule> function : m.__functions) {
       var val = function.getVal();
-      relatedGVs.put(val, new HashSet<>());
+      HashSet<GlobalVariable> related = new HashSet<>();
       for (GlobalVariable globalVariable : m.__globalVariables) {
         visitfunc.clear();
-        if (bfsFuncs(val, globalVariable)) {
-          relatedGVs.get(val).add(globalVariable);
+        if (bfsFuncs(val, globalVariable, gvUserFunc, visitfunc)) {
+          related.add(globalVariable);
         }
       }
+      result.put(val, related);
     }
+    AnalysisManager.getInstance().setRelatedGlobals(result);
   }
 
   public static void run(Function function) {
-    DomInfo.computeDominanceInfo(function);
-    DomInfo.computeDominanceFrontier(function);
-
-    m = function.getNode().getParent().getVal();
-    gvUserFunc = new HashMap<>();
-    visitfunc = new HashSet<>();
-    relatedGVs = new HashMap<>();
-    loadUserFuncs();
-    findRelatedFunc();
-
-    arrays = new ArrayList<>();
-    runLoadDependStore(function);
-    runStoreDependLoad(function);
+    AnalysisManager.getInstance().requireDominanceFrontier(function);
+
+    ArrayList<ArrayDefUses> arrays = new ArrayList<>();
+    runLoadDependStore(function, arrays);
+    runStoreDependLoad(function, arrays);
   }
 
   public static void clear(Function function) {
@@ -1,12 +1,921 @@
 package ir.Analysis;
 
-import ir.MyFactoryBuilder;
+import ir.Loop;
+import ir.types.ArrayType;
+import ir.types.PointerType;
+import ir.types.Type;
+import ir.values.BasicBlock;
+import ir.values.Constants.ConstantInt;
 import ir.values.Function;
+import ir.values.GlobalVariable;
+import ir.values.Value;
+import ir.values.instructions.BinaryInst;
+import ir.values.instructions.Instruction;
+import ir.values.instructions.Instruction.TAG_;
+import ir.values.instructions.MemInst.AllocaInst;
+import ir.values.instructions.MemInst.GEPInst;
+import ir.values.instructions.MemInst.LoadInst;
+import ir.values.instructions.MemInst.Phi;
+import ir.values.instructions.MemInst.StoreInst;
+import ir.values.instructions.TerminatorInst.CallInst;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+import util.Mylogger;
 
+/**
+ * 数组下标的依赖分析
+ * <p>
+ * 访存地址沿着 gep 展开成 root（全局变量、alloca、参数）+ 以 i32 为单位的线性式，线性式的项是循环嵌套里各层的索引 phi
+ * 和嵌套外的值。两次访存的 root 不同时看会不会 alias；root 相同时解依赖方程 src 的下标 = dst 的下标：
+ * <ul>
+ *   <li>ZIV：两边都没有索引，直接比常数</li>
+ *   <li>强 SIV：只有一层的索引，两边系数相同，算出距离</li>
+ *   <li>GCD：系数的最大公约数要整除常数差</li>
+ *   <li>Banerjee：从外到内逐层把方向细分成 &lt; = &gt;，用索引的范围估计方程左边的上下界，剪掉不可能的方向</li>
+ * </ul>
+ * 结果是每一对可能访问同一个位置、至少一个是写的指令，在它们共同所在的循环上的方向和距离，第 0 层是传进来的最外层循环。
+ * 下标不是线性的、两边嵌套外的部分不一样、root 可能 alias、有副作用的调用，都当成所有方向都可能（confused）。
+ * <p>
+ * 索引的信息来自 Loop 的 indVar/init/end/step，调用之前要先 LoopInfo.computeAdditionalLoopInfo
+ */
 public class DependenceAnalysis {
-  private static final MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
 
-  public static void run(Function function) {
+  private static final Logger log = Mylogger.getLogger(DependenceAnalysis.class);
 
+  // 方向：src 所在的迭代比 dst 早、相同、晚
+  public static final int LT = 1;
+  public static final int EQ = 2;
+  public static final int GT = 4;
+  public static final int ALL = LT | EQ | GT;
+
+  public static class Dependence {
+
+    public final Instruction src;
+    public final Instruction dst;
+    // 共同所在的循环，外层在前
+    public final ArrayList<Loop> loops;
+    // 每层可能的方向，LT | EQ | GT 的组合
+    public final int[] directions;
+    // 每层的距离（dst 的迭代 - src 的迭代），算不出来的是 null
+    public final Integer[] distances;
+    public final boolean confused;
+
+    Dependence(Instruction src, Instruction dst, ArrayList<Loop> loops, boolean confused) {
+      this.src = src;
+      this.dst = dst;
+      this.loops = loops;
+      this.directions = new int[loops.size()];
+      this.distances = new Integer[loops.size()];
+      this.confused = confused;
+      Arrays.fill(directions, ALL);
+    }
+
+    /**
+     * 外面几层可以是同一次迭代，第 level 层的迭代不同
+     */
+    public boolean isCarriedBy(int level) {
+      for (int k = 0; k < level; k++) {
+        if ((directions[k] & EQ) == 0) {
+          return false;
+        }
+      }
+      return level < directions.length && (directions[level] & (LT | GT)) != 0;
+    }
+
+    public boolean isLoopIndependent() {
+      for (var direction : directions) {
+        if ((direction & EQ) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(src.getName()).append(" -> ").append(dst.getName()).append(" [");
+      for (int k = 0; k < directions.length; k++) {
+        if (k > 0) {
+          sb.append(", ");
+        }
+        sb.append(directionString(directions[k]));
+        if (distances[k] != null) {
+          sb.append(" ").append(distances[k]);
+        }
+      }
+      sb.append("]");
+      if (confused) {
+        sb.append(" confused");
+      }
+      return sb.toString();
+    }
+
+    private static String directionString(int direction) {
+      if (direction == ALL) {
+        return "*";
+      }
+      StringBuilder sb = new StringBuilder();
+      if ((direction & LT) != 0) {
+        sb.append("<");
+      }
+      if ((direction & EQ) != 0) {
+        sb.append("=");
+      }
+      if ((direction & GT) != 0) {
+        sb.append(">");
+      }
+      return sb.toString();
+    }
+  }
+
+  // 下标的线性式 constant + Σ coef * term
+  private static class Linear {
+
+    final LinkedHashMap<Value, Long> coefs = new LinkedHashMap<>();
+    long constant = 0;
+
+    void add(Value term, long coef) {
+      coefs.merge(term, coef, Long::sum);
+      if (coefs.get(term) == 0) {
+        coefs.remove(term);
+      }
+    }
+  }
+
+  // 一层循环的索引，phi 的取值在 [lo, hi] 里，null 表示不知道
+  private static class IndVar {
+
+    final Loop loop;
+    Phi phi;
+    long step = 1;
+    // 初值在整个嵌套里不变，索引的值都和它差 step 的倍数
+    boolean fixedStart;
+    Long lo;
+    Long hi;
+
+    IndVar(Loop loop) {
+      this.loop = loop;
+    }
+  }
+
+  private static class Access {
+
+    Instruction inst;
+    boolean write;
+    // 读写哪里不知道的调用
+    boolean call;
+    Value root;
+    Linear offset;
+    // 所在的循环，外层在前
+    ArrayList<Loop> loops;
+  }
+
+  // 一次分析的循环嵌套
+  private static class Nest {
+
+    final HashSet<BasicBlock> blocks = new HashSet<>();
+    final HashMap<Loop, IndVar> indVars = new HashMap<>();
+    final HashMap<Phi, IndVar> phis = new HashMap<>();
+
+    Nest(Loop root) {
+      blocks.addAll(root.getBlocks());
+      collect(root);
+    }
+
+    private void collect(Loop loop) {
+      var indVar = indVar(loop, this);
+      indVar.fixedStart = !contains(loop.getIndVarInit());
+      indVars.put(loop, indVar);
+      if (indVar.phi != null) {
+        phis.put(indVar.phi, indVar);
+      }
+      for (var subLoop : loop.getSubLoops()) {
+        collect(subLoop);
+      }
+    }
+
+    boolean contains(Value value) {
+      return value instanceof Instruction && blocks.contains(((Instruction) value).getBB());
+    }
+  }
+
+  /**
+   * @return 每个最外层循环嵌套里的依赖
+   */
+  public static HashMap<Loop, ArrayList<Dependence>> run(Function function) {
+    var loopInfo = AnalysisManager.getInstance().requireLoopInfo(function);
+    loopInfo.computeAdditionalLoopInfo();
+    var result = new HashMap<Loop, ArrayList<Dependence>>();
+    for (var loop : loopInfo.getTopLevelLoops()) {
+      var dependences = analyze(loop);
+      result.put(loop, dependences);
+      for (var dependence : dependences) {
+        log.info(function.getName() + ": " + dependence);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * 以 loop 为最外层分析，loop 外面的索引当成不变的值
+   */
+  public static ArrayList<Dependence> analyze(Loop loop) {
+    var nest = new Nest(loop);
+    var loopInfo = loop.getHeader().getParent().getLoopInfo();
+    var accesses = new ArrayList<Access>();
+    for (var bbNode : loop.getHeader().getParent().getList_()) {
+      var bb = bbNode.getVal();
+      if (!nest.blocks.contains(bb)) {
+        continue;
+      }
+      var loops = new ArrayList<Loop>();
+      for (var l = loopInfo.getLoopForBB(bb); l != loop.getParentLoop(); l = l.getParentLoop()) {
+        loops.add(0, l);
+      }
+      for (var instNode : bb.getList()) {
+        var access = access(instNode.getVal(), nest);
+        if (access != null) {
+          access.loops = loops;
+          accesses.add(access);
+        }
+      }
+    }
+
+    var dependences = new ArrayList<Dependence>();
+    for (int i = 0; i < accesses.size(); i++) {
+      for (int j = i; j < accesses.size(); j++) {
+        var src = accesses.get(i);
+        var dst = accesses.get(j);
+        if (!src.write && !dst.write) {
+          continue;
+        }
+        var dependence = test(src, dst, nest);
+        if (dependence != null) {
+          dependences.add(dependence);
+        }
+      }
+    }
+    return dependences;
+  }
+
+  /**
+   * 最外层的不同迭代之间没有依赖，迭代可以按任意顺序跑
+   */
+  public static boolean isParallel(ArrayList<Dependence> dependences) {
+    for (var dependence : dependences) {
+      if (dependence.isCarriedBy(0)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Access access(Instruction inst, Nest nest) {
+    var access = new Access();
+    access.inst = inst;
+    Value pointer;
+    if (inst instanceof LoadInst) {
+      pointer = inst.getOperands().get(0);
+    } else if (inst instanceof StoreInst) {
+      pointer = ((StoreInst) inst).getPointer();
+      access.write = true;
+    } else if (inst instanceof CallInst) {
+      // 没有副作用的函数只可能读全局变量和传进去的数组
+      var callee = ((CallInst) inst).getFunc();
+      access.call = true;
+      access.write = callee.isHasSideEffect();
+      if (!access.write && !callee.isUsedGlobalVariable() && !hasPointerArg(inst)) {
+        return null;
+      }
+      return access;
+    } else {
+      return null;
+    }
+    // 读写参数数组本身的地址（它的 alloca），循环里不会改
+    if (ArrayAliasAnalysis.isParam(pointer)) {
+      return null;
+    }
+
+    var offset = new Linear();
+    access.root = address(pointer, offset);
+    // 下标里只能有嵌套里的索引和嵌套外的值
+    for (var term : offset.coefs.keySet()) {
+      if (nest.contains(term) && !nest.phis.containsKey(term)) {
+        return access;
+      }
+    }
+    access.offset = offset;
+    return access;
+  }
+
+  private static boolean hasPointerArg(Instruction call) {
+    for (var operand : call.getOperands()) {
+      if (operand.getType().isPointerTy()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Dependence test(Access src, Access dst, Nest nest) {
+    int common = 0;
+    while (common < src.loops.size() && common < dst.loops.size()
+        && src.loops.get(common) == dst.loops.get(common)) {
+      common++;
+    }
+    var loops = new ArrayList<>(src.loops.subList(0, common));
+    if (src.call || dst.call) {
+      return new Dependence(src.inst, dst.inst, loops, true);
+    }
+    if (src.root != dst.root) {
+      return mayAlias(src.root, dst.root) ? new Dependence(src.inst, dst.inst, loops, true) : null;
+    }
+    if (src.root == null || src.offset == null || dst.offset == null) {
+      return new Dependence(src.inst, dst.inst, loops, true);
+    }
+
+    // 嵌套外的部分要一样，两边消掉
+    var srcRest = new LinkedHashMap<Value, Long>();
+    var dstRest = new LinkedHashMap<Value, Long>();
+    for (var entry : src.offset.coefs.entrySet()) {
+      if (!nest.phis.containsKey(entry.getKey())) {
+        srcRest.put(entry.getKey(), entry.getValue());
+      }
+    }
+    for (var entry : dst.offset.coefs.entrySet()) {
+      if (!nest.phis.containsKey(entry.getKey())) {
+        dstRest.put(entry.getKey(), entry.getValue());
+      }
+    }
+    if (!srcRest.equals(dstRest)) {
+      return new Dependence(src.inst, dst.inst, loops, true);
+    }
+
+    // 能按数组的维度拆开就每一维列一个方程，拆不开就用展开的下标
+    var srcSubs = srcRest.isEmpty() ? delinearize(src.root, src.offset, nest) : null;
+    var dstSubs = srcSubs == null ? null : delinearize(dst.root, dst.offset, nest);
+    if (dstSubs == null) {
+      srcSubs = new ArrayList<>(List.of(src.offset));
+      dstSubs = new ArrayList<>(List.of(dst.offset));
+    }
+    var levels = new IndVar[common];
+    for (int k = 0; k < common; k++) {
+      levels[k] = nest.indVars.get(loops.get(k));
+    }
+    var equations = new ArrayList<Equation>();
+    for (int d = 0; d < srcSubs.size(); d++) {
+      var equation = new Equation(nest, src, srcSubs.get(d), dst, dstSubs.get(d), common);
+      if (!equation.affine) {
+        return new Dependence(src.inst, dst.inst, loops, true);
+      }
+      equations.add(equation);
+    }
+    var dependence = new Dependence(src.inst, dst.inst, loops, false);
+    return solve(dependence, levels, equations, src.inst == dst.inst) ? dependence : null;
+  }
+
+  private static boolean mayAlias(Value root1, Value root2) {
+    if (root1 == null || root2 == null) {
+      return true;
+    }
+    // 局部数组只能通过自己访问；两个全局变量不会重叠；参数传进来的指针可能指向全局数组或者另一个参数
+    if ((root1 instanceof AllocaInst && !ArrayAliasAnalysis.isParam(root1))
+        || (root2 instanceof AllocaInst && !ArrayAliasAnalysis.isParam(root2))) {
+      return false;
+    }
+    return !(root1 instanceof GlobalVariable && root2 instanceof GlobalVariable);
+  }
+
+  // 方程 Σ a_k * x_k - Σ b_k * y_k = c，x 是 src 的索引，y 是 dst 的索引，k 是共同的循环
+  private static class Equation {
+
+    final long[] a;
+    final long[] b;
+    // 只在一边的循环的项，coef * 索引
+    final ArrayList<IndVar> onlyVars = new ArrayList<>();
+    final ArrayList<Long> onlyCoefs = new ArrayList<>();
+    final long c;
+    boolean affine = true;
+
+    Equation(Nest nest, Access src, Linear srcSub, Access dst, Linear dstSub, int common) {
+      a = new long[common];
+      b = new long[common];
+      c = dstSub.constant - srcSub.constant;
+      collect(nest, src, srcSub, a, 1);
+      collect(nest, dst, dstSub, b, -1);
+    }
+
+    private void collect(Nest nest, Access access, Linear sub, long[] coefs, long sign) {
+      for (var entry : sub.coefs.entrySet()) {
+        var indVar = nest.phis.get(entry.getKey());
+        if (indVar == null) {
+          continue;
+        }
+        int level = access.loops.indexOf(indVar.loop);
+        if (level < 0) {
+          // 内层循环的索引在循环外面用，值是最后一次迭代的
+          affine = false;
+        } else if (level < coefs.length) {
+          coefs[level] += entry.getValue();
+        } else {
+          onlyVars.add(indVar);
+          onlyCoefs.add(sign * entry.getValue());
+        }
+      }
+    }
+
+    long gcd() {
+      long g = 0;
+      for (int k = 0; k < a.length; k++) {
+        g = DependenceAnalysis.gcd(g, DependenceAnalysis.gcd(a[k], b[k]));
+      }
+      for (var coef : onlyCoefs) {
+        g = DependenceAnalysis.gcd(g, coef);
+      }
+      return g;
+    }
+
+    // 只有一层有索引、两边系数相同时返回这一层，否则 -1
+    int strongSiv() {
+      if (!onlyCoefs.isEmpty()) {
+        return -1;
+      }
+      int siv = -1;
+      for (int k = 0; k < a.length; k++) {
+        if (a[k] != 0 || b[k] != 0) {
+          if (siv >= 0 || a[k] != b[k]) {
+            return -1;
+          }
+          siv = k;
+        }
+      }
+      return siv;
+    }
+
+    // 方向限制下 Σ a_k * x_k - Σ b_k * y_k 的范围包含 c
+    boolean mayBeZero(IndVar[] levels, int[] directions) {
+      long min = 0;
+      long max = 0;
+      for (int k = 0; k < a.length; k++) {
+        var bound = levelBound(levels[k], a[k], b[k], directions[k]);
+        if (bound == null) {
+          return false;
+        }
+        min = add(min, bound[0], false);
+        max = add(max, bound[1], true);
+      }
+      for (int k = 0; k < onlyVars.size(); k++) {
+        min = add(min, low(onlyCoefs.get(k), onlyVars.get(k)), false);
+        max = add(max, high(onlyCoefs.get(k), onlyVars.get(k)), true);
+      }
+      return min <= c && c <= max;
+    }
+  }
+
+  /**
+   * 所有方程同时成立时，填上 dependence 的方向和距离
+   *
+   * @param self src 和 dst 是同一条指令，所有层都是同一次迭代的不算依赖
+   * @return 可能有依赖
+   */
+  private static boolean solve(Dependence dependence, IndVar[] levels,
+      ArrayList<Equation> equations, boolean self) {
+    for (var equation : equations) {
+      // ZIV 和 GCD
+      long g = equation.gcd();
+      if (g == 0 ? equation.c != 0 : equation.c % g != 0) {
+        return false;
+      }
+      // 强 SIV：a x - a y = c，y - x = -c / a
+      int siv = equation.strongSiv();
+      if (siv < 0) {
+        continue;
+      }
+      var indVar = levels[siv];
+      long delta = -equation.c / equation.a[siv];
+      if (delta % indVar.step != 0) {
+        if (indVar.fixedStart) {
+          return false;
+        }
+        continue;
+      }
+      long distance = delta / indVar.step;
+      var known = dependence.distances[siv];
+      if ((indVar.lo != null && indVar.hi != null && Math.abs(delta) > indVar.hi - indVar.lo)
+          || (known != null && known != distance)) {
+        return false;
+      }
+      dependence.directions[siv] = distance > 0 ? LT : distance < 0 ? GT : EQ;
+      dependence.distances[siv] = (int) distance;
+    }
+
+    // Banerjee：从外到内细分方向
+    int common = levels.length;
+    int[] directions = Arrays.copyOf(dependence.directions, common);
+    int[] feasible = new int[common];
+    refine(levels, equations, directions, 0, self, feasible);
+    for (int k = 0; k < common; k++) {
+      if (feasible[k] == 0) {
+        return false;
+      }
+      dependence.directions[k] = feasible[k];
+      if (feasible[k] == EQ) {
+        dependence.distances[k] = 0;
+      }
+    }
+    return true;
+  }
+
+  private static void refine(IndVar[] levels, ArrayList<Equation> equations, int[] directions,
+      int level, boolean self, int[] feasible) {
+    for (var equation : equations) {
+      if (!equation.mayBeZero(levels, directions)) {
+        return;
+      }
+    }
+    if (level == levels.length) {
+      if (self && Arrays.stream(directions).allMatch(d -> d == EQ)) {
+        return;
+      }
+      for (int k = 0; k < levels.length; k++) {
+        feasible[k] |= directions[k];
+      }
+      return;
+    }
+    int original = directions[level];
+    for (int direction : new int[]{LT, EQ, GT}) {
+      if ((original & direction) != 0) {
+        directions[level] = direction;
+        refine(levels, equations, directions, level + 1, self, feasible);
+      }
+    }
+    directions[level] = original;
+  }
+
+  /**
+   * 前端把多维数组的下标展开成了一个，这里按数组的维度拆回每一维：系数按能整除的最大步长分到那一维，
+   * 常数从内到外分，保证内层每一维的下标都落在 [0, 维数) 里，这样两个地址相等当且仅当每一维的下标都相等
+   *
+   * @return 拆不开（维度不知道、索引的范围不知道、越界）的时候返回 null
+   */
+  private static ArrayList<Linear> delinearize(Value root, Linear offset, Nest nest) {
+    var sizes = innerDims(root);
+    if (sizes.isEmpty()) {
+      return null;
+    }
+    int n = sizes.size() + 1;
+    long[] strides = new long[n];
+    strides[n - 1] = 1;
+    for (int k = n - 2; k >= 0; k--) {
+      strides[k] = strides[k + 1] * sizes.get(k);
+    }
+    var subs = new ArrayList<Linear>();
+    for (int k = 0; k < n; k++) {
+      subs.add(new Linear());
+    }
+    for (var entry : offset.coefs.entrySet()) {
+      int k = 0;
+      while (entry.getValue() % strides[k] != 0) {
+        k++;
+      }
+      subs.get(k).add(entry.getKey(), entry.getValue() / strides[k]);
+    }
+
+    long rest = offset.constant;
+    for (int k = n - 1; k >= 1; k--) {
+      long min = 0;
+      long max = 0;
+      for (var entry : subs.get(k).coefs.entrySet()) {
+        var indVar = nest.phis.get(entry.getKey());
+        if (indVar == null) {
+          return null;
+        }
+        min = add(min, low(entry.getValue(), indVar), false);
+        max = add(max, high(entry.getValue(), indVar), true);
+      }
+      long size = sizes.get(k - 1);
+      if (min == Long.MIN_VALUE || max == Long.MAX_VALUE || max - min >= size) {
+        return null;
+      }
+      // 这一维的常数 t ≡ rest / stride (mod size)，并且 min + t >= 0、max + t < size
+      long t = -min + Math.floorMod(rest / strides[k] + min, size);
+      if (max + t >= size) {
+        return null;
+      }
+      subs.get(k).constant = t;
+      rest -= t * strides[k];
+    }
+    subs.get(0).constant = rest / strides[0];
+    return subs;
+  }
+
+  // 除了最外层以外每一维的大小，参数传进来的数组最外层本来就没有大小
+  private static ArrayList<Integer> innerDims(Value root) {
+    var dims = new ArrayList<Integer>();
+    Type type;
+    boolean param = root instanceof Function.Arg || ArrayAliasAnalysis.isParam(root);
+    if (root instanceof AllocaInst) {
+      type = ((AllocaInst) root).getAllocatedType();
+    } else if (root instanceof GlobalVariable || root instanceof Function.Arg) {
+      type = ((PointerType) root.getType()).getContained();
+    } else {
+      return dims;
+    }
+    if (ArrayAliasAnalysis.isParam(root)) {
+      type = ((PointerType) type).getContained();
+    }
+    if (!param && type.isArrayTy()) {
+      type = ((ArrayType) type).getELeType();
+    }
+    while (type.isArrayTy()) {
+      dims.add(((ArrayType) type).getNumEle());
+      type = ((ArrayType) type).getELeType();
+    }
+    return dims;
+  }
+
+  /**
+   * a * x - b * y 的范围，x 和 y 是同一层循环的索引，迭代的先后是 direction
+   *
+   * @return 这个方向不可能的时候是 null
+   */
+  private static long[] levelBound(IndVar indVar, long a, long b, int direction) {
+    if (direction == ALL) {
+      return new long[]{add(low(a, indVar), negate(high(b, indVar)), false),
+          add(high(a, indVar), negate(low(b, indVar)), true)};
+    }
+    if (direction == EQ) {
+      return new long[]{low(a - b, indVar), high(a - b, indVar)};
+    }
+    // 换到 phi 的值上：步长是负的时候迭代越晚值越小
+    boolean less = (direction == LT) == (indVar.step > 0);
+    long s = Math.abs(indVar.step);
+    var lo = indVar.lo;
+    var hi = indVar.hi;
+    if (lo != null && hi != null) {
+      if (hi - lo < s) {
+        return null;
+      }
+      // x + s <= y（或者 y + s <= x）围成的三角形，极值在顶点上
+      long[][] vertices = less
+          ? new long[][]{{lo, lo + s}, {lo, hi}, {hi - s, hi}}
+          : new long[][]{{lo + s, lo}, {hi, lo}, {hi, hi - s}};
+      long min = Long.MAX_VALUE;
+      long max = Long.MIN_VALUE;
+      for (var v : vertices) {
+        min = Math.min(min, add(mul(a, v[0], false), negate(mul(b, v[1], true)), false));
+        max = Math.max(max, add(mul(a, v[0], true), negate(mul(b, v[1], false)), true));
+      }
+      return new long[]{min, max};
+    }
+    if (a == b) {
+      // a * (x - y)，x - y <= -s（或者 >= s）
+      if (a == 0) {
+        return new long[]{0, 0};
+      }
+      long edge = mul(a, less ? -s : s, false);
+      return (a > 0) == less ? new long[]{Long.MIN_VALUE, edge} : new long[]{edge, Long.MAX_VALUE};
+    }
+    return new long[]{Long.MIN_VALUE, Long.MAX_VALUE};
+  }
+
+  // coef * 索引 的下界和上界
+  private static long low(long coef, IndVar indVar) {
+    return coef == 0 ? 0 : coef > 0 ? mul(coef, indVar.lo, false) : mul(coef, indVar.hi, false);
+  }
+
+  private static long high(long coef, IndVar indVar) {
+    return coef == 0 ? 0 : coef > 0 ? mul(coef, indVar.hi, true) : mul(coef, indVar.lo, true);
+  }
+
+  // Long.MIN_VALUE、Long.MAX_VALUE 当成负无穷、正无穷；不知道的值和溢出按 upper 往宽了取
+  private static long mul(long coef, Long value, boolean upper) {
+    if (coef == 0) {
+      return 0;
+    }
+    if (value == null) {
+      return upper ? Long.MAX_VALUE : Long.MIN_VALUE;
+    }
+    try {
+      return Math.multiplyExact(coef, value);
+    } catch (ArithmeticException e) {
+      return upper ? Long.MAX_VALUE : Long.MIN_VALUE;
+    }
+  }
+
+  private static long add(long x, long y, boolean upper) {
+    boolean infinite = x == Long.MIN_VALUE || x == Long.MAX_VALUE || y == Long.MIN_VALUE
+        || y == Long.MAX_VALUE;
+    if (!infinite) {
+      try {
+        return Math.addExact(x, y);
+      } catch (ArithmeticException e) {
+        return upper ? Long.MAX_VALUE : Long.MIN_VALUE;
+      }
+    }
+    if (upper) {
+      return x == Long.MAX_VALUE || y == Long.MAX_VALUE ? Long.MAX_VALUE : Long.MIN_VALUE;
+    }
+    return x == Long.MIN_VALUE || y == Long.MIN_VALUE ? Long.MIN_VALUE : Long.MAX_VALUE;
+  }
+
+  private static long negate(long x) {
+    return x == Long.MIN_VALUE ? Long.MAX_VALUE : x == Long.MAX_VALUE ? Long.MIN_VALUE : -x;
+  }
+
+  private static long gcd(long x, long y) {
+    x = Math.abs(x);
+    y = Math.abs(y);
+    while (y != 0) {
+      long t = x % y;
+      x = y;
+      y = t;
+    }
+    return x;
+  }
+
+  /**
+   * loop 的索引：header 里的 phi 每次加一个常数。init、end 是常数或者外层索引的线性式的时候算出取值范围
+   */
+  private static IndVar indVar(Loop loop, Nest nest) {
+    var indVar = new IndVar(loop);
+    var phi = loop.getIndVar();
+    var stepInst = loop.getStepInst();
+    var latch = loop.getSingleLatchBlock();
+    if (phi == null || stepInst == null || latch == null || phi.getBB() != loop.getHeader()
+        || !(stepInst instanceof BinaryInst) || !((BinaryInst) stepInst).isAdd()
+        || !phi.getIncomingVals().contains(stepInst)) {
+      return indVar;
+    }
+    var ops = stepInst.getOperands();
+    var stride = ops.get(0) == phi ? ops.get(1) : ops.get(1) == phi ? ops.get(0) : null;
+    if (!(stride instanceof ConstantInt) || ((ConstantInt) stride).getVal() == 0) {
+      return indVar;
+    }
+    indVar.phi = phi;
+    indVar.step = ((ConstantInt) stride).getVal();
+
+    // 步长是负的时候整个取反，按正的算
+    long sign = indVar.step > 0 ? 1 : -1;
+    long s = Math.abs(indVar.step);
+    var start = range(loop.getIndVarInit(), nest, sign);
+    if (start == null) {
+      return indVar;
+    }
+    if (sign > 0) {
+      indVar.lo = start[0];
+    } else {
+      indVar.hi = -start[0];
+    }
+    var br = latch.getList().getLast().getVal();
+    var limit = range(loop.getIndVarEnd(), nest, sign);
+    if (limit == null || br.getNumOP() != 3 || !(br.getOperands().get(0) instanceof BinaryInst)) {
+      return indVar;
+    }
+    var cmp = (BinaryInst) br.getOperands().get(0);
+    var tested = cmp.getOperands().contains(stepInst) ? stepInst : phi;
+    var tag = continueTag(cmp, br.getOperands().get(1) == loop.getHeader(), tested);
+    if (tag == null) {
+      return indVar;
+    }
+    // 继续的条件是 tested * sign <= bound
+    Long bound = null;
+    if (tag == (sign > 0 ? TAG_.Lt : TAG_.Gt)) {
+      bound = limit[1] - 1;
+    } else if (tag == (sign > 0 ? TAG_.Le : TAG_.Ge)) {
+      bound = limit[1];
+    } else if (tag == TAG_.Ne && s == 1 && start[1] < limit[0]) {
+      bound = limit[1] - 1;
+    }
+    if (bound == null) {
+      return indVar;
+    }
+    // 至少跑一次；拿 i + step 比的时候 phi 不超过 bound，拿 i 比的时候还能再走一步
+    long last = Math.max(start[1], tested == phi ? bound + s : bound);
+    if (sign > 0) {
+      indVar.hi = last;
+    } else {
+      indVar.lo = -last;
+    }
+    return indVar;
+  }
+
+  // sign * value 的范围，value 要是常数或者已知范围的外层索引的线性式
+  private static long[] range(Value value, Nest nest, long sign) {
+    if (value == null) {
+      return null;
+    }
+    var linear = new Linear();
+    addLinear(linear, value, sign);
+    long min = linear.constant;
+    long max = linear.constant;
+    for (var entry : linear.coefs.entrySet()) {
+      var indVar = nest.phis.get(entry.getKey());
+      if (indVar == null) {
+        return null;
+      }
+      min = add(min, low(entry.getValue(), indVar), false);
+      max = add(max, high(entry.getValue(), indVar), true);
+    }
+    if (min == Long.MIN_VALUE || max == Long.MAX_VALUE) {
+      return null;
+    }
+    return new long[]{min, max};
+  }
+
+  /**
+   * 把 cmp 换成 "value tag 另一个操作数 时继续" 的形式
+   *
+   * @param trueContinues br 的 true 分支是不是继续
+   * @return value 不是 cmp 的操作数或者 cmp 不是比较的时候返回 null
+   */
+  public static TAG_ continueTag(BinaryInst cmp, boolean trueContinues, Value value) {
+    var ops = cmp.getOperands();
+    if (!cmp.isCond() || (ops.get(0) == value) == (ops.get(1) == value)) {
+      return null;
+    }
+    var tag = cmp.tag;
+    if (!trueContinues) {
+      tag = switch (tag) {
+        case Lt -> TAG_.Ge;
+        case Le -> TAG_.Gt;
+        case Ge -> TAG_.Lt;
+        case Gt -> TAG_.Le;
+        case Eq -> TAG_.Ne;
+        default -> TAG_.Eq;
+      };
+    }
+    if (ops.get(1) == value) {
+      tag = switch (tag) {
+        case Lt -> TAG_.Gt;
+        case Le -> TAG_.Ge;
+        case Ge -> TAG_.Le;
+        case Gt -> TAG_.Lt;
+        default -> tag;
+      };
+    }
+    return tag;
+  }
+
+  // 沿着 gep 往上找到数组，把下标按元素大小加进 offset；找不到数组的时候返回 null
+  private static Value address(Value pointer, Linear offset) {
+    while (pointer instanceof GEPInst) {
+      var ops = ((GEPInst) pointer).getOperands();
+      Type type = ((PointerType) ops.get(0).getType()).getContained();
+      addLinear(offset, ops.get(1), size(type));
+      for (int k = 2; k < ops.size(); k++) {
+        type = ((ArrayType) type).getELeType();
+        addLinear(offset, ops.get(k), size(type));
+      }
+      pointer = ops.get(0);
+    }
+    // 参数数组还在 alloca 里的时候，用这个 alloca 代表它
+    if (pointer instanceof LoadInst && ArrayAliasAnalysis.isParam(
+        ((LoadInst) pointer).getOperands().get(0))) {
+      return ((LoadInst) pointer).getOperands().get(0);
+    }
+    if (pointer instanceof GlobalVariable || pointer instanceof AllocaInst
+        || pointer instanceof Function.Arg) {
+      return pointer;
+    }
+    return null;
+  }
+
+  private static int size(Type type) {
+    return type.isArrayTy() ? ((ArrayType) type).getIntContains() : 1;
+  }
+
+  private static void addLinear(Linear linear, Value value, long scale) {
+    if (value instanceof ConstantInt) {
+      linear.constant += scale * ((ConstantInt) value).getVal();
+      return;
+    }
+    if (value instanceof BinaryInst && value.getType().isI32()) {
+      var inst = (BinaryInst) value;
+      var lhs = inst.getOperands().get(0);
+      var rhs = inst.getOperands().get(1);
+      if (inst.isAdd() || inst.isSub()) {
+        addLinear(linear, lhs, scale);
+        addLinear(linear, rhs, inst.isAdd() ? scale : -scale);
+        return;
+      }
+      if (inst.isMul() && (lhs instanceof ConstantInt || rhs instanceof ConstantInt)) {
+        var c = lhs instanceof ConstantInt ? (ConstantInt) lhs : (ConstantInt) rhs;
+        addLinear(linear, c == lhs ? rhs : lhs, scale * c.getVal());
+        return;
+      }
+      if (inst.tag == TAG_.Shl && rhs instanceof ConstantInt && ((ConstantInt) rhs).getVal() >= 0
+          && ((ConstantInt) rhs).getVal() < 31) {
+        addLinear(linear, lhs, scale << ((ConstantInt) rhs).getVal());
+        return;
+      }
+    }
+    linear.add(value, scale);
   }
 }
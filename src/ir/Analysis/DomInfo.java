@@ -4,18 +4,351 @@ import ir.values.BasicBlock;
 import ir.values.Function;
 import util.IList;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 public class DomInfo {
 
   /**
    * Compute domers, idomer and idoms for all the basic blocks of a function.
+   * <p>
+   * Algorithm: Semi-NCA, "Finding Dominators in Practice", Georgiadis et al. LLVM:
+   * GenericDomTreeConstruction.h. 先算半支配点，再在 DFS 树上找 NCA 得到 idom，接近线性。
+   * idoms 按基本块在函数里的顺序排列，domers 也按基本块顺序排列，和原来的迭代算法结果一致。
+   *
+   * @param function
+   * @return 是否所有基本块都可达。有不可达的基本块时用的是迭代算法，增量更新不能在这个结果上做
+   */
+  public static boolean computeDominanceInfo(Function function) {
+    BasicBlock entry = function.getList_().getEntry().getVal();
+    HashSet<BasicBlock> blocks = new HashSet<>();
+    ArrayList<BasicBlock> others = new ArrayList<>();
+    for (IList.INode<BasicBlock, Function> iterator : function.getList_()) {
+      blocks.add(iterator.getVal());
+      if (iterator.getVal() != entry) {
+        others.add(iterator.getVal());
+      }
+    }
+    int numNode = blocks.size();
+
+    // DFS 先序编号，vertex[dfn] = bb
+    HashMap<BasicBlock, Integer> dfn = new HashMap<>();
+    BasicBlock[] vertex = new BasicBlock[numNode];
+    int[] parent = new int[numNode];
+    if (!dfs(entry, blocks, false, dfn, vertex, parent) || dfn.size() != numNode) {
+      computeDominanceInfoIterative(function);
+      return false;
+    }
+
+    entry.setIdomer(null);
+    linkIdomers(dfn, vertex, parent);
+    entry.getDomers().clear();
+    entry.getDomers().add(entry);
+    entry.setDomLevel(0);
+    rebuildSubtree(entry, others);
+    return true;
+  }
+
+  /**
+   * 从 root 出发 DFS，只走 region 里的基本块。skipOutside 为 false 时碰到 region 外的后继直接返回 false
+   */
+  private static boolean dfs(BasicBlock root, Set<BasicBlock> region, boolean skipOutside,
+      HashMap<BasicBlock, Integer> dfn, BasicBlock[] vertex, int[] parent) {
+    // 显式栈，避免长函数上递归太深
+    int[] stack = new int[vertex.length];
+    int[] nextSucc = new int[vertex.length];
+    int top = 0;
+    dfn.put(root, 0);
+    vertex[0] = root;
+    parent[0] = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int v = stack[top - 1];
+      var succs = vertex[v].getSuccessor_();
+      if (nextSucc[v] == succs.size()) {
+        top--;
+        continue;
+      }
+      BasicBlock succ = succs.get(nextSucc[v]++);
+      if (!region.contains(succ)) {
+        if (skipOutside) {
+          continue;
+        }
+        // 后继不在函数的基本块链表里，交给迭代算法
+        return false;
+      }
+      if (!dfn.containsKey(succ)) {
+        int w = dfn.size();
+        dfn.put(succ, w);
+        vertex[w] = succ;
+        parent[w] = v;
+        stack[top++] = w;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * 在 dfs 走出来的 DFS 树上跑 Semi-NCA，设置除根以外每个点的 idomer。没编号的前驱（region 外或者不可达）不参与
+   */
+  private static void linkIdomers(HashMap<BasicBlock, Integer> dfn, BasicBlock[] vertex,
+      int[] parent) {
+    int numNode = dfn.size();
+    int[] semi = new int[numNode];
+    int[] label = new int[numNode];
+    int[] ancestor = new int[numNode];
+    int[] idom = new int[numNode];
+    int[] stack = new int[numNode];
+    for (int i = 0; i < numNode; i++) {
+      semi[i] = i;
+      label[i] = i;
+      ancestor[i] = parent[i];
+      idom[i] = parent[i];
+    }
+
+    // semi(w) = min{ semi(eval(v)) | (v, w) \in CFG edges }
+    for (int w = numNode - 1; w >= 1; w--) {
+      semi[w] = parent[w];
+      for (BasicBlock pre_bb : vertex[w].getPredecessor_()) {
+        Integer v = dfn.get(pre_bb);
+        if (v == null) {
+          continue;
+        }
+        int u = eval(v, w + 1, semi, label, ancestor, stack);
+        if (semi[u] < semi[w]) {
+          semi[w] = semi[u];
+        }
+      }
+    }
+
+    // idom(w) = NCA(parent(w), semi(w))
+    for (int w = 1; w < numNode; w++) {
+      int candidate = idom[w];
+      while (candidate > semi[w]) {
+        candidate = idom[candidate];
+      }
+      idom[w] = candidate;
+    }
+
+    for (int w = 1; w < numNode; w++) {
+      vertex[w].setIdomer(vertex[idom[w]]);
+    }
+  }
+
+  // 路径压缩，返回 v 到已链接部分的根之间 semi 最小的点
+  private static int eval(int v, int lastLinked, int[] semi, int[] label, int[] ancestor,
+      int[] stack) {
+    if (ancestor[v] < lastLinked) {
+      return label[v];
+    }
+
+    int top = 0;
+    int curr = v;
+    do {
+      stack[top++] = curr;
+      curr = ancestor[curr];
+    } while (ancestor[curr] >= lastLinked);
+
+    int prev = curr;
+    int prevLabel = label[prev];
+    do {
+      curr = stack[--top];
+      ancestor[curr] = ancestor[prev];
+      if (semi[prevLabel] < semi[label[curr]]) {
+        label[curr] = prevLabel;
+      } else {
+        prevLabel = label[curr];
+      }
+      prev = curr;
+    } while (top > 0);
+    return label[curr];
+  }
+
+  // 按基本块在函数里的先后比较，只用于还在函数链表里的基本块
+  private static final Comparator<BasicBlock> BY_ORDER = Comparator
+      .comparingLong(bb -> bb.node_.getOrder());
+
+  /**
+   * blocks 是 root 在支配树上的全部后代，idomer 都已经设好；root 自己的支配信息不变。
+   * 重新填 root 和 blocks 的 idoms，以及 blocks 的 domers 和 domLevel
+   */
+  private static void rebuildSubtree(BasicBlock root, ArrayList<BasicBlock> blocks) {
+    blocks.sort(BY_ORDER);
+    root.getIdoms().clear();
+    for (BasicBlock bb : blocks) {
+      bb.getDomers().clear();
+      bb.getIdoms().clear();
+    }
+    for (BasicBlock bb : blocks) {
+      bb.getIdomer().getIdoms().add(bb);
+    }
+
+    // 沿支配树先序走，idomer 的 domers 总是先填好
+    ArrayDeque<BasicBlock> worklist = new ArrayDeque<>(root.getIdoms());
+    while (!worklist.isEmpty()) {
+      BasicBlock bb = worklist.pop();
+      for (BasicBlock child : bb.getIdoms()) {
+        worklist.push(child);
+      }
+      var domers = bb.getDomers();
+      var idomer = bb.getIdomer();
+      domers.addAll(idomer.getDomers());
+      int pos = Collections.binarySearch(domers, bb, BY_ORDER);
+      domers.add(-pos - 1, bb);
+      bb.setDomLevel(idomer.getDomLevel() + 1);
+    }
+  }
+
+  // root 在支配树上的全部后代，不含 root
+  private static ArrayList<BasicBlock> collectSubtree(BasicBlock root) {
+    ArrayList<BasicBlock> subtree = new ArrayList<>();
+    ArrayDeque<BasicBlock> worklist = new ArrayDeque<>(root.getIdoms());
+    while (!worklist.isEmpty()) {
+      BasicBlock bb = worklist.pop();
+      subtree.add(bb);
+      worklist.addAll(bb.getIdoms());
+    }
+    return subtree;
+  }
+
+  /**
+   * 在已经插入边 from -> to（pred/succ 已经维护好）之后增量更新支配树。调用方保证插边之前所有基本块都可达。
+   * <p>
+   * Algorithm: Depth Based Search, "An Experimental Study of Dynamic Dominators", Georgiadis et
+   * al. LLVM: SemiNCAInfo::InsertReachable. 受影响的点的 idom 都变成 NCA(from, to)，
+   * 它们原来就在 NCA 的子树里，最后只重填这棵子树。
+   */
+  public static void insertEdge(BasicBlock from, BasicBlock to) {
+    BasicBlock nca = nearestCommonDominator(from, to);
+    int ncaLevel = nca.getDomLevel();
+    if (to.getDomLevel() <= ncaLevel + 1) {
+      return;
+    }
+
+    PriorityQueue<BasicBlock> bucket = new PriorityQueue<>(
+        (a, b) -> b.getDomLevel().compareTo(a.getDomLevel()));
+    HashSet<BasicBlock> visited = new HashSet<>();
+    ArrayList<BasicBlock> affected = new ArrayList<>();
+    ArrayDeque<BasicBlock> unaffectedOnCurrLevel = new ArrayDeque<>();
+    bucket.add(to);
+    visited.add(to);
+    while (!bucket.isEmpty()) {
+      BasicBlock bb = bucket.poll();
+      affected.add(bb);
+      int currLevel = bb.getDomLevel();
+      while (bb != null) {
+        for (BasicBlock succ : bb.getSuccessor_()) {
+          int succLevel = succ.getDomLevel();
+          if (succLevel <= ncaLevel + 1 || !visited.add(succ)) {
+            continue;
+          }
+          if (succLevel > currLevel) {
+            unaffectedOnCurrLevel.push(succ);
+          } else {
+            bucket.add(succ);
+          }
+        }
+        bb = unaffectedOnCurrLevel.poll();
+      }
+    }
+
+    ArrayList<BasicBlock> subtree = collectSubtree(nca);
+    for (BasicBlock bb : affected) {
+      bb.setIdomer(nca);
+    }
+    rebuildSubtree(nca, subtree);
+  }
+
+  /**
+   * 在已经删掉边 from -> to（pred/succ 已经维护好）之后增量更新支配树。调用方保证删边之前 from 可达。
+   * <p>
+   * Algorithm: LLVM SemiNCAInfo::DeleteEdge / DeleteReachable. 还剩平行边，或者删的是回边（to 支配 from）时支配树不变；
+   * 否则只有 NCA(from, to) 的子树可能变化，并且子树里的点只能从 NCA 进入，在这棵子树上从 NCA 重新跑一遍 Semi-NCA。
+   * 子树里 NCA 走不到的点就是删边之后不可达的点，清掉它们的支配信息。
+   *
+   * @return 删边之后变得不可达的基本块
+   */
+  public static ArrayList<BasicBlock> deleteEdge(BasicBlock from, BasicBlock to) {
+    ArrayList<BasicBlock> unreachable = new ArrayList<>();
+    if (from.getSuccessor_().contains(to) || from.getDomers().contains(to)) {
+      return unreachable;
+    }
+
+    BasicBlock nca = nearestCommonDominator(from, to);
+    ArrayList<BasicBlock> subtree = collectSubtree(nca);
+    HashSet<BasicBlock> region = new HashSet<>(subtree);
+    region.add(nca);
+    HashMap<BasicBlock, Integer> dfn = new HashMap<>();
+    BasicBlock[] vertex = new BasicBlock[region.size()];
+    int[] parent = new int[region.size()];
+    dfs(nca, region, true, dfn, vertex, parent);
+    linkIdomers(dfn, vertex, parent);
+
+    ArrayList<BasicBlock> reached = new ArrayList<>();
+    for (BasicBlock bb : subtree) {
+      if (dfn.containsKey(bb)) {
+        reached.add(bb);
+      } else {
+        bb.setIdomer(null);
+        bb.getDomers().clear();
+        bb.getIdoms().clear();
+        unreachable.add(bb);
+      }
+    }
+    rebuildSubtree(nca, reached);
+    return unreachable;
+  }
+
+  /**
+   * bb 只有一个后继（或者只有一个前驱），已经从函数里删掉，经过它的边都接到了后继上（或者接到了前驱上）。
+   * 这样 CFG 上的路径和原来一一对应，只是不再经过 bb：每个点的支配点去掉 bb，bb 的孩子挂到 bb 的 idomer 下面。
+   * 调用方保证 bb 可达并且不是 entry。
+   */
+  public static void contractBlock(BasicBlock bb) {
+    BasicBlock idomer = bb.getIdomer();
+    for (BasicBlock bbInSubtree : collectSubtree(bb)) {
+      bbInSubtree.getDomers().remove(bb);
+      bbInSubtree.setDomLevel(bbInSubtree.getDomLevel() - 1);
+    }
+    idomer.getIdoms().remove(bb);
+    for (BasicBlock child : bb.getIdoms()) {
+      child.setIdomer(idomer);
+      idomer.getIdoms().add(child);
+    }
+    idomer.getIdoms().sort(BY_ORDER);
+    bb.setIdomer(null);
+    bb.getDomers().clear();
+    bb.getIdoms().clear();
+  }
+
+  private static BasicBlock nearestCommonDominator(BasicBlock a, BasicBlock b) {
+    while (a.getDomLevel() > b.getDomLevel()) {
+      a = a.getIdomer();
+    }
+    while (b.getDomLevel() > a.getDomLevel()) {
+      b = b.getIdomer();
+    }
+    while (a != b) {
+      a = a.getIdomer();
+      b = b.getIdomer();
+    }
+    return a;
+  }
+
+  /**
+   * 迭代的数据流算法，O(n^2)。只在函数里还有不可达基本块的时候用，保持不可达块上原来的结果。
    *
    * @param function
    * @author Codevka
    */
-  public static void computeDominanceInfo(Function function) {
+  private static void computeDominanceInfoIterative(Function function) {
     // assume that `entry` is the entry basic block as well as the head of linked list
     IList.INode<BasicBlock, Function> head = function.getList_().getEntry();
     BasicBlock entry = head.getVal();
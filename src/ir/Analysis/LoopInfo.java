@@ -1,14 +1,13 @@
 package ir.Analysis;
 
+import ir.Analysis.ScalarEvolution.AddRec;
+import ir.Analysis.ScalarEvolution.SCEV;
 import ir.Loop;
 import ir.values.BasicBlock;
-import ir.values.Constant;
-import ir.values.Constants.ConstantInt;
 import ir.values.Function;
 import ir.values.Value;
 import ir.values.instructions.BinaryInst;
 import ir.values.instructions.Instruction;
-import ir.values.instructions.Instruction.TAG_;
 import ir.values.instructions.MemInst.Phi;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -62,7 +61,7 @@ public class LoopInfo {
   // https://blog.csdn.net/yeshahayes/article/details/97233940
   // LLVM: LoopInfoImpl.h
   public void computeLoopInfo(Function function) {
-    DomInfo.computeDominanceInfo(function);
+    AnalysisManager.getInstance().requireDomInfo(function);
 
     BasicBlock entry = function.getList_().getEntry().getVal();
     Stack<BasicBlock> postOrderStack = new Stack<>();
@@ -141,7 +140,12 @@ public class LoopInfo {
       loop.setIndVarEnd(null);
       loop.setStepInst(null);
       loop.setStep(null);
+      loop.setIndVarCondInst(null);
+      loop.setTripCount(null);
+      // 循环结构可能是缓存下来的，上一次算的结果要清掉
       loop.getExitingBlocks().clear();
+      loop.getExitBlocks().clear();
+      loop.getLatchBlocks().clear();
     }
 
     computeExitingBlocks();
@@ -253,85 +257,73 @@ public class LoopInfo {
     }
   }
 
-  // 计算索引 phi、索引初值、索引迭代指令
-  // FIXME: 只是 trivial 的做法，latchCmpInst 操作数中循环深度和 latchCmpInst 不同的就是 stepInst，按照这个来，精确一点的需要 SCEV
+  // 计算索引 phi、索引初值、索引迭代指令，都从 ScalarEvolution 的递归式 {start,+,step} 来：
+  // latchCmpInst 一边是本循环的递归式、另一边是循环不变量，这一边是 indVarCondInst，另一边是 indVarEnd；
+  // indVarCondInst 的操作数里和它步长相同的 header phi 是 indVar，phi 在 preHeader 和 latch 上的值是 indVarInit 和 stepInst，
+  // stepInst 里 SCEV 等于步长的操作数是 step。字段里放的仍然是 IR 里的值，按指令改循环的 pass 要用
   private void computeIndVarInfo() {
+    var scalarEvolution = new ScalarEvolution(this);
     for (var loop : allLoops) {
       var latchCmpInst = loop.getLatchCmpInst();
       if (!loop.isSimpleForLoop() || latchCmpInst == null) {
         continue;
       }
 
+      // tripCount 由 SCEV 算，只留下常数的
+      loop.setTripCount(scalarEvolution.getConstantTripCount(loop));
+
       var header = loop.getLoopHeader();
+      int latchIndex = header.getPredecessor_().indexOf(loop.getSingleLatchBlock());
 
-      // indVarCondInst
+      // indVarCondInst, indVarEnd
+      AddRec tested = null;
       for (var i = 0; i <= 1; i++) {
         var op = latchCmpInst.getOperands().get(i);
-        if (op instanceof Instruction) {
-          Instruction opInst = (Instruction) op;
-          if (!getLoopDepthForBB(opInst.getBB()).equals(getLoopDepthForBB(latchCmpInst.getBB()))) {
-            loop.setIndVarCondInst(
-                (Instruction) latchCmpInst.getOperands().get(1 - i));
-            loop.setIndVarEnd(latchCmpInst.getOperands().get(i));
-          } else {
-            loop.setIndVarCondInst(
-                (Instruction) latchCmpInst.getOperands().get(i));
-            loop.setIndVarEnd(latchCmpInst.getOperands().get(1 - i));
-          }
-        } else {
-          loop.setIndVarCondInst(
-              (Instruction) latchCmpInst.getOperands().get(1 - i));
-          loop.setIndVarEnd(latchCmpInst.getOperands().get(i));
+        var bound = latchCmpInst.getOperands().get(1 - i);
+        var scev = scalarEvolution.getSCEV(op);
+        if (op instanceof BinaryInst && isRecurrenceOf(scev, loop)
+            && scalarEvolution.isInvariant(scalarEvolution.getSCEV(bound), loop)) {
+          tested = (AddRec) scev;
+          loop.setIndVarCondInst((Instruction) op);
+          loop.setIndVarEnd(bound);
+          break;
         }
       }
-
-      if (loop.getIndVarCondInst() == null || (!(loop.getIndVarCondInst() instanceof BinaryInst))) {
-        return;
+      if (tested == null) {
+        continue;
       }
 
       // indVar
-      // 假设 indVarCondInst = Binary (indVar, OP2)，且 indVar 是 phi
-      var indVarCondInst = loop.getIndVarCondInst();
-      Value compareBias = null;
-      for (var op : indVarCondInst.getOperands()) {
-        if (op instanceof Phi) {
-          loop.setIndVar((Phi) op);
-        } else {
-          compareBias = op;
+      for (var op : loop.getIndVarCondInst().getOperands()) {
+        if (op instanceof Phi && ((Phi) op).getBB() == header) {
+          var scev = scalarEvolution.getSCEV(op);
+          if (isRecurrenceOf(scev, loop) && ((AddRec) scev).getStep() == tested.getStep()) {
+            loop.setIndVar((Phi) op);
+            break;
+          }
         }
       }
-      assert compareBias != null;
-
-      if (loop.getIndVar() == null) {
-        return;
+      var indVar = loop.getIndVar();
+      if (indVar == null) {
+        continue;
       }
 
       // indVarInit, stepInst
-      var indVar = loop.getIndVar();
-      int indVarDepth = this.getLoopDepthForBB(indVar.getBB());
-      for (var incomingVal : indVar.getIncomingVals()) {
-        if (incomingVal instanceof Instruction) {
-          Instruction inst = (Instruction) incomingVal;
-          int incomingDepth = this.getLoopDepthForBB(inst.getBB());
-          if (indVarDepth != incomingDepth) {
-            loop.setIndVarInit(incomingVal);
-          } else {
-            loop.setStepInst((Instruction) incomingVal);
-          }
-        } else {
-          loop.setIndVarInit(incomingVal);
-        }
+      loop.setIndVarInit(indVar.getIncomingVals().get(1 - latchIndex));
+      var latchVal = indVar.getIncomingVals().get(latchIndex);
+      if (!(latchVal instanceof Instruction)) {
+        continue;
       }
+      loop.setStepInst((Instruction) latchVal);
 
       // step
-      // 假设 stepInst = Binary (indVar, step)
       var stepInst = loop.getStepInst();
-      if (stepInst == null) {
-        return;
-      }
-      for (var op : stepInst.getOperands()) {
-        if (op != indVar) {
-          loop.setStep(op);
+      var step = ((AddRec) scalarEvolution.getSCEV(indVar)).getStep();
+      if (stepInst.getOperands().contains(indVar)) {
+        for (var op : stepInst.getOperands()) {
+          if (op != indVar && scalarEvolution.getSCEV(op) == step) {
+            loop.setStep(op);
+          }
         }
       }
 
@@ -358,62 +350,11 @@ public class LoopInfo {
 //        return;
 //      }
 //      loop.setStep(stepInst.getOperands().get(1 - indVarIndex));
-
-      // tripCount
-      if (stepInst.tag == TAG_.Add &&
-          loop.getStep() instanceof Constant &&
-          loop.getIndVarInit() instanceof Constant &&
-          loop.getIndVarEnd() instanceof Constant &&
-          compareBias instanceof Constant) {
-        var init = ((ConstantInt) loop.getIndVarInit()).getVal();
-        var end = ((ConstantInt) loop.getIndVarEnd()).getVal();
-        var step = ((ConstantInt) loop.getStep()).getVal();
-        var bias = ((ConstantInt) compareBias).getVal();
-        int tripCount = (int) (1e9 + 7); //
-
-        // 只考虑 Lt, Le, Gt, Ge, Ne
-        // Lt, Gt: |end - init| / |step|
-        // Le, Ge: (|end - init| + 1) / |step|
-        // Ne: |end - init| / |step| (有余数时则为 inf)
-        switch (latchCmpInst.tag) {
-          case Lt -> {
-            if (step > 0) {
-              tripCount = init < end ? ceilDiv(end - init, step) : 0;
-            }
-          }
-          case Gt -> {
-            if (step < 0) {
-              tripCount = init > end ? ceilDiv(init - end, -step) : 0;
-            }
-          }
-          case Le -> {
-            if (step > 0) {
-              tripCount = init <= end ? ceilDiv(end - init + 1, step) : 0;
-            }
-          }
-          case Ge -> {
-            if (step < 0) {
-              tripCount = init >= end ? ceilDiv(init - end + 1, -step) : 0;
-            }
-          }
-          case Ne -> {
-            if (end - init == 0) {
-              tripCount = 0;
-            } else if (step * (end - init) > 0 && (end - init) % step == 0) {
-              tripCount = (end - init) / step;
-            }
-          }
-        }
-
-        tripCount -= (bias - step);
-
-        loop.setTripCount(tripCount);
-      }
     }
   }
 
-  private int ceilDiv(int a, int b) {
-    return (int) Math.ceil((double) a / b);
+  private static boolean isRecurrenceOf(SCEV scev, Loop loop) {
+    return scev instanceof AddRec && ((AddRec) scev).getLoop() == loop;
   }
 
   public HashMap<BasicBlock, Loop> getBbLoopMap() {
@@ -0,0 +1,826 @@
+package ir.Analysis;
+
+import ir.Loop;
+import ir.MyFactoryBuilder;
+import ir.values.BasicBlock;
+import ir.values.Constants.ConstantInt;
+import ir.values.Value;
+import ir.values.instructions.BinaryInst;
+import ir.values.instructions.Instruction;
+import ir.values.instructions.Instruction.TAG_;
+import ir.values.instructions.MemInst.Phi;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * 标量演化分析（SCEV）：把循环里的整数值表示成关于迭代次数的表达式，代替 Loop 里 indVar/step/tripCount 那一套按指令形状猜的做法
+ * <p>
+ * 核心是加法递归式 {start,+,step}&lt;loop&gt;：第 k 次迭代（从 0 开始数）的值是 start + k * step，step 在 loop 里不变。
+ * start 和 step 也可以是外层循环的递归式，比如二重循环里的 i * n + j 是 {{0,+,n}&lt;i&gt;,+,1}&lt;j&gt;。
+ * 其他的值是常数、循环里算不出来的未知值，以及它们的加、乘、有符号除、smax，节点都是唯一的，可以直接用 == 比较。
+ * <p>
+ * 在此之上能算出回边执行次数（可以是 n 这种运行时才知道的值），求一个值在最后一次迭代的值，并把表达式重新生成成 IR。
+ * 算的时候不考虑 i32 溢出，和原来的 tripCount 一样。
+ * <p>
+ * 一个实例对应一个函数当前的 IR 和 LoopInfo，IR 或者循环结构改了以后要重新建
+ */
+public class ScalarEvolution {
+
+  private static final MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
+
+  public abstract static class SCEV {
+
+    private final int id; // 创建顺序，加法和乘法的操作数按这个排，保证结果稳定
+    private final List<SCEV> operands;
+
+    private SCEV(int id, List<SCEV> operands) {
+      this.id = id;
+      this.operands = operands;
+    }
+
+    public List<SCEV> getOperands() {
+      return operands;
+    }
+  }
+
+  public static class Const extends SCEV {
+
+    private final int value;
+
+    private Const(int id, int value) {
+      super(id, List.of());
+      this.value = value;
+    }
+
+    public int getValue() {
+      return value;
+    }
+
+    @Override
+    public String toString() {
+      return String.valueOf(value);
+    }
+  }
+
+  public static class Unknown extends SCEV {
+
+    private final Value value;
+
+    private Unknown(int id, Value value) {
+      super(id, List.of());
+      this.value = value;
+    }
+
+    public Value getValue() {
+      return value;
+    }
+
+    @Override
+    public String toString() {
+      return value instanceof Instruction ? value.getName() : value.toString();
+    }
+  }
+
+  public static class Add extends SCEV {
+
+    private Add(int id, List<SCEV> operands) {
+      super(id, operands);
+    }
+
+    @Override
+    public String toString() {
+      var sb = new StringBuilder("(");
+      for (var op : getOperands()) {
+        sb.append(sb.length() == 1 ? "" : " + ").append(op);
+      }
+      return sb.append(")").toString();
+    }
+  }
+
+  public static class Mul extends SCEV {
+
+    private Mul(int id, List<SCEV> operands) {
+      super(id, operands);
+    }
+
+    @Override
+    public String toString() {
+      var sb = new StringBuilder("(");
+      for (var op : getOperands()) {
+        sb.append(sb.length() == 1 ? "" : " * ").append(op);
+      }
+      return sb.append(")").toString();
+    }
+  }
+
+  // 有符号除法，向 0 取整，和 IR 的 Div 一样
+  public static class Div extends SCEV {
+
+    private Div(int id, SCEV lhs, SCEV rhs) {
+      super(id, List.of(lhs, rhs));
+    }
+
+    @Override
+    public String toString() {
+      return "(" + getOperands().get(0) + " /s " + getOperands().get(1) + ")";
+    }
+  }
+
+  public static class SMax extends SCEV {
+
+    private SMax(int id, SCEV lhs, SCEV rhs) {
+      super(id, List.of(lhs, rhs));
+    }
+
+    @Override
+    public String toString() {
+      return "smax(" + getOperands().get(0) + ", " + getOperands().get(1) + ")";
+    }
+  }
+
+  public static class AddRec extends SCEV {
+
+    private final Loop loop;
+
+    private AddRec(int id, SCEV start, SCEV step, Loop loop) {
+      super(id, List.of(start, step));
+      this.loop = loop;
+    }
+
+    public SCEV getStart() {
+      return getOperands().get(0);
+    }
+
+    public SCEV getStep() {
+      return getOperands().get(1);
+    }
+
+    public Loop getLoop() {
+      return loop;
+    }
+
+    @Override
+    public String toString() {
+      return "{" + getStart() + ",+," + getStep() + "}<" + loop.getHeader().getName() + ">";
+    }
+  }
+
+  private final LoopInfo loopInfo;
+  private final HashMap<List<Object>, SCEV> uniques = new HashMap<>();
+  private final HashMap<Value, SCEV> scevs = new HashMap<>();
+  private final ArrayList<Value> computed = new ArrayList<>(); // scevs 的插入顺序，识别递归式失败时撤销用
+  private final HashMap<Loop, SCEV> backedgeTakenCounts = new HashMap<>();
+  private final HashMap<Loop, ExitTest> exitTests = new HashMap<>();
+
+  // 循环由 tested tag end 控制，tag 已经化成 Lt 或 Gt
+  private static class ExitTest {
+
+    private final AddRec tested;
+    private final TAG_ tag;
+    private final SCEV end;
+
+    private ExitTest(AddRec tested, TAG_ tag, SCEV end) {
+      this.tested = tested;
+      this.tag = tag;
+      this.end = end;
+    }
+  }
+
+  public ScalarEvolution(LoopInfo loopInfo) {
+    this.loopInfo = loopInfo;
+  }
+
+  public SCEV getSCEV(Value value) {
+    var scev = scevs.get(value);
+    if (scev == null) {
+      scev = createSCEV(value);
+      scevs.put(value, scev);
+      computed.add(value);
+    }
+    return scev;
+  }
+
+  /**
+   * @return 回边执行的次数，也就是循环退出前 latch 跳回 header 的次数；只处理 latch 是唯一出口、
+   * 用一个步长是常数的递归式和循环不变量比较的循环，算不出来返回 null
+   */
+  public SCEV getBackedgeTakenCount(Loop loop) {
+    if (!backedgeTakenCounts.containsKey(loop)) {
+      backedgeTakenCounts.put(loop, computeBackedgeTakenCount(loop));
+    }
+    return backedgeTakenCounts.get(loop);
+  }
+
+  /**
+   * @return header 执行的次数，等于回边执行次数 + 1
+   */
+  public SCEV getTripCount(Loop loop) {
+    var backedgeTakenCount = getBackedgeTakenCount(loop);
+    if (backedgeTakenCount == null) {
+      return null;
+    }
+    return getAdd(backedgeTakenCount, getConst(1));
+  }
+
+  public Integer getConstantTripCount(Loop loop) {
+    var tripCount = getTripCount(loop);
+    return tripCount instanceof Const ? ((Const) tripCount).getValue() : null;
+  }
+
+  /**
+   * @return value 在 loop 最后一次迭代里的值，value 所在的基本块要每次迭代都执行；不是 loop 的递归式、也不是循环不变量时返回 null
+   */
+  public SCEV getExitValue(Value value, Loop loop) {
+    var scev = getSCEV(value);
+    if (isInvariant(scev, loop)) {
+      return scev;
+    }
+    var backedgeTakenCount = getBackedgeTakenCount(loop);
+    if (!(scev instanceof AddRec) || ((AddRec) scev).getLoop() != loop
+        || backedgeTakenCount == null) {
+      return null;
+    }
+    return evaluateAtIteration((AddRec) scev, backedgeTakenCount);
+  }
+
+  public SCEV evaluateAtIteration(AddRec addRec, SCEV iteration) {
+    return getAdd(addRec.getStart(), getMul(addRec.getStep(), iteration));
+  }
+
+  public boolean isInvariant(SCEV scev, Loop loop) {
+    if (scev instanceof Unknown) {
+      var value = ((Unknown) scev).getValue();
+      return !(value instanceof Instruction) || !contains(loop, ((Instruction) value).getBB());
+    }
+    if (scev instanceof AddRec && contains(loop, ((AddRec) scev).getLoop().getHeader())) {
+      return false;
+    }
+    for (var op : scev.getOperands()) {
+      if (!isInvariant(op, loop)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // smax 和找不到对应 phi 的递归式以外的都能生成成 IR
+  public boolean isExpandable(SCEV scev) {
+    if (scev instanceof SMax) {
+      return false;
+    }
+    if (scev instanceof AddRec) {
+      var rewritten = rewriteByPhi((AddRec) scev);
+      return rewritten != null && isExpandable(rewritten);
+    }
+    for (var op : scev.getOperands()) {
+      if (!isExpandable(op)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * 在 bb 末尾生成计算 scev 的指令，scev 要 isExpandable，用到的未知值在 bb 里要能用
+   */
+  public Value expand(SCEV scev, BasicBlock bb) {
+    if (scev instanceof Const) {
+      return ConstantInt.newOne(factory.getI32Ty(), ((Const) scev).getValue());
+    }
+    if (scev instanceof Unknown) {
+      return ((Unknown) scev).getValue();
+    }
+    if (scev instanceof AddRec) {
+      return expand(rewriteByPhi((AddRec) scev), bb);
+    }
+    var ops = scev.getOperands();
+    if (scev instanceof Div) {
+      return factory.buildBinary(TAG_.Div, expand(ops.get(0), bb), expand(ops.get(1), bb), bb);
+    }
+    if (!(scev instanceof Add) && !(scev instanceof Mul)) {
+      throw new RuntimeException("can not expand " + scev);
+    }
+
+    // 常数放在最后；加法里系数是 -1 的项生成成减法
+    var tag = scev instanceof Add ? TAG_.Add : TAG_.Mul;
+    Value result = null;
+    var subtracted = new ArrayList<SCEV>();
+    for (var op : ops) {
+      if (op instanceof Const) {
+        continue;
+      }
+      var negated = tag == TAG_.Add ? negatedTerm(op) : null;
+      if (negated != null) {
+        subtracted.add(negated);
+        continue;
+      }
+      var value = expand(op, bb);
+      result = result == null ? value : factory.buildBinary(tag, result, value, bb);
+    }
+    for (var op : subtracted) {
+      result = factory.buildBinary(TAG_.Sub,
+          result == null ? ConstantInt.newOne(factory.getI32Ty(), 0) : result, expand(op, bb), bb);
+    }
+    if (ops.get(0) instanceof Const) {
+      result = factory.buildBinary(tag, result, expand(ops.get(0), bb), bb);
+    }
+    return result;
+  }
+
+  /**
+   * 用循环 header 上的 phi {p,+,c} 表示 {a,+,b}：b 是 c 的 m 倍时等于 (a - m * p) + m * phi，phi 当成未知值。
+   * 只能在这个循环里面用，找不到返回 null
+   */
+  private SCEV rewriteByPhi(AddRec addRec) {
+    if (!(addRec.getStep() instanceof Const)) {
+      return null;
+    }
+    int step = ((Const) addRec.getStep()).getValue();
+    for (var instNode : addRec.getLoop().getLoopHeader().getList()) {
+      var inst = instNode.getVal();
+      if (!(inst instanceof Phi)) {
+        break;
+      }
+      var phi = getSCEV(inst);
+      if (!(phi instanceof AddRec) || ((AddRec) phi).getLoop() != addRec.getLoop()
+          || !(((AddRec) phi).getStep() instanceof Const)) {
+        continue;
+      }
+      int phiStep = ((Const) ((AddRec) phi).getStep()).getValue();
+      if (step % phiStep == 0) {
+        var scale = getConst(step / phiStep);
+        var base = getMinus(addRec.getStart(), getMul(scale, ((AddRec) phi).getStart()));
+        return getAdd(base, getMul(scale, getUnknown(inst)));
+      }
+    }
+    return null;
+  }
+
+  // (-1 * x) 返回 x
+  private SCEV negatedTerm(SCEV scev) {
+    if (!(scev instanceof Mul)) {
+      return null;
+    }
+    var ops = scev.getOperands();
+    if (!(ops.get(0) instanceof Const) || ((Const) ops.get(0)).getValue() != -1) {
+      return null;
+    }
+    return getMul(ops.subList(1, ops.size()));
+  }
+
+  public SCEV getConst(int value) {
+    return unique(id -> new Const(id, value), Const.class, value);
+  }
+
+  public SCEV getUnknown(Value value) {
+    return unique(id -> new Unknown(id, value), Unknown.class, value);
+  }
+
+  public SCEV getAddRec(SCEV start, SCEV step, Loop loop) {
+    if (step instanceof Const && ((Const) step).getValue() == 0) {
+      return start;
+    }
+    return unique(id -> new AddRec(id, start, step, loop), AddRec.class, start, step, loop);
+  }
+
+  public SCEV getAdd(SCEV... ops) {
+    return getAdd(Arrays.asList(ops));
+  }
+
+  public SCEV getAdd(List<SCEV> ops) {
+    // 展开嵌套的加法，合并同类项：c1 * x + c2 * x = (c1 + c2) * x
+    int constant = 0;
+    var terms = new LinkedHashMap<SCEV, Integer>();
+    var worklist = new ArrayList<>(ops);
+    var coefs = new ArrayList<Integer>();
+    ops.forEach(op -> coefs.add(1));
+    for (int i = 0; i < worklist.size(); i++) {
+      var op = worklist.get(i);
+      int coef = coefs.get(i);
+      if (op instanceof Const) {
+        constant += coef * ((Const) op).getValue();
+      } else if (op instanceof Add) {
+        for (var sub : op.getOperands()) {
+          worklist.add(sub);
+          coefs.add(coef);
+        }
+      } else if (op instanceof Mul && op.getOperands().get(0) instanceof Const) {
+        var mulOps = op.getOperands();
+        terms.merge(getMul(mulOps.subList(1, mulOps.size())),
+            coef * ((Const) mulOps.get(0)).getValue(), Integer::sum);
+      } else {
+        terms.merge(op, coef, Integer::sum);
+      }
+    }
+
+    var result = new ArrayList<SCEV>();
+    terms.forEach((term, coef) -> {
+      if (coef != 0) {
+        result.add(coef == 1 ? term : getMul(getConst(coef), term));
+      }
+    });
+
+    // 在最内层的递归式所在的循环里不变的项并进它的初值：{a,+,b}<L> + x = {a + x,+,b}<L>，同一个循环的递归式逐项相加
+    AddRec addRec = null;
+    for (var op : result) {
+      if (op instanceof AddRec && (addRec == null
+          || ((AddRec) op).getLoop().getLoopDepth() > addRec.getLoop().getLoopDepth())) {
+        addRec = (AddRec) op;
+      }
+    }
+    if (addRec != null) {
+      var loop = addRec.getLoop();
+      var starts = new ArrayList<SCEV>();
+      var steps = new ArrayList<SCEV>();
+      var rest = new ArrayList<SCEV>();
+      for (var op : result) {
+        if (op instanceof AddRec && ((AddRec) op).getLoop() == loop) {
+          starts.add(((AddRec) op).getStart());
+          steps.add(((AddRec) op).getStep());
+        } else if (isInvariant(op, loop)) {
+          starts.add(op);
+        } else {
+          rest.add(op);
+        }
+      }
+      if (rest.size() + 1 < result.size() || constant != 0) {
+        starts.add(getConst(constant));
+        rest.add(getAddRec(getAdd(starts), getAdd(steps), loop));
+        return getAdd(rest);
+      }
+    }
+
+    if (result.isEmpty()) {
+      return getConst(constant);
+    }
+    result.sort(Comparator.comparingInt(op -> op.id));
+    if (constant != 0) {
+      result.add(0, getConst(constant));
+    }
+    if (result.size() == 1) {
+      return result.get(0);
+    }
+    return unique(id -> new Add(id, List.copyOf(result)), key(Add.class, result));
+  }
+
+  public SCEV getMul(SCEV... ops) {
+    return getMul(Arrays.asList(ops));
+  }
+
+  public SCEV getMul(List<SCEV> ops) {
+    int constant = 1;
+    var factors = new ArrayList<SCEV>();
+    var worklist = new ArrayList<>(ops);
+    for (int i = 0; i < worklist.size(); i++) {
+      var op = worklist.get(i);
+      if (op instanceof Const) {
+        constant *= ((Const) op).getValue();
+      } else if (op instanceof Mul) {
+        worklist.addAll(op.getOperands());
+      } else {
+        factors.add(op);
+      }
+    }
+    if (constant == 0 || factors.isEmpty()) {
+      return getConst(constant);
+    }
+
+    // 常数乘进加法里，保证线性的表达式只有一种写法
+    if (factors.size() == 1 && factors.get(0) instanceof Add && constant != 1) {
+      var terms = new ArrayList<SCEV>();
+      for (var op : factors.get(0).getOperands()) {
+        terms.add(getMul(getConst(constant), op));
+      }
+      return getAdd(terms);
+    }
+
+    // 递归式乘上在它的循环里不变的因子：x * {a,+,b}<L> = {x * a,+,x * b}<L>
+    for (var factor : factors) {
+      if (!(factor instanceof AddRec)) {
+        continue;
+      }
+      var addRec = (AddRec) factor;
+      var others = new ArrayList<SCEV>();
+      others.add(getConst(constant));
+      for (var other : factors) {
+        if (other != factor) {
+          others.add(other);
+        }
+      }
+      if (others.stream().allMatch(other -> isInvariant(other, addRec.getLoop()))) {
+        var scale = getMul(others);
+        return getAddRec(getMul(scale, addRec.getStart()), getMul(scale, addRec.getStep()),
+            addRec.getLoop());
+      }
+    }
+
+    factors.sort(Comparator.comparingInt(op -> op.id));
+    if (constant != 1) {
+      factors.add(0, getConst(constant));
+    }
+    if (factors.size() == 1) {
+      return factors.get(0);
+    }
+    return unique(id -> new Mul(id, List.copyOf(factors)), key(Mul.class, factors));
+  }
+
+  public SCEV getMinus(SCEV lhs, SCEV rhs) {
+    return getAdd(lhs, getMul(getConst(-1), rhs));
+  }
+
+  public SCEV getDiv(SCEV lhs, SCEV rhs) {
+    if (rhs instanceof Const) {
+      int divisor = ((Const) rhs).getValue();
+      if (divisor == 1) {
+        return lhs;
+      }
+      if (lhs instanceof Const && divisor != 0
+          && !(((Const) lhs).getValue() == Integer.MIN_VALUE && divisor == -1)) {
+        return getConst(((Const) lhs).getValue() / divisor);
+      }
+    }
+    return unique(id -> new Div(id, lhs, rhs), Div.class, lhs, rhs);
+  }
+
+  public SCEV getSMax(SCEV lhs, SCEV rhs) {
+    if (lhs == rhs) {
+      return lhs;
+    }
+    if (lhs instanceof Const && rhs instanceof Const) {
+      return getConst(Math.max(((Const) lhs).getValue(), ((Const) rhs).getValue()));
+    }
+    if (lhs.id > rhs.id) {
+      return getSMax(rhs, lhs);
+    }
+    return unique(id -> new SMax(id, lhs, rhs), SMax.class, lhs, rhs);
+  }
+
+  private SCEV unique(IntFunction<SCEV> constructor, Object... key) {
+    return uniques.computeIfAbsent(Arrays.asList(key), k -> constructor.apply(uniques.size()));
+  }
+
+  private Object[] key(Class<?> kind, List<SCEV> ops) {
+    var key = new ArrayList<Object>();
+    key.add(kind);
+    key.addAll(ops);
+    return key.toArray();
+  }
+
+  private SCEV createSCEV(Value value) {
+    if (value instanceof ConstantInt) {
+      return getConst(((ConstantInt) value).getVal());
+    }
+    if (value instanceof Phi) {
+      return createPhiSCEV((Phi) value);
+    }
+    if (!(value instanceof BinaryInst)) {
+      return getUnknown(value);
+    }
+
+    var ops = ((BinaryInst) value).getOperands();
+    switch (((BinaryInst) value).tag) {
+      case Add -> {
+        return getAdd(getSCEV(ops.get(0)), getSCEV(ops.get(1)));
+      }
+      case Sub -> {
+        return getMinus(getSCEV(ops.get(0)), getSCEV(ops.get(1)));
+      }
+      case Mul -> {
+        return getMul(getSCEV(ops.get(0)), getSCEV(ops.get(1)));
+      }
+      case Div -> {
+        return getDiv(getSCEV(ops.get(0)), getSCEV(ops.get(1)));
+      }
+      case Shl -> {
+        if (ops.get(1) instanceof ConstantInt) {
+          int shift = ((ConstantInt) ops.get(1)).getVal();
+          if (shift >= 0 && shift < 32) {
+            return getMul(getSCEV(ops.get(0)), getConst(1 << shift));
+          }
+        }
+        return getUnknown(value);
+      }
+      default -> {
+        return getUnknown(value);
+      }
+    }
+  }
+
+  private SCEV createPhiSCEV(Phi phi) {
+    var bb = phi.getBB();
+    var loop = loopInfo.getLoopForBB(bb);
+    var preds = bb.getPredecessor_();
+    var incomingVals = phi.getIncomingVals();
+
+    if (loop != null && loop.getLoopHeader() == bb && preds.size() == 2) {
+      int latchIndex = contains(loop, preds.get(0)) ? 0 : 1;
+      if (!contains(loop, preds.get(latchIndex)) || contains(loop, preds.get(1 - latchIndex))) {
+        return getUnknown(phi);
+      }
+      var start = getSCEV(incomingVals.get(1 - latchIndex));
+
+      // 先把 phi 当成未知值算回边上的值，是 phi + 循环不变量的话就是递归式；中间算出来的结果依赖这个假设，都要扔掉
+      var self = getUnknown(phi);
+      int mark = computed.size();
+      scevs.put(phi, self);
+      var next = getSCEV(incomingVals.get(latchIndex));
+      while (computed.size() > mark) {
+        scevs.remove(computed.remove(computed.size() - 1));
+      }
+      scevs.remove(phi);
+
+      var step = getMinus(next, self);
+      if (isInvariant(step, loop)) {
+        return getAddRec(start, step, loop);
+      }
+      return getUnknown(phi);
+    }
+
+    // LCSSA 的 phi：incoming 在这里还能用同一个表达式表示的话直接用
+    if (incomingVals.size() == 1) {
+      var scev = getSCEV(incomingVals.get(0));
+      if (isAvailable(scev, bb)) {
+        return scev;
+      }
+    }
+    return getUnknown(phi);
+  }
+
+  private SCEV computeBackedgeTakenCount(Loop loop) {
+    var header = loop.getLoopHeader();
+    var preds = header.getPredecessor_();
+    if (preds.size() != 2 || contains(loop, preds.get(0)) == contains(loop, preds.get(1))) {
+      return null;
+    }
+    var latch = contains(loop, preds.get(0)) ? preds.get(0) : preds.get(1);
+    for (var bb : loop.getBlocks()) {
+      for (var succ : bb.getSuccessor_()) {
+        if (bb != latch && !contains(loop, succ)) {
+          return null;
+        }
+      }
+    }
+
+    var br = latch.getList().getLast().getVal();
+    if (br.tag != TAG_.Br || br.getNumOP() != 3 || !(br.getOperands().get(0) instanceof BinaryInst)
+        || !((BinaryInst) br.getOperands().get(0)).isCond()) {
+      return null;
+    }
+    var cmp = (BinaryInst) br.getOperands().get(0);
+    for (int i = 0; i <= 1; i++) {
+      var tested = getSCEV(cmp.getOperands().get(i));
+      var bound = getSCEV(cmp.getOperands().get(1 - i));
+      if (tested instanceof AddRec && ((AddRec) tested).getLoop() == loop
+          && ((AddRec) tested).getStep() instanceof Const && isInvariant(bound, loop)) {
+        var tag = DependenceAnalysis.continueTag(cmp, br.getOperands().get(1) == header,
+            cmp.getOperands().get(i));
+        if (tag == null) {
+          return null;
+        }
+        return exitCount(loop, tag, (AddRec) tested, bound);
+      }
+    }
+    return null;
+  }
+
+  // 第 k 次迭代判断的是 start + step * k tag end，成立就继续，返回第一个不成立的 k
+  private SCEV exitCount(Loop loop, TAG_ tag, AddRec tested, SCEV end) {
+    var start = tested.getStart();
+    int step = ((Const) tested.getStep()).getValue();
+    if (tag == TAG_.Ne) {
+      var distance = getMinus(end, start);
+      if (distance instanceof Const) {
+        int d = ((Const) distance).getValue();
+        if (d % step == 0 && d / step >= 0) {
+          return getConst(d / step);
+        }
+      }
+      return null;
+    }
+
+    // Le、Ge 化成 Lt、Gt
+    if (tag == TAG_.Le) {
+      tag = TAG_.Lt;
+      end = getAdd(end, getConst(1));
+    } else if (tag == TAG_.Ge) {
+      tag = TAG_.Gt;
+      end = getAdd(end, getConst(-1));
+    }
+    SCEV distance;
+    if (tag == TAG_.Lt && step > 0) {
+      distance = getMinus(end, start);
+    } else if (tag == TAG_.Gt && step < 0) {
+      distance = getMinus(start, end);
+    } else {
+      return null;
+    }
+    exitTests.put(loop, new ExitTest(tested, tag, end));
+
+    // ceil(distance / |step|) = (distance + |step| - 1) / |step|，distance 不是正数的时候结果不是正数，和 0 取 max。
+    // 进循环之前判断过 start - step tag end 的话 distance + |step| - 1 不会是负数
+    int stride = Math.abs(step);
+    var count = getDiv(getAdd(distance, getConst(stride - 1)), getConst(stride));
+    if (isKnownOnEntry(loop, tag, start, stride, end)) {
+      return count;
+    }
+    return getSMax(getConst(0), count);
+  }
+
+  /**
+   * 每次进入 loop 的时候 value tag end（Lt 或 Gt）是不是一定成立，允许差 slack：Lt 时 value - slack &lt; end，Gt 时 value + slack &gt; end。
+   * 从 preheader 往上沿着只有一个前驱的基本块找条件跳转；走到外层循环的 header 时，外层循环由 {s,+,c} tag end 控制、
+   * 并且进入时 s - c tag end 的话，header 上的 phi {s - c,+,c} 一直满足 tag end
+   */
+  private boolean isKnownOnEntry(Loop loop, TAG_ tag, SCEV value, int slack, SCEV end) {
+    BasicBlock target = loop.getLoopHeader();
+    var bb = loop.getPreHeader();
+    for (int depth = 0; bb != null && depth < 4; depth++) {
+      var br = bb.getList().getLast().getVal();
+      if (br.getNumOP() == 3) {
+        if (!(br.getOperands().get(0) instanceof BinaryInst)
+            || !((BinaryInst) br.getOperands().get(0)).isCond()) {
+          return false;
+        }
+        var cmp = (BinaryInst) br.getOperands().get(0);
+        for (int i = 0; i <= 1; i++) {
+          var guardTag = DependenceAnalysis.continueTag(cmp, br.getOperands().get(1) == target,
+              cmp.getOperands().get(i));
+          var bound = getSCEV(cmp.getOperands().get(1 - i));
+          if (guardTag == TAG_.Le) {
+            guardTag = TAG_.Lt;
+            bound = getAdd(bound, getConst(1));
+          } else if (guardTag == TAG_.Ge) {
+            guardTag = TAG_.Gt;
+            bound = getAdd(bound, getConst(-1));
+          }
+          if (guardTag == tag && bound == end) {
+            return isWithinSlack(tag, getMinus(value, getSCEV(cmp.getOperands().get(i))), slack);
+          }
+        }
+        return false;
+      }
+      if (bb.getPredecessor_().size() == 1) {
+        target = bb;
+        bb = bb.getPredecessor_().get(0);
+        continue;
+      }
+
+      var outer = loopInfo.getLoopForBB(bb);
+      if (outer == null || outer.getLoopHeader() != bb || getBackedgeTakenCount(outer) == null) {
+        return false;
+      }
+      var test = exitTests.get(outer);
+      if (test == null || test.tag != tag || test.end != end) {
+        return false;
+      }
+      var phiStart = getMinus(test.tested.getStart(), test.tested.getStep());
+      if (!isKnownOnEntry(outer, tag, phiStart, 0, end)) {
+        return false;
+      }
+      var phi = getAddRec(phiStart, test.tested.getStep(), outer);
+      return isWithinSlack(tag, getMinus(value, phi), slack);
+    }
+    return false;
+  }
+
+  private boolean isWithinSlack(TAG_ tag, SCEV diff, int slack) {
+    if (!(diff instanceof Const)) {
+      return false;
+    }
+    int d = ((Const) diff).getValue();
+    return tag == TAG_.Lt ? d <= slack : d >= -slack;
+  }
+
+  // 表达式里的值在 bb 里都能直接用：递归式的循环包含 bb，未知值不在不包含 bb 的循环里
+  private boolean isAvailable(SCEV scev, BasicBlock bb) {
+    if (scev instanceof AddRec && !contains(((AddRec) scev).getLoop(), bb)) {
+      return false;
+    }
+    if (scev instanceof Unknown && ((Unknown) scev).getValue() instanceof Instruction) {
+      var loop = loopInfo.getLoopForBB(((Instruction) ((Unknown) scev).getValue()).getBB());
+      if (loop != null && !contains(loop, bb)) {
+        return false;
+      }
+    }
+    for (var op : scev.getOperands()) {
+      if (!isAvailable(op, bb)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean contains(Loop loop, BasicBlock bb) {
+    for (var l = loopInfo.getLoopForBB(bb); l != null; l = l.getParentLoop()) {
+      if (l == loop) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -27,7 +27,7 @@ public class Loop {
   private Instruction stepInst; // 索引迭代指令
   private Instruction indVarCondInst; // icmp 中携带 indVar 的操作数（在 while (i < n) 的情况下等于 stepInst）
   private Value step; // 迭代长度
-  private Integer tripCount; // 迭代次数（只考虑 init/end/step 都是常量的情况）
+  private Integer tripCount; // 迭代次数（header 执行的次数，ScalarEvolution 算出来是常量时才有）
 
   public Loop(Loop parentLoop) {
     this.parentLoop = parentLoop;
@@ -5,6 +5,7 @@ import ir.types.Type.LabelType;
 import ir.types.Type.VoidType;
 import ir.values.*;
 import ir.values.Constants.ConstantArray;
+import ir.values.Constants.IntArray;
 import ir.values.Constants.ConstantInt;
 import ir.values.instructions.BinaryInst;
 import ir.values.instructions.Instruction;
@@ -58,6 +59,10 @@ public class MyFactoryBuilder {
     return new ConstantArray(type, arr);
   }
 
+  public ConstantArray getConstantArray(Type type, IntArray values, boolean flat) {
+    return new ConstantArray(type, values, flat);
+  }
+
   public GlobalVariable getGlobalvariable(String name, Type type, Constant fixedInit,
       Constant plainInit) {
     return new GlobalVariable(name, type, fixedInit, plainInit);
@@ -1,36 +1,36 @@
 package ir;
 
+import driver.CompilationContext;
 import driver.Config;
 import ir.types.FunctionType;
 import ir.types.IntegerType;
 import ir.types.PointerType;
 import ir.types.Type;
 import ir.types.Type.VoidType;
+import ir.values.Constants.ConstantInt;
 import ir.values.Function;
 import ir.values.GlobalVariable;
-import ir.values.instructions.Instruction;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.logging.Logger;
 import util.IList;
 import util.Mylogger;
 
 /**
- * IR结构中的顶层container,存有函数，全局变量，符号表，指令的list以及其他所有需要的信息 由于SysY只需要支持单文件编译，所以Module事实上是以单例存在的
+ * IR结构中的顶层container,存有函数，全局变量，符号表以及其他所有需要的信息 由于SysY只需要支持单文件编译，所以Module事实上是以单例存在的
  */
 public class MyModule {
 
   public static MyModule getInstance() {
-    return myModule;
+    return CompilationContext.current().get(MyModule.class, MyModule::new);
   }
 
   public ArrayList<GlobalVariable> __globalVariables;
   public IList<Function, MyModule> __functions;
-  public HashMap<Integer, Instruction> __instructions;
-  private static final MyModule myModule = new MyModule();
+  // ConstantInt.CONST0() 返回的那个 0，每次编译一个，不会把上一次编译的 IR 挂在它的 use 链表上
+  private final ConstantInt const0;
 
   public void init() {
     Logger log = Mylogger.getLogger(MyModule.class);
@@ -65,14 +65,33 @@ public class MyModule {
      * */
 //    f.buildFunction("starttime", f.getFuncTy(f.getVoidTy(), new ArrayList<>()));
 //    f.buildFunction("stoptime", f.getFuncTy(f.getVoidTy(), new ArrayList<>()));
-    //todo multi threads func
+    // 多线程的运行时不在这里声明：MarkParallel 给每个并行循环建一个内置函数入口，汇编由 CodeGenManager 生成
     log.warning("built finished");
   }
 
+  /**
+   * 丢掉已经生成的函数和全局变量，-stream-parse 的 SLL 分析失败、要用 LL 重新分析的时候用
+   */
+  public void clear() {
+    for (var funcNode : __functions) {
+      for (var bbNode : funcNode.getVal().getList_()) {
+        for (var instNode : bbNode.getVal().getList()) {
+          instNode.getVal().CORemoveAllOperand();
+        }
+      }
+    }
+    __functions = new IList<>(this);
+    __globalVariables = new ArrayList<>();
+  }
+
+  public ConstantInt getConst0() {
+    return const0;
+  }
+
   private MyModule() {
     __functions = new IList<>(this);
-    __instructions = new HashMap<>();
     __globalVariables = new ArrayList<>();
+    const0 = ConstantInt.newOne(IntegerType.getI32(), 0);
 
   }
 
@@ -2,10 +2,11 @@ package ir;
 
 import ir.values.User;
 import ir.values.Value;
-import java.util.Objects;
 
 /**
  * 用来记录Value之间的使用关系，一个Value使用了另一个Value，就有一条有向边连接他们          _- E Use和作为User的Value一个用来找def-use，一个用来找use-def
+ * <p>
+ * Use 同时是被使用的 Value 的 use 链表（UseList）上的节点，由 User 的 operand 槽位持有，增删都是 O(1)
  */
 public class Use {
 
@@ -25,24 +26,6 @@ public class Use {
     this.v = v;
   }
 
-  @Override
-  public boolean equals(Object o) {
-    if (this == o) {
-      return true;
-    }
-    if (o == null || getClass() != o.getClass()) {
-      return false;
-    }
-    Use use = (Use) o;
-    return operandRank == use.operandRank && Objects.equals(u, use.u) && Objects
-        .equals(v, use.v);
-  }
-
-  @Override
-  public int hashCode() {
-    return Objects.hash(operandRank, u, v);
-  }
-
   public User getUser() {
     return this.u;
   }
@@ -55,9 +38,34 @@ public class Use {
     return operandRank;
   }
 
+  public void setOperandRank(int operandRank) {
+    this.operandRank = operandRank;
+  }
+
+  /**
+   * 是否还挂在某个 Value 的 use 链表上
+   */
+  public boolean isLinked() {
+    return list != null;
+  }
+
+  /**
+   * 从所在的 use 链表上摘下来
+   */
+  public void unlink() {
+    if (list != null) {
+      list.remove(this);
+    }
+  }
+
   private int operandRank;
   private User u;
   private Value v;
 
-
+  // UseList 的链表指针，摘下来之后 next 保持不变，正在遍历的迭代器可以继续往后走
+  UseList list;
+  Use prev;
+  Use next;
+  // 创建序号，并行跑 function pass 之后 shared 的 use 链表按它恢复顺序
+  final long order = UseList.nextOrder();
 }
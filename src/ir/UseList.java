@@ -0,0 +1,258 @@
+package ir;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Value 的 use 链表，节点就是 Use 本身（侵入式双向链表）
+ * <p>
+ * 添加、删除、contains 都是 O(1)，遍历的过程中可以删除当前的 Use，比如 RAUW 时把它挪到别的 Value 上
+ * <p>
+ * 常量、全局变量、函数会被好几个函数同时用到，并行跑 function pass 的时候它们的 use 链表是 shared 的：增删加锁，
+ * 并且在每个并行步骤结束的时候按 Use 的创建序号重新排一遍，得到和按函数顺序串行跑完全一样的顺序
+ */
+public class UseList extends AbstractCollection<Use> {
+
+  // 创建序号：step | 函数下标 | 函数内计数，串行的时候只有最低一段在涨
+  private static final int STEP_SHIFT = 44;
+  private static final int FUNC_SHIFT = 28;
+
+  /**
+   * 当前线程的序号分配状态。编译线程自己一份（daemon 里每个请求在自己的线程上编译，互不影响），并行步骤里的任务各一份
+   */
+  private static final class Cursor {
+
+    long step;
+    long base;
+    long counter;
+    // 并行步骤里加过 Use 的 shared 链表，只有任务线程上不为 null
+    Set<UseList> touched;
+  }
+
+  private static final ThreadLocal<Cursor> cursor = ThreadLocal.withInitial(Cursor::new);
+
+  /**
+   * 一个并行步骤，由编译线程创建，传给这一步的所有任务
+   */
+  public static final class ParallelStep {
+
+    private final long step;
+    private final Set<UseList> touched = ConcurrentHashMap.newKeySet();
+
+    private ParallelStep(long step) {
+      this.step = step;
+    }
+  }
+
+  private final boolean shared;
+  private Use head;
+  private Use tail;
+  private int size;
+
+  public UseList() {
+    this(false);
+  }
+
+  public UseList(boolean shared) {
+    this.shared = shared;
+  }
+
+  static long nextOrder() {
+    Cursor c = cursor.get();
+    return c.base + c.counter++;
+  }
+
+  /**
+   * 编译线程调用，接下来在各个线程上按函数并行跑一个 pass
+   */
+  public static ParallelStep beginParallelStep() {
+    Cursor c = cursor.get();
+    c.step++;
+    return new ParallelStep(c.step);
+  }
+
+  /**
+   * 工作线程开始处理 module 里第 funcIndex 个函数
+   */
+  public static void enterFunction(ParallelStep parallelStep, int funcIndex) {
+    Cursor c = cursor.get();
+    c.step = parallelStep.step;
+    c.base = (parallelStep.step << STEP_SHIFT) + ((long) (funcIndex + 1) << FUNC_SHIFT);
+    c.counter = 0;
+    c.touched = parallelStep.touched;
+  }
+
+  public static void exitFunction() {
+    cursor.remove();
+  }
+
+  /**
+   * 编译线程在所有函数跑完之后调用，把这一步里加过 Use 的 shared 链表排回串行的顺序
+   */
+  public static void endParallelStep(ParallelStep parallelStep) {
+    for (UseList list : parallelStep.touched) {
+      list.sortByOrder();
+    }
+    Cursor c = cursor.get();
+    c.step = parallelStep.step + 1;
+    c.base = c.step << STEP_SHIFT;
+    c.counter = 0;
+  }
+
+  private void sortByOrder() {
+    Use[] uses = new Use[size];
+    int i = 0;
+    for (Use use = head; use != null; use = use.next) {
+      uses[i++] = use;
+    }
+    Arrays.sort(uses, Comparator.comparingLong(use -> use.order));
+    head = tail = null;
+    for (Use use : uses) {
+      use.prev = tail;
+      use.next = null;
+      if (tail == null) {
+        head = use;
+      } else {
+        tail.next = use;
+      }
+      tail = use;
+    }
+  }
+
+  @Override
+  public boolean add(Use use) {
+    if (shared) {
+      synchronized (this) {
+        Set<UseList> touched = cursor.get().touched;
+        if (touched != null) {
+          touched.add(this);
+        }
+        return append(use);
+      }
+    }
+    return append(use);
+  }
+
+  private boolean append(Use use) {
+    assert use.list == null;
+    use.list = this;
+    use.prev = tail;
+    use.next = null;
+    if (tail == null) {
+      head = use;
+    } else {
+      tail.next = use;
+    }
+    tail = use;
+    size++;
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (shared) {
+      synchronized (this) {
+        return unlink(o);
+      }
+    }
+    return unlink(o);
+  }
+
+  private boolean unlink(Object o) {
+    if (!contains(o)) {
+      return false;
+    }
+    Use use = (Use) o;
+    if (use.prev == null) {
+      head = use.next;
+    } else {
+      use.prev.next = use.next;
+    }
+    if (use.next == null) {
+      tail = use.prev;
+    } else {
+      use.next.prev = use.prev;
+    }
+    use.list = null;
+    use.prev = null;
+    size--;
+    return true;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return o instanceof Use && ((Use) o).list == this;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public Use get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    Use use = head;
+    for (int i = 0; i < index; i++) {
+      use = use.next;
+    }
+    return use;
+  }
+
+  @Override
+  public synchronized void clear() {
+    for (Use use = head; use != null; use = use.next) {
+      use.list = null;
+      use.prev = null;
+    }
+    head = tail = null;
+    size = 0;
+  }
+
+  @Override
+  public Iterator<Use> iterator() {
+    return new Iterator<>() {
+      private Use nxt = head;
+      private Use last = null;
+
+      @Override
+      public boolean hasNext() {
+        // 跳过遍历过程中已经被摘下来的 Use
+        while (nxt != null && nxt.list != UseList.this) {
+          nxt = nxt.next;
+        }
+        return nxt != null;
+      }
+
+      @Override
+      public Use next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        last = nxt;
+        nxt = nxt.next;
+        return last;
+      }
+
+      @Override
+      public void remove() {
+        if (last == null) {
+          throw new IllegalStateException();
+        }
+        UseList.this.remove(last);
+        last = null;
+      }
+    };
+  }
+}
@@ -25,4 +25,9 @@ public class VectorType extends Type {
   public Type getEleType() {
     return eleType;
   }
+
+  @Override
+  public String toString() {
+    return "<" + numEle + " x " + eleType + ">";
+  }
 }
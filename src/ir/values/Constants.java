@@ -1,16 +1,17 @@
 package ir.values;
 
+import ir.MyModule;
 import ir.types.ArrayType;
 import ir.types.IntegerType;
 import ir.types.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Constants {
 
   public static class ConstantInt extends Constant {
 
-    private static final ConstantInt c0_ = new ConstantInt(IntegerType.getI32(), 0);
-
     public static ConstantInt newOne(Type type, int val) {
       return new ConstantInt(type, val);
     }
@@ -26,7 +27,7 @@ public class Constants {
     }
 
     public static ConstantInt CONST0() {
-      return c0_;//太常用了
+      return MyModule.getInstance().getConst0();//太常用了
     }
 
     public int getVal() {
@@ -46,6 +47,97 @@ public class Constants {
   }
 
 
+  /**
+   * 整数数组初始值的紧凑存储，长度是 length，按行主序
+   * <p>
+   * 非零元素少的时候只存非零元素的下标和值（稀疏），否则存一个 int[]，到最后一个非零元素为止，后面的 0 不存
+   */
+  public static final class IntArray {
+
+    private final int length;
+    // dense != null 时是稠密的，否则 indices/values 是递增的非零下标和对应的值
+    private final int[] dense;
+    private final int[] indices;
+    private final int[] values;
+
+    private IntArray(int length, int[] dense, int[] indices, int[] values) {
+      this.length = length;
+      this.dense = dense;
+      this.indices = indices;
+      this.values = values;
+    }
+
+    public static IntArray of(int[] data) {
+      int nonZero = 0;
+      int end = 0;
+      for (int i = 0; i < data.length; i++) {
+        if (data[i] != 0) {
+          nonZero++;
+          end = i + 1;
+        }
+      }
+      if (nonZero * 2 < end) {
+        var indices = new int[nonZero];
+        var values = new int[nonZero];
+        for (int i = 0, j = 0; i < end; i++) {
+          if (data[i] != 0) {
+            indices[j] = i;
+            values[j++] = data[i];
+          }
+        }
+        return new IntArray(data.length, null, indices, values);
+      }
+      return new IntArray(data.length, Arrays.copyOf(data, end), null, null);
+    }
+
+    public int length() {
+      return length;
+    }
+
+    public int get(int i) {
+      if (dense != null) {
+        return i < dense.length ? dense[i] : 0;
+      }
+      int pos = Arrays.binarySearch(indices, i);
+      return pos >= 0 ? values[pos] : 0;
+    }
+
+    /**
+     * 从 i 开始连续都等于 get(i) 的一段的结束位置（不含），输出 .zero/.fill 用
+     */
+    public int runEnd(int i, int end) {
+      int v = get(i);
+      if (dense != null) {
+        if (i >= dense.length) {
+          return end;
+        }
+        int j = i + 1;
+        while (j < Math.min(end, dense.length) && dense[j] == v) {
+          j++;
+        }
+        // dense 最后一个元素不是 0，0 的一段不会接到后面省略的 0 上
+        return j;
+      }
+      int pos = Arrays.binarySearch(indices, i);
+      if (pos < 0) {
+        int next = -pos - 1;
+        return next < indices.length ? Math.min(end, indices[next]) : end;
+      }
+      int j = pos;
+      while (j + 1 < indices.length && indices[j + 1] == indices[j] + 1 && values[j + 1] == v) {
+        j++;
+      }
+      return Math.min(end, indices[j] + 1);
+    }
+  }
+
+  /**
+   * 数组常量
+   * <p>
+   * 一般的 ConstantArray 每个元素是一个 operand。Visitor 和 LocalArrayPromotion 生成的 i32 数组初始值用紧凑的形式：
+   * 元素放在 IntArray 里，自己只记从 offset 开始的哪一段、按什么 dims 排，不建 ConstantInt 也没有 Use；
+   * 多维数组的各行和整个数组共用一个 IntArray。getConst_arr_ 要用的时候才建出元素对象，按下标取值用 getInt/getElement
+   */
   public static class ConstantArray extends Constant {
 
     public ConstantArray(Type type, ArrayList<Constant> arr) {
@@ -54,17 +146,117 @@ public class Constants {
         this.CoSetOperand(i, arr.get(i));
       }
       const_arr_ = new ArrayList<>(arr);
+      ints = null;
+      offset = 0;
+      dims = null;
+    }
+
+    /**
+     * @param flat 为 true 时和原来的 plainInit 一样，类型是 type 但元素按一维排；否则按 type 的各维嵌套
+     */
+    public ConstantArray(Type type, IntArray ints, boolean flat) {
+      this(type, ints, 0, flat ? new int[]{ints.length()} : ((ArrayType) type).getDims().stream()
+          .mapToInt(Integer::intValue).toArray());
+    }
+
+    private ConstantArray(Type type, IntArray ints, int offset, int[] dims) {
+      super(type);
+      this.ints = ints;
+      this.offset = offset;
+      this.dims = dims;
+    }
+
+    public boolean isCompact() {
+      return ints != null;
+    }
+
+    // 元素总数
+    public int size() {
+      if (ints == null) {
+        return const_arr_.size();
+      }
+      int size = 1;
+      for (int d : dims) {
+        size *= d;
+      }
+      return size;
+    }
+
+    /**
+     * 紧凑形式下行主序第 i 个元素的值
+     */
+    public int getInt(int i) {
+      assert ints != null;
+      return ints.get(offset + i);
+    }
+
+    /**
+     * 紧凑形式下从第 i 个元素开始值相同的一段的结束位置（不含）
+     */
+    public int runEnd(int i) {
+      assert ints != null;
+      return ints.runEnd(offset + i, offset + size()) - offset;
+    }
+
+    /**
+     * 按各维的下标取元素，紧凑形式只建返回的这一个 ConstantInt。下标个数不对或者越界返回 null
+     */
+    public Constant getElement(List<Integer> index) {
+      if (ints == null) {
+        Constant c = this;
+        for (int i : index) {
+          if (!(c instanceof ConstantArray) || ((ConstantArray) c).const_arr_ == null
+              || i < 0 || i >= ((ConstantArray) c).const_arr_.size()) {
+            return null;
+          }
+          c = ((ConstantArray) c).const_arr_.get(i);
+        }
+        return c;
+      }
+      if (index.size() != dims.length) {
+        return null;
+      }
+      int flat = 0;
+      for (int i = 0; i < dims.length; i++) {
+        if (index.get(i) < 0 || index.get(i) >= dims[i]) {
+          return null;
+        }
+        flat = flat * dims[i] + index.get(i);
+      }
+      return ConstantInt.newOne(IntegerType.getI32(), getInt(flat));
     }
 
     public ArrayList<Constant> getConst_arr_() {
+      if (const_arr_ == null) {
+        const_arr_ = new ArrayList<>(dims[0]);
+        if (dims.length == 1) {
+          for (int i = 0; i < dims[0]; i++) {
+            const_arr_.add(ConstantInt.newOne(IntegerType.getI32(), getInt(i)));
+          }
+        } else {
+          var subDims = Arrays.copyOfRange(dims, 1, dims.length);
+          var subType = ((ArrayType) getType()).getELeType();
+          int stride = size() / dims[0];
+          for (int i = 0; i < dims[0]; i++) {
+            const_arr_.add(new ConstantArray(subType, ints, offset + i * stride, subDims));
+          }
+        }
+      }
       return const_arr_;
     }
 
     private ArrayList<Constant> const_arr_;
+    private final IntArray ints;
+    private final int offset;
+    private final int[] dims;
 
     @Override
     public String toString() {
       StringBuilder sb = new StringBuilder();
+      if (ints != null) {
+        appendCompact(sb, getType(), offset, 0);
+        return sb.toString();
+      }
       sb.append(this.getType().toString()).append("[");
       for (int i = 0; i < const_arr_.size(); i++) {
         sb.append(const_arr_.get(i).toString() + ",");
@@ -74,15 +266,42 @@ public class Constants {
       return sb.toString();
     }
 
+    // 和上面一样的格式，不建元素对象
+    private void appendCompact(StringBuilder sb, Type type, int start, int level) {
+      sb.append(type.toString()).append("[");
+      if (level == dims.length - 1) {
+        for (int i = 0; i < dims[level]; i++) {
+          sb.append("i32 ").append(ints.get(start + i)).append(",");
+        }
+      } else {
+        int stride = 1;
+        for (int i = level + 1; i < dims.length; i++) {
+          stride *= dims[i];
+        }
+        for (int i = 0; i < dims[level]; i++) {
+          appendCompact(sb, ((ArrayType) type).getELeType(), start + i * stride, level + 1);
+          sb.append(",");
+        }
+      }
+      sb.deleteCharAt(sb.length() - 1);
+      sb.append("]");
+    }
+
     public ArrayList<Integer> getDims() {
       ArrayList<Integer> tmp = new ArrayList<>();
+      if (ints != null) {
+        for (int d : dims) {
+          tmp.add(d);
+        }
+        return tmp;
+      }
       ConstantArray arr = this;
       while (true) {
         tmp.add(arr.const_arr_.size());
         if (arr.const_arr_.get(0) instanceof ConstantInt) {
           break;
         }
-        arr = (ConstantArray) const_arr_.get(0);
+        arr = (ConstantArray) arr.const_arr_.get(0);
       }
       return tmp;
     }
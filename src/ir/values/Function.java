@@ -199,6 +199,16 @@ public class Function extends Value {
     this.usedGlobalVariable = usedGlobalVariable;
   }
 
+  // MarkParallel 建的并行循环入口（内置函数）才有，运行时把 [lo, hi) 分成几段在各个线程上调用它
+  public Function getParallelBody() {
+    return parallelBody;
+  }
+
+  public void setParallelBody(Function parallelBody) {
+    this.parallelBody = parallelBody;
+  }
+
   private boolean hasSideEffect = false;
   private boolean usedGlobalVariable = false;
+  private Function parallelBody = null;
 }
@@ -1,5 +1,6 @@
 package ir.values;
 
+import ir.MyModule;
 import ir.types.ArrayType;
 import ir.types.PointerType;
 import ir.types.Type;
@@ -13,7 +14,7 @@ public class GlobalVariable extends User {
 
   public GlobalVariable(String name, final Type type, Constant foldedInit, Constant plainInit) {
     super(name, new PointerType(type));
-    module.__globalVariables.add(this);
+    MyModule.getInstance().__globalVariables.add(this);
     if (init != null) {
       this.COaddOperand(plainInit);
     }
@@ -9,4 +9,10 @@ public class UndefValue extends Value {
     super(NoType.getType());
     this.setName("UndefValue");
   }
+
+  // 向量的 undef，InsertEle 链从它开始
+  public UndefValue(Type type) {
+    super(type);
+    this.setName("UndefValue");
+  }
 }
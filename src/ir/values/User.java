@@ -28,8 +28,9 @@ public abstract class User extends Value {
   public User(String name, Type type, int numOP) {
     super(name, type);
     this.numOP = numOP;
-    this.operands = new ArrayList<>(
-        Collections.nCopies(numOP, ConstantInt.CONST0()));
+    // 没有 operand 的时候不去取 CONST0，它本身就是这样构造出来的
+    this.operands = numOP == 0 ? new ArrayList<>()
+        : new ArrayList<>(Collections.nCopies(numOP, ConstantInt.CONST0()));
   }
 
   public User(String name, Type type) {
@@ -47,20 +48,20 @@ public abstract class User extends Value {
    */
   public void COaddOperand(Value v) {
     this.operands.add(v);
-    v.addUse(new Use(v, this, numOP));
+    linkUse(this.operands.size() - 1, v);
     this.numOP++;
   }
 
   /**
    * @param index:位置，operand视作从0开始
    * @param v:想要设置的operand
+   *
+   * 原来 operand 在这个位置上的 Use 会被一起删掉
    **/
   public void CoSetOperand(int index, Value v) {
     assert this.numOP > index;
     this.operands.set(index, v);
-    if (v != null) {
-      v.addUse(new Use(v, this, index));
-    }
+    linkUse(index, v);
   }
 
   /**
@@ -70,11 +71,8 @@ public abstract class User extends Value {
    *               在 CoSetOperand 的基础上，维护 operand 的 usesList
    */
   public void CoReplaceOperandByIndex(int index, Value v) {
-    var op = operands.get(index);
+    // 每个 operand 槽位只有自己的 Use，CoSetOperand 换掉旧的 Use 就够了
     this.CoSetOperand(index, v);
-    if (op != null && !this.operands.contains(op)) {
-      op.removeUseByUser(this);
-    }
   }
 
   /**
@@ -90,6 +88,7 @@ public abstract class User extends Value {
     boolean in;
     ArrayList<Value> tmp = this.operands;
     this.operands = new ArrayList<>();
+    this.operandUses = new ArrayList<>();
     for (int i = 0; i < tmp.size(); i++) {
       in = false;
       for (int k : a) {
@@ -106,6 +105,25 @@ public abstract class User extends Value {
     }
   }
 
+  /**
+   * 删除位置 index 上的 operand 以及它的 Use，后面的 operand 依次前移
+   */
+  public void CORemoveOperand(int index) {
+    if (index < operandUses.size()) {
+      Use use = operandUses.remove(index);
+      if (use != null) {
+        use.unlink();
+      }
+      for (int i = index; i < operandUses.size(); i++) {
+        if (operandUses.get(i) != null) {
+          operandUses.get(i).setOperandRank(i);
+        }
+      }
+    }
+    this.operands.remove(index);
+    this.numOP--;
+  }
+
   /**
    * 将operandlist中所有lhs换为rhs，并更新Use fixme
    */
@@ -113,7 +131,6 @@ public abstract class User extends Value {
 
     //还没有实际写优化，暂时假定可能有一个lhs被用为复数次operand
     //update:确实有
-    lhs.removeUseByUser(this);
     for (int i = 0; i < operands.size(); i++) {
       if (operands.get(i) == lhs) {
         CoSetOperand(i, rhs);
@@ -128,6 +145,7 @@ public abstract class User extends Value {
     this.numOP = 0;
     removeUsesOfOPs();
     operands.clear();
+    operandUses.clear();
   }
 
   /**
@@ -137,13 +155,34 @@ public abstract class User extends Value {
     if (operands == null) {
       return;
     }
-    for (Value operand : operands) {
-      if (operand != null) {
-        operand.removeUseByUser(this);
+    for (Use use : operandUses) {
+      if (use != null) {
+        use.unlink();
       }
     }
   }
 
+  /**
+   * 给位置 index 上的 operand 挂一个新的 Use，同时摘掉这个位置上原来的 Use
+   * <p>
+   * 不复用原来的 Use 对象，这样正在遍历旧 operand 的 usesList 的迭代器不会被带到新的链表上
+   */
+  private void linkUse(int index, Value v) {
+    while (operandUses.size() <= index) {
+      operandUses.add(null);
+    }
+    Use old = operandUses.get(index);
+    if (old != null) {
+      old.unlink();
+    }
+    Use use = null;
+    if (v != null) {
+      use = new Use(v, this, index);
+      v.addUse(use);
+    }
+    operandUses.set(index, use);
+  }
+
   public int getNumOP() {
     return numOP;
   }
@@ -156,5 +195,7 @@ public abstract class User extends Value {
   }
 
   protected ArrayList<Value> operands;
+  // 与 operands 按位置一一对应，记录每个 operand 槽位上的 Use
+  private ArrayList<Use> operandUses = new ArrayList<>();
   protected int numOP;
 }
\ No newline at end of file
@@ -1,10 +1,9 @@
 package ir.values;
 
-import ir.MyModule;
 import ir.Use;
+import ir.UseList;
 import ir.types.Type;
 import ir.values.instructions.Instruction;
-import java.util.LinkedList;
 
 /**
  * 借鉴的llvm ir 的设计方式，基本上所有变量/常量/表达式/符号都是 Value
@@ -16,15 +15,11 @@ import java.util.LinkedList;
  */
 public abstract class Value {
 
-  //module is approachable for all value
-  //module 对所有Value暴露，因为我们只需要考虑单文件编译的情况,这很难看，但是方便
-  public static MyModule module = MyModule.getInstance();
-
   /**
    * 每个Value应该有一个独一无二的name以及一个type
    */
   public Value(String name, Type type) {
-    this.usesList = new LinkedList<>();
+    this.usesList = newUseList();
     this.name = name;
     this.type = type;
   }
@@ -32,10 +27,16 @@ public abstract class Value {
   public Value(Type type) {
     this.type = type;
     this.name = "";
-    this.usesList = new LinkedList<>();
+    this.usesList = newUseList();
     //todo this.name = auto generated name;
   }
 
+  // 常量、全局变量和函数会被多个函数用到，并行跑 function pass 的时候它们的 use 链表需要加锁
+  private UseList newUseList() {
+    return new UseList(this instanceof Constant || this instanceof GlobalVariable
+        || this instanceof Function);
+  }
+
   public void setName(String name) {
     this.name = name;
   }
@@ -50,7 +51,10 @@ public abstract class Value {
    */
   public void
   COReplaceAllUseWith(Value v) {
-    User usr;
+    if (v == this) {
+      return;
+    }
+    // CoSetOperand 会把 use 从 usesList 上摘下来，挂到 v 上
     for (Use use : usesList) {
       use.getUser().CoSetOperand(use.getOperandRank(), v);
     }
@@ -61,8 +65,8 @@ public abstract class Value {
    * 删去自身的一条Use，并将User的operand设置为null
    */
   public void CORemoveUse(Use use) {
-    use.getUser().getOperands().set(use.getOperandRank(), null);
     usesList.remove(use);
+    use.getUser().CoSetOperand(use.getOperandRank(), null);
   }
 
   protected void removeUseByIndexAndUser(User usr, int index) {
@@ -89,7 +93,7 @@ public abstract class Value {
     this.type = type_;
   }
 
-  public LinkedList<Use> getUsesList() {
+  public UseList getUsesList() {
     return usesList;
   }
 
@@ -105,7 +109,7 @@ public abstract class Value {
     return this instanceof Instruction;
   }
 
-  private LinkedList<Use> usesList;//记录使用这个Value的所有User
+  private UseList usesList;//记录使用这个Value的所有User
   private String name;
   private Type type;
 }
@@ -14,12 +14,11 @@ public class BinaryInst extends Instruction {
     if (this.isLogicalBinary()) {
       setType(IntegerType.getI1());
     }
-    if (this.isArithmeticBinary()) {
+    if (this.isArithmeticBinary() && !type.isVectorTy()) {
       setType(IntegerType.getI32());
     }
     this.CoSetOperand(0, lhs);
     this.CoSetOperand(1, rhs);
-    module.__instructions.put(this.handle, this);
   }
 
   //插在bb末尾
@@ -28,12 +27,11 @@ public class BinaryInst extends Instruction {
     if (this.isLogicalBinary()) {
       setType(IntegerType.getI1());
     }
-    if (this.isArithmeticBinary()) {
+    if (this.isArithmeticBinary() && !type.isVectorTy()) {
       setType(IntegerType.getI32());
     }
     this.CoSetOperand(0, lhs);
     this.CoSetOperand(1, rhs);
-    module.__instructions.put(this.handle, this);
   }
 
   //插在next前面
@@ -42,12 +40,11 @@ public class BinaryInst extends Instruction {
     if (this.isLogicalBinary()) {
       setType(IntegerType.getI1());
     }
-    if (this.isArithmeticBinary()) {
+    if (this.isArithmeticBinary() && !type.isVectorTy()) {
       setType(IntegerType.getI32());
     }
     this.CoSetOperand(0, lhs);
     this.CoSetOperand(1, rhs);
-    module.__instructions.put(this.handle, this);
   }
 
   //插在prev后面
@@ -56,12 +53,11 @@ public class BinaryInst extends Instruction {
     if (this.isLogicalBinary()) {
       setType(IntegerType.getI1());
     }
-    if (this.isArithmeticBinary()) {
+    if (this.isArithmeticBinary() && !type.isVectorTy()) {
       setType(IntegerType.getI32());
     }
     this.CoSetOperand(0, lhs);
     this.CoSetOperand(1, rhs);
-    module.__instructions.put(this.handle, this);
   }
 
   // 假设调用时已经知道 lhs 和 rhs 都是 ConstantInt 了
@@ -183,12 +179,12 @@ public class BinaryInst extends Instruction {
     sb.append(this.getName() + " = ");
     sb.append(
         switch (this.tag) {
-          case Add -> "add  i32 ";
-          case Sub -> "sub  i32 ";
+          case Add -> "add  " + arithType();
+          case Sub -> "sub  " + arithType();
           case Rsb -> "rsb  i32 ";
           case Shl -> "shl i32 ";
           case Shr -> "ashr i32 ";
-          case Mul -> "mul  i32 ";
+          case Mul -> "mul  " + arithType();
           case Div -> "sdiv  i32 ";
           case Lt -> "icmp slt " + this.getOperands().get(0).getType() + " ";
           case Le -> "icmp sle " + this.getOperands().get(0).getType() + " ";
@@ -205,6 +201,11 @@ public class BinaryInst extends Instruction {
     return sb.toString();
   }
 
+  // LoopVectorize 生成的 add/sub/mul 是 <4 x i32>
+  private String arithType() {
+    return this.getType().isVectorTy() ? this.getType() + " " : "i32 ";
+  }
+
   public Value selfAlgebraOpt() {
     switch (this.tag) {
       case Add: {
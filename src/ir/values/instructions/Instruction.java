@@ -3,6 +3,7 @@ package ir.values.instructions;
 import ir.types.Type;
 import ir.values.BasicBlock;
 import ir.values.User;
+import java.util.concurrent.atomic.AtomicInteger;
 import util.IList.INode;
 //todo : code review
 
@@ -11,7 +12,8 @@ import util.IList.INode;
  */
 public abstract class Instruction extends User {
 
-  private static int HANDLE = 0;
+  // function pass 可能在多个线程上同时创建指令
+  private static final AtomicInteger HANDLE = new AtomicInteger();
 
   public enum TAG_ {
 
@@ -54,18 +56,14 @@ public abstract class Instruction extends User {
     super("", type, numOP);
     this.node = new INode<>(this);
     this.tag = tag;
-    this.handle = HANDLE;
-    module.__instructions.put(this.handle, this);
-    HANDLE++;
+    this.handle = HANDLE.getAndIncrement();
   }
 
   public Instruction(TAG_ tag, Type type, int numOP, BasicBlock parent) {/** Insert at bb end*/
     super("", type, numOP);
     this.node = new INode<>(this);
     this.tag = tag;
-    this.handle = HANDLE;
-    module.__instructions.put(this.handle, this);
-    HANDLE++;
+    this.handle = HANDLE.getAndIncrement();
     this.node.insertAtEnd(parent.getList());
   }
 
@@ -73,9 +71,7 @@ public abstract class Instruction extends User {
     super("", type, numOP);
     this.node = new INode<>(this);
     this.tag = tag;
-    this.handle = HANDLE;
-    module.__instructions.put(this.handle, this);
-    HANDLE++;
+    this.handle = HANDLE.getAndIncrement();
     this.node.insertAfter(prev.node);
   }
 
@@ -84,9 +80,7 @@ public abstract class Instruction extends User {
     super("", type, numOP);
     this.node = new INode<>(this);
     this.tag = tag;
-    this.handle = HANDLE;
-    module.__instructions.put(this.handle, this);
-    HANDLE++;
+    this.handle = HANDLE.getAndIncrement();
     this.node.insertBefore(next.node);
   }
 
@@ -121,7 +115,7 @@ public abstract class Instruction extends User {
   }
 
   public static int getHANDLE() {
-    return HANDLE;
+    return HANDLE.get();
   }
 
   public boolean needname = true;
@@ -133,5 +127,5 @@ public abstract class Instruction extends User {
   public boolean canBeDeleteAfterInline = false;
   public INode<Instruction, BasicBlock> node;//(BasicBlock)parent =node.getparent.getval;
   public TAG_ tag; //TAG作为分辨指令的凭据
-  public final int handle;//fixme 生成一个全局唯一的表示符作为从module中的container里存取的依据
+  public final int handle;// 全局唯一的编号，module 不再持有所有指令，删掉的指令可以被回收
 }
\ No newline at end of file
@@ -126,10 +126,7 @@ public abstract class MemInst extends Instruction {
         this.numOP--;
         return;
       }
-      this.getUseStore().removeUseByUser(this);
-      CoSetOperand(1, null);
-      this.operands.remove(1);
-      this.numOP--;
+      CORemoveOperand(1);
     }
 
     public Value getPointer() {
@@ -382,7 +379,7 @@ public abstract class MemInst extends Instruction {
     @Override
     public String toString() {
       StringBuilder sb = new StringBuilder();
-      sb.append(this.getName() + " = phi i32 ");
+      sb.append(this.getName() + " = phi " + (this.getType().isVectorTy() ? this.getType() : "i32") + " ");
       for (int i = 0; i < operands.size(); i++) {
         sb.append("[ ")
             .append(operands.get(i).getName())
@@ -20,6 +20,14 @@ public class VectorInstruction extends Instruction {
       this.CoSetOperand(1, value);
       this.CoSetOperand(2, idx);
     }
+
+    @Override
+    public String toString() {
+      var vec = operands.get(0);
+      var val = operands.get(1);
+      return this.getName() + " = insertelement " + vec.getType() + " " + vec.getName() + ", "
+          + val.getType() + " " + val.getName() + ", i32 " + operands.get(2).getName();
+    }
   }
 
   public static class ExtractEleInst extends VectorInstruction {
@@ -29,6 +37,13 @@ public class VectorInstruction extends Instruction {
       this.CoSetOperand(0, val);
       this.CoSetOperand(1, idx);
     }
+
+    @Override
+    public String toString() {
+      var vec = operands.get(0);
+      return this.getName() + " = extractelement " + vec.getType() + " " + vec.getName()
+          + ", i32 " + operands.get(1).getName();
+    }
   }
 
 
@@ -0,0 +1,198 @@
+package pass;
+
+import ir.MyModule;
+import ir.values.BasicBlock;
+import ir.values.Constants.ConstantInt;
+import ir.values.Function;
+import ir.values.Value;
+import ir.values.instructions.Instruction;
+import ir.values.instructions.MemInst.AllocaInst;
+import ir.values.instructions.MemInst.StoreInst;
+import ir.values.instructions.TerminatorInst.CallInst;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 记录 function pass 有没有改函数，以及哪些函数可以跳过
+ * <p>
+ * 改没改不靠各个 pass 自己报告（它们大多先拆再装，比如 GCM 会把每条指令摘下来重新放一遍），而是比较 pass 前后函数的指纹：
+ * 基本块顺序、pred/succ，每条指令的编号（Instruction.handle）、tag、类型、操作数，以及几个会影响后续 pass 的字段。
+ * 指纹按对象身份记录，同样的指令换成新建的对象也算改了，只会少跳过，不会跳错。
+ * <p>
+ * 一个 pass 在某个函数上跑完没有改动，就记下这时的指纹；之后同一个 key 的 pass 遇到指纹没变的函数就直接跳过。
+ * 函数的结果还依赖函数外的东西（全局变量、各函数的副作用信息、alias 分析用的函数-全局变量关系），
+ * 所以 module pass 之后全部作废，函数-全局变量关系变了也全部作废。
+ */
+public class ChangeTracker {
+
+  // 函数外的 Value 和 Type 的编号，只用来比较是不是同一个对象
+  private final ConcurrentHashMap<Object, Integer> ids = new ConcurrentHashMap<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  // 每个函数当前的指纹
+  private final IdentityHashMap<Function, int[]> current = new IdentityHashMap<>();
+  // pass key -> 函数 -> 这个 pass 在上面没有改动时的指纹
+  private final HashMap<String, IdentityHashMap<Function, int[]>> fixpoints = new HashMap<>();
+  private Map<Function, ?> context;
+
+  /**
+   * module pass 可能改了任何函数和全局的信息，之前的记录都不能用了
+   */
+  public void reset() {
+    current.clear();
+    fixpoints.clear();
+  }
+
+  /**
+   * 每个 pass 开始前用这次算出来的函数-全局变量关系调用，变了的话之前的记录作废
+   */
+  public void setContext(Map<Function, ?> relatedGlobals) {
+    if (context != null && !context.equals(relatedGlobals)) {
+      fixpoints.clear();
+    }
+    context = relatedGlobals;
+  }
+
+  public int[] current(Function func) {
+    return current.computeIfAbsent(func, this::fingerprint);
+  }
+
+  public boolean canSkip(String key, Function func) {
+    var byFunc = fixpoints.get(key);
+    var fixpoint = byFunc == null ? null : byFunc.get(func);
+    if (fixpoint == null) {
+      return false;
+    }
+    var now = current(func);
+    return fixpoint == now || Arrays.equals(fixpoint, now);
+  }
+
+  /**
+   * pass 在 func 上跑完之后调用，before 是跑之前的 current(func)，after 是跑完之后的 fingerprint(func)
+   *
+   * @param key null 表示这个 pass 不记录不动点
+   * @return 这个 pass 有没有改 func
+   */
+  public boolean update(String key, Function func, int[] before, int[] after) {
+    if (Arrays.equals(before, after)) {
+      // 保留原来的数组，canSkip 的时候大多只要比一下引用
+      current.put(func, before);
+      if (key != null) {
+        fixpoints.computeIfAbsent(key, k -> new IdentityHashMap<>()).put(func, before);
+      }
+      return false;
+    }
+    current.put(func, after);
+    return true;
+  }
+
+  /**
+   * 整个 module 的指纹，module pass 前后比较用
+   */
+  public IdentityHashMap<Function, int[]> snapshot(MyModule m) {
+    var snapshot = new IdentityHashMap<Function, int[]>();
+    for (var funcNode : m.__functions) {
+      if (!funcNode.getVal().isBuiltin_()) {
+        snapshot.put(funcNode.getVal(), current(funcNode.getVal()));
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * 可以在工作线程上调用，只读 func 自己的 IR
+   */
+  public int[] fingerprint(Function func) {
+    var out = new IntBuffer();
+    var bbIndex = new IdentityHashMap<BasicBlock, Integer>();
+    for (var bbNode : func.getList_()) {
+      bbIndex.put(bbNode.getVal(), bbIndex.size());
+    }
+    out.add(func.getArgList().size());
+    for (var bbNode : func.getList_()) {
+      var bb = bbNode.getVal();
+      out.add(-1);
+      out.add(bb.getPredecessor_().size());
+      for (var pred : bb.getPredecessor_()) {
+        out.add(bbIndex.getOrDefault(pred, -1));
+      }
+      out.add(bb.getSuccessor_().size());
+      for (var succ : bb.getSuccessor_()) {
+        out.add(bbIndex.getOrDefault(succ, -1));
+      }
+      for (var instNode : bb.getList()) {
+        var inst = instNode.getVal();
+        out.add(inst.handle);
+        out.add(inst.tag.ordinal());
+        out.add(id(inst.getType()));
+        out.add(inst.canBeDeleteAfterInline ? 1 : 0);
+        if (inst instanceof AllocaInst) {
+          out.add(((AllocaInst) inst).isInit() ? 1 : 0);
+        } else if (inst instanceof StoreInst) {
+          out.add(((StoreInst) inst).hasAlias ? 1 : 0);
+        } else if (inst instanceof CallInst) {
+          out.add(((CallInst) inst).hasAlias ? 1 : 0);
+        }
+        var operands = inst.getOperands();
+        out.add(inst.getNumOP());
+        out.add(operands.size());
+        for (var op : operands) {
+          addValue(out, op, bbIndex);
+        }
+      }
+    }
+    return out.toArray();
+  }
+
+  private void addValue(IntBuffer out, Value v, IdentityHashMap<BasicBlock, Integer> bbIndex) {
+    if (v == null) {
+      out.add(0);
+    } else if (v instanceof Instruction) {
+      out.add(1);
+      out.add(((Instruction) v).handle);
+    } else if (v instanceof BasicBlock) {
+      out.add(2);
+      out.add(bbIndex.getOrDefault(v, -1));
+    } else if (v instanceof Function.Arg) {
+      out.add(3);
+      out.add(((Function.Arg) v).rank());
+    } else if (v instanceof ConstantInt) {
+      // ConstantInt 的值可以改
+      out.add(4);
+      out.add(id(v));
+      out.add(((ConstantInt) v).getVal());
+    } else {
+      out.add(5);
+      out.add(id(v));
+    }
+  }
+
+  private int id(Object o) {
+    if (o == null) {
+      return -1;
+    }
+    Integer id = ids.get(o);
+    return id != null ? id : ids.computeIfAbsent(o, k -> nextId.getAndIncrement());
+  }
+
+  private static class IntBuffer {
+
+    private int[] data = new int[256];
+    private int size;
+
+    void add(int x) {
+      if (size == data.length) {
+        data = Arrays.copyOf(data, size * 2);
+      }
+      data[size++] = x;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(data, size);
+    }
+  }
+}
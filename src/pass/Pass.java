@@ -1,8 +1,11 @@
 package pass;
 
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.AnalysisManager.AnalysisKind;
 import ir.MyModule;
 import ir.values.Function;
 import backend.CodeGenManager;
+import java.util.Set;
 
 public interface Pass {
 
@@ -12,11 +15,49 @@ public interface Pass {
   public abstract interface MCPass extends Pass {
 
     public void run(CodeGenManager codeGenManager);
+
+    //改了指令的地方都通知了 MCLiveness（changed/invalidate），它的缓存在运行之后仍然有效，否则由 PassManager 全部作废
+    default boolean preservesMCAnalyses() {
+      return false;
+    }
   }
 
   public abstract interface IRPass extends Pass {
 
     public void run(MyModule m);
+
+    //运行之后仍然有效的分析，其余的由 PassManager 作废，改了 CFG 又没有通过 AnalysisManager 增量更新的 pass 不要覆盖这个
+    default Set<AnalysisKind> preservedAnalyses() {
+      return AnalysisManager.NONE;
+    }
+  }
+
+  /**
+   * 每个函数单独处理、不读写其他函数 IR 的 pass，PassManager 可以把不同的函数放到不同的线程上跑
+   * <p>
+   * 并行的时候每个线程用 PassManager 注册时给的 Supplier 单独 new 一个实例，所以实例上的状态只要在一个函数内有效就行
+   */
+  public abstract interface FunctionPass extends IRPass {
+
+    public void runOnFunction(Function func);
+
+    /**
+     * 同一个 key 的 pass 在某个函数上跑过一次没有改动，之后函数没变就不再跑它。null 表示每次都跑
+     * <p>
+     * 只有结果只取决于函数本身 IR（加上全局的副作用信息）的 pass 才能给 key，依赖 loop info 之类的缓存状态的不行
+     */
+    default String fixpointKey() {
+      return null;
+    }
+
+    @Override
+    default void run(MyModule m) {
+      for (var funcNode : m.__functions) {
+        if (!funcNode.getVal().isBuiltin_()) {
+          runOnFunction(funcNode.getVal());
+        }
+      }
+    }
   }
 
 
@@ -1,118 +1,383 @@
 package pass;
 
 import backend.CodeGenManager;
+import driver.CompilationContext;
+import driver.Config;
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.ArrayAliasAnalysis;
 import ir.MyModule;
+import ir.UseList;
+import ir.values.Function;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import pass.Pass.MCPass;
 import pass.ir.*;
+import pass.mc.LinearScanRegAllocator;
+import pass.mc.MCLiveness;
 import pass.mc.MergeMachineBlock;
 import pass.mc.PeepholeOptimization;
 import pass.mc.RegAllocator;
 import util.Mylogger;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 public class PassManager {
 
   private Logger mylogger = Mylogger.getLogger(PassManager.class);
-  private static PassManager passManager = new PassManager();
+  private final AnalysisManager analysisManager = AnalysisManager.getInstance();
   public ArrayList<String> openedPasses_ = new ArrayList<>();
   private ArrayList<IRPass> irPasses = new ArrayList<>();
   private ArrayList<MCPass> mcPasses = new ArrayList<>();
+  // function pass 的构造方法，并行的时候每个线程各 new 一个
+  private IdentityHashMap<IRPass, Supplier<? extends FunctionPass>> functionPassFactories =
+      new IdentityHashMap<>();
+  // -time-passes / -time-passes-json 打开时才记录
+  private final PassTimer timer = new PassTimer();
+  private final ChangeTracker tracker = new ChangeTracker();
+  // 反复跑的一组 pass：开始的下标 -> 这一组
+  private final HashMap<Integer, Group> groups = new HashMap<>();
+
+  private static class Group {
+
+    final int end;
+    final int maxRounds;
+
+    Group(int end, int maxRounds) {
+      this.end = end;
+      this.maxRounds = maxRounds;
+    }
+  }
+
+  // 和 -Xss256m 一样，GCM、支配树有递归，大函数栈很深
+  private static final long WORKER_STACK_SIZE = 256L << 20;
 
   private PassManager() {
-    irPasses.add(new BBPredSucc());
+    addFunctionPass(BBPredSucc::new);
 //        irPasses.add(new EmitLLVM("tt.ll"));
     irPasses.add(new InterproceduralAnalysis());
     irPasses.add(new GlobalVariableLocalize());
-    irPasses.add(new Mem2reg());
-    irPasses.add(new BranchOptimization());
-    irPasses.add(new GVNGCM());
+    addFunctionPass(Mem2reg::new);
+    // mem2reg 之后的第一轮清理做到不动点，后面的 branchOptimization + gvngcm 大多可以跳过
+    repeat(3, () -> {
+      addFunctionPass(BranchOptimization::new);
+      addFunctionPass(GVNGCM::new);
+    });
 
-    irPasses.add(new LCSSA());
-//    irPasses.add(new LoopIdiom());
-    irPasses.add(new BranchOptimization());
-    irPasses.add(new GVNGCM());
+    addFunctionPass(LCSSA::new);
+    addFunctionPass(LoopIdiom::new);
+    addFunctionPass(BranchOptimization::new);
+    addFunctionPass(GVNGCM::new);
 
-    irPasses.add(new LCSSA());
-    irPasses.add(new ConstantLoopUnroll());
-    irPasses.add(new BranchOptimization());
-    irPasses.add(new GVNGCM());
+    addFunctionPass(LCSSA::new);
+    addFunctionPass(ConstantLoopUnroll::new);
+    addFunctionPass(BranchOptimization::new);
+    addFunctionPass(GVNGCM::new);
 
-    irPasses.add(new LCSSA());
+    addFunctionPass(LCSSA::new);
 //    irPasses.add(new EmitLLVM("beforeFusion.ll"));
-    irPasses.add(new LoopFusion());
-    irPasses.add(new BranchOptimization());
-    irPasses.add(new GVNGCM());
+    addFunctionPass(LoopFusion::new);
+    addFunctionPass(BranchOptimization::new);
+    addFunctionPass(GVNGCM::new);
 
-    irPasses.add(new LCSSA());
-    irPasses.add(new LoopUnroll());
+    // 在展开之前找并行循环，这时候循环还是步长为 1 的样子
+    irPasses.add(new MarkParallel());
+
+    addFunctionPass(LCSSA::new);
+    addFunctionPass(LoopUnroll::new);
 //    irPasses.add(new EmitLLVM("afterFirstUnroll.ll"));
     irPasses.add(new InterProceduralDCE());
-    irPasses.add(new BranchOptimization());
-    irPasses.add(new GVNGCM());
+    addFunctionPass(BranchOptimization::new);
+    addFunctionPass(GVNGCM::new);
 
-    irPasses.add(new LCSSA());
+    addFunctionPass(LCSSA::new);
 //    irPasses.add(new EmitLLVM("beforeUnroll.ll"));
-    irPasses.add(new LoopUnroll());
-    irPasses.add(new BranchOptimization());
+    addFunctionPass(LoopUnroll::new);
+    addFunctionPass(BranchOptimization::new);
 //    irPasses.add(new EmitLLVM("afterUnroll.ll"));
-    irPasses.add(new GVNGCM(true));
+    addFunctionPass(() -> new GVNGCM(true));
 
     irPasses.add(new FunctionInline());
     irPasses.add(new InterProceduralDCE());
 
-    irPasses.add(new BranchOptimization());
-    irPasses.add(new GVNGCM(true));
+    addFunctionPass(BranchOptimization::new);
+    addFunctionPass(() -> new GVNGCM(true));
     irPasses.add(new LocalArrayPromotion());
-    irPasses.add(new GVNGCM(true));
+    addFunctionPass(() -> new GVNGCM(true));
 
-    irPasses.add(new LCSSA());
-    irPasses.add(new RedundantLoop());
-    irPasses.add(new BranchOptimization());
-    irPasses.add(new GVNGCM(true));
+    addFunctionPass(LCSSA::new);
+    addFunctionPass(RedundantLoop::new);
+    addFunctionPass(BranchOptimization::new);
+    addFunctionPass(() -> new GVNGCM(true));
 
     irPasses.add(new InterProceduralDCE());
-    irPasses.add(new LCSSA());
-    irPasses.add(new LoopMergeLastBreak());
-    irPasses.add(new BranchOptimization());
-    irPasses.add(new GVNGCM(true));
+    addFunctionPass(LCSSA::new);
+    addFunctionPass(LoopMergeLastBreak::new);
+    addFunctionPass(BranchOptimization::new);
+    addFunctionPass(() -> new GVNGCM(true));
+
+    // 要在所有改循环结构的 pass 之后：插进来的 preHeader 不再是循环前的判断块
+    addFunctionPass(LCSSA::new);
+    addFunctionPass(LoopInvariantCodeMotion::new);
+    addFunctionPass(BranchOptimization::new);
+    addFunctionPass(() -> new GVNGCM(true));
 
-    irPasses.add(new LCSSA());
-    irPasses.add(new GVNGCM(true));
+    addFunctionPass(LCSSA::new);
+    addFunctionPass(() -> new GVNGCM(true));
+    addFunctionPass(LoopVectorize::new);
     irPasses.add(new EmitLLVM());
     
     mcPasses.add(new RegAllocator());
+    mcPasses.add(new LinearScanRegAllocator());
     mcPasses.add(new PeepholeOptimization());
     mcPasses.add(new MergeMachineBlock());
     mcPasses.add(new MergeMachineBlock());
   }
 
   public static PassManager getPassManager() {
-    return passManager;
+    return CompilationContext.current().get(PassManager.class, PassManager::new);
   }
 
   public void addOffedPasses_(String passName) {
     openedPasses_.add(passName);
   }
 
+  private void addFunctionPass(Supplier<? extends FunctionPass> factory) {
+    var pass = factory.get();
+    irPasses.add(pass);
+    functionPassFactories.put(pass, factory);
+  }
+
+  /**
+   * body 里加的 pass 作为一组反复跑，直到一整轮没有改任何函数，最多 maxRounds 轮。不支持嵌套
+   */
+  private void repeat(int maxRounds, Runnable body) {
+    int start = irPasses.size();
+    body.run();
+    groups.put(start, new Group(irPasses.size(), maxRounds));
+  }
+
+  public PassTimer getTimer() {
+    return timer;
+  }
+
+  private static boolean timing() {
+    var config = Config.getInstance();
+    return config.timePasses || config.timePassesJson != null;
+  }
+
   //把pass手动加上来
   public void runIRPasses(MyModule m) {
-    irPasses.forEach(pass -> {
-      if (openedPasses_.contains(pass.getName())) {
-        mylogger.info("running pass :" + pass.getName());
-        pass.run(m);
+    int jobs = Config.getInstance().jobs;
+    ExecutorService workers = jobs > 1 ? newWorkers(jobs) : null;
+    try {
+      int i = 0;
+      while (i < irPasses.size()) {
+        var group = groups.get(i);
+        if (group == null) {
+          runIRPass(irPasses.get(i), m, workers);
+          i++;
+          continue;
+        }
+        // 一组 pass 反复跑，直到一整轮没有改任何函数
+        for (int round = 0; round < group.maxRounds; round++) {
+          boolean changed = false;
+          for (int j = i; j < group.end; j++) {
+            changed |= runIRPass(irPasses.get(j), m, workers);
+          }
+          if (!changed) {
+            break;
+          }
+        }
+        i = group.end;
       }
-    });
+    } finally {
+      if (workers != null) {
+        workers.shutdown();
+      }
+    }
+    mylogger.info("analysis cache after IR passes:\n" + analysisManager.dumpCounters());
+  }
 
+  /**
+   * @return pass 有没有改 IR
+   */
+  private boolean runIRPass(IRPass pass, MyModule m, ExecutorService workers) {
+    if (!openedPasses_.contains(pass.getName())) {
+      return false;
+    }
+    mylogger.info("running pass :" + pass.getName());
+    var record = timing() ? timer.beginIR(pass.getName(), m) : null;
+    // pass 运行期间 alias 分析用的是这份快照，串行和并行结果一样
+    ArrayAliasAnalysis.computeRelatedGlobals(m);
+    tracker.setContext(analysisManager.getRelatedGlobals());
+    boolean changed;
+    if (pass instanceof FunctionPass) {
+      changed = runFunctionPass((FunctionPass) pass, m, workers, record);
+    } else {
+      var before = tracker.snapshot(m);
+      pass.run(m);
+      tracker.reset();
+      var after = tracker.snapshot(m);
+      changed = !before.keySet().equals(after.keySet());
+      for (var entry : after.entrySet()) {
+        changed |= !Arrays.equals(entry.getValue(), before.get(entry.getKey()));
+      }
+      if (record != null) {
+        record.setFunctions(after.size(), 0, changed ? after.size() : 0);
+      }
+    }
+    analysisManager.invalidateAllExcept(pass.preservedAnalyses());
+    if (record != null) {
+      timer.end(record, m);
+    }
+    return changed;
+  }
+
+  /**
+   * 跳过没变过的函数，剩下的串行或者并行跑一遍
+   */
+  private boolean runFunctionPass(FunctionPass pass, MyModule m, ExecutorService workers,
+      PassTimer.Record record) {
+    String key = pass.fixpointKey();
+    ArrayList<Function> funcs = new ArrayList<>();
+    ArrayList<Integer> todo = new ArrayList<>();
+    int total = 0;
+    for (var funcNode : m.__functions) {
+      var func = funcNode.getVal();
+      funcs.add(func);
+      if (func.isBuiltin_()) {
+        continue;
+      }
+      total++;
+      if (key == null || !tracker.canSkip(key, func)) {
+        todo.add(funcs.size() - 1);
+      }
+    }
+
+    int[][] before = new int[funcs.size()][];
+    int[][] after = new int[funcs.size()][];
+    for (int funcIndex : todo) {
+      before[funcIndex] = tracker.current(funcs.get(funcIndex));
+    }
+    var factory = functionPassFactories.get(pass);
+    if (workers != null && factory != null) {
+      runOnFunctionsInParallel(factory, funcs, todo, after, workers, record);
+    } else {
+      for (int funcIndex : todo) {
+        pass.runOnFunction(funcs.get(funcIndex));
+        after[funcIndex] = tracker.fingerprint(funcs.get(funcIndex));
+      }
+    }
+
+    int changed = 0;
+    for (int funcIndex : todo) {
+      if (tracker.update(key, funcs.get(funcIndex), before[funcIndex], after[funcIndex])) {
+        changed++;
+      }
+    }
+    if (record != null) {
+      record.setFunctions(total, total - todo.size(), changed);
+    }
+    return changed > 0;
+  }
+
+  /**
+   * 一个 function pass 在 todo 里的函数上并行跑一遍，全部跑完才返回，跑完的指纹放进 after
+   * <p>
+   * 函数之间唯一共享的是常量、全局变量、函数的 use 链表，返回之前 UseList.endParallelStep 把它们排回按函数顺序串行跑的结果，
+   * 所以输出和 -j 1 逐字节一致
+   */
+  private void runOnFunctionsInParallel(Supplier<? extends FunctionPass> factory,
+      ArrayList<Function> funcs, ArrayList<Integer> todo, int[][] after, ExecutorService workers,
+      PassTimer.Record record) {
+    ThreadLocal<FunctionPass> instances = ThreadLocal.withInitial(factory);
+    var context = CompilationContext.current();
+
+    ArrayList<Callable<Void>> tasks = new ArrayList<>();
+    ArrayList<Integer> order = new ArrayList<>(todo);
+    // 大函数先开始，少等最后一个
+    order.sort(Comparator.comparingInt(i -> -funcs.get(i).getList_().getNumNode()));
+    var parallelStep = UseList.beginParallelStep();
+    for (int funcIndex : order) {
+      var func = funcs.get(funcIndex);
+      tasks.add(() -> context.call(() -> {
+        UseList.enterFunction(parallelStep, funcIndex);
+        var usage = record != null ? PassTimer.threadUsage() : null;
+        try {
+          instances.get().runOnFunction(func);
+          after[funcIndex] = tracker.fingerprint(func);
+        } finally {
+          UseList.exitFunction();
+          if (record != null) {
+            record.addWorkerUsage(usage);
+          }
+        }
+        return null;
+      }));
+    }
+
+    try {
+      var futures = workers.invokeAll(tasks);
+      // 按函数顺序取异常，出错的时候报的和串行一样是第一个出错的函数
+      Future<?>[] byFunc = new Future<?>[funcs.size()];
+      for (int i = 0; i < order.size(); i++) {
+        byFunc[order.get(i)] = futures.get(i);
+      }
+      for (var future : byFunc) {
+        if (future != null) {
+          future.get();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      UseList.endParallelStep(parallelStep);
+    }
+  }
+
+  private static ExecutorService newWorkers(int jobs) {
+    AtomicInteger id = new AtomicInteger();
+    return Executors.newFixedThreadPool(jobs, r -> {
+      var thread = new Thread(null, r, "pass-worker-" + id.getAndIncrement(), WORKER_STACK_SIZE);
+      thread.setDaemon(true);
+      return thread;
+    });
   }
 
   public void runMCPasses(CodeGenManager cgm) {
+    boolean timing = timing();
     mcPasses.forEach(pass -> {
       if (openedPasses_.contains(pass.getName())) {
         mylogger.info("running pass :" + pass.getName());
+        var record = timing ? timer.beginMC(pass.getName(), cgm) : null;
         pass.run(cgm);
+        if (!pass.preservesMCAnalyses()) {
+          MCLiveness.getInstance().invalidateAll();
+        }
+        if (record != null) {
+          timer.end(record, cgm);
+        }
       }
     });
   }
@@ -0,0 +1,236 @@
+package pass;
+
+import backend.CodeGenManager;
+import ir.MyModule;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * -time-passes：记录每一次 pass 运行的墙钟时间、CPU 时间、分配的字节数，以及运行前后的指令数和基本块数
+ * <p>
+ * IR pass 数的是 IR 指令和基本块，MC pass 数的是机器指令和 MachineBlock。CPU 时间和分配量按线程统计，
+ * 并行的 function pass 把每个工作线程上的量加回到这一次运行上
+ */
+public class PassTimer {
+
+  private static final com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  public static final class Record {
+
+    final String kind;
+    final String name;
+    final int instsBefore;
+    final int blocksBefore;
+    int instsAfter;
+    int blocksAfter;
+    long wallNanos;
+    // IR pass：非内建函数数、因为没变跳过的函数数、改了的函数数
+    int functions;
+    int skipped;
+    int changed;
+    final AtomicLong cpuNanos = new AtomicLong();
+    final AtomicLong allocatedBytes = new AtomicLong();
+
+    private final long wallStart;
+    private final long[] usageStart;
+
+    Record(String kind, String name, int[] size) {
+      this.kind = kind;
+      this.name = name;
+      this.instsBefore = size[0];
+      this.blocksBefore = size[1];
+      this.usageStart = threadUsage();
+      this.wallStart = System.nanoTime();
+    }
+
+    public String getKind() {
+      return kind;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getWallNanos() {
+      return wallNanos;
+    }
+
+    public long getCpuNanos() {
+      return cpuNanos.get();
+    }
+
+    public long getAllocatedBytes() {
+      return allocatedBytes.get();
+    }
+
+    public int getSkipped() {
+      return skipped;
+    }
+
+    public int getChanged() {
+      return changed;
+    }
+
+    public void setFunctions(int functions, int skipped, int changed) {
+      this.functions = functions;
+      this.skipped = skipped;
+      this.changed = changed;
+    }
+
+    /**
+     * 工作线程上跑的那部分，usageStart 是这个线程开始时 threadUsage() 的返回值
+     */
+    public void addWorkerUsage(long[] usageStart) {
+      var now = threadUsage();
+      cpuNanos.addAndGet(now[0] - usageStart[0]);
+      allocatedBytes.addAndGet(now[1] - usageStart[1]);
+    }
+  }
+
+  private final ArrayList<Record> records = new ArrayList<>();
+
+  public List<Record> getRecords() {
+    return Collections.unmodifiableList(records);
+  }
+
+  /**
+   * 当前线程用过的 CPU 时间和分配过的字节数
+   */
+  public static long[] threadUsage() {
+    return new long[]{Math.max(0, threads.getCurrentThreadCpuTime()),
+        Math.max(0, threads.getCurrentThreadAllocatedBytes())};
+  }
+
+  public Record beginIR(String name, MyModule m) {
+    return new Record("ir", name, size(m));
+  }
+
+  public Record beginMC(String name, CodeGenManager cgm) {
+    return new Record("mc", name, size(cgm));
+  }
+
+  public void end(Record record, MyModule m) {
+    end(record, size(m));
+  }
+
+  public void end(Record record, CodeGenManager cgm) {
+    end(record, size(cgm));
+  }
+
+  private void end(Record record, int[] size) {
+    record.wallNanos = System.nanoTime() - record.wallStart;
+    record.addWorkerUsage(record.usageStart);
+    record.instsAfter = size[0];
+    record.blocksAfter = size[1];
+    records.add(record);
+  }
+
+  private static int[] size(MyModule m) {
+    int insts = 0;
+    int blocks = 0;
+    for (var funcNode : m.__functions) {
+      if (funcNode.getVal().isBuiltin_()) {
+        continue;
+      }
+      for (var bbNode : funcNode.getVal().getList_()) {
+        blocks++;
+        for (var instNode : bbNode.getVal().getList()) {
+          insts++;
+        }
+      }
+    }
+    return new int[]{insts, blocks};
+  }
+
+  private static int[] size(CodeGenManager cgm) {
+    int insts = 0;
+    int blocks = 0;
+    for (var mf : cgm.getMachineFunctions()) {
+      for (var mbNode : mf.getmbList()) {
+        blocks++;
+        for (var mcNode : mbNode.getVal().getmclist()) {
+          insts++;
+        }
+      }
+    }
+    return new int[]{insts, blocks};
+  }
+
+  /**
+   * 每次运行一行，按运行顺序，最后按 pass 名字汇总
+   */
+  public String table() {
+    StringBuilder sb = new StringBuilder();
+    String header = String.format("%-4s %-4s %-28s %10s %10s %12s %15s %15s %12s%n", "#",
+        "kind", "pass", "wall(ms)", "cpu(ms)", "alloc(KB)", "insts", "blocks", "skip/chg/fn");
+    sb.append("===== pass execution timing =====\n").append(header);
+    long wall = 0;
+    long cpu = 0;
+    long alloc = 0;
+    var byName = new LinkedHashMap<String, long[]>();
+    for (int i = 0; i < records.size(); i++) {
+      var r = records.get(i);
+      sb.append(String.format("%-4d %-4s %-28s %10.2f %10.2f %12d %15s %15s %12s%n", i, r.kind,
+          r.name, r.wallNanos / 1e6, r.cpuNanos.get() / 1e6, r.allocatedBytes.get() >> 10,
+          r.instsBefore + " -> " + r.instsAfter, r.blocksBefore + " -> " + r.blocksAfter,
+          r.kind.equals("ir") ? r.skipped + "/" + r.changed + "/" + r.functions : ""));
+      wall += r.wallNanos;
+      cpu += r.cpuNanos.get();
+      alloc += r.allocatedBytes.get();
+      var total = byName.computeIfAbsent(r.kind + " " + r.name, k -> new long[4]);
+      total[0]++;
+      total[1] += r.wallNanos;
+      total[2] += r.cpuNanos.get();
+      total[3] += r.allocatedBytes.get();
+    }
+    sb.append(String.format("%-4s %-4s %-28s %10.2f %10.2f %12d%n", "", "", "total", wall / 1e6,
+        cpu / 1e6, alloc >> 10));
+
+    sb.append("===== by pass, slowest first =====\n");
+    sb.append(String.format("%-33s %6s %10s %10s %12s %7s%n", "pass", "runs", "wall(ms)",
+        "cpu(ms)", "alloc(KB)", "wall%"));
+    var sorted = new ArrayList<>(byName.entrySet());
+    sorted.sort((x, y) -> Long.compare(y.getValue()[1], x.getValue()[1]));
+    for (var e : sorted) {
+      var t = e.getValue();
+      sb.append(String.format("%-33s %6d %10.2f %10.2f %12d %6.1f%%%n", e.getKey(), t[0],
+          t[1] / 1e6, t[2] / 1e6, t[3] >> 10, wall == 0 ? 0 : 100.0 * t[1] / wall));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * {"passes":[{"kind":"ir","name":"gvngcm","wallNs":..,"cpuNs":..,"allocatedBytes":..,
+   * "instsBefore":..,"instsAfter":..,"blocksBefore":..,"blocksAfter":..,
+   * "functions":..,"skippedFunctions":..,"changedFunctions":..},...]}
+   */
+  public String json() {
+    StringBuilder sb = new StringBuilder("{\"passes\":[");
+    for (int i = 0; i < records.size(); i++) {
+      var r = records.get(i);
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("\n  {\"kind\":\"").append(r.kind)
+          .append("\",\"name\":\"").append(r.name)
+          .append("\",\"wallNs\":").append(r.wallNanos)
+          .append(",\"cpuNs\":").append(r.cpuNanos.get())
+          .append(",\"allocatedBytes\":").append(r.allocatedBytes.get())
+          .append(",\"instsBefore\":").append(r.instsBefore)
+          .append(",\"instsAfter\":").append(r.instsAfter)
+          .append(",\"blocksBefore\":").append(r.blocksBefore)
+          .append(",\"blocksAfter\":").append(r.blocksAfter)
+          .append(",\"functions\":").append(r.functions)
+          .append(",\"skippedFunctions\":").append(r.skipped)
+          .append(",\"changedFunctions\":").append(r.changed)
+          .append('}');
+    }
+    sb.append("\n]}\n");
+    return sb.toString();
+  }
+}
@@ -6,11 +6,12 @@ import ir.values.Function;
 import ir.values.instructions.Instruction;
 import ir.values.instructions.TerminatorInst.BrInst;
 import java.util.logging.Logger;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import util.Mylogger;
 
 // ! 只能在 mem2reg 之前用
-public class BBPredSucc implements IRPass {
+public class BBPredSucc implements FunctionPass {
 
   Logger log = Mylogger.getLogger(IRPass.class);
 
@@ -37,6 +38,11 @@ public class BBPredSucc implements IRPass {
     succ.getPredecessor_().add(pred);
   }
 
+  @Override
+  public void runOnFunction(Function func) {
+    runBBPredSucc(func);
+  }
+
   public void runBBPredSucc(Function func) {
     for (var bbNode: func.getList_()) {
       BasicBlock bb = bbNode.getVal();
@@ -1,5 +1,7 @@
 package pass.ir;
 
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.AnalysisManager.AnalysisKind;
 import ir.MyFactoryBuilder;
 import ir.MyModule;
 import ir.values.BasicBlock;
@@ -10,9 +12,12 @@ import ir.values.instructions.Instruction;
 import ir.values.instructions.MemInst.Phi;
 import ir.values.instructions.TerminatorInst.BrInst;
 import ir.values.instructions.TerminatorInst.RetInst;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import util.Mylogger;
 
+import java.util.ArrayList;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -20,16 +25,28 @@ import java.util.logging.Logger;
  * 歧义，则可以去掉该基本块 endWithUncondBr：基本块结尾只有一个无条件跳转，且目标基本块只有一个前驱，两个基本块可以合并 removeDeadBB：去掉除了 entry
  * 之外的没有前驱的基本块 mergeCondBr：有条件跳转的条件为常量，或者两个目标基本块相同，可替换成无条件跳转
  */
-public class BranchOptimization implements IRPass {
+public class BranchOptimization implements FunctionPass {
 
   private Logger log = Mylogger.getLogger(IRPass.class);
   private static MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
+  private final AnalysisManager analysisManager = AnalysisManager.getInstance();
 
   @Override
   public String getName() {
     return "branchOptimization";
   }
 
+  @Override
+  public String fixpointKey() {
+    return getName();
+  }
+
+  @Override
+  public Set<AnalysisKind> preservedAnalyses() {
+    // 所有 CFG 改动都通过 AnalysisManager 增量更新到了支配树上
+    return AnalysisManager.DOMINANCE_ONLY;
+  }
+
   @Override
   public void run(MyModule m) {
     log.info("Running pass : BranchOptimization");
@@ -41,8 +58,14 @@ public class BranchOptimization implements IRPass {
     }
   }
 
+  @Override
+  public void runOnFunction(Function func) {
+    runBranchOptimization(func);
+  }
+
   public boolean runBranchOptimization(Function func) {
     boolean removePhi;
+    analysisManager.beginCFGUpdate(func);
     while (true) {
       boolean completed;
 
@@ -57,6 +80,7 @@ public class BranchOptimization implements IRPass {
         break;
       }
     }
+    analysisManager.endCFGUpdate(func);
     return removePhi;
   }
 
@@ -152,6 +176,7 @@ public class BranchOptimization implements IRPass {
         // 删掉 bb
         brInst.CORemoveAllOperand();
         bbNode.removeSelf();
+        analysisManager.blockContracted(func, bb);
       }
 
       bbNode = tmp;
@@ -176,7 +201,8 @@ public class BranchOptimization implements IRPass {
         if (brInst instanceof BrInst && brInst.getNumOP() == 1) {
           BasicBlock succ = (BasicBlock) brInst.getOperands().get(0);
           if (!(succ.getList().getEntry().getVal() instanceof Phi)) {
-            continueOptThisBB = mergeBasicBlock(bb, (BasicBlock) brInst.getOperands().get(0));
+            continueOptThisBB = mergeBasicBlock(func, bb,
+                (BasicBlock) brInst.getOperands().get(0));
             if (continueOptThisBB) {
               completed = false;
             }
@@ -188,7 +214,7 @@ public class BranchOptimization implements IRPass {
     return completed;
   }
 
-  private boolean mergeBasicBlock(BasicBlock pred, BasicBlock succ) {
+  private boolean mergeBasicBlock(Function func, BasicBlock pred, BasicBlock succ) {
     assert pred.getList().getLast().getVal() instanceof BrInst;
     BrInst brInst = (BrInst) pred.getList().getLast().getVal();
     assert brInst.getNumOP() == 1;
@@ -221,6 +247,7 @@ public class BranchOptimization implements IRPass {
 
     // 直接从函数的 list 里删掉，应该没问题？
     succ.node_.removeSelf();
+    analysisManager.blockContracted(func, succ);
     return true;
   }
 
@@ -265,6 +292,7 @@ public class BranchOptimization implements IRPass {
 
   private boolean removeDeadBB(Function func) {
     boolean completed = true;
+    ArrayList<BasicBlock> removed = new ArrayList<>();
     for (var bbNode : func.getList_()) {
       bbNode.getVal().setDirty(false);
     }
@@ -284,11 +312,13 @@ public class BranchOptimization implements IRPass {
 //          inst.COReplaceAllUseWith(null);
         }
         bbNode.removeSelf();
+        removed.add(dead);
         completed = false;
       }
 
       bbNode = tmp;
     }
+    analysisManager.deadBlocksRemoved(func, removed);
 
     return completed;
   }
@@ -314,6 +344,7 @@ public class BranchOptimization implements IRPass {
               break;
             }
           }
+          analysisManager.edgeDeleted(func, bb, targetBB);
 
           completed = false;
         } else if (brInst.getOperands().get(0) instanceof ConstantInt) {
@@ -325,6 +356,7 @@ public class BranchOptimization implements IRPass {
           bb.getSuccessor_().remove(unreachBB);
 
           removePredBasicBlock(bb, unreachBB);
+          analysisManager.edgeDeleted(func, bb, unreachBB);
 
           completed = false;
         }
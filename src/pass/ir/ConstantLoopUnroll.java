@@ -15,11 +15,12 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Logger;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import util.Mylogger;
 import util.LoopUtils;
 
-public class ConstantLoopUnroll implements IRPass {
+public class ConstantLoopUnroll implements FunctionPass {
 
   private static final int threshold = 800;
   private static final Logger log = Mylogger.getLogger(IRPass.class);
@@ -43,6 +44,7 @@ public class ConstantLoopUnroll implements IRPass {
     }
   }
 
+  @Override
   public void runOnFunction(Function func) {
     var branchOpt = new BranchOptimization();
     var gvngcm = new GVNGCM();
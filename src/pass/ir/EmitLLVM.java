@@ -1,5 +1,8 @@
 package pass.ir;
 
+import driver.Config;
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.AnalysisManager.AnalysisKind;
 import ir.MyModule;
 import ir.values.instructions.BinaryInst;
 import ir.values.instructions.Instruction.TAG_;
@@ -7,6 +10,7 @@ import pass.Pass.IRPass;
 import util.Mylogger;
 
 import java.io.FileWriter;
+import java.util.Set;
 import java.util.logging.Logger;
 
 public class EmitLLVM implements IRPass {
@@ -21,7 +25,8 @@ public class EmitLLVM implements IRPass {
     sb = new StringBuilder();
   }
 
-  String outputName = "out.ll";
+  // 没有指定的话用 Config.llvmOutput
+  String outputName;
   StringBuilder sb;
   private int vnc = 0;//value name counter
   Logger log = Mylogger.getLogger(EmitLLVM.class);
@@ -37,6 +42,11 @@ public class EmitLLVM implements IRPass {
     return "emitllvm";
   }
 
+  @Override
+  public Set<AnalysisKind> preservedAnalyses() {
+    return AnalysisManager.CFG_ANALYSES;
+  }
+
   @Override
   public void run(MyModule m) {
     nameVariable(m);
@@ -155,11 +165,13 @@ public class EmitLLVM implements IRPass {
       }
     });
     try {
-      FileWriter fw = new FileWriter(outputName);
+      var config = Config.getInstance();
+      String name = outputName != null ? outputName : config.llvmOutput;
+      FileWriter fw = new FileWriter(config.workDir.resolve(name).toFile());
 //      System.out.println(sb);
       fw.append(sb);
       fw.close();
-      log.info("successfully export out.ll");
+      log.info("successfully export " + name);
     } catch (Exception e) {
       e.printStackTrace();
     }
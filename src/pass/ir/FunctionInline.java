@@ -94,13 +94,16 @@ public class FunctionInline implements IRPass {
    *   3.
    *   */
   private void inlineMe(Function f) {
-    if (f.getCallerList().isEmpty()) {
+    //内置函数没有函数体，调用关系只有 MarkParallel 的并行循环入口会有，留着给 alias 分析用
+    var callers = f.getCallerList().stream().filter(caller -> !caller.isBuiltin_()).distinct()
+        .collect(Collectors.toList());
+    if (callers.isEmpty()) {
       return;
     }
     changed = true;
     ArrayList<Instruction> toBeReplaced = new ArrayList<>();
     //dfs找到需要替换的call指令，不原地替换了
-    for (Function caller : f.getCallerList().stream().distinct().collect(Collectors.toList())) {
+    for (Function caller : callers) {
       for (INode<BasicBlock, Function> bbnode : caller.getList_()) {
         for (INode<Instruction, BasicBlock> instNode : bbnode.getVal().getList()) {
           var inst = instNode.getVal();
@@ -113,12 +116,12 @@ public class FunctionInline implements IRPass {
       }
     }
     toBeReplaced.forEach(inst -> inlineOneCall((CallInst) inst));
-    f.getCallerList().forEach(list -> {
+    callers.forEach(list -> {
       //如果一个函数的caller和callee没有交集，那么其一定可以被内联到caller中
       list.getCalleeList().removeIf(i -> i.equals(f));
       list.getCalleeList().addAll(f.getCalleeList());
     });
-    f.getCallerList().clear();
+    f.getCallerList().removeAll(callers);
   }
 
   private void inlineOneCall(CallInst call) {
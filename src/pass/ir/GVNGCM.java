@@ -2,6 +2,7 @@ package pass.ir;
 
 import driver.Config;
 import ir.Analysis.ArrayAliasAnalysis;
+import ir.Analysis.AnalysisManager;
 import ir.MyFactoryBuilder;
 import ir.MyModule;
 import ir.Use;
@@ -16,13 +17,15 @@ import ir.values.instructions.SimplifyInstruction;
 import ir.values.instructions.TerminatorInst.BrInst;
 import ir.values.instructions.TerminatorInst.CallInst;
 import ir.values.instructions.TerminatorInst.RetInst;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import util.IList;
 import util.IList.INode;
 import util.Mylogger;
-import util.Pair;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Stack;
 import java.util.logging.Logger;
@@ -32,12 +35,21 @@ import java.util.logging.Logger;
 /**
  * GVN: 尽可能地消除冗余的变量，同时会做常量合并、代数化简 GCM：把指令调度到支配深度尽可能深的地方
  */
-public class GVNGCM implements IRPass {
+public class GVNGCM implements FunctionPass {
 
   private Logger log = Mylogger.getLogger(IRPass.class);
   private static MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
 
-  private ArrayList<Pair<Value, Value>> valueTable = new ArrayList<>();
+  // value -> value number
+  private HashMap<Value, Value> valueNumbers = new HashMap<>();
+  // 进表顺序，有多个等价表达式时取最先进表的那个
+  private HashMap<Value, Integer> valueOrder = new HashMap<>();
+  // 常数按值编号
+  private HashMap<Integer, Value> constNumbers = new HashMap<>();
+  private HashMap<ExprKey, ArrayList<Instruction>> exprTable = new HashMap<>();
+  private HashMap<Instruction, ExprKey> exprKeys = new HashMap<>();
+  // 规范化可交换运算的操作数顺序用
+  private HashMap<Value, Integer> valueIds = new HashMap<>();
   private HashSet<Instruction> instructionsVis = new HashSet<>();
 
   private boolean finalOpt = false;
@@ -48,6 +60,11 @@ public class GVNGCM implements IRPass {
     return "gvngcm";
   }
 
+  @Override
+  public String fixpointKey() {
+    return finalOpt ? "gvngcm-final" : "gvngcm";
+  }
+
   public GVNGCM() {
     this.finalOpt = false;
   }
@@ -67,161 +84,231 @@ public class GVNGCM implements IRPass {
     }
   }
 
-  public Value findValueNumber(BinaryInst binaryInst) {
-    Value lhs = lookupOrAdd(binaryInst.getOperands().get(0));
-    Value rhs = lookupOrAdd(binaryInst.getOperands().get(1));
-    var sz = valueTable.size();
-    for (var i = 0; i < sz; i++) {
-      Value key = valueTable.get(i).getFirst();
-      Value valueNumber = valueTable.get(i).getSecond();
-      if (key.isInstruction() && ((Instruction) key).isBinary() && !binaryInst.equals(key)) {
-        BinaryInst keyInst = (BinaryInst) key;
-        Value lhs2 = lookupOrAdd(keyInst.getOperands().get(0));
-        Value rhs2 = lookupOrAdd(keyInst.getOperands().get(1));
-        boolean sameOp = binaryInst.tag == keyInst.tag;
-        boolean sameOperand =
-            (lhs.equals(lhs2) && rhs.equals(rhs2)) || (lhs.equals(rhs2) && rhs.equals(lhs2)
-                && binaryInst.isCommutative());
-        boolean sameRev =
-            lhs.equals(rhs2) && rhs.equals(lhs2) && BinaryInst.isRev(binaryInst.tag, keyInst.tag);
-        if ((sameOp && sameOperand) || sameRev) {
-          return valueNumber;
-        }
-      }
+  /**
+   * 表达式的结构化 key：操作码（call 为被调函数）+ 操作数的 value number
+   * <p>
+   * 二元运算的 key 做了规范化：Gt/Ge 交换操作数变成 Lt/Le，可交换运算的操作数按编号排序，
+   * 所以能匹配上的表达式一定落在同一个桶里
+   */
+  private static class ExprKey {
+
+    private final Object op;
+    private final Value[] operands;
+    private final int hash;
+
+    ExprKey(Object op, Value... operands) {
+      this.op = op;
+      this.operands = operands;
+      this.hash = 31 * op.hashCode() + Arrays.hashCode(operands);
     }
-    return binaryInst;
-  }
 
-  public Value findValueNumber(GEPInst gepInst) {
-    var sz = valueTable.size();
-    for (var i = 0; i < sz; i++) {
-      var key = valueTable.get(i).getFirst();
-      var valueNumber = valueTable.get(i).getSecond();
-      if (key instanceof GEPInst && !gepInst.equals(key)) {
-        GEPInst keyInst = (GEPInst) key;
-        boolean allSame = gepInst.getNumOP() == keyInst.getNumOP();
-        if (allSame) {
-          for (var j = 0; j < gepInst.getNumOP(); j++) {
-            if (lookupOrAdd(gepInst.getOperands().get(j)) != lookupOrAdd(
-                keyInst.getOperands().get(j))) {
-              allSame = false;
-              break;
-            }
-          }
-        }
-        if (allSame) {
-          return valueNumber;
-        }
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ExprKey)) {
+        return false;
       }
+      ExprKey other = (ExprKey) o;
+      return op == other.op && Arrays.equals(operands, other.operands);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
     }
-    return gepInst;
   }
 
-  public Value findValueNumber(LoadInst loadInst) {
-    var sz = valueTable.size();
-    for (var i = 0; i < sz; i++) {
-      var key = valueTable.get(i).getFirst();
-      var valueNumber = valueTable.get(i).getSecond();
-      // FIXME: side_effect WA here!
-      if (Config.getInstance().isO2 && key instanceof LoadInst && !loadInst.equals(key)) {
-        LoadInst keyInst = (LoadInst) key;
-        var allSame =
-            lookupOrAdd(loadInst.getPointer()) == lookupOrAdd(keyInst.getPointer());
-        allSame = allSame && loadInst.getUseStore() == keyInst.getUseStore();
-        if (allSame) {
-          return valueNumber;
+  private boolean isExpression(Instruction inst) {
+    return inst.isBinary() || inst.tag == TAG_.GEP || inst.tag == TAG_.Load
+        || (inst.tag == TAG_.Call && ((CallInst) inst).isPureCall());
+  }
+
+  private int idOf(Value val) {
+    return valueIds.computeIfAbsent(val, k -> valueIds.size());
+  }
+
+  private Value useStoreOf(LoadInst loadInst) {
+    return loadInst.getOperands().size() > 1 ? loadInst.getUseStore() : null;
+  }
+
+  /**
+   * 计算表达式的 key，会对操作数做 lookupOrAdd
+   */
+  private ExprKey keyOf(Instruction inst) {
+    if (inst.isBinary()) {
+      Value lhs = lookupOrAdd(inst.getOperands().get(0));
+      Value rhs = lookupOrAdd(inst.getOperands().get(1));
+      TAG_ tag = inst.tag;
+      if (tag == TAG_.Gt || tag == TAG_.Ge) {
+        tag = tag == TAG_.Gt ? TAG_.Lt : TAG_.Le;
+        Value tmp = lhs;
+        lhs = rhs;
+        rhs = tmp;
+      } else if (((BinaryInst) inst).isCommutative() && idOf(lhs) > idOf(rhs)) {
+        Value tmp = lhs;
+        lhs = rhs;
+        rhs = tmp;
+      }
+      return new ExprKey(tag, lhs, rhs);
+    }
+    return switch (inst.tag) {
+      case GEP -> {
+        Value[] ops = new Value[inst.getNumOP()];
+        for (var i = 0; i < ops.length; i++) {
+          ops[i] = lookupOrAdd(inst.getOperands().get(i));
         }
+        yield new ExprKey(TAG_.GEP, ops);
       }
-      if (key instanceof StoreInst) {
-        StoreInst keyInst = (StoreInst) key;
-        var allSame =
-            lookupOrAdd(loadInst.getPointer()) == lookupOrAdd(keyInst.getPointer());
-        allSame = allSame && (loadInst.getUseStore() == keyInst);
-        if (allSame) {
-          return keyInst.getVal();
+      case Load -> new ExprKey(TAG_.Load, lookupOrAdd(((LoadInst) inst).getPointer()),
+          useStoreOf((LoadInst) inst));
+      case Call -> {
+        Value[] args = new Value[inst.getNumOP() - 1];
+        for (var i = 1; i < inst.getNumOP(); i++) {
+          args[i - 1] = lookupOrAdd(inst.getOperands().get(i));
         }
+        yield new ExprKey(((CallInst) inst).getFunc(), args);
       }
+      default -> null;
+    };
+  }
+
+  private void index(Instruction inst, ExprKey key) {
+    if (inst.tag == TAG_.Load && !Config.getInstance().isO2) {
+      // FIXME: side_effect WA here!
+      return;
+    }
+    exprKeys.put(inst, key);
+    var bucket = exprTable.computeIfAbsent(key, k -> new ArrayList<>());
+    // 桶内按进表顺序排列，重新建 key 的表达式要插回原来的位置
+    int seq = valueOrder.get(inst);
+    int pos = bucket.size();
+    while (pos > 0 && valueOrder.get(bucket.get(pos - 1)) > seq) {
+      pos--;
     }
-    return loadInst;
+    bucket.add(pos, inst);
   }
 
-  public Value findValueNumber(CallInst callInst) {
-    if (!callInst.isPureCall()) {
-      return callInst;
-    }
-    var sz = valueTable.size();
-    for (var i = 0; i < sz; i++) {
-      var key = valueTable.get(i).getFirst();
-      var valueNumber = valueTable.get(i).getSecond();
-      if (key instanceof CallInst) {
-        CallInst keyInst = (CallInst) key;
-        if (callInst.getFunc() != keyInst.getFunc()) {
-          continue;
-        }
-        var argSize = callInst.getNumOP();
-        var allSame = true;
-        for (var argIndex = 1; argIndex < argSize; argIndex++) {
-          allSame = allSame &&
-              (lookupOrAdd(callInst.getOperands().get(argIndex)) == lookupOrAdd(
-                  keyInst.getOperands().get(argIndex)));
-        }
-        if (allSame) {
-          return valueNumber;
+  private void unindex(Instruction inst) {
+    ExprKey key = exprKeys.remove(inst);
+    if (key == null) {
+      return;
+    }
+    var bucket = exprTable.get(key);
+    bucket.remove(inst);
+    if (bucket.isEmpty()) {
+      exprTable.remove(key);
+    }
+  }
+
+  /**
+   * 在表里找和 inst 等价的、最先进表的表达式
+   */
+  private Instruction findLeader(Instruction inst, ExprKey key) {
+    var bucket = exprTable.get(key);
+    if (bucket != null) {
+      for (Instruction leader : bucket) {
+        if (leader != inst) {
+          return leader;
         }
       }
     }
-    return callInst;
+    return null;
   }
 
   public Value findValueNumber(Instruction inst) {
-    if (inst.isBinary()) {
-      return findValueNumber((BinaryInst) inst);
+    return findValueNumber(inst, keyOf(inst));
+  }
+
+  private Value findValueNumber(Instruction inst, ExprKey key) {
+    if (inst.tag == TAG_.Call && !((CallInst) inst).isPureCall()) {
+      return inst;
     }
-    return switch (inst.tag) {
-      case GEP -> findValueNumber((GEPInst) inst);
-      case Load -> findValueNumber((LoadInst) inst);
-      case Call -> findValueNumber((CallInst) inst);
-      default -> null;
-    };
+    Instruction leader = inst.tag == TAG_.Load && !Config.getInstance().isO2 ? null
+        : findLeader(inst, key);
+    if (inst.tag == TAG_.Load) {
+      // load 直接取 store 的值，和更早进表的 load 比较先后
+      LoadInst loadInst = (LoadInst) inst;
+      Value useStore = useStoreOf(loadInst);
+      if (useStore instanceof StoreInst && valueNumbers.containsKey(useStore)) {
+        StoreInst storeInst = (StoreInst) useStore;
+        boolean samePtr = lookupOrAdd(storeInst.getPointer()) == key.operands[0];
+        if (samePtr && (leader == null || valueOrder.get(storeInst) < valueOrder.get(leader))) {
+          return storeInst.getVal();
+        }
+      }
+    }
+    return leader == null ? inst : valueNumbers.get(leader);
+  }
 
+  private void addEntry(Value val) {
+    valueNumbers.put(val, val);
+    valueOrder.put(val, valueOrder.size());
   }
 
   public Value lookupOrAdd(Value val) {
-    for (var pair : valueTable) {
-      if (pair.getFirst() == val) {
-        return pair.getSecond();
-      }
-      // 保证每个常数只会出现一次
-      if (val instanceof ConstantInt && pair.getFirst() instanceof ConstantInt) {
-        if (((ConstantInt) val).getVal() == ((ConstantInt) pair.getFirst()).getVal()) {
-          return pair.getSecond();
-        }
+    Value valueNumber = valueNumbers.get(val);
+    if (valueNumber != null) {
+      return valueNumber;
+    }
+    // 保证每个常数只会出现一次
+    if (val instanceof ConstantInt) {
+      valueNumber = constNumbers.putIfAbsent(((ConstantInt) val).getVal(), val);
+      if (valueNumber != null) {
+        return valueNumber;
       }
     }
-    valueTable.add(new Pair<>(val, val));
-    int pos = valueTable.size() - 1;
-    if (val.isInstruction()) {
+    addEntry(val);
+    if (val.isInstruction() && isExpression((Instruction) val)) {
       Instruction inst = (Instruction) val;
-      if (inst.isBinary() || inst.tag == TAG_.GEP || inst.tag == TAG_.Load
-          || inst.tag == TAG_.Call) {
-        valueTable.get(pos).setSecond(findValueNumber(inst));
+      ExprKey key = keyOf(inst);
+      valueNumber = findValueNumber(inst, key);
+      valueNumbers.put(inst, valueNumber);
+      index(inst, key);
+      return valueNumber;
+    }
+    return val;
+  }
+
+  /**
+   * RAUW，同时把表里以 inst 为操作数的表达式重新建 key
+   */
+  private void replaceAllUseWith(Instruction inst, Value val) {
+    ArrayList<Instruction> users = new ArrayList<>();
+    for (Use use : inst.getUsesList()) {
+      if (use.getUser() instanceof Instruction) {
+        Instruction user = (Instruction) use.getUser();
+        if (exprKeys.containsKey(user)) {
+          unindex(user);
+          users.add(user);
+        }
       }
     }
-    return valueTable.get(pos).getSecond();
+    inst.COReplaceAllUseWith(val);
+    for (Instruction user : users) {
+      index(user, keyOf(user));
+    }
   }
 
   public void replace(Instruction inst, Value val) {
     if (inst == val) {
       return;
     }
-    valueTable.removeIf(pair -> pair.getFirst() == inst);
-    inst.COReplaceAllUseWith(val);
+    valueNumbers.remove(inst);
+    unindex(inst);
+    replaceAllUseWith(inst, val);
     inst.CORemoveAllOperand();
     inst.node.removeSelf();
   }
 
   // Algorithm: Global Code Motion Global Value Numbering, Cliff Click
   // TODO: 研究更好的算法 "A Sparse Algorithm for Predicated Global Value Numbering" describes a better algorithm
+  @Override
+  public void runOnFunction(Function func) {
+    runGVNGCM(func);
+  }
+
   public void runGVNGCM(Function func) {
     var bropt = new BranchOptimization();
     int cnt = 0;
@@ -250,7 +337,12 @@ public class GVNGCM implements IRPass {
     BasicBlock entry = func.getList_().getEntry().getVal();
     Stack<BasicBlock> postOrderStack = new Stack<>();
     ArrayList<BasicBlock> reversePostOrder = new ArrayList<>();
-    valueTable.clear();
+    valueNumbers.clear();
+    valueOrder.clear();
+    constNumbers.clear();
+    exprTable.clear();
+    exprKeys.clear();
+    valueIds.clear();
 
     // calculate reverse postorder
     for (INode<BasicBlock, Function> bbNode : func.getList_()) {
@@ -297,7 +389,7 @@ public class GVNGCM implements IRPass {
           }
         }
         if (allSame) {
-          inst.COReplaceAllUseWith(ninst);
+          replaceAllUseWith(inst, ninst);
           inst.CORemoveAllOperand();
           instNode.removeSelf();
           break;
@@ -387,14 +479,15 @@ public class GVNGCM implements IRPass {
               tmpPtr = ((Instruction) tmpPtr).getOperands().get(0);
             }
             if (constIndex) {
-              Constant c = constantArray;
+              var index = new ArrayList<Integer>();
               while (!indexList.isEmpty()) {
-                int index = indexList.pop();
-                c = ((ConstantArray) c).getConst_arr_().get(index);
+                index.add(indexList.pop());
+              }
+              Constant c = constantArray.getElement(index);
+              if (c instanceof ConstantInt) {
+                replace(inst, c);
+                getConst = true;
               }
-              assert c instanceof ConstantInt;
-              replace(inst, c);
-              getConst = true;
             }
           }
         }
@@ -425,7 +518,7 @@ public class GVNGCM implements IRPass {
       // 避免替换掉 store pointer to pointer(pointer)
       var val = inst.getOperands().get(0);
       if (!val.getType().isPointerTy()) {
-        valueTable.add(new Pair<>(inst, inst));
+        addEntry(inst);
       }
     } else if (inst.tag == TAG_.Call && ((CallInst) inst).isPureCall()) {
       Value val = lookupOrAdd(simpInst);
@@ -436,7 +529,7 @@ public class GVNGCM implements IRPass {
   }
 
   public void runGCM(Function func) {
-    func.getLoopInfo().computeLoopInfo(func);
+    AnalysisManager.getInstance().requireLoopInfo(func);
     ArrayList<Instruction> instructions = new ArrayList<>();
     for (INode<BasicBlock, Function> bbNode : func.getList_()) {
       BasicBlock bb = bbNode.getVal();
@@ -514,23 +607,14 @@ public class GVNGCM implements IRPass {
           scheduleLate(userInst, func);
           BasicBlock userbb = userInst.getBB();
 
+          // phi 的 use 算在对应的前驱上，operand 的位置就是前驱的下标（MemPhi 的 operand 0 是数组）
           if (userInst.tag == TAG_.Phi) {
-            int idx = 0;
-            for (Value value : ((Phi) userInst).getIncomingVals()) {
-              if (value instanceof Instruction && value.getUsesList().contains(use)) {
-                userbb = userInst.getBB().getPredecessor_().get(idx);
-                lcabb = (lcabb == null) ? userbb : lca(lcabb, userbb);
-              }
-              idx++;
-            }
+            userbb = userInst.getBB().getPredecessor_().get(use.getOperandRank());
+            lcabb = (lcabb == null) ? userbb : lca(lcabb, userbb);
           } else if (userInst.tag == TAG_.MemPhi) {
-            int idx = 0;
-            for (Value value : ((MemPhi) userInst).getIncomingVals()) {
-              if (value.getUsesList().contains(use)) {
-                userbb = userInst.getBB().getPredecessor_().get(idx);
-                lcabb = (lcabb == null) ? userbb : lca(lcabb, userbb);
-              }
-              idx++;
+            if (use.getOperandRank() > 0) {
+              userbb = userInst.getBB().getPredecessor_().get(use.getOperandRank() - 1);
+              lcabb = (lcabb == null) ? userbb : lca(lcabb, userbb);
             }
           } else {
             lcabb = (lcabb == null) ? userbb : lca(lcabb, userbb);
@@ -556,18 +640,22 @@ public class GVNGCM implements IRPass {
       assert bestbb.getList().getLast().getVal() instanceof BrInst || bestbb.getList().getLast()
           .getVal() instanceof RetInst;
 
-      // bestbb 是 lcabb 时，可能 use inst 的指令在 inst 前面，需要把 inst 往前稍稍
-      for (INode<Instruction, BasicBlock> instNode : bestbb.getList()) {
-        Instruction tmpInst = instNode.getVal();
-        if (tmpInst.tag != TAG_.Phi && tmpInst.tag != TAG_.MemPhi) {
-          // 从 operands 里拿到 inst，和从 inst.getUsesList 里找是否有个 Use 的 user 是 tmpInst，应该没有区别吧
-          if (tmpInst.getOperands().contains(inst)) {
-            inst.node.removeSelf();
-            inst.node.insertBefore(tmpInst.node);
-            break;
+      // bestbb 是 lcabb 时，可能 use inst 的指令在 inst 前面，需要把 inst 往前稍稍：挪到 bestbb 里最靠前的 user 前面
+      Instruction firstUser = null;
+      for (Use use : inst.getUsesList()) {
+        if (use.getUser() instanceof Instruction) {
+          Instruction userInst = (Instruction) use.getUser();
+          if (userInst.node.getParent() == bestbb.getList() && userInst.tag != TAG_.Phi
+              && userInst.tag != TAG_.MemPhi && (firstUser == null || userInst.node
+              .comesBefore(firstUser.node))) {
+            firstUser = userInst;
           }
         }
       }
+      if (firstUser != null) {
+        inst.node.removeSelf();
+        inst.node.insertBefore(firstUser.node);
+      }
     }
   }
 
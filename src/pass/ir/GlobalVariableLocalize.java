@@ -1,5 +1,7 @@
 package pass.ir;
 
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.AnalysisManager.AnalysisKind;
 import ir.MyFactoryBuilder;
 import ir.MyModule;
 import ir.Use;
@@ -15,6 +17,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.Set;
 import java.util.stream.Collectors;
 import pass.Pass.IRPass;
 import util.IList.INode;
@@ -26,6 +29,11 @@ public class GlobalVariableLocalize implements IRPass {
     return "gvlocalize";
   }
 
+  @Override
+  public Set<AnalysisKind> preservedAnalyses() {
+    return AnalysisManager.CFG_ANALYSES;
+  }
+
   /*
    * 将热点全局变量局部化
    * todo
@@ -120,10 +128,8 @@ public class GlobalVariableLocalize implements IRPass {
       iter = iter.getNext();
     }
     //将这个函数中原来所有对gv的使用替换为对alloca的使用
-    var size = gv.getUsesList().size();
     ArrayList<Use> tobeReplace = new ArrayList<>();
-    for (int i = 0; i < size; i++) {
-      var use = gv.getUsesList().get(i);
+    for (Use use : gv.getUsesList()) {
       if (((Instruction) use.getUser()).getBB().getParent().equals(fun)) {
         tobeReplace.add(use);
       }
@@ -1,5 +1,7 @@
 package pass.ir;
 
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.AnalysisManager.AnalysisKind;
 import ir.MyModule;
 import ir.Use;
 import ir.values.Constants.ConstantInt;
@@ -14,6 +16,7 @@ import ir.values.instructions.TerminatorInst.CallInst;
 import ir.values.instructions.TerminatorInst.RetInst;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Set;
 import pass.Pass.IRPass;
 import util.IList.INode;
 
@@ -25,6 +28,11 @@ public class InterProceduralDCE implements IRPass {
     return "interproceduraldce";
   }
 
+  @Override
+  public Set<AnalysisKind> preservedAnalyses() {
+    return AnalysisManager.CFG_ANALYSES;
+  }
+
   /*
    * todo
    *  这个pass需要在mem2reg之前调用
@@ -1,5 +1,7 @@
 package pass.ir;
 
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.AnalysisManager.AnalysisKind;
 import ir.Analysis.ArrayAliasAnalysis;
 import ir.MyFactoryBuilder;
 import ir.MyModule;
@@ -12,6 +14,7 @@ import ir.values.instructions.MemInst.LoadInst;
 import ir.values.instructions.MemInst.StoreInst;
 import ir.values.instructions.TerminatorInst.CallInst;
 import pass.Pass.IRPass;
+import java.util.Set;
 
 public class InterproceduralAnalysis implements IRPass {
 
@@ -22,6 +25,11 @@ public class InterproceduralAnalysis implements IRPass {
     return "interproceduralAnalysis";
   }
 
+  @Override
+  public Set<AnalysisKind> preservedAnalyses() {
+    return AnalysisManager.CFG_ANALYSES;
+  }
+
   @Override
   public void run(MyModule m) {
     for (var funcNode : m.__functions) {
@@ -1,6 +1,7 @@
 package pass.ir;
 
-import ir.Analysis.DomInfo;
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.AnalysisManager.AnalysisKind;
 import ir.Analysis.LoopInfo;
 import ir.Loop;
 import ir.MyFactoryBuilder;
@@ -13,18 +14,20 @@ import ir.values.Value;
 import ir.values.instructions.Instruction;
 import ir.values.instructions.Instruction.TAG_;
 import ir.values.instructions.MemInst.Phi;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import util.Mylogger;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
  * 在循环退出时跳转到的基本块开头插入冗余 phi 指令，phi 指令 use 循环内定义的值，循环后面 use 循环内定义的值替换成 use phi，方便循环上的优化
  */
-public class LCSSA implements IRPass {
+public class LCSSA implements FunctionPass {
 
   private static final Logger log = Mylogger.getLogger(IRPass.class);
   private static final MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
@@ -35,6 +38,11 @@ public class LCSSA implements IRPass {
     return "LCSSA";
   }
 
+  @Override
+  public Set<AnalysisKind> preservedAnalyses() {
+    return AnalysisManager.CFG_ANALYSES;
+  }
+
   @Override
   public void run(MyModule m) {
     log.info("Running pass : LCSSA");
@@ -47,8 +55,9 @@ public class LCSSA implements IRPass {
     }
   }
 
+  @Override
   public void runOnFunction(Function func) {
-    DomInfo.computeDominanceInfo(func);
+    AnalysisManager.getInstance().requireDomInfo(func);
     var loopInfoFullAnalysis = new LoopInfoFullAnalysis();
     loopInfoFullAnalysis.runOnFunction(func);
 
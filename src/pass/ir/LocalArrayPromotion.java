@@ -1,6 +1,8 @@
 package pass.ir;
 
 import frontend.Visitor;
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.AnalysisManager.AnalysisKind;
 import ir.MyFactoryBuilder;
 import ir.MyModule;
 import ir.types.ArrayType;
@@ -10,6 +12,7 @@ import ir.values.BasicBlock;
 import ir.values.Constant;
 import ir.values.Constants.ConstantArray;
 import ir.values.Constants.ConstantInt;
+import ir.values.Constants.IntArray;
 import ir.values.Function;
 import ir.values.Value;
 import ir.values.instructions.Instruction;
@@ -24,6 +27,7 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.Set;
 import java.util.stream.Collectors;
 import pass.Pass.IRPass;
 import util.IList.INode;
@@ -35,6 +39,11 @@ public class LocalArrayPromotion implements IRPass {
     return "promotion";
   }
 
+  @Override
+  public Set<AnalysisKind> preservedAnalyses() {
+    return AnalysisManager.CFG_ANALYSES;
+  }
+
   //
   MyModule m;
   MyFactoryBuilder f = MyFactoryBuilder.getInstance();
@@ -236,8 +245,16 @@ public class LocalArrayPromotion implements IRPass {
       dims.add(((ArrayType) ty).getNumEle());
       ty = ((ArrayType) ty).getELeType();
     }
-    Constant fixedInit = packConstArr(dims, init);
-    ConstantArray arr = new ConstantArray(curArr.getAllocatedType(), init);
+    Constant fixedInit;
+    ConstantArray arr;
+    if (Arrays.stream(buffer).allMatch(c -> c instanceof ConstantInt)) {
+      var values = IntArray.of(Arrays.stream(buffer).mapToInt(c -> ((ConstantInt) c).getVal()).toArray());
+      fixedInit = f.getConstantArray(curArr.getAllocatedType(), values, false);
+      arr = f.getConstantArray(curArr.getAllocatedType(), values, true);
+    } else {
+      fixedInit = packConstArr(dims, init);
+      arr = new ConstantArray(curArr.getAllocatedType(), init);
+    }
     var gv = f.getGlobalvariable("promoted" + promotednum, curArr.getAllocatedType(),
         fixedInit,
         arr);
@@ -12,12 +12,13 @@ import ir.values.instructions.TerminatorInst.BrInst;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.logging.Logger;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import util.Mylogger;
 import util.Pair;
 
 // 只考虑最里层循环
-public class LoopFusion implements IRPass {
+public class LoopFusion implements FunctionPass {
 
   private static Logger log = Mylogger.getLogger(IRPass.class);
   private static final MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
@@ -41,6 +42,7 @@ public class LoopFusion implements IRPass {
     }
   }
 
+  @Override
   public void runOnFunction(Function func) {
     this.currLoopInfo = func.getLoopInfo();
     this.currFunction = func;
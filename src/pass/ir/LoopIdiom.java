@@ -1,7 +1,8 @@
 package pass.ir;
 
-import driver.Config;
 import ir.Analysis.LoopInfo;
+import ir.Analysis.ScalarEvolution;
+import ir.Analysis.ScalarEvolution.SCEV;
 import ir.Loop;
 import ir.MyFactoryBuilder;
 import ir.MyModule;
@@ -13,14 +14,19 @@ import ir.values.instructions.BinaryInst;
 import ir.values.instructions.Instruction;
 import ir.values.instructions.Instruction.TAG_;
 import ir.values.instructions.MemInst.Phi;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Logger;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import util.LoopUtils;
 import util.Mylogger;
 
-public class LoopIdiom implements IRPass {
+public class LoopIdiom implements FunctionPass {
 
   private static final Logger log = Mylogger.getLogger(IRPass.class);
   private static final MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
@@ -43,6 +49,7 @@ public class LoopIdiom implements IRPass {
     }
   }
 
+  @Override
   public void runOnFunction(Function func) {
     Queue<Loop> loopQueue = new LinkedList<>();
     this.currLoopInfo = func.getLoopInfo();
@@ -62,176 +69,145 @@ public class LoopIdiom implements IRPass {
     // TODO loop -> memset/memcpy
   }
 
+  /**
+   * 只有一个基本块、里面只有 phi、phi 的更新和退出判断的循环，循环后面用到的值都能用 ScalarEvolution 算出来的话，直接算出来，删掉循环：
+   * sum = sum + num（num 循环不变）是递归式 {sum0 + num,+,num}，退出时的值是 sum0 + num * tripCount；
+   * sum = sum * 2^k 不是递归式，tripCount 是常数时用移位算
+   */
   public void runSimplifyCalc(Loop loop) {
     if (!loop.getSubLoops().isEmpty() || !loop.isSimpleForLoop() || loop.getBlocks().size() != 1) {
       return;
     }
 
     var header = loop.getLoopHeader();
-    // 或许太严格了
-    if (header.getList().getNumNode() != 6) {
-      return;
-    }
-
-    var stepInst = loop.getStepInst();
-    var indVar = loop.getIndVar();
     var latchCmpInst = loop.getLatchCmpInst();
-    var latchBrInst = loop.getSingleLatchBlock().getList().getLast().getVal();
-    Phi sumInst = null;
-    BinaryInst calcInst = null;
-    if (indVar == null || stepInst == null) {
-      return;
-    }
-
-    for (var instNode : header.getList()) {
-      var inst = instNode.getVal();
-      if (inst != stepInst && inst != indVar && inst != latchCmpInst) {
-        if (inst instanceof BinaryInst) {
-          calcInst = (BinaryInst) inst;
-        } else if (inst instanceof Phi) {
-          sumInst = (Phi) inst;
-        }
-      }
-    }
-
-    if (sumInst == null || calcInst == null) {
+    if (!(latchCmpInst instanceof BinaryInst)) {
       return;
     }
 
-    // sumInst = [ baseSum , %preHeader ], [ calcInst , %latch ]
-    // calcInst = OP sumInst num
-    // => %1 = OP2 tripCount num
-    //    %2 = OP baseSum %1
-    int latchPredIndex = header.getPredecessor_().indexOf(header);
-    var baseSum = sumInst.getIncomingVals().get(1 - latchPredIndex);
-    if (calcInst != sumInst.getIncomingVals().get(latchPredIndex)) {
-      return;
-    }
-    int sumInstOpIndex = calcInst.getOperands().indexOf(sumInst);
-    if (sumInstOpIndex == -1) {
-      return;
-    }
-    var num = calcInst.getOperands().get(1 - sumInstOpIndex);
-    if (num instanceof Instruction &&
-        (((Instruction) num).getBB().getLoopDepth() == loop.getLoopDepth())) {
+    // 进入循环前没有判断过边界时 tripCount 带着 smax（一次都不满足条件也要跑一次），生成不了
+    var scalarEvolution = new ScalarEvolution(currLoopInfo);
+    var tripCount = scalarEvolution.getTripCount(loop);
+    if (tripCount == null || !scalarEvolution.isExpandable(tripCount)) {
       return;
     }
 
+    var latchBrInst = header.getList().getLast().getVal();
     BasicBlock exit = null;
     if (loop.getBlocks().contains((BasicBlock) (latchBrInst.getOperands().get(1)))) {
       exit = (BasicBlock) (latchBrInst.getOperands().get(2));
     } else {
       exit = (BasicBlock) (latchBrInst.getOperands().get(1));
     }
+    int exitPredIndex = exit.getPredecessor_().indexOf(header);
 
-    // start transform
-    // 计算迭代次数 tripCount
-    // FIXME: tripCount 为非正数时需要跳过循环
-    var init = loop.getIndVarInit();
-    var end = loop.getIndVarEnd();
-    var step = loop.getStep();
-    var indVarCondInst = loop.getIndVarCondInst();
-    Value compareBias = null;
-    for (var op : indVarCondInst.getOperands()) {
-      if (!(op instanceof Phi)) {
-        compareBias = op;
+    // 递归式的更新：header 的 phi 在回边上的值
+    int latchPredIndex = header.getPredecessor_().indexOf(header);
+    HashSet<Value> updates = new HashSet<>();
+    for (var instNode : header.getList()) {
+      var inst = instNode.getVal();
+      if (!(inst instanceof Phi)) {
+        break;
       }
+      updates.add(((Phi) inst).getIncomingVals().get(latchPredIndex));
     }
 
-    Instruction tripCountInst = null;
-    // 向上取整：b / a => (b + a - 1) / a
-    // Lt, Gt: |end - init| / |step|
-    // Le, Ge: (|end - init| + 1) / |step|
-    var subInst1 = factory.buildBinary(TAG_.Sub, end, init, header);
-    var subInst2 = factory.buildBinary(TAG_.Sub, compareBias, step, header); // 大部分情况下是 0
-    var indVarRange = factory.buildBinary(TAG_.Sub, subInst1, subInst2, header);
-    switch (latchCmpInst.tag) {
-      case Lt, Gt -> {
-        tripCountInst = buildCeilDiv(header, indVarRange, step);
-      }
-      case Le -> {
-        var addInst = factory.buildBinary(TAG_.Add, indVarRange,
-            ConstantInt.newOne(factory.getI32Ty(), 1), header);
-        tripCountInst = buildCeilDiv(header, addInst, step);
+    // 循环里只能有 header 的 phi、它们的更新和退出用的 cmp、br；循环外面只能通过 exit 的 LCSSA phi 用循环里的值
+    ArrayList<Instruction> loopInsts = new ArrayList<>();
+    LinkedHashMap<Instruction, SCEV> exitValues = new LinkedHashMap<>();
+    for (var instNode : header.getList()) {
+      var inst = instNode.getVal();
+      boolean isUpdate = inst instanceof BinaryInst && updates.contains(inst);
+      if (!(inst instanceof Phi) && !isUpdate && inst != latchCmpInst && inst != latchBrInst) {
+        return;
       }
-      case Ge -> {
-        var subInst3 = factory.buildBinary(TAG_.Sub, indVarRange,
-            ConstantInt.newOne(factory.getI32Ty(), 1), header);
-        tripCountInst = buildCeilDiv(header, subInst3, step);
+      loopInsts.add(inst);
+      for (var use : inst.getUsesList()) {
+        var user = (Instruction) use.getUser();
+        if (user.getBB() == header) {
+          continue;
+        }
+        if (user.getBB() != exit || !(user instanceof Phi) || use.getOperandRank() != exitPredIndex) {
+          return;
+        }
+        exitValues.put(inst, scalarEvolution.getExitValue(inst, loop));
       }
     }
+    if (exitValues.isEmpty()) {
+      return;
+    }
 
-    // 构造新的 calcInst 和 sumInst
-    Instruction noLoopSumInst = null, noLoopCalcInst = null;
-    switch (calcInst.tag) {
-      case Add, Sub -> {
-        noLoopCalcInst = factory.buildBinary(TAG_.Mul, tripCountInst, num, header);
-        noLoopSumInst = factory.buildBinary(calcInst.tag, baseSum, noLoopCalcInst, header);
-      }
-      case Mul, Div -> {
-        if (!(num instanceof ConstantInt)) {
+    // sum = sum * 2^k 的情况
+    HashMap<Instruction, Value> shiftBases = new HashMap<>();
+    for (var inst : exitValues.keySet()) {
+      if (exitValues.get(inst) == null) {
+        var base = mulPowerOfTwoBase(inst, header);
+        if (base == null || !(tripCount instanceof ScalarEvolution.Const)) {
           return;
         }
-        int cnum = ((ConstantInt) num).getVal();
-        if (!(cnum > 0 && (cnum & (cnum - 1)) == 0)) {
-          return;
-        }
-        // FIXME lowbit 失效
-        ConstantInt shiftTime = ConstantInt
-            .newOne(factory.getI32Ty(), (int) (Math.log(cnum) / Math.log(2)));
-        noLoopCalcInst = factory.buildBinary(TAG_.Mul, tripCountInst, shiftTime, header);
-        if (calcInst.tag == TAG_.Mul) {
-          noLoopSumInst = factory.buildBinary(TAG_.Shl, baseSum, noLoopCalcInst, header);
-        } else {
-          noLoopSumInst = factory.buildBinary(TAG_.Shr, baseSum, noLoopCalcInst, header);
-        }
+        shiftBases.put(inst, base);
       }
     }
 
-    // exit 的 phi 中替换对应来自循环的 calcInst 为 noLoopSumInst
-    int headerPredIndex = exit.getPredecessor_().indexOf(header);
+    // start transform
+    // 退出值算在 header 的最后，循环原来的指令删掉以后 header 只跑一次，直接跳到 exit
+    HashMap<Instruction, Value> replacements = new HashMap<>();
+    for (var inst : exitValues.keySet()) {
+      var exitValue = exitValues.get(inst);
+      if (exitValue != null) {
+        replacements.put(inst, scalarEvolution.expand(exitValue, header));
+      } else {
+        // 乘 tripCount 次 2^k，左移 32 位以上就是 0
+        var calcInst = (BinaryInst) inst;
+        long shiftTime = (long) ((ScalarEvolution.Const) tripCount).getValue()
+            * Integer.numberOfTrailingZeros(((ConstantInt) calcInst.getOperands().get(1)).getVal());
+        var scale = scalarEvolution.getConst(shiftTime >= 32 ? 0 : 1 << (int) shiftTime);
+        var sum = scalarEvolution.getMul(scalarEvolution.getSCEV(shiftBases.get(inst)), scale);
+        replacements.put(inst, scalarEvolution.expand(sum, header));
+      }
+    }
+
+    // exit 的 phi 中替换对应来自循环的值
     for (var instNode : exit.getList()) {
       var inst = instNode.getVal();
       if (!(inst instanceof Phi)) {
         break;
       }
-      if (inst.getOperands().get(headerPredIndex) == calcInst) {
-        inst.CoReplaceOperandByIndex(headerPredIndex, noLoopSumInst);
+      var incomingVal = inst.getOperands().get(exitPredIndex);
+      if (replacements.containsKey(incomingVal)) {
+        inst.CoReplaceOperandByIndex(exitPredIndex, replacements.get(incomingVal));
       }
     }
 
-    // TODO 如果循环结束后还有用到 i 的情况，构造 i 的 sum
-
     // 将循环改造成单个基本块，删掉原循环指令，跳转到 exit
     header.getSuccessor_().remove(header);
     header.getPredecessor_().remove(header);
-    indVar.node.removeSelf();
-    indVar.CORemoveAllOperand();
-    sumInst.node.removeSelf();
-    sumInst.CORemoveAllOperand();
-    calcInst.node.removeSelf();
-    calcInst.CORemoveAllOperand();
-    stepInst.node.removeSelf();
-    stepInst.CORemoveAllOperand();
-    latchCmpInst.node.removeSelf();
-    latchCmpInst.CORemoveAllOperand();
-    latchBrInst.node.removeSelf();
-    latchBrInst.CORemoveAllOperand();
+    for (var inst : loopInsts) {
+      inst.node.removeSelf();
+      inst.CORemoveAllOperand();
+    }
 
     factory.buildBr(exit, header);
 
     // 删除循环
     currLoopInfo.removeLoop(loop);
-
-    Config.getInstance().runStableRegAlloc = true;
   }
 
-  public BinaryInst buildCeilDiv(BasicBlock bb, Value lhs, Value rhs) {
-    // FIXME 负数的向上取整
-    var addInst = factory.buildBinary(TAG_.Add, lhs, rhs, bb);
-    var subInst = factory
-        .buildBinary(TAG_.Sub, addInst, ConstantInt.newOne(factory.getI32Ty(), 1), bb);
-    var divInst = factory.buildBinary(TAG_.Div, subInst, rhs, bb);
-    return divInst;
+  // calcInst = Mul sumInst 2^k，sumInst = phi [ base, %preHeader ], [ calcInst, %latch ] 时返回 base
+  private Value mulPowerOfTwoBase(Instruction inst, BasicBlock header) {
+    if (inst.tag != TAG_.Mul || !(inst.getOperands().get(0) instanceof Phi)
+        || !(inst.getOperands().get(1) instanceof ConstantInt)) {
+      return null;
+    }
+    int num = ((ConstantInt) inst.getOperands().get(1)).getVal();
+    var sumInst = (Phi) inst.getOperands().get(0);
+    if (num <= 0 || (num & (num - 1)) != 0 || sumInst.getBB() != header) {
+      return null;
+    }
+    int latchPredIndex = header.getPredecessor_().indexOf(header);
+    if (sumInst.getIncomingVals().get(latchPredIndex) != inst) {
+      return null;
+    }
+    return sumInst.getIncomingVals().get(1 - latchPredIndex);
   }
 }
@@ -1,13 +1,17 @@
 package pass.ir;
 
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.AnalysisManager.AnalysisKind;
 import ir.MyModule;
 import ir.values.Function;
+import java.util.Set;
 import java.util.logging.Logger;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import util.Mylogger;
 
 // ! 在 BrOpt + GVNGCM 尽量化简后才能保证正确性
-public class LoopInfoFullAnalysis implements IRPass {
+public class LoopInfoFullAnalysis implements FunctionPass {
 
   private final Logger log = Mylogger.getLogger(IRPass.class);
 
@@ -16,6 +20,11 @@ public class LoopInfoFullAnalysis implements IRPass {
     return "loopInfoFullAnalysis";
   }
 
+  @Override
+  public Set<AnalysisKind> preservedAnalyses() {
+    return AnalysisManager.CFG_ANALYSES;
+  }
+
   @Override
   public void run(MyModule m) {
     log.info("Running pass : LoopInfoFullAnalysis");
@@ -28,8 +37,8 @@ public class LoopInfoFullAnalysis implements IRPass {
     }
   }
 
+  @Override
   public void runOnFunction(Function func) {
-    func.getLoopInfo().computeLoopInfo(func);
-    func.getLoopInfo().computeAdditionalLoopInfo();
+    AnalysisManager.getInstance().requireLoopInfo(func).computeAdditionalLoopInfo();
   }
 }
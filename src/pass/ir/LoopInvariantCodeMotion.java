@@ -0,0 +1,313 @@
+package pass.ir;
+
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.ArrayAliasAnalysis;
+import ir.Analysis.ArrayAliasAnalysis.ArrayDefUses;
+import ir.Analysis.DependenceAnalysis;
+import ir.Analysis.DependenceAnalysis.Dependence;
+import ir.Analysis.LoopInfo;
+import ir.Loop;
+import ir.MyFactoryBuilder;
+import ir.MyModule;
+import ir.values.BasicBlock;
+import ir.values.Function;
+import ir.values.GlobalVariable;
+import ir.values.Value;
+import ir.values.instructions.Instruction;
+import ir.values.instructions.Instruction.TAG_;
+import ir.values.instructions.MemInst.GEPInst;
+import ir.values.instructions.MemInst.LoadInst;
+import ir.values.instructions.MemInst.StoreInst;
+import ir.values.instructions.TerminatorInst.CallInst;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.logging.Logger;
+import pass.Pass.FunctionPass;
+import pass.Pass.IRPass;
+import util.LoopUtils;
+import util.Mylogger;
+
+/**
+ * 循环不变量外提：GCM 只会把纯运算提到循环外，这里再把循环里没被改过的 load 和没有副作用的调用提到 preHeader。
+ * <p>
+ * load 是否被改过先看 memory SSA：它依赖的 Store/Call/MemPhi 在循环外就一定没改；在循环里（header 上有 MemPhi）再用
+ * DependenceAnalysis 看循环里的写和它是不是碰到同一个元素。调用看循环里的 store 和有副作用的调用会不会改它读的全局变量和数组。
+ * load 和调用只在每次进循环都一定会执行的块里外提（支配所有 exiting block），不做投机执行
+ */
+public class LoopInvariantCodeMotion implements FunctionPass {
+
+  private static final Logger log = Mylogger.getLogger(IRPass.class);
+  private static final MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
+  private LoopInfo currLoopInfo;
+  private HashSet<BasicBlock> loopBlocks;
+  // 按需算的每个循环的依赖
+  private final HashMap<Loop, ArrayList<Dependence>> dependences = new HashMap<>();
+
+  @Override
+  public String getName() {
+    return "licm";
+  }
+
+  @Override
+  public void run(MyModule m) {
+    log.info("Running pass : LoopInvariantCodeMotion");
+
+    for (var funcNode : m.__functions) {
+      var func = funcNode.getVal();
+      if (!func.isBuiltin_()) {
+        runOnFunction(func);
+      }
+    }
+  }
+
+  @Override
+  public void runOnFunction(Function func) {
+    new LoopInfoFullAnalysis().runOnFunction(func);
+    if (func.getLoopInfo().getTopLevelLoops().isEmpty()) {
+      return;
+    }
+
+    // 先保证每个循环都有一个只跳到 header 的 preHeader，改了 CFG 就重新算支配树和循环
+    boolean split = false;
+    for (var loop : getLoops(func)) {
+      split |= insertPreHeader(loop);
+    }
+    if (split) {
+      AnalysisManager.getInstance().invalidate(func);
+      new LoopInfoFullAnalysis().runOnFunction(func);
+    }
+    this.currLoopInfo = func.getLoopInfo();
+
+    // 只要 load 的 useStore，不用 LoadDep
+    AnalysisManager.getInstance().requireDominanceFrontier(func);
+    ArrayAliasAnalysis.runLoadDependStore(func, new ArrayList<ArrayDefUses>());
+
+    dependences.clear();
+    // 从内到外，内层提到 preHeader 的指令还可以接着往外提
+    for (var loop : getLoops(func)) {
+      hoist(loop);
+    }
+    dependences.clear();
+
+    ArrayAliasAnalysis.clear(func);
+  }
+
+  private Queue<Loop> getLoops(Function func) {
+    Queue<Loop> loopQueue = new LinkedList<>();
+    for (var topLoop : func.getLoopInfo().getTopLevelLoops()) {
+      LoopUtils.addLoopToQueue(topLoop, loopQueue);
+    }
+    return loopQueue;
+  }
+
+  /**
+   * preHeader 有多个后继（一般是循环前的判断）时，在它和 header 之间插一个空块。返回是否改了 CFG
+   */
+  private boolean insertPreHeader(Loop loop) {
+    var header = loop.getLoopHeader();
+    var preHeader = getUniquePreHeader(loop);
+    if (preHeader == null || preHeader.getSuccessor_().size() == 1) {
+      return false;
+    }
+    var preSucc = preHeader.getSuccessor_();
+    if (preSucc.indexOf(header) != preSucc.lastIndexOf(header)) {
+      return false;
+    }
+
+    var newBB = factory.getBasicBlock("");
+    newBB.node_.insertBefore(header.node_);
+    var br = preHeader.getList().getLast().getVal();
+    for (int i = 0; i < br.getNumOP(); i++) {
+      if (br.getOperands().get(i) == header) {
+        br.CoReplaceOperandByIndex(i, newBB);
+      }
+    }
+    preSucc.set(preSucc.indexOf(header), newBB);
+    newBB.getPredecessor_().add(preHeader);
+    factory.buildBr(header, newBB);
+    newBB.getSuccessor_().add(header);
+    // header 的 phi 按前驱下标取值，原地换掉就行
+    var headerPred = header.getPredecessor_();
+    headerPred.set(headerPred.indexOf(preHeader), newBB);
+    header.getParent().getLoopInfo().addBBToLoop(newBB, loop.getParentLoop());
+    return true;
+  }
+
+  // 循环外只有一个前驱时返回它
+  private BasicBlock getUniquePreHeader(Loop loop) {
+    var preHeader = loop.getPreHeader();
+    if (preHeader == null) {
+      return null;
+    }
+    for (var pred : loop.getLoopHeader().getPredecessor_()) {
+      if (pred != preHeader && !loop.getBlocks().contains(pred)) {
+        return null;
+      }
+    }
+    return preHeader;
+  }
+
+  private void hoist(Loop loop) {
+    var preHeader = getUniquePreHeader(loop);
+    if (preHeader == null || preHeader.getSuccessor_().size() != 1) {
+      return;
+    }
+    this.loopBlocks = new HashSet<>(loop.getBlocks());
+
+    // 子循环里剩下的指令在子循环里就不是不变量，只看直接属于这层循环的块
+    var blocks = new ArrayList<BasicBlock>();
+    for (var bbNode : preHeader.getParent().getList_()) {
+      var bb = bbNode.getVal();
+      if (currLoopInfo.getLoopForBB(bb) == loop) {
+        blocks.add(bb);
+      }
+    }
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (var bb : blocks) {
+        for (var instNode = bb.getList().getEntry(); instNode != null; ) {
+          var inst = instNode.getVal();
+          instNode = instNode.getNext();
+          if (canHoist(inst, loop)) {
+            inst.node.removeSelf();
+            inst.node.insertAtSecondToEnd(preHeader.getList());
+            changed = true;
+          }
+        }
+      }
+    }
+  }
+
+  private boolean canHoist(Instruction inst, Loop loop) {
+    if (inst.isBinary() || inst.tag == TAG_.GEP) {
+      return allInvariant(inst, 0, loop);
+    }
+    if (inst.tag == TAG_.Load) {
+      return isInvariant(inst.getOperands().get(0)) && isGuaranteedToExecute(inst, loop)
+          && !isClobbered((LoadInst) inst, loop);
+    }
+    if (inst.tag == TAG_.Call) {
+      var callee = ((CallInst) inst).getFunc();
+      return !callee.isBuiltin_() && !callee.isHasSideEffect() && allInvariant(inst, 1, loop)
+          && isGuaranteedToExecute(inst, loop) && !isClobbered((CallInst) inst);
+    }
+    return false;
+  }
+
+  private boolean allInvariant(Instruction inst, int from, Loop loop) {
+    for (int i = from; i < inst.getNumOP(); i++) {
+      if (!isInvariant(inst.getOperands().get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isInvariant(Value value) {
+    return !(value instanceof Instruction) || !loopBlocks.contains(((Instruction) value).getBB());
+  }
+
+  // 支配所有 exiting block 的块每次进循环都会至少执行一次
+  private boolean isGuaranteedToExecute(Instruction inst, Loop loop) {
+    var bb = inst.getBB();
+    for (var exiting : loop.getExitingBlocks()) {
+      var dom = exiting;
+      while (dom != null && dom.getDomLevel() > bb.getDomLevel()) {
+        dom = dom.getIdomer();
+      }
+      if (dom != bb) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isClobbered(LoadInst load, Loop loop) {
+    // 没有 useStore 的 load 不在 memory SSA 里；useStore 是 UndefValue 说明前面没有写过
+    if (load.getNumOP() != 2) {
+      return true;
+    }
+    var useStore = load.getUseStore();
+    if (isInvariant(useStore)) {
+      return false;
+    }
+
+    // header 上有 MemPhi，说明循环里写了同一个数组，看写的是不是同一个元素
+    var array = ArrayAliasAnalysis.getArrayValue(load.getPointer());
+    for (var dependence : dependences.computeIfAbsent(loop, DependenceAnalysis::analyze)) {
+      Instruction other;
+      if (dependence.src == load) {
+        other = dependence.dst;
+      } else if (dependence.dst == load) {
+        other = dependence.src;
+      } else {
+        continue;
+      }
+      // DependenceAnalysis 把调用都当成 confused，这里按 memory SSA 的规则只算会改这个数组的调用
+      if (other.tag == TAG_.Call) {
+        var call = (CallInst) other;
+        if (!call.getFunc().isHasSideEffect() || !ArrayAliasAnalysis.callAlias(array, call)) {
+          continue;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private boolean isClobbered(CallInst call) {
+    var callee = call.getFunc();
+    var globals = AnalysisManager.getInstance().getRelatedGlobals().get(callee);
+    boolean pointerArg = false;
+    boolean directPointerArg = false;
+    for (int i = 1; i < call.getNumOP(); i++) {
+      var arg = call.getOperands().get(i);
+      if (arg.getType().isPointerTy()) {
+        pointerArg = true;
+        directPointerArg |= !(arg instanceof GEPInst);
+      }
+    }
+    // 不读内存
+    if (!callee.isUsedGlobalVariable() && globals.isEmpty() && !pointerArg) {
+      return false;
+    }
+
+    for (var bb : loopBlocks) {
+      for (var instNode : bb.getList()) {
+        var inst = instNode.getVal();
+        if (inst.tag == TAG_.Store) {
+          // 直接传进去的指针不知道指向哪个数组
+          var array = ArrayAliasAnalysis.getArrayValue(((StoreInst) inst).getPointer());
+          if (array == null || directPointerArg || ArrayAliasAnalysis.callAlias(array, call)) {
+            return true;
+          }
+        } else if (inst.tag == TAG_.Call) {
+          var other = (CallInst) inst;
+          if (other.getFunc().isHasSideEffect() && mayWrite(other, globals)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  // 有副作用的调用只能通过全局变量和传进去的数组改内存
+  private boolean mayWrite(CallInst call, Set<GlobalVariable> globals) {
+    for (int i = 1; i < call.getNumOP(); i++) {
+      if (call.getOperands().get(i).getType().isPointerTy()) {
+        return true;
+      }
+    }
+    var related = new HashSet<>(
+        AnalysisManager.getInstance().getRelatedGlobals().get(call.getFunc()));
+    related.retainAll(globals);
+    return !related.isEmpty();
+  }
+}
@@ -16,6 +16,7 @@ import ir.values.instructions.MemInst.Phi;
 import ir.values.instructions.MemInst.StoreInst;
 import ir.values.instructions.TerminatorInst.BrInst;
 import ir.values.instructions.TerminatorInst.CallInst;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import util.LoopUtils;
 import util.Mylogger;
@@ -26,7 +27,7 @@ import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Logger;
 
-public class LoopMergeLastBreak implements IRPass {
+public class LoopMergeLastBreak implements FunctionPass {
 
   private static final Logger log = Mylogger.getLogger(IRPass.class);
   private static final MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
@@ -49,6 +50,7 @@ public class LoopMergeLastBreak implements IRPass {
     }
   }
 
+  @Override
   public void runOnFunction(Function func) {
     Queue<Loop> loopQueue = new LinkedList<>();
     this.currLoopInfo = func.getLoopInfo();
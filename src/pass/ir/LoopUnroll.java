@@ -14,6 +14,7 @@ import ir.values.instructions.Instruction.TAG_;
 import ir.values.instructions.MemInst;
 import ir.values.instructions.MemInst.Phi;
 import ir.values.instructions.TerminatorInst.CallInst;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import util.Mylogger;
 import util.LoopUtils;
@@ -24,7 +25,7 @@ import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Logger;
 
-public class LoopUnroll implements IRPass {
+public class LoopUnroll implements FunctionPass {
 
   private static final int maxBBinLoop = 5;
   private static final Logger log = Mylogger.getLogger(IRPass.class);
@@ -49,6 +50,7 @@ public class LoopUnroll implements IRPass {
     }
   }
 
+  @Override
   public void runOnFunction(Function func) {
     Queue<Loop> loopQueue = new LinkedList<>();
     this.currLoopInfo = func.getLoopInfo();
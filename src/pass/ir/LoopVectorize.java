@@ -0,0 +1,771 @@
+package pass.ir;
+
+import backend.reg.VectorRegisters;
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.LoopInfo;
+import ir.Loop;
+import ir.MyFactoryBuilder;
+import ir.Use;
+import ir.types.IntegerType;
+import ir.types.PointerType;
+import ir.types.VectorType;
+import ir.values.BasicBlock;
+import ir.values.Constants.ConstantInt;
+import ir.values.Function;
+import ir.values.GlobalVariable;
+import ir.values.UndefValue;
+import ir.values.Value;
+import ir.values.instructions.BinaryInst;
+import ir.values.instructions.Instruction;
+import ir.values.instructions.Instruction.TAG_;
+import ir.values.instructions.MemInst.AllocaInst;
+import ir.values.instructions.MemInst.GEPInst;
+import ir.values.instructions.MemInst.LoadInst;
+import ir.values.instructions.MemInst.Phi;
+import ir.values.instructions.MemInst.StoreInst;
+import ir.values.instructions.MemInst.ZextInst;
+import ir.values.instructions.TerminatorInst.BrInst;
+import ir.values.instructions.VectorInstruction.ExtractEleInst;
+import ir.values.instructions.VectorInstruction.InsertEleInst;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.logging.Logger;
+import pass.Pass.FunctionPass;
+import pass.Pass.IRPass;
+import util.LoopUtils;
+import util.Mylogger;
+
+/**
+ * -vectorize：把 LoopUnroll 展开过的最内层循环打包成 NEON 的 <4 x i32> 运算
+ * <p>
+ * LoopUnroll 把只有一个基本块的 for 循环展开成 4 份（i, i+1, i+2, i+3），凑不满 4 次的迭代留给它生成的标量循环。
+ * 次数是常数的循环 LoopUnroll 不展开，这里先自己复制成 4 份，剩下的 N % 4 次迭代直接放在出口边上（见 widenConstantLoop）。
+ * 然后把这 4 份里同构的计算合成一条向量指令，种子有两种：
+ * <p>
+ * 1. 同一个数组上下标连续的 4 个 store，从存的值往上逐层打包：下标连续的 load 变成向量 load，同类的 add/sub/mul
+ * 变成向量运算，循环外的值在 preHeader 里拼成向量
+ * <p>
+ * 2. 累加：phi 经过一串 add 回到自己，每 4 个加数打包，循环里累加成向量，出循环的边上拆开加回标量
+ * <p>
+ * 循环体里所有的 load/store 都要打进包里，打包以后所有 load 在前、store 在后，所以同一个地址上原来 store 在 load
+ * 前面的、可能指向同一个数组又看不出下标关系的都不做。向量值在后端放在 q8-q15，每个循环（和共用一个 preHeader
+ * 的几个循环）最多 VECTOR_REGS 组，打包以后再用 VectorRegisters 实际分一遍，分不下就撤掉
+ */
+public class LoopVectorize implements FunctionPass {
+
+  private static final int LANES = 4;
+  private static final int VECTOR_REGS = 8;
+  private static final Logger log = Mylogger.getLogger(IRPass.class);
+  private static final MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
+
+  // 打包树的结点，tag 是 Load/Add/Sub/Mul，null 表示 4 个都是循环外的值
+  private static class Pack {
+
+    final Value[] lanes;
+    final TAG_ tag;
+    final Pack lhs;
+    final Pack rhs;
+    Value vector;
+
+    Pack(Value[] lanes, TAG_ tag, Pack lhs, Pack rhs) {
+      this.lanes = lanes;
+      this.tag = tag;
+      this.lhs = lhs;
+      this.rhs = rhs;
+    }
+  }
+
+  // 访存地址：gep 除最后一个下标以外的部分 + root + offset，root 为 null 表示下标是常数
+  private static class Address {
+
+    final GEPInst gep;
+    final Value root;
+    final int offset;
+
+    Address(GEPInst gep, Value root, int offset) {
+      this.gep = gep;
+      this.root = root;
+      this.offset = offset;
+    }
+
+    boolean sameBase(Address other) {
+      var ops = gep.getOperands();
+      var otherOps = other.gep.getOperands();
+      if (root != other.root || ops.size() != otherOps.size()) {
+        return false;
+      }
+      for (int i = 0; i < ops.size() - 1; i++) {
+        if (ops.get(i) != otherOps.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static class Reduction {
+
+    final Phi phi;
+    final Value latchValue;
+    final ArrayList<Value> addends = new ArrayList<>();
+    final ArrayList<Instruction> links = new ArrayList<>();
+    final ArrayList<Pack> packs = new ArrayList<>();
+    Value vector;
+
+    Reduction(Phi phi, Value latchValue) {
+      this.phi = phi;
+      this.latchValue = latchValue;
+    }
+  }
+
+  private final VectorType vecTy = VectorType.getLen4VecTy();
+  private final HashMap<BasicBlock, Integer> preHeaderRegs = new HashMap<>();
+  private final LinkedHashMap<List<Value>, Pack> packs = new LinkedHashMap<>();
+  private LoopInfo loopInfo;
+  private BasicBlock body;
+
+  @Override
+  public String getName() {
+    return "loopVectorize";
+  }
+
+  @Override
+  public void runOnFunction(Function func) {
+    this.loopInfo = AnalysisManager.getInstance().requireLoopInfo(func);
+    loopInfo.computeAdditionalLoopInfo();
+    preHeaderRegs.clear();
+
+    Queue<Loop> loopQueue = new LinkedList<>();
+    for (var topLoop : loopInfo.getTopLevelLoops()) {
+      LoopUtils.addLoopToQueue(topLoop, loopQueue);
+    }
+    while (!loopQueue.isEmpty()) {
+      runOnLoop(loopQueue.remove());
+    }
+  }
+
+  private void runOnLoop(Loop loop) {
+    if (!loop.getSubLoops().isEmpty() || loop.getBlocks().size() != 1 || !loop.isSimpleForLoop()) {
+      return;
+    }
+    this.body = loop.getLoopHeader();
+    // 紧跟在兄弟循环后面的循环没有 preHeader，要打包的时候再插一个
+    var preHeader = loop.getPreHeader();
+    if (!loop.getLatchBlocks().contains(body) || body.getPredecessor_().size() != 2) {
+      return;
+    }
+    int latchIndex = body.getPredecessor_().indexOf(body);
+    int preIndex = 1 - latchIndex;
+    packs.clear();
+
+    for (var instNode : body.getList()) {
+      if (!supported(instNode.getVal())) {
+        return;
+      }
+    }
+    widenConstantLoop(loop, latchIndex);
+    var exit = body.getSuccessor_().get(0) == body ? body.getSuccessor_().get(1)
+        : body.getSuccessor_().get(0);
+
+    var loads = new ArrayList<LoadInst>();
+    var stores = new ArrayList<StoreInst>();
+    var position = new HashMap<Instruction, Integer>();
+    for (var instNode : body.getList()) {
+      var inst = instNode.getVal();
+      position.put(inst, position.size());
+      if (inst instanceof LoadInst) {
+        loads.add((LoadInst) inst);
+      } else if (inst instanceof StoreInst) {
+        stores.add((StoreInst) inst);
+      }
+    }
+
+    // 种子 1：下标连续的 4 个 store
+    var storeGroups = new ArrayList<StoreInst[]>();
+    var grouped = new LinkedHashSet<StoreInst>();
+    for (var store : stores) {
+      if (grouped.contains(store)) {
+        continue;
+      }
+      var addr = address(store.getPointer());
+      var group = new StoreInst[LANES];
+      group[0] = store;
+      for (int k = 1; k < LANES && group[k - 1] != null; k++) {
+        for (var other : stores) {
+          var otherAddr = address(other.getPointer());
+          if (!grouped.contains(other) && addr.sameBase(otherAddr) && otherAddr.offset == addr.offset + k) {
+            group[k] = other;
+            break;
+          }
+        }
+      }
+      if (group[LANES - 1] == null) {
+        return;
+      }
+      grouped.addAll(Arrays.asList(group));
+      storeGroups.add(group);
+    }
+
+    // 种子 2：累加
+    var reductions = new ArrayList<Reduction>();
+    for (var instNode : body.getList()) {
+      var inst = instNode.getVal();
+      if (!(inst instanceof Phi)) {
+        break;
+      }
+      if (inst == loop.getIndVar() || !inst.getType().isI32()) {
+        continue;
+      }
+      var reduction = reductionChain((Phi) inst, latchIndex);
+      if (reduction != null) {
+        reductions.add(reduction);
+      }
+    }
+    if (storeGroups.isEmpty() && reductions.isEmpty()) {
+      return;
+    }
+
+    var storeTrees = new ArrayList<Pack>();
+    for (var group : storeGroups) {
+      var lanes = new Value[LANES];
+      for (int k = 0; k < LANES; k++) {
+        lanes[k] = group[k].getVal();
+      }
+      var tree = build(lanes);
+      if (tree == null) {
+        return;
+      }
+      storeTrees.add(tree);
+    }
+    for (var reduction : reductions) {
+      for (int i = 0; i < reduction.addends.size(); i += LANES) {
+        var tree = build(reduction.addends.subList(i, i + LANES).toArray(new Value[0]));
+        if (tree == null) {
+          return;
+        }
+        reduction.packs.add(tree);
+      }
+    }
+
+    // 打包之后要删掉的标量指令，它们的值只能在包里用，累加的结果可以在循环外用
+    var packed = new LinkedHashSet<Instruction>();
+    for (var pack : packs.values()) {
+      if (pack.tag != null) {
+        for (var lane : pack.lanes) {
+          packed.add((Instruction) lane);
+        }
+      }
+    }
+    packed.addAll(grouped);
+    for (var reduction : reductions) {
+      packed.add(reduction.phi);
+      packed.addAll(reduction.links);
+    }
+    if (!packed.containsAll(loads)) {
+      return;
+    }
+    var liveOut = new HashMap<Value, Reduction>();
+    for (var reduction : reductions) {
+      liveOut.put(reduction.latchValue, reduction);
+    }
+    for (var inst : packed) {
+      for (var use : inst.getUsesList()) {
+        var user = (Instruction) use.getUser();
+        if (!packed.contains(user) && !(liveOut.containsKey(inst) && user.getBB() != body)) {
+          return;
+        }
+      }
+    }
+
+    // 向量 load 都提到 store 前面
+    for (var store : stores) {
+      var storeAddr = address(store.getPointer());
+      for (var load : loads) {
+        int rel = relation(storeAddr, address(load.getPointer()));
+        if (rel < 0 || (rel > 0 && position.get(load) > position.get(store))) {
+          return;
+        }
+      }
+      for (var other : stores) {
+        if (other != store && relation(storeAddr, address(other.getPointer())) != 0) {
+          return;
+        }
+      }
+    }
+
+    int regs = packs.size();
+    for (var reduction : reductions) {
+      regs += reduction.packs.size();
+    }
+    int shared = preHeader == null ? 0 : preHeaderRegs.getOrDefault(preHeader, 0);
+    if (shared + regs > VECTOR_REGS) {
+      return;
+    }
+    if (preHeader == null) {
+      preHeader = splitEdge(body.getPredecessor_().get(preIndex), body);
+      if (preHeader == null) {
+        return;
+      }
+    }
+    if (!vectorize(preHeader, exit, latchIndex, preIndex, storeGroups, storeTrees, reductions, packed)) {
+      return;
+    }
+    preHeaderRegs.put(preHeader, shared + regs);
+    log.info("LoopVectorize: loop in " + body.getParent().getName() + " with " + storeGroups.size() + " store packs, "
+        + reductions.size() + " reductions");
+  }
+
+  // 只认识这几种指令，有调用的不做（向量寄存器不跨调用保存）
+  private static boolean supported(Instruction inst) {
+    if (inst instanceof LoadInst) {
+      return address(((LoadInst) inst).getPointer()) != null;
+    }
+    if (inst instanceof StoreInst) {
+      return address(((StoreInst) inst).getPointer()) != null;
+    }
+    return inst instanceof Phi || inst instanceof BinaryInst || inst instanceof GEPInst
+        || inst instanceof BrInst || inst instanceof ZextInst;
+  }
+
+  /**
+   * 常数次数的循环：i 从常数 init 每次加 1，latch 上是 i + 1 < end，end 也是常数，N = end - init 次。
+   * preHeader 里进循环的判断已经被折叠掉了，LoopUnroll 没法展开，这里直接在循环体里复制成 4 份：
+   * 第 k 份的 i 换成 i + k（下标还是 i 加常数，打包的时候认得出来），其余 phi 接上一份的值。
+   * 循环改成跑 N / 4 次，剩下 N % 4 次迭代的标量代码放在出口边上，循环外对循环内值的使用换成最后一次迭代的值。
+   * <p>
+   * 循环里没有 store 也没有累加的不展开。展开之后打包失败的话，留下的是一个展开了 4 份的标量循环
+   */
+  private void widenConstantLoop(Loop loop, int latchIndex) {
+    var indVar = loop.getIndVar();
+    var stepInst = loop.getStepInst();
+    var cmp = loop.getLatchCmpInst();
+    var terminator = body.getList().getLast().getVal();
+    if (indVar == null || stepInst == null || cmp == null || indVar.getBB() != body
+        || indVar.getIncomingVals().get(latchIndex) != stepInst || stepInst.tag != TAG_.Add
+        || !stepInst.getOperands().contains(indVar) || !isConstant(stepInst.getOperands()
+        .get(1 - stepInst.getOperands().indexOf(indVar)), 1)
+        || cmp.tag != TAG_.Lt || cmp.getOperands().get(0) != stepInst
+        || !(cmp.getOperands().get(1) instanceof ConstantInt) || cmp.getUsesList().size() != 1
+        || terminator.getOperands().get(0) != cmp || terminator.getOperands().get(1) != body
+        || !(indVar.getIncomingVals().get(1 - latchIndex) instanceof ConstantInt)) {
+      return;
+    }
+    int init = ((ConstantInt) indVar.getIncomingVals().get(1 - latchIndex)).getVal();
+    int end = ((ConstantInt) cmp.getOperands().get(1)).getVal();
+    long tripCount = (long) end - init;
+    if (tripCount < LANES) {
+      return;
+    }
+
+    var phis = new ArrayList<Phi>();
+    var latch = new HashMap<Phi, Value>();
+    var cloned = new ArrayList<Instruction>();
+    boolean hasWork = false;
+    for (var instNode : body.getList()) {
+      var inst = instNode.getVal();
+      if (inst instanceof Phi) {
+        phis.add((Phi) inst);
+        latch.put((Phi) inst, ((Phi) inst).getIncomingVals().get(latchIndex));
+        hasWork |= inst != indVar;
+      } else if (inst != cmp && inst != terminator) {
+        cloned.add(inst);
+        hasWork |= inst instanceof StoreInst;
+      }
+    }
+    if (!hasWork) {
+      return;
+    }
+
+    // 循环外的使用，最后换成最后一次迭代的值
+    var outsideUses = new ArrayList<Use>();
+    for (var instNode : body.getList()) {
+      for (var use : instNode.getVal().getUsesList()) {
+        if (((Instruction) use.getUser()).getBB() != body) {
+          outsideUses.add(use);
+        }
+      }
+    }
+
+    // 第 0 份就是原来的指令
+    var valueMap = new HashMap<Value, Value>();
+    for (int k = 1; k < LANES; k++) {
+      var next = new HashMap<Value, Value>();
+      for (var phi : phis) {
+        next.put(phi, phi == indVar
+            ? new BinaryInst(cmp, TAG_.Add, IntegerType.getI32(), indVar, factory.getConstantInt(k))
+            : valueMap.getOrDefault(latch.get(phi), latch.get(phi)));
+      }
+      appendCopy(cloned, next, cmp);
+      valueMap = next;
+    }
+    for (var phi : phis) {
+      phi.setIncomingVals(latchIndex, valueMap.getOrDefault(latch.get(phi), latch.get(phi)));
+    }
+    long mainCount = tripCount / LANES * LANES;
+    cmp.CoReplaceOperandByIndex(0, valueMap.get(stepInst));
+    cmp.CoReplaceOperandByIndex(1, factory.getConstantInt((int) (init + mainCount)));
+
+    var exit = (BasicBlock) terminator.getOperands().get(2);
+    BasicBlock rest = null;
+    if (tripCount > mainCount) {
+      rest = splitEdge(body, exit);
+      var restTerminator = rest.getList().getLast().getVal();
+      for (long r = mainCount; r < tripCount; r++) {
+        var next = new HashMap<Value, Value>();
+        for (var phi : phis) {
+          next.put(phi, valueMap.getOrDefault(latch.get(phi), latch.get(phi)));
+        }
+        appendCopy(cloned, next, restTerminator);
+        valueMap = next;
+      }
+    }
+    for (var use : outsideUses) {
+      var value = use.getValue();
+      use.getUser().CoReplaceOperandByIndex(use.getOperandRank(), valueMap.getOrDefault(value, value));
+    }
+
+    removeDeadScalars(body);
+    if (rest != null) {
+      removeDeadScalars(rest);
+    }
+    log.info("LoopVectorize: widened a loop of " + tripCount + " iterations in " + body.getParent().getName());
+  }
+
+  private static boolean isConstant(Value value, int val) {
+    return value instanceof ConstantInt && ((ConstantInt) value).getVal() == val;
+  }
+
+  // 在 before 前面复制一份 insts，map 里已经放好了 phi 在这一份里对应的值，复制的时候把每条指令的副本也放进去
+  private static void appendCopy(ArrayList<Instruction> insts, HashMap<Value, Value> map,
+      Instruction before) {
+    for (var inst : insts) {
+      var copy = LoopUtils.copyInstruction(inst);
+      copy.node.insertBefore(before.node);
+      LoopUtils.remapInstruction(copy, map);
+      map.put(inst, copy);
+    }
+  }
+
+  /**
+   * @return 向量值分不下寄存器时撤掉新加的向量指令，返回 false
+   */
+  private boolean vectorize(BasicBlock preHeader, BasicBlock exit, int latchIndex, int preIndex,
+      ArrayList<StoreInst[]> storeGroups, ArrayList<Pack> storeTrees,
+      ArrayList<Reduction> reductions, LinkedHashSet<Instruction> packed) {
+    var terminator = body.getList().getLast().getVal();
+    var preTerminator = preHeader.getList().getLast().getVal();
+    var scalars = new HashSet<Instruction>();
+    for (var bb : List.of(preHeader, body)) {
+      for (var instNode : bb.getList()) {
+        scalars.add(instNode.getVal());
+      }
+    }
+
+    // 循环外的值在 preHeader 里拼好，load 放在最前面
+    for (var pack : packs.values()) {
+      if (pack.tag == null) {
+        pack.vector = gather(pack.lanes, preTerminator);
+      }
+    }
+    for (var pack : packs.values()) {
+      if (pack.tag == TAG_.Load) {
+        var gep = address(((LoadInst) pack.lanes[0]).getPointer()).gep;
+        pack.vector = new LoadInst(terminator, gep, vecTy);
+      }
+    }
+
+    for (int i = 0; i < storeGroups.size(); i++) {
+      var tree = storeTrees.get(i);
+      emit(tree, terminator);
+      new StoreInst(terminator, tree.vector, storeGroups.get(i)[0].getPointer());
+    }
+
+    for (var reduction : reductions) {
+      var zero = new Value[LANES];
+      Arrays.fill(zero, factory.getConstantInt(0));
+      var incomingVals = new ArrayList<Value>(Arrays.asList(null, null));
+      incomingVals.set(preIndex, gather(zero, preTerminator));
+      incomingVals.set(latchIndex, new UndefValue(vecTy));
+      var vectorPhi = new Phi(TAG_.Phi, vecTy, 2, incomingVals, body);
+      Value acc = vectorPhi;
+      for (var pack : reduction.packs) {
+        emit(pack, terminator);
+        acc = new BinaryInst(terminator, TAG_.Add, vecTy, acc, pack.vector);
+      }
+      vectorPhi.setIncomingVals(latchIndex, acc);
+      reduction.vector = acc;
+    }
+
+    // 按 preHeader 算的组数不管兄弟循环、外层循环里同时活跃的向量值，用后端的着色实际分一遍
+    if (!VectorRegisters.fits(body.getParent())) {
+      var added = new ArrayList<Instruction>();
+      for (var bb : List.of(preHeader, body)) {
+        for (var instNode : bb.getList()) {
+          if (!scalars.contains(instNode.getVal())) {
+            added.add(instNode.getVal());
+          }
+        }
+      }
+      for (var inst : added) {
+        inst.CORemoveAllOperand();
+      }
+      for (var inst : added) {
+        inst.node.removeSelf();
+      }
+      log.info("LoopVectorize: out of vector registers in " + body.getParent().getName());
+      return false;
+    }
+
+    // 出循环的边上把向量的 4 个 lane 加起来
+    if (!reductions.isEmpty()) {
+      var exitTerminator = splitEdge(body, exit).getList().getLast().getVal();
+      for (var reduction : reductions) {
+        Value sum = null;
+        for (int k = 0; k < LANES; k++) {
+          var lane = new ExtractEleInst(reduction.vector, factory.getConstantInt(k));
+          lane.node.insertBefore(exitTerminator.node);
+          sum = sum == null ? lane : new BinaryInst(exitTerminator, TAG_.Add, IntegerType.getI32(), sum, lane);
+        }
+        var init = reduction.phi.getIncomingVals().get(preIndex);
+        if (!(init instanceof ConstantInt && ((ConstantInt) init).getVal() == 0)) {
+          sum = new BinaryInst(exitTerminator, TAG_.Add, IntegerType.getI32(), init, sum);
+        }
+        for (var use : new ArrayList<>(reduction.latchValue.getUsesList())) {
+          var user = use.getUser();
+          if (((Instruction) user).getBB() != body) {
+            user.CoReplaceOperandByIndex(use.getOperandRank(), sum);
+          }
+        }
+      }
+    }
+
+    for (var inst : packed) {
+      inst.CORemoveAllOperand();
+    }
+    for (var inst : packed) {
+      inst.node.removeSelf();
+    }
+
+    // 地址和下标只给标量的 load/store 用的话也删掉
+    removeDeadScalars(body);
+    return true;
+  }
+
+  // 删掉 bb 里没人用的地址和算术
+  private static void removeDeadScalars(BasicBlock bb) {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (var instNode : bb.getList()) {
+        var inst = instNode.getVal();
+        boolean pure = inst instanceof GEPInst || (inst instanceof BinaryInst
+            && (((BinaryInst) inst).isAdd() || ((BinaryInst) inst).isSub() || ((BinaryInst) inst).isMul()));
+        if (pure && inst.getUsesList().isEmpty()) {
+          inst.CORemoveAllOperand();
+          inst.node.removeSelf();
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * phi 只被 add 链的开头用，链上的中间值只用一次，latch 上的值在循环里只被 phi 用
+   */
+  private Reduction reductionChain(Phi phi, int latchIndex) {
+    var latchValue = phi.getIncomingVals().get(latchIndex);
+    if (phi.getUsesList().size() != 1 || !inBody(latchValue)) {
+      return null;
+    }
+    for (var use : latchValue.getUsesList()) {
+      var user = use.getUser();
+      if (user != phi && ((Instruction) user).getBB() == body) {
+        return null;
+      }
+    }
+    var reduction = new Reduction(phi, latchValue);
+    if (!collectChain(latchValue, reduction) || reduction.addends.size() % LANES != 0) {
+      return null;
+    }
+    return reduction;
+  }
+
+  // 从 latch 上的值往回找到 phi，加数按链上的顺序放进 addends
+  private boolean collectChain(Value value, Reduction reduction) {
+    if (value == reduction.phi) {
+      return true;
+    }
+    if (!(value instanceof BinaryInst) || !((BinaryInst) value).isAdd() || !inBody(value)) {
+      return false;
+    }
+    if (value != reduction.latchValue && value.getUsesList().size() != 1) {
+      return false;
+    }
+    var inst = (BinaryInst) value;
+    for (int side = 0; side < 2; side++) {
+      if (collectChain(inst.getOperands().get(side), reduction)) {
+        reduction.addends.add(inst.getOperands().get(1 - side));
+        reduction.links.add(inst);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Pack build(Value[] lanes) {
+    var key = Arrays.asList(lanes);
+    var pack = packs.get(key);
+    if (pack != null) {
+      return pack;
+    }
+    pack = buildNew(lanes);
+    if (pack != null) {
+      packs.put(key, pack);
+    }
+    return pack;
+  }
+
+  private Pack buildNew(Value[] lanes) {
+    if (Arrays.stream(lanes).noneMatch(this::inBody)) {
+      return Arrays.stream(lanes).allMatch(v -> v.getType().isI32()) ? new Pack(lanes, null, null, null) : null;
+    }
+    if (!Arrays.stream(lanes).allMatch(this::inBody)) {
+      return null;
+    }
+
+    var first = (Instruction) lanes[0];
+    if (first instanceof LoadInst) {
+      var firstAddr = address(((LoadInst) first).getPointer());
+      for (int k = 1; k < LANES; k++) {
+        if (!(lanes[k] instanceof LoadInst)) {
+          return null;
+        }
+        var addr = address(((LoadInst) lanes[k]).getPointer());
+        if (!firstAddr.sameBase(addr) || addr.offset != firstAddr.offset + k) {
+          return null;
+        }
+      }
+      return new Pack(lanes, TAG_.Load, null, null);
+    }
+
+    if (first instanceof BinaryInst && first.getType().isI32() && (first.tag == TAG_.Add
+        || first.tag == TAG_.Sub || first.tag == TAG_.Mul)) {
+      var lhs = new Value[LANES];
+      var rhs = new Value[LANES];
+      for (int k = 0; k < LANES; k++) {
+        if (!(lanes[k] instanceof BinaryInst) || ((Instruction) lanes[k]).tag != first.tag) {
+          return null;
+        }
+        lhs[k] = ((Instruction) lanes[k]).getOperands().get(0);
+        rhs[k] = ((Instruction) lanes[k]).getOperands().get(1);
+      }
+      var lhsPack = build(lhs);
+      var rhsPack = lhsPack == null ? null : build(rhs);
+      return rhsPack == null ? null : new Pack(lanes, first.tag, lhsPack, rhsPack);
+    }
+    return null;
+  }
+
+  // 按后序生成向量运算，load 和循环外的值已经有了
+  private void emit(Pack pack, Instruction terminator) {
+    if (pack.vector != null) {
+      return;
+    }
+    emit(pack.lhs, terminator);
+    emit(pack.rhs, terminator);
+    pack.vector = new BinaryInst(terminator, pack.tag, vecTy, pack.lhs.vector, pack.rhs.vector);
+  }
+
+  private Value gather(Value[] lanes, Instruction before) {
+    Value vector = new UndefValue(vecTy);
+    for (int k = 0; k < LANES; k++) {
+      var insert = new InsertEleInst(vector, lanes[k], factory.getConstantInt(k));
+      insert.node.insertBefore(before.node);
+      vector = insert;
+    }
+    return vector;
+  }
+
+  // 在 from -> to 之间插一个块（body 的出口边或者进入 body 的边），to 里可能有别的前驱。两条 from -> to 的边时返回 null
+  private BasicBlock splitEdge(BasicBlock from, BasicBlock to) {
+    if (from.getSuccessor_().indexOf(to) != from.getSuccessor_().lastIndexOf(to)) {
+      return null;
+    }
+    var mid = factory.buildBasicBlock("", body.getParent());
+    var br = from.getList().getLast().getVal();
+    for (int i = 0; i < br.getOperands().size(); i++) {
+      if (br.getOperands().get(i) == to) {
+        br.CoReplaceOperandByIndex(i, mid);
+      }
+    }
+    from.getSuccessor_().set(from.getSuccessor_().indexOf(to), mid);
+    to.getPredecessor_().set(to.getPredecessor_().indexOf(from), mid);
+    mid.getPredecessor_().add(from);
+    mid.getSuccessor_().add(to);
+    factory.buildBr(to, mid);
+    var parentLoop = loopInfo.getLoopForBB(body).getParentLoop();
+    loopInfo.addBBToLoop(mid, parentLoop);
+    return mid;
+  }
+
+  private boolean inBody(Value value) {
+    return value instanceof Instruction && ((Instruction) value).getBB() == body;
+  }
+
+  private static Address address(Value pointer) {
+    if (!(pointer instanceof GEPInst) || !((PointerType) pointer.getType()).getContained().isI32()) {
+      return null;
+    }
+    var gep = (GEPInst) pointer;
+    var index = gep.getOperands().get(gep.getOperands().size() - 1);
+    if (index instanceof ConstantInt) {
+      return new Address(gep, null, ((ConstantInt) index).getVal());
+    }
+    if (index instanceof BinaryInst) {
+      var lhs = ((BinaryInst) index).getOperands().get(0);
+      var rhs = ((BinaryInst) index).getOperands().get(1);
+      if (((BinaryInst) index).isAdd() && rhs instanceof ConstantInt) {
+        return new Address(gep, lhs, ((ConstantInt) rhs).getVal());
+      }
+      if (((BinaryInst) index).isAdd() && lhs instanceof ConstantInt) {
+        return new Address(gep, rhs, ((ConstantInt) lhs).getVal());
+      }
+      if (((BinaryInst) index).isSub() && rhs instanceof ConstantInt) {
+        return new Address(gep, lhs, -((ConstantInt) rhs).getVal());
+      }
+    }
+    return new Address(gep, index, 0);
+  }
+
+  /**
+   * 1：同一个地址，0：不会是同一个地址，-1：不知道
+   */
+  private static int relation(Address a, Address b) {
+    if (a.sameBase(b)) {
+      return a.offset == b.offset ? 1 : 0;
+    }
+    var objA = object(a.gep);
+    var objB = object(b.gep);
+    return objA != objB && isIdentified(objA) && isIdentified(objB) ? 0 : -1;
+  }
+
+  private static Value object(Value pointer) {
+    while (pointer instanceof GEPInst) {
+      pointer = ((GEPInst) pointer).getOperands().get(0);
+    }
+    return pointer;
+  }
+
+  // 全局数组和局部数组，参数传进来的指针可能指向任何数组
+  private static boolean isIdentified(Value object) {
+    return object instanceof GlobalVariable || (object instanceof AllocaInst
+        && !((AllocaInst) object).getAllocatedType().isPointerTy());
+  }
+}
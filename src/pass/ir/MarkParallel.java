@@ -1,14 +1,74 @@
 package pass.ir;
 
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.DependenceAnalysis;
+import ir.Loop;
+import ir.MyFactoryBuilder;
 import ir.MyModule;
+import ir.types.Type;
+import ir.values.BasicBlock;
+import ir.values.Constant;
+import ir.values.Constants.ConstantInt;
+import ir.values.Function;
+import ir.values.GlobalVariable;
+import ir.values.Value;
+import ir.values.instructions.BinaryInst;
+import ir.values.instructions.Instruction;
+import ir.values.instructions.Instruction.TAG_;
+import ir.values.instructions.MemInst.GEPInst;
+import ir.values.instructions.MemInst.LoadInst;
+import ir.values.instructions.MemInst.Phi;
+import ir.values.instructions.MemInst.StoreInst;
+import ir.values.instructions.TerminatorInst.BrInst;
+import ir.values.instructions.TerminatorInst.CallInst;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.logging.Logger;
 import pass.Pass.IRPass;
 import util.Mylogger;
 
-// 识别到可并行循环后，在循环头基本块处标记
+/**
+ * -parallel：把没有跨迭代依赖的最外层循环拆成一个函数，运行时把迭代分给 4 个核跑
+ * <p>
+ * 循环要是 LoopUnroll 之前的样子：header 里只有索引 phi 一个 phi，latch 是唯一的出口，在 latch 里拿 i + 1 和循环外的
+ * end 比（<、<=、!=），进循环之前要么判断过 init < end，要么 init、end 都是常数。循环里不能有 call、alloca，
+ * 循环里算出来的值不能在循环外用。
+ * <p>
+ * 依赖由 DependenceAnalysis 判断，以这个循环为最外层，第 0 层上不能有跨迭代的依赖。
+ * 参数传进来的数组可能指向别的数组，拆出去的函数最多用一个参数数组。
+ * <p>
+ * 拆出来的函数是 __ayame_par_K(lo, hi[, p])，循环的范围换成 [lo, hi)，p 是用到的参数数组，其他循环外的 i32 值
+ * 经全局数组 __ayame_par_args_K 传过去，循环外算好的 gep 在新函数里重算一遍。原来的循环换成对内置函数
+ * __ayame_par_K_run(init, end[, p]) 的调用，它和运行时的汇编由 backend.ParallelRuntime 生成。
+ * run 的 calleeList 里放拆出来的函数，alias 分析才知道这个调用会写哪些全局数组
+ */
 public class MarkParallel implements IRPass {
 
   private static Logger log = Mylogger.getLogger(IRPass.class);
+  private static final MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
+  private static final String PREFIX = "__ayame_par_";
+
+  // 能拆出去的循环，出口只有 latch 一个
+  private static class Region {
+
+    final Loop loop;
+    Phi indVar;
+    BinaryInst cmp;
+    BasicBlock preHeader;
+    BasicBlock latch;
+    BasicBlock exit;
+    Value init;
+    Value end;
+    boolean inclusive;
+    Function.Arg pointerArg;
+
+    Region(Loop loop) {
+      this.loop = loop;
+    }
+  }
+
+  private int regions;
 
   @Override
   public String getName() {
@@ -17,6 +77,355 @@ public class MarkParallel implements IRPass {
 
   @Override
   public void run(MyModule m) {
+    regions = 0;
+    var funcs = new ArrayList<Function>();
+    for (var funcNode : m.__functions) {
+      if (!funcNode.getVal().isBuiltin_()) {
+        funcs.add(funcNode.getVal());
+      }
+    }
+    for (var func : funcs) {
+      var loopInfo = AnalysisManager.getInstance().requireLoopInfo(func);
+      loopInfo.computeAdditionalLoopInfo();
+      // 拆一个循环只改它自己的块和前后的边，其他顶层循环的信息还能用
+      for (var loop : new ArrayList<>(loopInfo.getTopLevelLoops())) {
+        var region = analyze(loop);
+        if (region != null) {
+          outline(func, region);
+        }
+      }
+    }
+  }
+
+  private Region analyze(Loop loop) {
+    var region = new Region(loop);
+    var header = loop.getLoopHeader();
+    region.preHeader = loop.getPreHeader();
+    region.latch = loop.getSingleLatchBlock();
+    if (!loop.isSimpleForLoop() || region.preHeader == null || region.latch == null
+        || !loop.getExitingBlocks().contains(region.latch)) {
+      return null;
+    }
+    region.exit = loop.getExitBlocks().iterator().next();
+
+    // header 里只有索引 phi，latch 里 i + 1 和循环外的值比较
+    for (var instNode : header.getList()) {
+      var inst = instNode.getVal();
+      if (inst.tag == TAG_.Phi) {
+        if (region.indVar != null) {
+          return null;
+        }
+        region.indVar = (Phi) inst;
+      }
+    }
+    if (region.indVar == null || !region.indVar.getType().isI32()) {
+      return null;
+    }
+    var preIndex = header.getPredecessor_().indexOf(region.preHeader);
+    region.init = region.indVar.getIncomingVals().get(preIndex);
+    var step = region.indVar.getIncomingVals().get(1 - preIndex);
+    var indVarStride = stride(step, region.indVar);
+    if (indVarStride == null || indVarStride != 1) {
+      return null;
+    }
+    var br = region.latch.getList().getLast().getVal();
+    if (!(br.getOperands().get(0) instanceof BinaryInst)) {
+      return null;
+    }
+    region.cmp = (BinaryInst) br.getOperands().get(0);
+    var tag = DependenceAnalysis.continueTag(region.cmp, br.getOperands().get(1) == header, step);
+    region.end = region.cmp.getOperands().get(region.cmp.getOperands().get(0) == step ? 1 : 0);
+    if (tag == null || inLoop(region.end, loop) || !(tag == TAG_.Lt || tag == TAG_.Le
+        || tag == TAG_.Ne)) {
+      return null;
+    }
+    region.inclusive = tag == TAG_.Le;
+
+    // latch 判断在循环体之后，第一次迭代不管 end 都会跑，所以要确定进来的时候 init < end（<= 的是 init <= end）
+    if (!enteredInRange(region, header)) {
+      return null;
+    }
+
+    // 循环里的指令
+    boolean stores = false;
+    for (var bb : loop.getBlocks()) {
+      for (var instNode : bb.getList()) {
+        var inst = instNode.getVal();
+        switch (inst.tag) {
+          case Store -> stores = true;
+          case Load, Phi, GEP, Br, Zext -> {
+          }
+          default -> {
+            if (!(inst instanceof BinaryInst) || inst.getType().isVectorTy()) {
+              return null;
+            }
+          }
+        }
+        for (var use : inst.getUsesList()) {
+          if (!inLoop(use.getUser(), loop)) {
+            return null;
+          }
+        }
+        for (var operand : inst.getOperands()) {
+          if (!materializable(operand, loop, region)) {
+            return null;
+          }
+        }
+      }
+    }
+
+    // 不同的迭代分到不同的线程上同时跑，最外层不能有跨迭代的依赖
+    if (!stores || !DependenceAnalysis.isParallel(DependenceAnalysis.analyze(loop))) {
+      return null;
+    }
+    return region;
+  }
+
+  // 循环外的值能不能在拆出来的函数里拿到
+  private boolean materializable(Value value, Loop loop, Region region) {
+    if (value == null || value instanceof BasicBlock || value instanceof Function
+        || value instanceof Constant
+        || value instanceof GlobalVariable || inLoop(value, loop)) {
+      return true;
+    }
+    if (value.getType().isI32()) {
+      return value instanceof Instruction || value instanceof Function.Arg;
+    }
+    if (value instanceof GEPInst) {
+      for (var operand : ((GEPInst) value).getOperands()) {
+        if (!materializable(operand, loop, region)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (value instanceof Function.Arg && value.getType().isPointerTy()) {
+      if (region.pointerArg != null && region.pointerArg != value) {
+        return false;
+      }
+      region.pointerArg = (Function.Arg) value;
+      return true;
+    }
+    return false;
+  }
+
+  private boolean enteredInRange(Region region, BasicBlock header) {
+    if (region.init instanceof ConstantInt && region.end instanceof ConstantInt) {
+      int init = ((ConstantInt) region.init).getVal();
+      int end = ((ConstantInt) region.end).getVal();
+      return region.inclusive ? init <= end : init < end;
+    }
+    var guard = region.preHeader.getList().getLast().getVal();
+    if (guard.getNumOP() != 3 || !(guard.getOperands().get(0) instanceof BinaryInst)) {
+      return false;
+    }
+    var cmp = (BinaryInst) guard.getOperands().get(0);
+    var tag = DependenceAnalysis.continueTag(cmp, guard.getOperands().get(1) == header, region.init);
+    var other = cmp.getOperands().get(cmp.getOperands().get(0) == region.init ? 1 : 0);
+    if (tag == null || other != region.end) {
+      return false;
+    }
+    return tag == TAG_.Lt || (region.inclusive && tag == TAG_.Le);
+  }
+
+  // step 是 phi 加一个常数的时候返回这个常数
+  private static Integer stride(Value step, Phi phi) {
+    if (!(step instanceof BinaryInst) || !((BinaryInst) step).isAdd()) {
+      return null;
+    }
+    var ops = ((BinaryInst) step).getOperands();
+    var other = ops.get(0) == phi ? ops.get(1) : ops.get(1) == phi ? ops.get(0) : null;
+    return other instanceof ConstantInt ? ((ConstantInt) other).getVal() : null;
+  }
+
+  private static boolean inLoop(Value value, Loop loop) {
+    return value instanceof Instruction && loop.getBlocks().contains(((Instruction) value).getBB());
+  }
+
+  private void outline(Function func, Region region) {
+    var loop = region.loop;
+    var header = loop.getLoopHeader();
+    var i32 = factory.getI32Ty();
+    var params = new ArrayList<Type>();
+    params.add(i32);
+    params.add(i32);
+    if (region.pointerArg != null) {
+      params.add(region.pointerArg.getType());
+    }
+    var name = PREFIX + regions++;
+    var body = factory.buildFunction(name, factory.getFuncTy(factory.getVoidTy(), params));
+    var runner = factory.buildFunction(name + "_run", body.getType(), true);
+    runner.setParallelBody(body);
+    var lo = body.getArgList().get(0);
+    var hi = body.getArgList().get(1);
+
+    // 循环的块按原来的顺序搬过去，前面加一个判断 lo < hi 的入口，后面加一个 ret
+    var entry = factory.buildBasicBlock("", body);
+    var moved = new ArrayList<BasicBlock>();
+    for (var bbNode : func.getList_()) {
+      if (loop.getBlocks().contains(bbNode.getVal())) {
+        moved.add(bbNode.getVal());
+      }
+    }
+    for (var bb : moved) {
+      bb.node_.removeSelf();
+      bb.node_.insertAtEnd(body.getList_());
+    }
+    var bodyExit = factory.buildBasicBlock("", body);
+    factory.buildRet(bodyExit);
+
+    // 原来的位置：preHeader -> dispatch -> exit
+    var dispatch = factory.getBasicBlock("");
+    dispatch.node_.insertAfter(region.preHeader.node_);
+    var guard = region.preHeader.getList().getLast().getVal();
+    for (int k = 0; k < guard.getNumOP(); k++) {
+      if (guard.getOperands().get(k) == header) {
+        guard.CoReplaceOperandByIndex(k, dispatch);
+      }
+    }
+    var preSucc = region.preHeader.getSuccessor_();
+    preSucc.set(preSucc.indexOf(header), dispatch);
+    dispatch.getPredecessor_().add(region.preHeader);
+    var exitPred = region.exit.getPredecessor_();
+    exitPred.set(exitPred.indexOf(region.latch), dispatch);
+    dispatch.getSuccessor_().add(region.exit);
+
+    // header 从 entry 进来，i 从 lo 开始
+    var preIndex = header.getPredecessor_().indexOf(region.preHeader);
+    header.getPredecessor_().set(preIndex, entry);
+    region.indVar.setIncomingVals(preIndex, lo);
+    entry.getSuccessor_().add(header);
+    entry.getSuccessor_().add(bodyExit);
+    bodyExit.getPredecessor_().add(entry);
+
+    // latch 改成 i + 1 < hi
+    var br = region.latch.getList().getLast().getVal();
+    var step = region.indVar.getIncomingVals().get(1 - preIndex);
+    var cmp = new BinaryInst(br, TAG_.Lt, factory.getI1Ty(), step, hi);
+    br.CORemoveAllOperand();
+    br.node.removeSelf();
+    new BrInst(cmp, header, bodyExit, region.latch);
+    region.latch.getSuccessor_().clear();
+    region.latch.getSuccessor_().add(header);
+    region.latch.getSuccessor_().add(bodyExit);
+    bodyExit.getPredecessor_().add(region.latch);
+    if (region.cmp.getUsesList().isEmpty()) {
+      region.cmp.CORemoveAllOperand();
+      region.cmp.node.removeSelf();
+    }
+
+    // 循环外的值：i32 经全局数组传，gep 在 entry 里重算，参数数组是第三个参数
+    var slots = new LinkedHashSet<Value>();
+    for (var bb : moved) {
+      for (var instNode : bb.getList()) {
+        for (var operand : instNode.getVal().getOperands()) {
+          collectSlots(operand, body, slots);
+        }
+      }
+    }
+    GlobalVariable args = null;
+    var liveIns = new HashMap<Value, Value>();
+    if (region.pointerArg != null) {
+      liveIns.put(region.pointerArg, body.getArgList().get(2));
+    }
+    if (!slots.isEmpty()) {
+      args = factory.getGlobalvariable(PREFIX + "args_" + (regions - 1),
+          factory.getArrayTy(i32, slots.size()), null, null);
+      int k = 0;
+      for (var slot : slots) {
+        var pointer = new GEPInst(args, slotIndex(k++), entry);
+        liveIns.put(slot, new LoadInst(i32, pointer, entry));
+      }
+    }
+    for (var bb : moved) {
+      for (var instNode : bb.getList()) {
+        var inst = instNode.getVal();
+        for (int k = 0; k < inst.getNumOP(); k++) {
+          if (isLiveIn(inst.getOperands().get(k), body)) {
+            inst.CoReplaceOperandByIndex(k, materialize(inst.getOperands().get(k), body, liveIns, entry));
+          }
+        }
+      }
+    }
+    var entryCmp = new BinaryInst(TAG_.Lt, factory.getI1Ty(), lo, hi, entry);
+    new BrInst(entryCmp, header, bodyExit, entry);
+
+    var callArgs = new ArrayList<Value>();
+    callArgs.add(region.init);
+    if (region.inclusive) {
+      callArgs.add(new BinaryInst(TAG_.Add, i32, region.end, factory.getConstantInt(1), dispatch));
+    } else {
+      callArgs.add(region.end);
+    }
+    if (region.pointerArg != null) {
+      callArgs.add(region.pointerArg);
+    }
+    int k = 0;
+    for (var slot : slots) {
+      var pointer = new GEPInst(args, slotIndex(k++), dispatch);
+      new StoreInst(slot, pointer, dispatch);
+    }
+    new CallInst(runner, callArgs, dispatch);
+    factory.buildBr(region.exit, dispatch);
+
+    // 调用关系和副作用：run 会调用 body，body 的读写就是原来循环的读写
+    body.setHasSideEffect(true);
+    body.setUsedGlobalVariable(true);
+    body.getStoreGVSet().addAll(func.getStoreGVSet());
+    body.getLoadGVSet().addAll(func.getLoadGVSet());
+    runner.setHasSideEffect(true);
+    runner.setUsedGlobalVariable(true);
+    runner.getStoreGVSet().addAll(func.getStoreGVSet());
+    runner.getLoadGVSet().addAll(func.getLoadGVSet());
+    runner.getCalleeList().add(body);
+    body.getCallerList().add(runner);
+    func.getCalleeList().add(runner);
+    runner.getCallerList().add(func);
+    log.info("parallel loop in " + func.getName() + " -> " + name + ", " + slots.size() + " live-ins");
+  }
+  private static boolean isLiveIn(Value value, Function body) {
+    if (value instanceof Instruction) {
+      return ((Instruction) value).getBB().getParent() != body;
+    }
+    return value instanceof Function.Arg && !body.getArgList().contains(value);
+  }
+
+  private static void collectSlots(Value value, Function body, LinkedHashSet<Value> slots) {
+    if (!isLiveIn(value, body)) {
+      return;
+    }
+    if (value.getType().isI32()) {
+      slots.add(value);
+    } else if (value instanceof GEPInst) {
+      for (var operand : ((GEPInst) value).getOperands()) {
+        collectSlots(operand, body, slots);
+      }
+    }
+  }
+
+  // 循环外的 gep 在 entry 末尾照着建一份，同一个值只建一次
+  private static Value materialize(Value value, Function body, HashMap<Value, Value> liveIns,
+      BasicBlock entry) {
+    var result = liveIns.get(value);
+    if (result == null) {
+      var ops = ((GEPInst) value).getOperands();
+      var pointer = isLiveIn(ops.get(0), body) ? materialize(ops.get(0), body, liveIns, entry)
+          : ops.get(0);
+      var indices = new ArrayList<Value>();
+      for (int k = 1; k < ops.size(); k++) {
+        indices.add(isLiveIn(ops.get(k), body) ? materialize(ops.get(k), body, liveIns, entry)
+            : ops.get(k));
+      }
+      result = new GEPInst(pointer, indices, entry);
+      liveIns.put(value, result);
+    }
+    return result;
+  }
 
+  private static ArrayList<Value> slotIndex(int k) {
+    var indices = new ArrayList<Value>();
+    indices.add(factory.CONST0());
+    indices.add(factory.getConstantInt(k));
+    return indices;
   }
 }
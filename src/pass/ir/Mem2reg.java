@@ -1,6 +1,7 @@
 package pass.ir;
 
-import ir.Analysis.DomInfo;
+import ir.Analysis.AnalysisManager;
+import ir.Analysis.AnalysisManager.AnalysisKind;
 import ir.MyFactoryBuilder;
 import ir.MyModule;
 import ir.values.BasicBlock;
@@ -13,6 +14,7 @@ import ir.values.instructions.MemInst.AllocaInst;
 import ir.values.instructions.MemInst.LoadInst;
 import ir.values.instructions.MemInst.Phi;
 import ir.values.instructions.MemInst.StoreInst;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import util.IList.INode;
 import util.Mylogger;
@@ -20,7 +22,7 @@ import util.Mylogger;
 import java.util.*;
 import java.util.logging.Logger;
 
-public class Mem2reg implements IRPass {
+public class Mem2reg implements FunctionPass {
 
   Logger log = Mylogger.getLogger(IRPass.class);
   MyFactoryBuilder factory = MyFactoryBuilder.getInstance();
@@ -43,6 +45,11 @@ public class Mem2reg implements IRPass {
     return "Mem2reg";
   }
 
+  @Override
+  public Set<AnalysisKind> preservedAnalyses() {
+    return AnalysisManager.CFG_ANALYSES;
+  }
+
   public void run(MyModule m) {
     log.info("Running pass : mem2reg");
 
@@ -54,12 +61,14 @@ public class Mem2reg implements IRPass {
     }
   }
 
+  @Override
+  public void runOnFunction(Function func) {
+    runMem2reg(func);
+  }
+
   public void runMem2reg(Function func) {
     // prepare
-//    log.info("Running compute dominance info");
-    DomInfo.computeDominanceInfo(func);
-//    log.info("Running compute dominance frontier");
-    DomInfo.computeDominanceFrontier(func);
+    AnalysisManager.getInstance().requireDominanceFrontier(func);
 
     ArrayList<ArrayList<BasicBlock>> defBlocks = new ArrayList<>();
     ArrayList<AllocaInst> allocas = new ArrayList<>();
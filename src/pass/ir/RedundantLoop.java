@@ -14,11 +14,12 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Logger;
+import pass.Pass.FunctionPass;
 import pass.Pass.IRPass;
 import util.Mylogger;
 import util.LoopUtils;
 
-public class RedundantLoop implements IRPass {
+public class RedundantLoop implements FunctionPass {
 
   private static Logger log = Mylogger.getLogger(IRPass.class);
   private LoopInfo currLoopInfo;
@@ -39,6 +40,7 @@ public class RedundantLoop implements IRPass {
     }
   }
 
+  @Override
   public void runOnFunction(Function func) {
     var loopInfoFullAnalysis = new LoopInfoFullAnalysis();
     loopInfoFullAnalysis.runOnFunction(func);
@@ -14,6 +14,11 @@ public class CondExec implements Pass.MCPass {
         return "CondExec";
     }
 
+    @Override
+    public boolean preservesMCAnalyses() {
+        return true;
+    }
+
     @Override
     public void run(CodeGenManager manager) {
         for (var func : manager.getMachineFunctions()) {
@@ -54,6 +59,8 @@ public class CondExec implements Pass.MCPass {
 
                         if (canBeOptimized) {
                             lastInstr.getNode().removeSelf();
+                            MCLiveness.getInstance().changed(func, block);
+                            MCLiveness.getInstance().changed(func, nxtBlock);
 
                             Function<ArmAddition.CondType, ArmAddition.CondType> getOppoCond = c -> switch (c) {
                                 case Any -> Any;
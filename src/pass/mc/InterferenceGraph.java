@@ -0,0 +1,266 @@
+package pass.mc;
+
+import java.util.Arrays;
+
+/**
+ * 寄存器分配的冲突图，结点是寄存器的编号（0-16 是预着色的物理寄存器）
+ * <p>
+ * 两点是否相邻：结点不多时查下三角位矩阵，多了换成 (小编号, 大编号) 拼成 long 的开放寻址哈希表。
+ * 邻接表和度数都是 int 数组，和原来的 adjList 一样只记非预着色结点的邻居。
+ * 溢出之后重新分配时 reset 复用已经分配的数组
+ */
+class InterferenceGraph {
+    // 位矩阵最多 MATRIX_LIMIT 个结点，也就是 1MB
+    private static final int MATRIX_LIMIT = 4096;
+    private static final int PRECOLORED = 17;
+    private static final int[] EMPTY = new int[0];
+
+    private int n;
+    private long[] matrix = new long[0];
+    private long[] table = new long[0];
+    private int tableCount;
+    private int[][] adj = new int[0][];
+    private int[] adjSize = new int[0];
+    private int[] degree = new int[0];
+
+    void reset(int n, int precoloredDegree) {
+        this.n = n;
+        if (n <= MATRIX_LIMIT) {
+            int words = (int) (((long) n * (n - 1) / 2 + 63) >>> 6);
+            if (matrix.length < words) {
+                matrix = new long[words];
+            } else {
+                Arrays.fill(matrix, 0, words, 0);
+            }
+        } else {
+            int capacity = Integer.highestOneBit(Math.max(1 << 10, n * 16)) << 1;
+            if (table.length < capacity) {
+                table = new long[capacity];
+            } else {
+                Arrays.fill(table, 0);
+            }
+            tableCount = 0;
+        }
+        if (adj.length < n) {
+            adj = Arrays.copyOf(adj, n);
+            adjSize = new int[n];
+            degree = new int[n];
+        } else {
+            Arrays.fill(adjSize, 0, n, 0);
+            Arrays.fill(degree, 0, n, 0);
+        }
+        for (int i = 0; i < Math.min(n, PRECOLORED); i++) {
+            degree[i] = precoloredDegree;
+        }
+    }
+
+    int size() {
+        return n;
+    }
+
+    static boolean isPrecolored(int u) {
+        return u < PRECOLORED;
+    }
+
+    boolean interfere(int u, int v) {
+        if (u == v) {
+            return false;
+        }
+        if (n <= MATRIX_LIMIT) {
+            long bit = bitIndex(u, v);
+            return (matrix[(int) (bit >>> 6)] & (1L << bit)) != 0;
+        }
+        long key = key(u, v);
+        int mask = table.length - 1;
+        for (int i = hash(key) & mask; table[i] != 0; i = (i + 1) & mask) {
+            if (table[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void addEdge(int u, int v) {
+        if (u == v || interfere(u, v)) {
+            return;
+        }
+        if (n <= MATRIX_LIMIT) {
+            long bit = bitIndex(u, v);
+            matrix[(int) (bit >>> 6)] |= 1L << bit;
+        } else {
+            insert(key(u, v));
+        }
+        if (!isPrecolored(u)) {
+            addAdjacent(u, v);
+            degree[u]++;
+        }
+        if (!isPrecolored(v)) {
+            addAdjacent(v, u);
+            degree[v]++;
+        }
+    }
+
+    int[] adjacent(int u) {
+        return adj[u] == null ? EMPTY : adj[u];
+    }
+
+    // adjacent(u) 里前 adjacentCount(u) 个有效
+    int adjacentCount(int u) {
+        return adjSize[u];
+    }
+
+    int degree(int u) {
+        return degree[u];
+    }
+
+    void setDegree(int u, int d) {
+        degree[u] = d;
+    }
+
+    private void addAdjacent(int u, int v) {
+        if (adj[u] == null) {
+            adj[u] = new int[8];
+        } else if (adjSize[u] == adj[u].length) {
+            adj[u] = Arrays.copyOf(adj[u], adjSize[u] * 2);
+        }
+        adj[u][adjSize[u]++] = v;
+    }
+
+    private static long bitIndex(int u, int v) {
+        int hi = Math.max(u, v);
+        int lo = Math.min(u, v);
+        return (long) hi * (hi - 1) / 2 + lo;
+    }
+
+    // u != v，所以 key 不会是 0，0 表示空位
+    private static long key(int u, int v) {
+        return ((long) Math.min(u, v) << 32) | Math.max(u, v);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void insert(long key) {
+        if ((tableCount + 1) * 2 > table.length) {
+            var old = table;
+            table = new long[old.length * 2];
+            tableCount = 0;
+            for (long k : old) {
+                if (k != 0) {
+                    insert(k);
+                }
+            }
+        }
+        int mask = table.length - 1;
+        int i = hash(key) & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = key;
+        tableCount++;
+    }
+
+    /**
+     * 若干个编号上的双向链表，每个编号同时只在一个表里（或者不在任何表里），加入、删除、换表都是 O(1)。
+     * 编号超过 reset 时的大小会自动扩容
+     */
+    static class IndexLists {
+        static final int NONE = -1;
+
+        private final int[] head;
+        private final int[] tail;
+        private final int[] count;
+        private int[] list = new int[0];
+        private int[] prev = new int[0];
+        private int[] next = new int[0];
+
+        IndexLists(int lists) {
+            head = new int[lists];
+            tail = new int[lists];
+            count = new int[lists];
+        }
+
+        void reset(int n) {
+            if (list.length < n) {
+                list = new int[n];
+                prev = new int[n];
+                next = new int[n];
+            }
+            Arrays.fill(list, NONE);
+            Arrays.fill(head, NONE);
+            Arrays.fill(tail, NONE);
+            Arrays.fill(count, 0);
+        }
+
+        int listOf(int i) {
+            return i < list.length ? list[i] : NONE;
+        }
+
+        boolean isEmpty(int l) {
+            return count[l] == 0;
+        }
+
+        int first(int l) {
+            return head[l];
+        }
+
+        int last(int l) {
+            return tail[l];
+        }
+
+        // 链表里的下一个，没有的时候返回 NONE
+        int next(int i) {
+            return next[i];
+        }
+
+        int prev(int i) {
+            return prev[i];
+        }
+
+        /**
+         * 从原来的表里摘下来，接到 l 的末尾
+         */
+        void moveTo(int i, int l) {
+            if (i >= list.length) {
+                int size = Math.max(i + 1, list.length * 2);
+                int old = list.length;
+                list = Arrays.copyOf(list, size);
+                prev = Arrays.copyOf(prev, size);
+                next = Arrays.copyOf(next, size);
+                Arrays.fill(list, old, size, NONE);
+            }
+            remove(i);
+            prev[i] = tail[l];
+            next[i] = NONE;
+            if (tail[l] == NONE) {
+                head[l] = i;
+            } else {
+                next[tail[l]] = i;
+            }
+            tail[l] = i;
+            list[i] = l;
+            count[l]++;
+        }
+
+        void remove(int i) {
+            int l = listOf(i);
+            if (l == NONE) {
+                return;
+            }
+            if (prev[i] == NONE) {
+                head[l] = next[i];
+            } else {
+                next[prev[i]] = next[i];
+            }
+            if (next[i] == NONE) {
+                tail[l] = prev[i];
+            } else {
+                prev[next[i]] = prev[i];
+            }
+            list[i] = NONE;
+            count[l]--;
+        }
+    }
+}
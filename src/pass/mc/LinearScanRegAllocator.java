@@ -0,0 +1,580 @@
+package pass.mc;
+
+import backend.CodeGenManager;
+import backend.machinecodes.ArmAddition;
+import backend.machinecodes.MCLoad;
+import backend.machinecodes.MCMove;
+import backend.machinecodes.MCStore;
+import backend.machinecodes.MachineCode;
+import backend.machinecodes.MachineFunction;
+import backend.reg.MachineOperand;
+import backend.reg.PhyReg;
+import backend.reg.Reg;
+import backend.reg.VirtualReg;
+import driver.Config;
+import pass.Pass.MCPass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+
+import static pass.mc.MCLiveness.RegNumbering.PHY_REGS;
+
+/**
+ * 线性扫描寄存器分配，编译快、代码差一些，给不带 -O2 的编译、-linear-scan，以及 RegAllocator 不适合处理的函数用
+ * <p>
+ * 指令按块的顺序线性编号，第 i 条指令读寄存器的位置是 2i，写的位置是 2i+1。
+ * 虚拟寄存器的区间是若干段不相交的范围（带空洞的 lifetime interval）：块的排列和控制流不一致，只取包络的话几乎每个区间都覆盖整个函数。
+ * 物理寄存器（传参、返回值、被调用破坏的寄存器）记下每个活跃的位置，区间和这些位置重叠的虚拟寄存器不能分到它。
+ * <p>
+ * 按起点扫描区间，维护 active（覆盖当前位置）和 inactive（当前位置在空洞里）两个集合，区间不拆分：
+ * 一个寄存器上和当前区间重叠的区间都没有了，才能分给当前区间。没有这样的寄存器时，比较当前区间和每个寄存器上重叠区间的溢出代价，
+ * 溢出代价小的一方（代价是按循环深度加权的定义、使用次数除以区间长度）。
+ * 溢出的虚拟寄存器每次使用前从栈上 ldr 到一个新的临时寄存器，每次定义后 str 回去，临时寄存器不会再被溢出，然后重新分配，直到没有溢出。
+ */
+public class LinearScanRegAllocator implements MCPass {
+    // 可以分配的颜色：r0-r12 和 lr，和 RegAllocator 一样
+    private static final int COLORS = 15;
+    private static final int OK_COLORS = ((1 << COLORS) - 1) & ~(1 << 13);
+
+    @Override
+    public String getName() {
+        return "LinearScanRegAlloc";
+    }
+
+    /**
+     * -O2 下 RegAllocator 把这些函数交给线性扫描：IR 上做过 RegAllocator 处理不了的变换（runStableRegAlloc），
+     * 或者机器指令数超过 linearScanThreshold
+     */
+    public static boolean preferredFor(MachineFunction func) {
+        var config = Config.getInstance();
+        if (config.runStableRegAlloc) {
+            return true;
+        }
+        if (config.linearScanThreshold <= 0) {
+            return false;
+        }
+        int insts = 0;
+        for (var blockEntry : func.getmbList()) {
+            for (var instrEntry : blockEntry.getVal().getmclist()) {
+                insts++;
+            }
+        }
+        return insts > config.linearScanThreshold;
+    }
+
+    @Override
+    public void run(CodeGenManager manager) {
+        manager.getMachineFunctions().forEach(this::allocate);
+        RegAllocator.simplifyRegType(manager);
+        manager.getMachineFunctions().forEach(manager::fixStack);
+    }
+
+    // 一轮分配用到的区间信息，下标是 RegNumbering 的编号
+    private static class Intervals {
+        private static final int[] EMPTY = new int[0];
+
+        // 每个区间的范围 [from, to] 两两放在一起；构造的时候从后往前加，build 完之后是升序
+        private final int[][] ranges;
+        private final int[] rangeCount;
+        // 扫描时每个区间第一个还没有结束的范围，位置只增不减
+        private final int[] cursor;
+        // 传送指令另一头的物理寄存器、虚拟寄存器，分配时优先选同一个
+        private final int[] phyHint;
+        private final int[] partner;
+        // 定义、使用的次数，循环里的每深一层乘 10
+        private final double[] weight;
+        private final BitSet[] fixed = new BitSet[COLORS];
+
+        Intervals(int n) {
+            ranges = new int[n][];
+            rangeCount = new int[n];
+            cursor = new int[n];
+            phyHint = new int[n];
+            partner = new int[n];
+            weight = new double[n];
+            Arrays.fill(ranges, EMPTY);
+            Arrays.fill(phyHint, -1);
+            Arrays.fill(partner, -1);
+            for (int r = 0; r < COLORS; r++) {
+                fixed[r] = new BitSet();
+            }
+        }
+
+        // 构造时按位置从后往前加，和最前面的一段相接就合并
+        void addRange(int v, int from, int to) {
+            int c = rangeCount[v];
+            if (c > 0 && to + 1 >= ranges[v][2 * c - 2]) {
+                ranges[v][2 * c - 2] = Math.min(ranges[v][2 * c - 2], from);
+                ranges[v][2 * c - 1] = Math.max(ranges[v][2 * c - 1], to);
+                return;
+            }
+            if (ranges[v].length == 2 * c) {
+                ranges[v] = Arrays.copyOf(ranges[v], Math.max(4, 4 * c));
+            }
+            ranges[v][2 * c] = from;
+            ranges[v][2 * c + 1] = to;
+            rangeCount[v] = c + 1;
+        }
+
+        // 定义点：最前面的一段从 pos 开始，没有覆盖 pos 的话是个没有用到的定义
+        void define(int v, int pos) {
+            int c = rangeCount[v];
+            if (c > 0 && ranges[v][2 * c - 2] <= pos && pos <= ranges[v][2 * c - 1]) {
+                ranges[v][2 * c - 2] = pos;
+            } else {
+                addRange(v, pos, pos);
+            }
+        }
+
+        void finish() {
+            for (int v = 0; v < ranges.length; v++) {
+                var r = ranges[v];
+                for (int i = 0, j = rangeCount[v] - 1; i < j; i++, j--) {
+                    int from = r[2 * i];
+                    int to = r[2 * i + 1];
+                    r[2 * i] = r[2 * j];
+                    r[2 * i + 1] = r[2 * j + 1];
+                    r[2 * j] = from;
+                    r[2 * j + 1] = to;
+                }
+            }
+        }
+
+        void mark(int physMask, int pos) {
+            for (int m = physMask & OK_COLORS; m != 0; m &= m - 1) {
+                fixed[Integer.numberOfTrailingZeros(m)].set(pos);
+            }
+        }
+
+        boolean isEmpty(int v) {
+            return rangeCount[v] == 0;
+        }
+
+        int start(int v) {
+            return ranges[v][0];
+        }
+
+        int end(int v) {
+            return ranges[v][2 * rangeCount[v] - 1];
+        }
+
+        double spillCost(int v) {
+            int length = 0;
+            for (int i = 0; i < rangeCount[v]; i++) {
+                length += ranges[v][2 * i + 1] - ranges[v][2 * i] + 1;
+            }
+            return weight[v] / length;
+        }
+
+        // 把 cursor 移到第一个 to >= pos 的范围，返回 v 是否覆盖 pos
+        boolean covers(int v, int pos) {
+            int c = cursor[v];
+            while (c < rangeCount[v] && ranges[v][2 * c + 1] < pos) {
+                c++;
+            }
+            cursor[v] = c;
+            return c < rangeCount[v] && ranges[v][2 * c] <= pos;
+        }
+
+        // u 和 v 在各自 cursor 之后有没有重叠
+        boolean intersects(int u, int v) {
+            int i = cursor[u];
+            int j = cursor[v];
+            while (i < rangeCount[u] && j < rangeCount[v]) {
+                if (ranges[u][2 * i + 1] < ranges[v][2 * j]) {
+                    i++;
+                } else if (ranges[v][2 * j + 1] < ranges[u][2 * i]) {
+                    j++;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // 和 v 重叠的物理寄存器
+        int fixedConflicts(int v) {
+            int conflicts = 0;
+            for (int m = OK_COLORS; m != 0; m &= m - 1) {
+                int r = Integer.numberOfTrailingZeros(m);
+                for (int i = 0; i < rangeCount[v]; i++) {
+                    int p = fixed[r].nextSetBit(ranges[v][2 * i]);
+                    if (p >= 0 && p <= ranges[v][2 * i + 1]) {
+                        conflicts |= 1 << r;
+                        break;
+                    }
+                }
+            }
+            return conflicts;
+        }
+    }
+
+    /**
+     * 只分配 func 的虚拟寄存器，不做 simplifyRegType 和 fixStack
+     */
+    public void allocate(MachineFunction func) {
+        var liveness = MCLiveness.getInstance().get(func, MCLiveness.Mode.ALLOCATION);
+        var regs = liveness.getRegs();
+        // 溢出代码引入的临时寄存器
+        var temps = new HashSet<MachineOperand>();
+
+        while (true) {
+            liveness.solve();
+            int n = regs.size();
+            var intervals = buildIntervals(func, liveness, n);
+            var isTemp = new boolean[n];
+            for (int v = PHY_REGS; v < n; v++) {
+                isTemp[v] = temps.contains(regs.get(v));
+            }
+
+            var color = new int[n];
+            Arrays.fill(color, -1);
+            var spilled = scan(intervals, isTemp, color, regs);
+            if (spilled.isEmpty()) {
+                assignColors(func, regs, color);
+                break;
+            }
+            insertSpillCode(func, liveness, spilled, temps);
+        }
+
+        MCLiveness.getInstance().invalidate(func);
+    }
+
+    private Intervals buildIntervals(MachineFunction func, MCLiveness.FunctionLiveness liveness, int n) {
+        var regs = liveness.getRegs();
+        var intervals = new Intervals(n);
+        int total = 0;
+        for (var blockEntry : func.getmbList()) {
+            for (var instrEntry : blockEntry.getVal().getmclist()) {
+                total++;
+            }
+        }
+
+        // 从最后一个块往前，范围按位置从后往前加
+        int base = total;
+        for (var blockEntry = func.getmbList().getLast(); blockEntry != null; blockEntry = blockEntry.getPrev()) {
+            var block = blockEntry.getVal();
+            int size = 0;
+            for (var instrEntry : block.getmclist()) {
+                size++;
+            }
+            if (size == 0) {
+                continue;
+            }
+            base -= size;
+            int first = base;
+            int last = base + size - 1;
+
+            var liveOut = liveness.liveOut(block);
+            for (int v = liveOut.nextSetBit(PHY_REGS); v >= 0; v = liveOut.nextSetBit(v + 1)) {
+                intervals.addRange(v, 2 * first, 2 * last + 1);
+            }
+            double blockWeight = Math.pow(10, Math.min(block.getLoopDepth(), 6));
+            int physLive = 0;
+            for (int r = liveOut.nextSetBit(0); r >= 0 && r < PHY_REGS; r = liveOut.nextSetBit(r + 1)) {
+                physLive |= 1 << r;
+            }
+
+            int i = last;
+            for (var instrEntry = block.getmclist().getLast();
+                 instrEntry != null;
+                 instrEntry = instrEntry.getPrev(), i--) {
+                var instr = instrEntry.getVal();
+                // 条件执行的定义不一定写，原来的值要一直活到这里
+                boolean conditional = instr.getCond() != ArmAddition.CondType.Any;
+                int physDefs = 0;
+                int physUses = 0;
+                for (var def : instr.getDef()) {
+                    int k = regs.number(def);
+                    if (k >= PHY_REGS) {
+                        intervals.define(k, 2 * i + 1);
+                        if (conditional) {
+                            intervals.addRange(k, 2 * first, 2 * i);
+                        }
+                        intervals.weight[k] += blockWeight;
+                    } else if (k >= 0) {
+                        physDefs |= 1 << k;
+                    }
+                }
+                for (var use : instr.getUse()) {
+                    int k = regs.number(use);
+                    if (k >= PHY_REGS) {
+                        intervals.addRange(k, 2 * first, 2 * i);
+                        intervals.weight[k] += blockWeight;
+                    } else if (k >= 0) {
+                        physUses |= 1 << k;
+                    }
+                }
+                if (conditional) {
+                    physUses |= physDefs;
+                }
+                intervals.mark(physLive | physDefs, 2 * i + 1);
+                physLive = (physLive & ~physDefs) | physUses;
+                intervals.mark(physLive, 2 * i);
+
+                if (instr instanceof MCMove && !conditional && instr.getShift().isNone()) {
+                    var move = (MCMove) instr;
+                    int dst = regs.number(move.getDst());
+                    int rhs = regs.number(move.getRhs());
+                    if (dst >= PHY_REGS && rhs >= PHY_REGS) {
+                        intervals.partner[dst] = rhs;
+                        intervals.partner[rhs] = dst;
+                    } else if (dst >= PHY_REGS && rhs >= 0 && (OK_COLORS & (1 << rhs)) != 0) {
+                        intervals.phyHint[dst] = rhs;
+                    } else if (rhs >= PHY_REGS && dst >= 0 && (OK_COLORS & (1 << dst)) != 0) {
+                        intervals.phyHint[rhs] = dst;
+                    }
+                }
+            }
+        }
+        intervals.finish();
+        return intervals;
+    }
+
+    /**
+     * 分配 color，返回要溢出的编号
+     */
+    private ArrayList<Integer> scan(Intervals intervals, boolean[] isTemp, int[] color,
+                                    MCLiveness.RegNumbering regs) {
+        int n = color.length;
+        var order = new long[n];
+        int count = 0;
+        for (int v = PHY_REGS; v < n; v++) {
+            if (!intervals.isEmpty(v)) {
+                order[count++] = ((long) intervals.start(v) << 32) | v;
+            }
+        }
+        Arrays.sort(order, 0, count);
+
+        var spilled = new ArrayList<Integer>();
+        var active = new ArrayList<Integer>();
+        var inactive = new ArrayList<Integer>();
+        var cost = new double[COLORS];
+        for (int idx = 0; idx < count; idx++) {
+            int v = (int) order[idx];
+            int pos = intervals.start(v);
+
+            for (int i = active.size() - 1; i >= 0; i--) {
+                int u = active.get(i);
+                if (intervals.end(u) < pos) {
+                    removeAt(active, i);
+                } else if (!intervals.covers(u, pos)) {
+                    removeAt(active, i);
+                    inactive.add(u);
+                }
+            }
+            for (int i = inactive.size() - 1; i >= 0; i--) {
+                int u = inactive.get(i);
+                if (intervals.end(u) < pos) {
+                    removeAt(inactive, i);
+                } else if (intervals.covers(u, pos)) {
+                    removeAt(inactive, i);
+                    active.add(u);
+                }
+            }
+
+            int allowed = OK_COLORS & ~intervals.fixedConflicts(v);
+            int free = allowed;
+            for (int u : active) {
+                free &= ~(1 << color[u]);
+            }
+            for (int u : inactive) {
+                if ((free & (1 << color[u])) != 0 && intervals.intersects(u, v)) {
+                    free &= ~(1 << color[u]);
+                }
+            }
+
+            if (free != 0) {
+                int r = Integer.numberOfTrailingZeros(free);
+                int partner = intervals.partner[v];
+                if (intervals.phyHint[v] >= 0 && (free & (1 << intervals.phyHint[v])) != 0) {
+                    r = intervals.phyHint[v];
+                } else if (partner >= 0 && color[partner] >= 0 && (free & (1 << color[partner])) != 0) {
+                    r = color[partner];
+                }
+                color[v] = r;
+                active.add(v);
+                continue;
+            }
+
+            // 没有空闲的颜色：每个颜色上和 v 重叠的区间一起溢出的代价，有临时寄存器的颜色不能用
+            Arrays.fill(cost, 0);
+            int candidates = allowed;
+            for (int u : active) {
+                cost[color[u]] += intervals.spillCost(u);
+                if (isTemp[u]) {
+                    candidates &= ~(1 << color[u]);
+                }
+            }
+            for (int u : inactive) {
+                if ((candidates & (1 << color[u])) != 0 && intervals.intersects(u, v)) {
+                    cost[color[u]] += intervals.spillCost(u);
+                    if (isTemp[u]) {
+                        candidates &= ~(1 << color[u]);
+                    }
+                }
+            }
+            int best = -1;
+            for (int m = candidates; m != 0; m &= m - 1) {
+                int r = Integer.numberOfTrailingZeros(m);
+                if (best < 0 || cost[r] < cost[best]) {
+                    best = r;
+                }
+            }
+
+            if (best >= 0 && (isTemp[v] || cost[best] < intervals.spillCost(v))) {
+                for (int i = active.size() - 1; i >= 0; i--) {
+                    int u = active.get(i);
+                    if (color[u] == best) {
+                        removeAt(active, i);
+                        color[u] = -1;
+                        spilled.add(u);
+                    }
+                }
+                for (int i = inactive.size() - 1; i >= 0; i--) {
+                    int u = inactive.get(i);
+                    if (color[u] == best && intervals.intersects(u, v)) {
+                        removeAt(inactive, i);
+                        color[u] = -1;
+                        spilled.add(u);
+                    }
+                }
+                color[v] = best;
+                active.add(v);
+            } else if (!isTemp[v]) {
+                spilled.add(v);
+            } else {
+                throw new RuntimeException("linear scan: no register for " + regs.get(v).getName());
+            }
+        }
+        return spilled;
+    }
+
+    // 顺序无所谓，用最后一个填上
+    private static void removeAt(ArrayList<Integer> list, int i) {
+        int last = list.remove(list.size() - 1);
+        if (i < list.size()) {
+            list.set(i, last);
+        }
+    }
+
+    private void assignColors(MachineFunction func, MCLiveness.RegNumbering regs, int[] color) {
+        var allocated = new PhyReg[COLORS];
+        for (var blockEntry : func.getmbList()) {
+            for (var instrEntry : blockEntry.getVal().getmclist()) {
+                var instr = instrEntry.getVal();
+                var defs = new ArrayList<>(instr.getDef());
+                var uses = new ArrayList<>(instr.getUse());
+                for (var reg : defs) {
+                    replace(func, regs, color, allocated, instr, reg);
+                }
+                for (var reg : uses) {
+                    replace(func, regs, color, allocated, instr, reg);
+                }
+            }
+        }
+    }
+
+    private void replace(MachineFunction func, MCLiveness.RegNumbering regs, int[] color,
+                         PhyReg[] allocated, MachineCode instr, Reg reg) {
+        int k = regs.number(reg);
+        if (k < PHY_REGS || color[k] < 0) {
+            return;
+        }
+        if (allocated[color[k]] == null) {
+            allocated[color[k]] = func.getAllocatedReg(color[k]);
+        }
+        RegAllocator.replaceReg(instr, reg, allocated[color[k]]);
+    }
+
+    /**
+     * 每个溢出的寄存器一个栈槽；一条指令里用到的溢出寄存器换成新的临时寄存器，之前 ldr，之后 str
+     */
+    private void insertSpillCode(MachineFunction func, MCLiveness.FunctionLiveness liveness,
+                                 ArrayList<Integer> spilled, HashSet<MachineOperand> temps) {
+        var regs = liveness.getRegs();
+        var slot = new int[regs.size()];
+        Arrays.fill(slot, -1);
+        for (int v : spilled) {
+            slot[v] = func.getStackSize();
+            func.addStackSize(4);
+        }
+
+        for (var blockEntry : func.getmbList()) {
+            var block = blockEntry.getVal();
+            var instrs = new ArrayList<MachineCode>();
+            for (var instrEntry : block.getmclist()) {
+                instrs.add(instrEntry.getVal());
+            }
+
+            boolean changed = false;
+            for (var instr : instrs) {
+                var defs = new ArrayList<>(instr.getDef());
+                var uses = new ArrayList<>(instr.getUse());
+                var done = new HashSet<Integer>();
+                for (var reg : uses) {
+                    int k = regs.number(reg);
+                    if (k >= PHY_REGS && slot[k] >= 0 && done.add(k)) {
+                        rewrite(func, instr, reg, slot[k], true, defs.contains(reg), temps);
+                    }
+                }
+                for (var reg : defs) {
+                    int k = regs.number(reg);
+                    if (k >= PHY_REGS && slot[k] >= 0 && done.add(k)) {
+                        // 条件执行的定义也要先读出原来的值，条件不成立时原样写回去
+                        rewrite(func, instr, reg, slot[k], instr.getCond() != ArmAddition.CondType.Any, true, temps);
+                    }
+                }
+                changed |= !done.isEmpty();
+            }
+            if (changed) {
+                liveness.changed(block);
+            }
+        }
+    }
+
+    private void rewrite(MachineFunction func, MachineCode instr, MachineOperand reg, int offset,
+                         boolean load, boolean store, HashSet<MachineOperand> temps) {
+        var tmp = newTemp(func, temps);
+        if (load) {
+            var loadInstr = new MCLoad();
+            loadInstr.insertBeforeNode(instr);
+            loadInstr.setAddr(func.getPhyReg("sp"));
+            loadInstr.setShift(ArmAddition.ShiftType.None, 0);
+            loadInstr.setOffset(stackOffset(func, loadInstr, offset, temps));
+            loadInstr.setDst(tmp);
+        }
+        RegAllocator.replaceReg(instr, reg, tmp);
+        if (store) {
+            var storeInstr = new MCStore();
+            storeInstr.insertAfterNode(instr);
+            storeInstr.setAddr(func.getPhyReg("sp"));
+            storeInstr.setShift(ArmAddition.ShiftType.None, 0);
+            storeInstr.setOffset(stackOffset(func, storeInstr, offset, temps));
+            storeInstr.setData(tmp);
+        }
+    }
+
+    // ldr/str 的立即数偏移只有 12 位，放不下的先 mov 到临时寄存器里
+    private MachineOperand stackOffset(MachineFunction func, MachineCode inst, int offset,
+                                       HashSet<MachineOperand> temps) {
+        if (offset < (1 << 12)) {
+            return new MachineOperand(offset);
+        }
+        var moveInstr = new MCMove();
+        moveInstr.insertBeforeNode(inst);
+        moveInstr.setRhs(new MachineOperand(offset));
+        var tmp = newTemp(func, temps);
+        moveInstr.setDst(tmp);
+        return tmp;
+    }
+
+    private VirtualReg newTemp(MachineFunction func, HashSet<MachineOperand> temps) {
+        var tmp = new VirtualReg();
+        func.addVirtualReg(tmp);
+        temps.add(tmp);
+        return tmp;
+    }
+}
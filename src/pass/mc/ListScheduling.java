@@ -6,7 +6,6 @@ import backend.reg.*;
 import pass.Pass;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static backend.machinecodes.ArmAddition.ShiftType.*;
 import static backend.machinecodes.ArmAddition.CondType.*;
@@ -17,6 +16,11 @@ public class ListScheduling implements Pass.MCPass {
         return "ListScheduling";
     }
 
+    @Override
+    public boolean preservesMCAnalyses() {
+        return true;
+    }
+
     enum A72FUType {
         Branch, Integer, Multiple, Load, Store, FP
     }
@@ -32,25 +36,24 @@ public class ListScheduling implements Pass.MCPass {
             this.completeCycles = 0;
         }
 
-        public void runTask(Node curNode, int completeCycles, Map<A72FUType, Integer> freeUnits) {
+        public void runTask(Node curNode, int completeCycles) {
             this.curNode = curNode;
             this.completeCycles = completeCycles;
-            freeUnits.compute(type, (key, value) -> value - 1);
         }
 
-        public void freeTask(Map<A72FUType, Integer> freeUnits) {
+        public void freeTask() {
             curNode = null;
-            freeUnits.compute(type, (key, value) -> value + 1);
         }
     }
 
     private static class Node implements Comparable<Node> {
         private final MachineCode instr;
         private final int latency;
-        private final ArrayList<A72FUType> needFU = new ArrayList<>();
-        private final HashSet<Node> outSet = new HashSet<>();
-        private final HashSet<Node> inSet = new HashSet<>();
-        private int outDegree;
+        private final A72FUType needFU;
+        // 依赖边都从前面的指令指向后面的指令
+        private final ArrayList<Node> outList = new ArrayList<>();
+        // 最后一条加进来的出边指向谁，同一对指令因为多个寄存器重复的边只加一次
+        private Node lastOut;
         private int inDegree;
         private int criticalLatency;
 
@@ -72,9 +75,13 @@ public class ListScheduling implements Pass.MCPass {
                 }
                 case Store -> 3;
                 case Global -> 1;
+                case Vector -> switch (((MCVector) instr).getKind()) {
+                    case Load, Mul -> 4;
+                    default -> 3;
+                };
                 default -> throw new IllegalStateException("Unexpected value: " + instr.getTag());
             };
-            this.needFU.add(switch (instr.getTag()) {
+            this.needFU = switch (instr.getTag()) {
                 case Add, Sub, Rsb, And, Or, Bic -> instr.getShift().getType() == None ? A72FUType.Integer : A72FUType.Multiple;
                 case Mul, Div, LongMul, FMA -> A72FUType.Multiple;
                 // binary
@@ -87,13 +94,23 @@ public class ListScheduling implements Pass.MCPass {
                 }
                 case Store -> A72FUType.Store;
                 case Global -> A72FUType.Integer;
+                case Vector -> switch (((MCVector) instr).getKind()) {
+                    case Load -> A72FUType.Load;
+                    case Store -> A72FUType.Store;
+                    default -> A72FUType.FP;
+                };
                 default -> throw new IllegalStateException("Unexpected value: " + instr.getTag());
-            });
+            };
         }
 
+        // 边只会在处理 to 的时候加，所以和 lastOut 比一下就能去重
         public void addEdge(Node to) {
-            this.outSet.add(to);
-            to.inSet.add(this);
+            if (lastOut == to) {
+                return;
+            }
+            lastOut = to;
+            outList.add(to);
+            ++to.inDegree;
         }
 
         @Override
@@ -104,51 +121,61 @@ public class ListScheduling implements Pass.MCPass {
         }
     }
 
+    /**
+     * 按指令顺序扫一遍，每个寄存器记最后一次定义和之后的读，内存操作串成一条链，边数和块的大小成正比：
+     * RAW、WAW 连到最后一次定义，WAR 连到上次定义之后的读；
+     * store/call 连到上一个 store/call 和之后的 load，load 连到上一个 store/call；
+     * 跳转连到当时还没有后继的指令，其余的指令通过它们间接排在跳转前面
+     */
     private ArrayList<Node> buildConflictGraph(MachineBlock block) {
         var nodes = new ArrayList<Node>();
-        
+
         var readRegNodes = new HashMap<MachineOperand, ArrayList<Node>>();
         var writeRegNodes = new HashMap<MachineOperand, Node>();
         var loadNodes = new ArrayList<Node>();
         Node sideEffectNode = null;
-        
+
         for (var instrEntry : block.getmclist()) {
             var instr = instrEntry.getVal();
             if (instr instanceof MCComment) {
                 continue;
             }
 
-            var defs = instr.getMCDef();
-            var uses = instr.getMCUse();
+            var defs = MCLiveness.defs(instr, MCLiveness.Mode.MACHINE);
+            var uses = MCLiveness.uses(instr, MCLiveness.Mode.MACHINE);
             assert defs.stream().allMatch(def -> def instanceof PhyReg);
             var curNode = new Node(instr);
-            nodes.add(curNode);
-
-            defs.stream().filter(readRegNodes::containsKey)
-                    .flatMap(defReg -> readRegNodes.get(defReg).stream())
-                    .forEach(readNode -> readNode.addEdge(curNode));
-
-            defs.stream().filter(writeRegNodes::containsKey)
-                    .map(writeRegNodes::get)
-                    .forEach(writeNode -> writeNode.addEdge(curNode));
-
-            uses.stream().filter(writeRegNodes::containsKey)
-                    .map(writeRegNodes::get)
-                    .forEach(writeNode -> writeNode.addEdge(curNode));
 
-            uses.forEach(useReg -> {
-                if (!readRegNodes.containsKey(useReg)) {
-                    readRegNodes.put(useReg, new ArrayList<>());
+            for (var useReg : uses) {
+                var writeNode = writeRegNodes.get(useReg);
+                if (writeNode != null) {
+                    writeNode.addEdge(curNode);
+                }
+            }
+            for (var defReg : defs) {
+                var writeNode = writeRegNodes.get(defReg);
+                if (writeNode != null) {
+                    writeNode.addEdge(curNode);
+                }
+                var readNodes = readRegNodes.get(defReg);
+                if (readNodes != null) {
+                    readNodes.forEach(readNode -> readNode.addEdge(curNode));
                 }
-                readRegNodes.get(useReg).add(curNode);
-            });
+            }
 
-            defs.forEach(defReg -> {
-                readRegNodes.put(defReg, new ArrayList<>());
+            for (var useReg : uses) {
+                readRegNodes.computeIfAbsent(useReg, reg -> new ArrayList<>()).add(curNode);
+            }
+            for (var defReg : defs) {
+                var readNodes = readRegNodes.get(defReg);
+                if (readNodes != null) {
+                    readNodes.clear();
+                }
                 writeRegNodes.put(defReg, curNode);
-            });
+            }
 
-            if (instr instanceof MCStore || instr instanceof MCCall) {
+            // q 寄存器不在 use/def 里，向量指令之间靠这条链保持原来的顺序
+            if (instr instanceof MCStore || instr instanceof MCCall || instr instanceof MCVector) {
                 if (sideEffectNode != null) {
                     sideEffectNode.addEdge(curNode);
                 }
@@ -164,30 +191,25 @@ public class ListScheduling implements Pass.MCPass {
             }
 
             if (instr instanceof MCBranch || instr instanceof MCJump || instr instanceof MCReturn) {
-                nodes.stream().filter(node -> node != curNode).forEach(node -> node.addEdge(curNode));
+                nodes.stream().filter(node -> node.outList.isEmpty()).forEach(node -> node.addEdge(curNode));
             }
+            nodes.add(curNode);
         }
-        
+
         return nodes;
     }
 
+    /**
+     * 到块结束的最长路径（包括自己的延迟）。边都是从前往后的，倒着扫一遍就行
+     */
     private void calculateCriticalLatency(ArrayList<Node> nodes) {
-        var toVisit = new LinkedList<Node>();
-        nodes.forEach(node -> node.outDegree = node.outSet.size());
-        nodes.stream().filter(n -> n.outDegree != 0).forEach(n -> {
-            toVisit.add(n);
-            n.criticalLatency = n.latency;
-        });
-
-        while (!toVisit.isEmpty()) {
-            var n = toVisit.pollLast();
-            n.inSet.forEach(inNode -> {
-                inNode.criticalLatency = Math.max(inNode.criticalLatency, inNode.latency + n.criticalLatency);
-                --inNode.outDegree;
-                if (inNode.outDegree == 0) {
-                    toVisit.add(inNode);
-                }
-            });
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            var node = nodes.get(i);
+            int longest = 0;
+            for (var outNode : node.outList) {
+                longest = Math.max(longest, outNode.criticalLatency);
+            }
+            node.criticalLatency = node.latency + longest;
         }
     }
 
@@ -198,42 +220,32 @@ public class ListScheduling implements Pass.MCPass {
                 new A72Unit(A72FUType.Integer),
                 new A72Unit(A72FUType.Multiple),
                 new A72Unit(A72FUType.Load),
-                new A72Unit(A72FUType.Store)
+                new A72Unit(A72FUType.Store),
+                new A72Unit(A72FUType.FP)
         );
 
-        var freeUnits = units.stream()
-                .collect(Collectors.toMap(unit -> unit.type, unit -> 1, Integer::sum));
-
         block.getmclist().clear();
 
-        nodes.forEach(node -> node.inDegree = node.inSet.size());
-        var readyNodeList = nodes.stream()
-                .filter(n -> n.inDegree == 0)
-                .collect(Collectors.toCollection(PriorityQueue::new));
+        // 每种功能单元一个按 criticalLatency 排的堆，每个周期每个空闲的单元取对应堆顶的指令
+        var readyNodes = new EnumMap<A72FUType, PriorityQueue<Node>>(A72FUType.class);
+        for (var type : A72FUType.values()) {
+            readyNodes.put(type, new PriorityQueue<>());
+        }
+        nodes.stream().filter(n -> n.inDegree == 0).forEach(n -> readyNodes.get(n.needFU).add(n));
 
+        int remaining = nodes.size();
         int cntInflight = 0;
         int cycle = 0;
-        while (!readyNodeList.isEmpty() || cntInflight > 0) {
+        while (remaining > 0 || cntInflight > 0) {
             // Simulate Frontend Firing
-            for (var iter = readyNodeList.iterator(); iter.hasNext();) {
-                var curNode = iter.next();
-
-                var needUnitMap = curNode.needFU.stream()
-                        .collect(Collectors.toMap(type -> type, type -> 1, Integer::sum));
-                boolean canFire = needUnitMap.entrySet().stream()
-                        .allMatch(entry -> freeUnits.get(entry.getKey()) >= entry.getValue());
-                if (!canFire) continue;
-
-                for (var needUnit: curNode.needFU) {
-                    for (var unit: units) {
-                        if (unit.type.equals(needUnit) && unit.curNode == null) {
-                            block.addAtEndMC(curNode.instr.getNode());
-                            unit.runTask(curNode, cycle + curNode.latency, freeUnits);
-                            iter.remove();
-                            ++cntInflight;
-                            break;
-                        }
-                    }
+            for (var unit : units) {
+                var ready = readyNodes.get(unit.type);
+                if (unit.curNode == null && !ready.isEmpty()) {
+                    var curNode = ready.poll();
+                    block.addAtEndMC(curNode.instr.getNode());
+                    unit.runTask(curNode, cycle + curNode.latency);
+                    --remaining;
+                    ++cntInflight;
                 }
             }
 
@@ -242,9 +254,12 @@ public class ListScheduling implements Pass.MCPass {
             // Simulate Backend Execution
             for (A72Unit unit : units) {
                 if (unit.curNode != null && unit.completeCycles == cycle) {
-                    unit.curNode.outSet.forEach(outNode -> --outNode.inDegree);
-                    unit.curNode.outSet.stream().filter(outNode -> outNode.inDegree == 0).forEach(readyNodeList::add);
-                    unit.freeTask(freeUnits);
+                    for (var outNode : unit.curNode.outList) {
+                        if (--outNode.inDegree == 0) {
+                            readyNodes.get(outNode.needFU).add(outNode);
+                        }
+                    }
+                    unit.freeTask();
                     --cntInflight;
                 }
             }
@@ -258,6 +273,8 @@ public class ListScheduling implements Pass.MCPass {
                 var nodes = buildConflictGraph(block);
                 calculateCriticalLatency(nodes);
                 scheduling(block, nodes);
+                // 重排不改变块的 liveIn/liveOut，但块内的 def-use 变了
+                MCLiveness.getInstance().changed(func, block);
             }
         }
     }
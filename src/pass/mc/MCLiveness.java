@@ -0,0 +1,398 @@
+package pass.mc;
+
+import backend.machinecodes.MCBranch;
+import backend.machinecodes.MCCall;
+import backend.machinecodes.MCComment;
+import backend.machinecodes.MCJump;
+import backend.machinecodes.MCReturn;
+import backend.machinecodes.MCStore;
+import backend.machinecodes.MCVector;
+import backend.machinecodes.MachineBlock;
+import backend.machinecodes.MachineCode;
+import backend.machinecodes.MachineFunction;
+import backend.reg.MachineOperand;
+import backend.reg.PhyReg;
+import backend.reg.Reg;
+import backend.reg.VirtualReg;
+import driver.CompilationContext;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * MC pass 共用的活跃变量分析和块内 def-use 信息，按 MachineFunction 缓存
+ * <p>
+ * 寄存器按函数稠密编号：物理寄存器就是它的 idx（0-16），其他的从 17 开始按第一次出现的顺序编号，集合都是 BitSet，按后序做 worklist。
+ * 改了指令的 pass 调用 changed(block)，下一次查询时只重新扫描改过的块，再重新求一遍不动点（求解只是 BitSet 运算）。
+ * <p>
+ * 两种口径：ALLOCATION 给寄存器分配用，只看需要着色的寄存器，全局变量的地址不算；
+ * MACHINE 给分配之后的 pass 用，所有寄存器都算，比较和调用定义 cspr，条件执行的指令使用 cspr，调用使用 sp。
+ * <p>
+ * PassManager 在没有声明 preservesMCAnalyses 的 MC pass 之后把缓存全部作废
+ */
+public class MCLiveness {
+
+    public enum Mode {
+        ALLOCATION,
+        MACHINE
+    }
+
+    private final IdentityHashMap<MachineFunction, EnumMap<Mode, FunctionLiveness>> cache = new IdentityHashMap<>();
+
+    private MCLiveness() {
+    }
+
+    public static MCLiveness getInstance() {
+        return CompilationContext.current().get(MCLiveness.class, MCLiveness::new);
+    }
+
+    public FunctionLiveness get(MachineFunction func, Mode mode) {
+        return cache.computeIfAbsent(func, f -> new EnumMap<>(Mode.class))
+                .computeIfAbsent(mode, m -> new FunctionLiveness(func, m));
+    }
+
+    /**
+     * block 里的指令改了（删除、插入、改操作数、改条件），或者 block 的后继改了
+     */
+    public void changed(MachineFunction func, MachineBlock block) {
+        var byMode = cache.get(func);
+        if (byMode != null) {
+            byMode.values().forEach(liveness -> liveness.changed(block));
+        }
+    }
+
+    public void invalidate(MachineFunction func) {
+        cache.remove(func);
+    }
+
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    public static List<Reg> defs(MachineCode instr, Mode mode) {
+        return mode == Mode.MACHINE ? instr.getMCDef() : instr.getDef();
+    }
+
+    public static List<Reg> uses(MachineCode instr, Mode mode) {
+        return mode == Mode.MACHINE ? instr.getMCUse() : instr.getUse();
+    }
+
+    /**
+     * 一个函数里寄存器的编号
+     */
+    public static class RegNumbering {
+        public static final int PHY_REGS = 17;
+
+        private final Mode mode;
+        private final HashMap<MachineOperand, Integer> index = new HashMap<>();
+        private final ArrayList<MachineOperand> regs = new ArrayList<>();
+
+        RegNumbering(MachineFunction func, Mode mode) {
+            this.mode = mode;
+            for (int i = 0; i < PHY_REGS; i++) {
+                regs.add(func.getPhyReg(i));
+            }
+        }
+
+        /**
+         * 不参与分析的返回 -1：立即数；ALLOCATION 下还有已经分配的物理寄存器和全局变量的地址（movw/movt 的符号）
+         */
+        public int number(MachineOperand reg) {
+            if (!(reg instanceof Reg)) {
+                return -1;
+            }
+            if (mode == Mode.ALLOCATION
+                    && (!reg.needsColor() || reg instanceof VirtualReg && ((VirtualReg) reg).isGlobal())) {
+                return -1;
+            }
+            if (reg instanceof PhyReg) {
+                return ((PhyReg) reg).getIdx();
+            }
+            var i = index.get(reg);
+            if (i == null) {
+                i = regs.size();
+                index.put(reg, i);
+                regs.add(reg);
+            }
+            return i;
+        }
+
+        public MachineOperand get(int i) {
+            return regs.get(i);
+        }
+
+        public int size() {
+            return regs.size();
+        }
+    }
+
+    /**
+     * 块内的 def-use：每个寄存器在块里最后一次被谁定义，每条指令定义的值在块里最后被谁使用
+     * （有副作用的指令算自己使用了自己，定义的值在块里没人用是 null）
+     */
+    public static class BlockDefUse {
+        private final HashMap<MachineOperand, MachineCode> lastDefiner = new HashMap<>();
+        private final HashMap<MachineCode, MachineCode> lastUser = new HashMap<>();
+
+        BlockDefUse(MachineBlock block, Mode mode) {
+            for (var instrEntry : block.getmclist()) {
+                var instr = instrEntry.getVal();
+                var hasSideEffect = instr instanceof MCBranch ||
+                        instr instanceof MCCall ||
+                        instr instanceof MCJump ||
+                        instr instanceof MCStore ||
+                        instr instanceof MCReturn ||
+                        instr instanceof MCComment ||
+                        instr instanceof MCVector;
+
+                for (var use : uses(instr, mode)) {
+                    var definer = lastDefiner.get(use);
+                    if (definer != null) {
+                        lastUser.put(definer, instr);
+                    }
+                }
+                for (var def : defs(instr, mode)) {
+                    lastDefiner.put(def, instr);
+                }
+                lastUser.put(instr, hasSideEffect ? instr : null);
+            }
+        }
+
+        public HashMap<MachineOperand, MachineCode> getLastDefiner() {
+            return lastDefiner;
+        }
+
+        public HashMap<MachineCode, MachineCode> getLastUser() {
+            return lastUser;
+        }
+
+        /**
+         * 用 now 原地替换了 old（同一个位置，定义同一个寄存器），让同一次遍历里后面的查询还能用
+         */
+        public void replaced(MachineCode old, MachineCode now) {
+            if (lastUser.containsKey(old)) {
+                lastUser.put(now, lastUser.get(old));
+                lastUser.remove(old);
+            }
+
+            if (lastDefiner.containsValue(old)) {
+                var key = now.getDef().get(0);
+                assert key != null;
+                lastDefiner.put(key, now);
+            }
+        }
+    }
+
+    private static class BlockInfo {
+        private final BitSet liveUse = new BitSet();
+        private final BitSet liveDef = new BitSet();
+        private final BitSet liveIn = new BitSet();
+        private final BitSet liveOut = new BitSet();
+        // liveUse/liveDef 要重新扫描
+        private boolean dirty = true;
+        private BlockDefUse defUse;
+    }
+
+    public static class FunctionLiveness {
+        private final MachineFunction func;
+        private final Mode mode;
+        private final RegNumbering regs;
+        private final HashMap<MachineBlock, BlockInfo> blocks = new HashMap<>();
+        private boolean solved = false;
+
+        FunctionLiveness(MachineFunction func, Mode mode) {
+            this.func = func;
+            this.mode = mode;
+            this.regs = new RegNumbering(func, mode);
+        }
+
+        public RegNumbering getRegs() {
+            return regs;
+        }
+
+        public void changed(MachineBlock block) {
+            var info = blocks.get(block);
+            if (info != null) {
+                info.dirty = true;
+                info.defUse = null;
+            }
+            solved = false;
+        }
+
+        public BitSet liveIn(MachineBlock block) {
+            solve();
+            return blocks.get(block).liveIn;
+        }
+
+        /**
+         * 返回的 BitSet 归这里所有，下一次求解时原地更新，调用方不要改
+         */
+        public BitSet liveOut(MachineBlock block) {
+            solve();
+            return blocks.get(block).liveOut;
+        }
+
+        public boolean isLiveOut(MachineBlock block, MachineOperand reg) {
+            int i = regs.number(reg);
+            return i >= 0 && liveOut(block).get(i);
+        }
+
+        public BlockDefUse defUse(MachineBlock block) {
+            var info = blocks.computeIfAbsent(block, b -> new BlockInfo());
+            if (info.defUse == null) {
+                info.defUse = new BlockDefUse(block, mode);
+            }
+            return info.defUse;
+        }
+
+        /**
+         * 查询的时候会自动调用；寄存器的编号按块的顺序第一次出现的先后，需要先把编号定下来的时候直接调用
+         */
+        public void solve() {
+            if (solved) {
+                return;
+            }
+            for (var blockEntry : func.getmbList()) {
+                var block = blockEntry.getVal();
+                var info = blocks.computeIfAbsent(block, b -> new BlockInfo());
+                if (info.dirty) {
+                    scan(block, info);
+                }
+            }
+
+            var order = postOrder();
+            int n = order.size();
+            var index = new HashMap<MachineBlock, Integer>();
+            var infos = new BlockInfo[n];
+            for (int i = 0; i < n; i++) {
+                var block = order.get(i);
+                index.put(block, i);
+                infos[i] = blocks.computeIfAbsent(block, b -> new BlockInfo());
+                if (infos[i].dirty) {
+                    scan(block, infos[i]);
+                }
+                infos[i].liveIn.clear();
+                infos[i].liveIn.or(infos[i].liveUse);
+            }
+            // 删掉的块
+            blocks.keySet().retainAll(index.keySet());
+
+            var succs = new int[n][];
+            var preds = new ArrayList<ArrayList<Integer>>();
+            for (int i = 0; i < n; i++) {
+                preds.add(new ArrayList<>());
+            }
+            for (int i = 0; i < n; i++) {
+                var block = order.get(i);
+                var trueSucc = block.getTrueSucc() == null ? null : index.get(block.getTrueSucc());
+                var falseSucc = block.getFalseSucc() == null ? null : index.get(block.getFalseSucc());
+                succs[i] = trueSucc == null ? (falseSucc == null ? new int[0] : new int[]{falseSucc})
+                        : (falseSucc == null ? new int[]{trueSucc} : new int[]{trueSucc, falseSucc});
+                for (int succ : succs[i]) {
+                    preds.get(succ).add(i);
+                }
+            }
+
+            // 每个块最多在队列里出现一次，循环队列 n 个位置就够
+            var queue = new int[Math.max(1, n)];
+            var queued = new boolean[n];
+            int head = 0;
+            int size = n;
+            for (int i = 0; i < n; i++) {
+                queue[i] = i;
+                queued[i] = true;
+            }
+            var newLiveIn = new BitSet();
+            while (size > 0) {
+                int b = queue[head];
+                head = (head + 1) % n;
+                size--;
+                queued[b] = false;
+
+                var info = infos[b];
+                info.liveOut.clear();
+                for (int succ : succs[b]) {
+                    info.liveOut.or(infos[succ].liveIn);
+                }
+
+                newLiveIn.clear();
+                newLiveIn.or(info.liveOut);
+                newLiveIn.andNot(info.liveDef);
+                newLiveIn.or(info.liveUse);
+                if (!newLiveIn.equals(info.liveIn)) {
+                    info.liveIn.clear();
+                    info.liveIn.or(newLiveIn);
+                    for (int pred : preds.get(b)) {
+                        if (!queued[pred]) {
+                            queue[(head + size) % n] = pred;
+                            queued[pred] = true;
+                            size++;
+                        }
+                    }
+                }
+            }
+            solved = true;
+        }
+
+        private void scan(MachineBlock block, BlockInfo info) {
+            info.liveUse.clear();
+            info.liveDef.clear();
+            for (var instrEntry : block.getmclist()) {
+                var instr = instrEntry.getVal();
+                for (var use : uses(instr, mode)) {
+                    int i = regs.number(use);
+                    if (i >= 0 && !info.liveDef.get(i)) {
+                        info.liveUse.set(i);
+                    }
+                }
+                for (var def : defs(instr, mode)) {
+                    int i = regs.number(def);
+                    if (i >= 0 && !info.liveUse.get(i)) {
+                        info.liveDef.set(i);
+                    }
+                }
+            }
+            info.dirty = false;
+        }
+
+        /**
+         * 从入口块开始的后序，走不到的块接在最后
+         */
+        private ArrayList<MachineBlock> postOrder() {
+            var order = new ArrayList<MachineBlock>();
+            var visited = new HashSet<MachineBlock>();
+            var stack = new ArrayDeque<MachineBlock>();
+            var nextSucc = new ArrayDeque<Integer>();
+            for (var blockEntry : func.getmbList()) {
+                var root = blockEntry.getVal();
+                if (!visited.add(root)) {
+                    continue;
+                }
+                stack.push(root);
+                nextSucc.push(0);
+                while (!stack.isEmpty()) {
+                    var block = stack.peek();
+                    int i = nextSucc.pop();
+                    if (i >= 2) {
+                        stack.pop();
+                        order.add(block);
+                        continue;
+                    }
+                    nextSucc.push(i + 1);
+                    var succ = i == 0 ? block.getTrueSucc() : block.getFalseSucc();
+                    if (succ != null && visited.add(succ)) {
+                        stack.push(succ);
+                        nextSucc.push(0);
+                    }
+                }
+            }
+            return order;
+        }
+    }
+}
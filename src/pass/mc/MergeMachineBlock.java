@@ -25,6 +25,11 @@ public class MergeMachineBlock implements Pass.MCPass {
         return "MergeMachineBlock";
     }
 
+    @Override
+    public boolean preservesMCAnalyses() {
+        return true;
+    }
+
     @Override
     public void run(CodeGenManager manager) {
         for (var mf : manager.getMachineFunctions()) {
@@ -313,6 +318,8 @@ public class MergeMachineBlock implements Pass.MCPass {
                 }
 
             }
+            // 复制、删除了块，改了前驱后继，整个函数重新算
+            MCLiveness.getInstance().invalidate(mf);
         }
     }
 }
@@ -8,7 +8,6 @@ import backend.CodeGenManager;
 import backend.machinecodes.MCBinary;
 import backend.machinecodes.MCBranch;
 import backend.machinecodes.MCCall;
-import backend.machinecodes.MCComment;
 import backend.machinecodes.MCCompare;
 import backend.machinecodes.MCFma;
 import backend.machinecodes.MCJump;
@@ -17,19 +16,18 @@ import backend.machinecodes.MCLongMul;
 import backend.machinecodes.MCMove;
 import backend.machinecodes.MCReturn;
 import backend.machinecodes.MCStore;
+import backend.machinecodes.MCVector;
 import backend.machinecodes.MachineBlock;
 import backend.machinecodes.MachineCode;
-import backend.machinecodes.MachineFunction;
 import backend.reg.MachineOperand;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.Objects;
 import java.util.function.Supplier;
 
 import backend.reg.Reg;
 import pass.Pass;
-import util.Pair;
+import util.IList;
 
 public class PeepholeOptimization implements Pass.MCPass {
     @Override
@@ -37,14 +35,24 @@ public class PeepholeOptimization implements Pass.MCPass {
         return "Peephole";
     }
 
+    // 每一遍都要遍历所有的块，用同一个 cursor，不为每个块 new 迭代器
+    private final IList.Cursor<MachineCode, MachineBlock> cursor = new IList.Cursor<>();
+
+    @Override
+    public boolean preservesMCAnalyses() {
+        return true;
+    }
+
     private boolean trivialPeephole(CodeGenManager manager) {
         boolean done = true;
+        var liveness = MCLiveness.getInstance();
         for (var func : manager.getMachineFunctions()) {
             for (var blockEntry : func.getmbList()) {
                 var block = blockEntry.getVal();
+                boolean blockDone = true;
 
-                for (var instrEntryIter = block.getmclist().iterator(); instrEntryIter.hasNext(); ) {
-                    var instrEntry = instrEntryIter.next();
+                for (var instrEntryIter = cursor.reset(block.getmclist()); instrEntryIter.advance(); ) {
+                    var instrEntry = instrEntryIter.node();
                     var preInstrEntry = instrEntry.getPrev();
                     var nxtInstrEntry = instrEntry.getNext();
                     var instr = instrEntry.getVal();
@@ -62,7 +70,7 @@ public class PeepholeOptimization implements Pass.MCPass {
                             if (isSameDstLhs) {
                                 // add(sub) dst dst 0 (to be remove)
                                 instrEntryIter.remove();
-                                done = false;
+                                blockDone = false;
                             } else {
                                 // add(sub) a b 0
                                 // =>
@@ -79,7 +87,7 @@ public class PeepholeOptimization implements Pass.MCPass {
                                 movInstr.mb = block;
                                 movInstr.mf = func;
 
-                                done = false;
+                                blockDone = false;
                             }
                         }
                     }
@@ -94,7 +102,7 @@ public class PeepholeOptimization implements Pass.MCPass {
 
                         if (isSameTargetNxtBB && hasNoCond) {
                             instrEntryIter.remove();
-                            done = false;
+                            blockDone = false;
                         }
                     }
 
@@ -108,7 +116,7 @@ public class PeepholeOptimization implements Pass.MCPass {
 
                         if (isSameTargetNxtBB && hasNoCond) {
                             instrEntryIter.remove();
-                            done = false;
+                            blockDone = false;
                         }
                     }
 
@@ -136,7 +144,7 @@ public class PeepholeOptimization implements Pass.MCPass {
 
                                 moveInstr.insertAfterNode(preInstrEntry.getVal());
                                 instrEntryIter.remove();
-                                done = false;
+                                blockDone = false;
                             }
                         }
                     }
@@ -147,7 +155,7 @@ public class PeepholeOptimization implements Pass.MCPass {
                         if (curMove.getDst().equals(curMove.getRhs()) && hasNoShift) {
                             // move a a (to be remove)
                             instrEntryIter.remove();
-                            done = false;
+                            blockDone = false;
                         } else {
                             if (nxtInstrEntry != null && nxtInstrEntry.getVal() instanceof MCMove && hasNoCond && hasNoShift) {
                                 // move a b (cur, to be remove)
@@ -163,7 +171,7 @@ public class PeepholeOptimization implements Pass.MCPass {
 
                                 if (isSameDst && nxtInstrNotIdentity && nxtNoCond) {
                                     instrEntryIter.remove();
-                                    done = false;
+                                    blockDone = false;
                                 }
                             }
 
@@ -179,101 +187,21 @@ public class PeepholeOptimization implements Pass.MCPass {
 
                                 if (isSameA && isSameB && preNoShift && preNoCond) {
                                     instrEntryIter.remove();
-                                    done = false;
+                                    blockDone = false;
                                 }
                             }
                         }
                     }
                 }
-            }
-        }
-
-        return done;
-    }
-
-    private Pair<HashMap<MachineOperand, MachineCode>, HashMap<MachineCode, MachineCode>> getLiveRangeInBlock(MachineBlock block) {
-        var lastDefiner = new HashMap<MachineOperand, MachineCode>();
-        var lastUserMap = new HashMap<MachineCode, MachineCode>();
-        for (var instrEntry : block.getmclist()) {
-            var instr = instrEntry.getVal();
-
-            var defs = instr.getMCDef();
-            var uses = instr.getMCUse();
-            var hasSideEffect = instr instanceof MCBranch ||
-                    instr instanceof MCCall ||
-                    instr instanceof MCJump ||
-                    instr instanceof MCStore ||
-                    instr instanceof MCReturn ||
-                    instr instanceof MCComment;
-
-            uses.stream().filter(lastDefiner::containsKey).forEach(use -> lastUserMap.put(lastDefiner.get(use), instr));
-            defs.forEach(def -> lastDefiner.put(def, instr));
-            lastUserMap.put(instr, hasSideEffect ? instr : null);
-        }
-        return new Pair<>(lastDefiner, lastUserMap);
-    }
-
-    private static class BlockLiveInfo {
-        private final HashSet<MachineOperand> liveUse = new HashSet<>();
-        private final HashSet<MachineOperand> liveDef = new HashSet<>();
-        private HashSet<MachineOperand> liveIn = new HashSet<>();
-        private HashSet<MachineOperand> liveOut = new HashSet<>();
-
-        BlockLiveInfo(MachineBlock block) {
-        }
-    }
-
-    private HashMap<MachineBlock, BlockLiveInfo> livenessAnalysis(MachineFunction func) {
-        var liveInfoMap = new HashMap<MachineBlock, BlockLiveInfo>();
-        for (var blockEntry : func.getmbList()) {
-            var block = blockEntry.getVal();
-            var blockLiveInfo = new BlockLiveInfo(block);
-            liveInfoMap.put(block, blockLiveInfo);
-
-            for (var instrEntry : block.getmclist()) {
-                var instr = instrEntry.getVal();
-                instr.getUse().stream()
-                        .filter(use -> !blockLiveInfo.liveDef.contains(use))
-                        .forEach(blockLiveInfo.liveUse::add);
-                instr.getDef().stream()
-                        .filter(def -> !blockLiveInfo.liveUse.contains(def))
-                        .forEach(blockLiveInfo.liveDef::add);
-            }
-
-            blockLiveInfo.liveIn.addAll(blockLiveInfo.liveUse);
-        }
-
-        boolean changed = true;
-        while (changed) {
-            changed = false;
-            for (var blockEntry : func.getmbList()) {
-                var block = blockEntry.getVal();
-                var blockLiveInfo = liveInfoMap.get(block);
-                var newLiveOut = new HashSet<MachineOperand>();
-
-                if (block.getTrueSucc() != null) {
-                    var succBlockInfo = liveInfoMap.get(block.getTrueSucc());
-                    newLiveOut.addAll(succBlockInfo.liveIn);
-                }
 
-                if (block.getFalseSucc() != null) {
-                    var succBlockInfo = liveInfoMap.get(block.getFalseSucc());
-                    newLiveOut.addAll(succBlockInfo.liveIn);
-                }
-
-                if (!newLiveOut.equals(blockLiveInfo.liveOut)) {
-                    changed = true;
-                    blockLiveInfo.liveOut = newLiveOut;
-
-                    blockLiveInfo.liveIn = new HashSet<>(blockLiveInfo.liveUse);
-                    blockLiveInfo.liveOut.stream()
-                            .filter(MachineOperand -> !blockLiveInfo.liveDef.contains(MachineOperand))
-                            .forEach(blockLiveInfo.liveIn::add);
+                if (!blockDone) {
+                    liveness.changed(func, block);
+                    done = false;
                 }
             }
         }
 
-        return liveInfoMap;
+        return done;
     }
 
     private void replaceUseReg(MachineCode instr, MachineOperand origin, MachineOperand target) {
@@ -340,6 +268,12 @@ public class PeepholeOptimization implements Pass.MCPass {
             if (storeInstr.getData().equals(origin)) {
                 storeInstr.setData(target);
             }
+        } else if (instr instanceof MCVector) {
+            var vectorInstr = (MCVector) instr;
+            if (vectorInstr.getKind() != MCVector.Kind.ExtractLane && vectorInstr.getScalar() != null
+                    && vectorInstr.getScalar().equals(origin)) {
+                vectorInstr.setScalar(target);
+            }
         }
     }
 
@@ -347,31 +281,34 @@ public class PeepholeOptimization implements Pass.MCPass {
         boolean done = true;
 
         for (var func : manager.getMachineFunctions()) {
-            var liveInfoMap = livenessAnalysis(func);
+            // 一轮里用的都是这一轮开始时的活跃信息，改过的块在函数处理完之后再通知
+            var liveness = MCLiveness.getInstance().get(func, MCLiveness.Mode.MACHINE);
+            var changedBlocks = new ArrayList<MachineBlock>();
 
             for (var blockEntry : func.getmbList()) {
                 var block = blockEntry.getVal();
-                var liveRangePair = getLiveRangeInBlock(block);
-                var lastDefiner = liveRangePair.getFirst();
-                var lastUserMap = liveRangePair.getSecond();
-                var liveout = liveInfoMap.get(block).liveOut;
+                var defUse = liveness.defUse(block);
+                var lastDefiner = defUse.getLastDefiner();
+                var lastUserMap = defUse.getLastUser();
+                boolean blockDone = true;
 
-                for (var instrEntryIter = block.getmclist().iterator(); instrEntryIter.hasNext(); ) {
-                    var instrEntry = instrEntryIter.next();
+                for (var instrEntryIter = cursor.reset(block.getmclist()); instrEntryIter.advance(); ) {
+                    var instrEntry = instrEntryIter.node();
                     var instr = instrEntry.getVal();
                     boolean hasNoCond = instr.getCond() == Any;
                     boolean hasNoShift = instr.getShift().isNone();
 
                     // Remove unused instr
                     var lastUser = lastUserMap.get(instr);
-                    var isLastDefInstr = instr.getDef().stream().allMatch(def -> lastDefiner.get(def).equals(instr));
-                    var defRegInLiveout = instr.getDef().stream().anyMatch(liveout::contains);
-                    var defNotSP = instr.getDef().stream().noneMatch(def -> def.getName().equals("sp"));
+                    var defs = MCLiveness.defs(instr, MCLiveness.Mode.MACHINE);
+                    var isLastDefInstr = defs.stream().allMatch(def -> lastDefiner.get(def).equals(instr));
+                    var defRegInLiveout = defs.stream().anyMatch(def -> liveness.isLiveOut(block, def));
+                    var defNotSP = defs.stream().noneMatch(def -> def.getName().equals("sp"));
 
                     if (!(isLastDefInstr && defRegInLiveout) && hasNoCond) { // is last instr and will be used in the future
                         if (lastUser == null && hasNoShift && defNotSP) {
                             instrEntryIter.remove();
-                            done = false;
+                            blockDone = false;
                             continue;
                         }
 
@@ -859,16 +796,7 @@ public class PeepholeOptimization implements Pass.MCPass {
                             fmaInstr.mf = func;
 
                             // maintain data flow info
-                            if (lastUserMap.containsKey(nxtInstr)) {
-                                lastUserMap.put(fmaInstr, lastUserMap.get(nxtInstr));
-                                lastUserMap.remove(nxtInstr);
-                            }
-
-                            if (lastDefiner.containsValue(nxtInstr)) {
-                                var key = fmaInstr.getDef().get(0);
-                                assert key != null;
-                                lastDefiner.put(key, fmaInstr);
-                            }
+                            defUse.replaced(nxtInstr, fmaInstr);
 
                             instrEntryIter.remove();
                             return false;
@@ -1010,16 +938,7 @@ public class PeepholeOptimization implements Pass.MCPass {
                                 moveInstr.mf = func;
 
                                 // maintain data flow info
-                                if (lastUserMap.containsKey(nxtInstr)) {
-                                    lastUserMap.put(moveInstr, lastUserMap.get(nxtInstr));
-                                    lastUserMap.remove(nxtInstr);
-                                }
-
-                                if (lastDefiner.containsValue(nxtInstr)) {
-                                    var key = moveInstr.getDef().get(0);
-                                    assert key != null;
-                                    lastDefiner.put(key, moveInstr);
-                                }
+                                defUse.replaced(nxtInstr, moveInstr);
                                 instrEntryIter.remove();
                                 return false;
                             } else {
@@ -1077,7 +996,7 @@ public class PeepholeOptimization implements Pass.MCPass {
                             }
                         }
 
-                        done &= addSubLdrStr.get()
+                        blockDone &= addSubLdrStr.get()
                                 && addLdrStrShift.get()
                                 && mulAddSub.get()
                                 && subSub.get()
@@ -1089,7 +1008,13 @@ public class PeepholeOptimization implements Pass.MCPass {
                         ;
                     }
                 }
+
+                if (!blockDone) {
+                    changedBlocks.add(block);
+                    done = false;
+                }
             }
+            changedBlocks.forEach(liveness::changed);
         }
         return done;
     }
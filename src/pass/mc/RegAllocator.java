@@ -3,98 +3,50 @@ package pass.mc;
 import backend.CodeGenManager;
 import backend.machinecodes.*;
 import backend.reg.*;
-import driver.Config;
-import util.Pair;
 
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 import pass.Pass.MCPass;
+import pass.mc.InterferenceGraph.IndexLists;
 
 // Graph-Coloring
 public class RegAllocator implements MCPass {
     private final int INF = 0x3f3f3f3f;
     private final int K = 14;
+    // 可以分配的颜色：r0-r12 和 lr
+    private static final int OK_COLORS = ((1 << 15) - 1) & ~(1 << 13);
+
+    // 结点所在的工作表
+    private static final int SIMPLIFY = 0;
+    private static final int FREEZE = 1;
+    private static final int SPILL = 2;
+    private static final int SELECT = 3;
+    private static final int COALESCED = 4;
+    private static final int NODE_LISTS = 5;
+
+    // 传送指令所在的表
+    private static final int WORKLIST_MOVES = 0;
+    private static final int ACTIVE_MOVES = 1;
+    private static final int COALESCED_MOVES = 2;
+    private static final int CONSTRAINED_MOVES = 3;
+    private static final int FROZEN_MOVES = 4;
+    private static final int MOVE_LISTS = 5;
 
     @Override
     public String getName() {
         return "RegAlloc";
     }
 
-    private static class BlockLiveInfo {
-        private final HashSet<MachineOperand> liveUse = new HashSet<>();
-        private final HashSet<MachineOperand> liveDef = new HashSet<>();
-        private HashSet<MachineOperand> liveIn = new HashSet<>();
-        private HashSet<MachineOperand> liveOut = new HashSet<>();
-
-        BlockLiveInfo(MachineBlock block) {
-        }
-    }
-
-
-    private HashMap<MachineBlock, BlockLiveInfo> livenessAnalysis(MachineFunction func) {
-        var liveInfoMap = new HashMap<MachineBlock, BlockLiveInfo>();
-        for (var blockEntry : func.getmbList()) {
-            var block = blockEntry.getVal();
-            var blockLiveInfo = new BlockLiveInfo(block);
-            liveInfoMap.put(block, blockLiveInfo);
-
-            for (var instrEntry : block.getmclist()) {
-                var instr = instrEntry.getVal();
-                instr.getUse().stream()
-                        .filter(MachineOperand::needsColor)
-                        .filter(use -> !blockLiveInfo.liveDef.contains(use))
-                        .forEach(blockLiveInfo.liveUse::add);
-                instr.getDef().stream()
-                        .filter(MachineOperand::needsColor)
-                        .filter(def -> !blockLiveInfo.liveUse.contains(def))
-                        .forEach(blockLiveInfo.liveDef::add);
-            }
-
-            blockLiveInfo.liveIn.addAll(blockLiveInfo.liveUse);
-        }
-
-        boolean changed = true;
-        while (changed) {
-            changed = false;
-            for (var blockEntry : func.getmbList()) {
-                var block = blockEntry.getVal();
-                var blockLiveInfo = liveInfoMap.get(block);
-                var newLiveOut = new HashSet<MachineOperand>();
-
-                if (block.getTrueSucc() != null) {
-                    var succBlockInfo = liveInfoMap.get(block.getTrueSucc());
-                    newLiveOut.addAll(succBlockInfo.liveIn);
-                }
-
-                if (block.getFalseSucc() != null) {
-                    var succBlockInfo = liveInfoMap.get(block.getFalseSucc());
-                    newLiveOut.addAll(succBlockInfo.liveIn);
-                }
-
-                if (!newLiveOut.equals(blockLiveInfo.liveOut)) {
-                    changed = true;
-                    blockLiveInfo.liveOut = newLiveOut;
-
-                    blockLiveInfo.liveIn = new HashSet<>(blockLiveInfo.liveUse);
-                    blockLiveInfo.liveOut.stream()
-                            .filter(MachineOperand -> !blockLiveInfo.liveDef.contains(MachineOperand))
-                            .forEach(blockLiveInfo.liveIn::add);
-                }
-            }
-        }
-
-        return liveInfoMap;
-    }
-
-    private void replaceReg(MachineCode instr, MachineOperand origin, MachineOperand target) {
+    static void replaceReg(MachineCode instr, MachineOperand origin, MachineOperand target) {
         if (instr.getShift().isReg) {
             if (instr.getShift().getReg().equals(origin)) {
                 instr.setShiftReg((Reg) target);
@@ -175,68 +127,70 @@ public class RegAllocator implements MCPass {
             if (storeInstr.getData().equals(origin)) {
                 storeInstr.setData(target);
             }
+        } else if (instr instanceof MCVector) {
+            var vectorInstr = (MCVector) instr;
+            if (vectorInstr.getScalar() != null && vectorInstr.getScalar().equals(origin)) {
+                vectorInstr.setScalar(target);
+            }
         }
     }
 
     public void run(CodeGenManager manager) {
-        if (Config.getInstance().runStableRegAlloc) {
-            return;
-        }
-
+        var linearScan = new LinearScanRegAllocator();
         for (var func : manager.getMachineFunctions()) {
+            if (LinearScanRegAllocator.preferredFor(func)) {
+                linearScan.allocate(func);
+                continue;
+            }
+
             var done = false;
             HashMap<VirtualReg, VirtualReg> newToOldMap = new HashMap<>();
             HashMap<VirtualReg, Integer> newVRegLiveLength = new HashMap<>();
+            // 溢出之后重新分配时复用编号、冲突图和工作表；活跃信息只重新扫描溢出时改过的块
+            var liveness = MCLiveness.getInstance().get(func, MCLiveness.Mode.ALLOCATION);
+            var regs = liveness.getRegs();
+            var graph = new InterferenceGraph();
+            var nodes = new IndexLists(NODE_LISTS);
+            var moveStates = new IndexLists(MOVE_LISTS);
             while (!done) {
-                var liveInfoMap = livenessAnalysis(func);
-
-                var adjList = new HashMap<MachineOperand, HashSet<MachineOperand>>();
-                var adjSet = new HashSet<Pair<MachineOperand, MachineOperand>>();
-                var alias = new HashMap<MachineOperand, MachineOperand>();
-                var moveList = new HashMap<MachineOperand, HashSet<MCMove>>();
-                var simplifyWorklist = new HashSet<MachineOperand>();
-                var freezeWorklist = new HashSet<MachineOperand>();
-                var spillWorklist = new HashSet<MachineOperand>();
-                var spilledNodes = new HashSet<MachineOperand>();
-                var coalescedNodes = new HashSet<MachineOperand>();
-                var selectStack = new Stack<MachineOperand>();
-                var worklistMoves = new HashSet<MCMove>();
-                var activeMoves = new HashSet<MCMove>();
-                var loopDepth = new HashMap<MachineOperand, Integer>();
-                // maybe removed
-                var coalescedMoves = new HashSet<MCMove>();
-                var constrainedMoves = new HashSet<MCMove>();
-                var frozenMoves = new HashSet<MCMove>();
-
-                Map<MachineOperand, Integer> degree = IntStream.range(0, 17)
-                        .mapToObj(func::getPhyReg)
-                        .collect(Collectors.toMap(MachineOperand -> MachineOperand, MachineOperand -> INF));
-
-                BiConsumer<MachineOperand, MachineOperand> addEdge = (u, v) -> {
-                    if (!adjSet.contains(new Pair<>(u, v)) && !u.equals(v)) {
-                        adjSet.add(new Pair<>(u, v));
-                        adjSet.add(new Pair<>(v, u));
-                        if (!u.isPrecolored()) {
-                            adjList.putIfAbsent(u, new HashSet<>());
-                            adjList.get(u).add(v);
-                            // degree.putIfAbsent(u, 0);
-                            degree.compute(u, (key, value) -> value == null ? 0 : value + 1);
-                        }
-                        if (!v.isPrecolored()) {
-                            adjList.putIfAbsent(v, new HashSet<>());
-                            adjList.get(v).add(u);
-                            // degree.putIfAbsent(v, 0);
-                            degree.compute(v, (key, value) -> value == null ? 0 : value + 1);
-                        }
+                liveness.solve();
+                for (var vreg : func.getVRegMap().values()) {
+                    regs.number(vreg);
+                }
+                int nodeCount = regs.size();
+                graph.reset(nodeCount, INF);
+                nodes.reset(nodeCount);
+                moveStates.reset(0);
+
+                var moves = new ArrayList<MCMove>();
+                var moveEnds = new ArrayList<int[]>();
+                var moveList = new int[nodeCount][];
+                var moveListSize = new int[nodeCount];
+                var alias = new int[nodeCount];
+                var loopDepth = new int[nodeCount];
+                Arrays.fill(loopDepth, -1);
+                // conservative 里去重用
+                var mark = new int[nodeCount];
+                var stamp = new int[]{0};
+                var spilledNodes = new ArrayList<MachineOperand>();
+
+                BiConsumer<Integer, Integer> addMove = (node, move) -> {
+                    if (moveList[node] == null) {
+                        moveList[node] = new int[4];
+                    } else if (moveListSize[node] == moveList[node].length) {
+                        moveList[node] = Arrays.copyOf(moveList[node], moveListSize[node] * 2);
                     }
+                    moveList[node][moveListSize[node]++] = move;
                 };
 
                 Runnable build = () -> {
+                    var live = new BitSet();
                     for (var blockEntry = func.getmbList().getLast();
                          blockEntry != null;
                          blockEntry = blockEntry.getPrev()) {
                         var block = blockEntry.getVal();
-                        var live = new HashSet<>(liveInfoMap.get(block).liveOut);
+                        live.clear();
+                        live.or(liveness.liveOut(block));
 
                         for (var instrEntry = block.getmclist().getLast();
                              instrEntry != null;
@@ -248,257 +202,298 @@ public class RegAllocator implements MCPass {
                             if (instr instanceof MCMove &&
                                     instr.getCond() == ArmAddition.CondType.Any && instr.getShift().isNone()) {
                                 var mcInstr = (MCMove) instr;
-                                var dst = mcInstr.getDst();
-                                var rhs = mcInstr.getRhs();
-                                if (dst.needsColor() && rhs.needsColor()) {
-                                    live.remove(mcInstr.getRhs());
-
-                                    moveList.putIfAbsent(rhs, new HashSet<>());
-                                    moveList.get(rhs).add(mcInstr);
+                                int dst = regs.number(mcInstr.getDst());
+                                int rhs = regs.number(mcInstr.getRhs());
+                                if (dst >= 0 && rhs >= 0) {
+                                    live.clear(rhs);
+
+                                    int move = moves.size();
+                                    moves.add(mcInstr);
+                                    moveEnds.add(new int[]{dst, rhs});
+                                    addMove.accept(rhs, move);
+                                    if (dst != rhs) {
+                                        addMove.accept(dst, move);
+                                    }
+                                    moveStates.moveTo(move, WORKLIST_MOVES);
+                                }
+                            }
+                            for (var d : defs) {
+                                int i = regs.number(d);
+                                if (i >= 0) {
+                                    live.set(i);
+                                }
+                            }
+                            for (var d : defs) {
+                                int i = regs.number(d);
+                                if (i >= 0) {
+                                    for (int l = live.nextSetBit(0); l >= 0; l = live.nextSetBit(l + 1)) {
+                                        graph.addEdge(l, i);
+                                    }
+                                }
+                            }
 
-                                    moveList.putIfAbsent(dst, new HashSet<>());
-                                    moveList.get(dst).add(mcInstr);
+                            // heuristic
+                            for (var d : defs) {
+                                int i = regs.number(d);
+                                if (i >= 0) {
+                                    loopDepth[i] = loopDepth[i] < 0 ? 0 : loopDepth[i] + block.getLoopDepth();
+                                }
+                            }
+                            for (var u : uses) {
+                                int i = regs.number(u);
+                                if (i >= 0) {
+                                    loopDepth[i] = loopDepth[i] < 0 ? 0 : loopDepth[i] + block.getLoopDepth();
+                                }
+                            }
 
-                                    worklistMoves.add(mcInstr);
+                            for (var d : defs) {
+                                int i = regs.number(d);
+                                if (i >= 0) {
+                                    live.clear(i);
+                                }
+                            }
+                            for (var u : uses) {
+                                int i = regs.number(u);
+                                if (i >= 0) {
+                                    live.set(i);
                                 }
                             }
-                            defs.stream().filter(MachineOperand::needsColor).forEach(live::add);
-                            defs.stream().filter(MachineOperand::needsColor).forEach(d -> live.forEach(l -> addEdge.accept(l, d)));
+                        }
+                    }
+                };
 
-                            // heuristic
-                            defs.stream().filter(MachineOperand::needsColor).forEach(d -> {
-                                // loopDepth.putIfAbsent(d, 0);
-                                loopDepth.compute(d, (key, value) -> value == null ? 0 : value + block.getLoopDepth());
-                            });
+                // 不在 select 栈上、也没有被合并掉的邻居
+                IntPredicate isRemoved = n -> nodes.listOf(n) == SELECT || nodes.listOf(n) == COALESCED;
 
-                            uses.stream().filter(MachineOperand::needsColor).forEach(u -> {
-                                // loopDepth.putIfAbsent(u, 0);
-                                loopDepth.compute(u, (key, value) -> value == null ? 0 : value + block.getLoopDepth());
-                            });
+                IntPredicate isMoveActive = m ->
+                        moveStates.listOf(m) == WORKLIST_MOVES || moveStates.listOf(m) == ACTIVE_MOVES;
 
-                            defs.stream().filter(MachineOperand::needsColor).forEach(live::remove);
+                IntPredicate moveRelated = n -> {
+                    for (int i = 0; i < moveListSize[n]; i++) {
+                        if (isMoveActive.test(moveList[n][i])) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
 
-                            uses.stream().filter(MachineOperand::needsColor).forEach(live::add);
+                Runnable makeWorklist = () -> {
+                    for (int n = 0; n < nodeCount; n++) {
+                        if (InterferenceGraph.isPrecolored(n)) {
+                            continue;
+                        }
+                        if (graph.degree(n) >= K) {
+                            nodes.moveTo(n, SPILL);
+                        } else if (moveRelated.test(n)) {
+                            nodes.moveTo(n, FREEZE);
+                        } else {
+                            nodes.moveTo(n, SIMPLIFY);
                         }
                     }
                 };
 
-                Function<MachineOperand, Set<MachineOperand>> getAdjacent = n -> adjList.getOrDefault(n, new HashSet<>()).stream()
-                        .filter(operand -> !(selectStack.contains(operand) || coalescedNodes.contains(operand)))
-                        .collect(Collectors.toSet());
-
-                Function<MachineOperand, Set<MCMove>> nodeMoves = n -> moveList.getOrDefault(n, new HashSet<>()).stream()
-                        .filter(move -> activeMoves.contains(move) || worklistMoves.contains(move))
-                        .collect(Collectors.toSet());
-
-                Function<MachineOperand, Boolean> moveRelated = n -> !nodeMoves.apply(n).isEmpty();
-
-                Runnable makeWorklist = () ->
-                        func.getVRegMap().values()
-                                .stream().filter(vreg -> !vreg.isGlobal())
-                                .forEach(vreg -> {
-                                    if (degree.getOrDefault(vreg, 0) >= K) {
-                                        spillWorklist.add(vreg);
-                                    } else if (moveRelated.apply(vreg)) {
-                                        freezeWorklist.add(vreg);
-                                    } else {
-                                        simplifyWorklist.add(vreg);
-                                    }
-                                });
+                IntConsumer enableMovesOf = n -> {
+                    for (int i = 0; i < moveListSize[n]; i++) {
+                        int m = moveList[n][i];
+                        if (moveStates.listOf(m) == ACTIVE_MOVES) {
+                            moveStates.moveTo(m, WORKLIST_MOVES);
+                        }
+                    }
+                };
 
-                Consumer<MachineOperand> enableMoves = n -> {
-                    nodeMoves.apply(n).stream()
-                            .filter(activeMoves::contains)
-                            .forEach(m -> {
-                                activeMoves.remove(m);
-                                worklistMoves.add(m);
-                            });
-
-                    getAdjacent.apply(n).forEach(a -> nodeMoves.apply(a).stream()
-                            .filter(activeMoves::contains)
-                            .forEach(m -> {
-                                activeMoves.remove(m);
-                                worklistMoves.add(m);
-                            }));
+                IntConsumer enableMoves = n -> {
+                    enableMovesOf.accept(n);
+                    var adjacent = graph.adjacent(n);
+                    for (int i = 0; i < graph.adjacentCount(n); i++) {
+                        if (!isRemoved.test(adjacent[i])) {
+                            enableMovesOf.accept(adjacent[i]);
+                        }
+                    }
                 };
 
-                Consumer<MachineOperand> decrementDegree = m -> {
-                    var d = degree.get(m);
-                    degree.put(m, d - 1);
+                IntConsumer decrementDegree = m -> {
+                    var d = graph.degree(m);
+                    graph.setDegree(m, d - 1);
                     if (d == K) {
                         enableMoves.accept(m);
-                        spillWorklist.add(m);
-                        if (moveRelated.apply(m)) {
-                            freezeWorklist.add(m);
-                        } else {
-                            simplifyWorklist.add(m);
-                        }
+                        nodes.moveTo(m, moveRelated.test(m) ? FREEZE : SIMPLIFY);
                     }
                 };
 
                 Runnable simplify = () -> {
-                    var n = simplifyWorklist.iterator().next();
-                    simplifyWorklist.remove(n);
-                    selectStack.push(n);
-                    getAdjacent.apply(n).forEach(decrementDegree);
+                    var n = nodes.first(SIMPLIFY);
+                    nodes.moveTo(n, SELECT);
+                    var adjacent = graph.adjacent(n);
+                    for (int i = 0; i < graph.adjacentCount(n); i++) {
+                        if (!isRemoved.test(adjacent[i])) {
+                            decrementDegree.accept(adjacent[i]);
+                        }
+                    }
                 };
 
-                Function<MachineOperand, MachineOperand> getAlias = n -> {
-                    while (coalescedNodes.contains(n)) {
-                        n = alias.get(n);
+                IntUnaryOperator getAlias = n -> {
+                    while (nodes.listOf(n) == COALESCED) {
+                        n = alias[n];
                     }
                     return n;
                 };
 
-                Consumer<MachineOperand> addWorklist = u -> {
-                    if (!u.isPrecolored() && !moveRelated.apply(u) && degree.getOrDefault(u, 0) < K) {
-                        freezeWorklist.remove(u);
-                        simplifyWorklist.add(u);
+                IntConsumer addWorklist = u -> {
+                    if (nodes.listOf(u) == FREEZE && !moveRelated.test(u) && graph.degree(u) < K) {
+                        nodes.moveTo(u, SIMPLIFY);
                     }
                 };
 
-                BiPredicate<MachineOperand, MachineOperand> ok = (t, r) ->
-                        degree.get(t) < K || t.isPrecolored() || adjSet.contains(new Pair<>(t, r));
+                BiPredicate<Integer, Integer> ok = (t, r) ->
+                        graph.degree(t) < K || InterferenceGraph.isPrecolored(t) || graph.interfere(t, r);
 
-                BiPredicate<MachineOperand, MachineOperand> adjOk = (v, u) ->
-                        getAdjacent.apply(v).stream().allMatch(t -> ok.test(t, u));
+                BiPredicate<Integer, Integer> adjOk = (v, u) -> {
+                    var adjacent = graph.adjacent(v);
+                    for (int i = 0; i < graph.adjacentCount(v); i++) {
+                        if (!isRemoved.test(adjacent[i]) && !ok.test(adjacent[i], u)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                };
 
-                BiConsumer<MachineOperand, MachineOperand> combine = (u, v) -> {
-                    if (freezeWorklist.contains(v)) {
-                        freezeWorklist.remove(v);
-                    } else {
-                        spillWorklist.remove(v);
+                BiConsumer<Integer, Integer> combine = (u, v) -> {
+                    nodes.moveTo(v, COALESCED);
+                    alias[v] = u;
+                    for (int i = 0; i < moveListSize[v]; i++) {
+                        int m = moveList[v][i];
+                        boolean present = false;
+                        for (int j = 0; j < moveListSize[u] && !present; j++) {
+                            present = moveList[u][j] == m;
+                        }
+                        if (!present) {
+                            addMove.accept(u, m);
+                        }
+                    }
+                    var adjacent = graph.adjacent(v);
+                    for (int i = 0; i < graph.adjacentCount(v); i++) {
+                        int t = adjacent[i];
+                        if (!isRemoved.test(t)) {
+                            graph.addEdge(t, u);
+                            decrementDegree.accept(t);
+                        }
                     }
 
-                    coalescedNodes.add(v);
-                    alias.put(v, u);
-                    moveList.get(u).addAll(moveList.get(v));
-                    // enableMoves.accept(v);
-                    getAdjacent.apply(v).forEach(t -> {
-                        addEdge.accept(t, u);
-                        decrementDegree.accept(t);
-                    });
-
-                    if (degree.getOrDefault(u, 0) >= K && freezeWorklist.contains(u)) {
-                        freezeWorklist.remove(u);
-                        spillWorklist.add(u);
+                    if (graph.degree(u) >= K && nodes.listOf(u) == FREEZE) {
+                        nodes.moveTo(u, SPILL);
                     }
                 };
 
-                BiPredicate<Set<MachineOperand>, Set<MachineOperand>> conservative = (u, v) -> {
-                    u.addAll(v);
-                    var cnt = u.stream().filter(n -> degree.get(n) >= K).count();
+                BiPredicate<Integer, Integer> conservative = (u, v) -> {
+                    stamp[0]++;
+                    int cnt = 0;
+                    for (int n : new int[]{u, v}) {
+                        var adjacent = graph.adjacent(n);
+                        for (int i = 0; i < graph.adjacentCount(n); i++) {
+                            int t = adjacent[i];
+                            if (!isRemoved.test(t) && mark[t] != stamp[0]) {
+                                mark[t] = stamp[0];
+                                if (graph.degree(t) >= K) {
+                                    cnt++;
+                                }
+                            }
+                        }
+                    }
                     return cnt < K;
                 };
 
                 Runnable coalesce = () -> {
-                    var m = worklistMoves.iterator().next();
-                    var u = getAlias.apply(m.getDst());
-                    var v = getAlias.apply(m.getRhs());
-                    if (v.isPrecolored()) {
+                    var m = moveStates.first(WORKLIST_MOVES);
+                    var u = getAlias.applyAsInt(moveEnds.get(m)[0]);
+                    var v = getAlias.applyAsInt(moveEnds.get(m)[1]);
+                    if (InterferenceGraph.isPrecolored(v)) {
                         var temp = u;
                         u = v;
                         v = temp;
                     }
-                    worklistMoves.remove(m);
-                    if (u.equals(v)) {
-                        coalescedMoves.add(m);
+                    if (u == v) {
+                        moveStates.moveTo(m, COALESCED_MOVES);
                         addWorklist.accept(u);
-                    } else if (v.isPrecolored() || adjSet.contains(new Pair<>(u, v))) {
-                        constrainedMoves.add(m);
+                    } else if (InterferenceGraph.isPrecolored(v) || graph.interfere(u, v)) {
+                        moveStates.moveTo(m, CONSTRAINED_MOVES);
                         addWorklist.accept(u);
                         addWorklist.accept(v);
-                    } else if ((u.isPrecolored() && adjOk.test(v, u)) ||
-                            (!u.isPrecolored() && conservative.test(getAdjacent.apply(u), getAdjacent.apply(v)))) {
-                        coalescedMoves.add(m);
+                    } else if ((InterferenceGraph.isPrecolored(u) && adjOk.test(v, u)) ||
+                            (!InterferenceGraph.isPrecolored(u) && conservative.test(u, v))) {
+                        moveStates.moveTo(m, COALESCED_MOVES);
                         combine.accept(u, v);
                         addWorklist.accept(u);
                     } else {
-                        activeMoves.add(m);
+                        moveStates.moveTo(m, ACTIVE_MOVES);
                     }
                 };
 
-                Consumer<MachineOperand> freezeMoves = u ->
-                {
-                    for (MCMove m : nodeMoves.apply(u)) {
-                        if (activeMoves.contains(m)) {
-                            activeMoves.remove(m);
-                        } else {
-                            worklistMoves.remove(m);
+                IntConsumer freezeMoves = u -> {
+                    for (int i = 0; i < moveListSize[u]; i++) {
+                        int m = moveList[u][i];
+                        if (!isMoveActive.test(m)) {
+                            continue;
                         }
-                        frozenMoves.add(m);
+                        moveStates.moveTo(m, FROZEN_MOVES);
 
-                        var v = m.getDst().equals(u) ? m.getRhs() : m.getDst();
-                        if (!moveRelated.apply(v) && degree.getOrDefault(v, 0) < K) {
-                            freezeWorklist.remove(v);
-                            simplifyWorklist.add(v);
+                        var x = getAlias.applyAsInt(moveEnds.get(m)[0]);
+                        var y = getAlias.applyAsInt(moveEnds.get(m)[1]);
+                        var v = y == getAlias.applyAsInt(u) ? x : y;
+                        if (!moveRelated.test(v) && graph.degree(v) < K && nodes.listOf(v) == FREEZE) {
+                            nodes.moveTo(v, SIMPLIFY);
                         }
                     }
                 };
 
                 Runnable freeze = () -> {
-                    var u = freezeWorklist.iterator().next();
-                    freezeWorklist.remove(u);
-                    simplifyWorklist.add(u);
+                    var u = nodes.first(FREEZE);
+                    nodes.moveTo(u, SIMPLIFY);
                     freezeMoves.accept(u);
                 };
 
                 Runnable selectSpill = () -> {
                     // heuristic
-                    // var m = spillWorklist.iterator().next();
-                    var m = spillWorklist.stream().max((l, r) -> {
-                        var value1 = degree.getOrDefault(l, 0).doubleValue() / Math.pow(1.4, loopDepth.getOrDefault(l, 0));
-                        var value2 = degree.getOrDefault(r, 0).doubleValue() / Math.pow(1.4, loopDepth.getOrDefault(r, 0));
+                    int m = IndexLists.NONE;
+                    double best = 0;
+                    for (int n = nodes.first(SPILL); n != IndexLists.NONE; n = nodes.next(n)) {
+                        var value = graph.degree(n) / Math.pow(1.4, Math.max(0, loopDepth[n]));
 
                         // attention: avoid to choose recently spilled reg which has short live range
-                        if (l instanceof VirtualReg) {
-                            var vl = (VirtualReg) l;
-                            if (newVRegLiveLength.getOrDefault(vl, INF) < 5) {
-                                value1 = 0;
+                        if (regs.get(n) instanceof VirtualReg) {
+                            var vreg = (VirtualReg) regs.get(n);
+                            if (newVRegLiveLength.getOrDefault(vreg, INF) < 5) {
+                                value = 0;
                             }
                         }
 
-                        if (r instanceof VirtualReg) {
-                            var vr = (VirtualReg) r;
-                            if (newVRegLiveLength.getOrDefault(vr, INF) < 5) {
-                                value2 = 0;
-                            }
+                        if (m == IndexLists.NONE || value > best) {
+                            m = n;
+                            best = value;
                         }
-
-                        return Double.compare(value1, value2);
-                    }).get();
-                    simplifyWorklist.add(m);
+                    }
+                    nodes.moveTo(m, SIMPLIFY);
                     freezeMoves.accept(m);
-                    spillWorklist.remove(m);
                 };
 
                 Runnable assignColors = () -> {
-                    var colored = new HashMap<MachineOperand, MachineOperand>();
-                    selectStack.removeIf(n -> n instanceof VirtualReg && ((VirtualReg) n).isGlobal());
-                    while (!selectStack.isEmpty()) {
-                        var n = selectStack.pop();
-                        var okColors = IntStream.range(0, 15).filter(i -> i != 13).boxed() // 15
-                                .collect(Collectors.toCollection(HashSet::new));
-
-                        for (MachineOperand w : adjList.getOrDefault(n, new HashSet<>())) {
-                            var a = getAlias.apply(w);
-                            if (a.isAllocated() || a.isPrecolored()) {
-                                assert a instanceof PhyReg;
-                                okColors.remove(((PhyReg) a).getIdx());
-                            } else if (a instanceof VirtualReg) {
-                                if (colored.containsKey(a)) {
-                                    var color = colored.get(a);
-                                    assert color instanceof PhyReg;
-                                    okColors.remove(((PhyReg) color).getIdx());
-                                }
+                    var color = new int[nodeCount];
+                    Arrays.fill(color, -1);
+                    for (int n = nodes.last(SELECT); n != IndexLists.NONE; n = nodes.prev(n)) {
+                        int okColors = OK_COLORS;
+                        var adjacent = graph.adjacent(n);
+                        for (int i = 0; i < graph.adjacentCount(n); i++) {
+                            var a = getAlias.applyAsInt(adjacent[i]);
+                            if (InterferenceGraph.isPrecolored(a)) {
+                                okColors &= ~(1 << a);
+                            } else if (color[a] >= 0) {
+                                okColors &= ~(1 << color[a]);
                             }
                         }
 
-                        if (okColors.isEmpty()) {
-                            spilledNodes.add(n);
+                        if (okColors == 0) {
+                            spilledNodes.add(regs.get(n));
                         } else {
-                            var color = okColors.iterator().next();
-                            colored.put(n, func.getAllocatedReg(color));
+                            color[n] = Integer.numberOfTrailingZeros(okColors);
                         }
                     }
 
@@ -506,14 +501,16 @@ public class RegAllocator implements MCPass {
                         return;
                     }
 
-                    coalescedNodes.forEach(n -> {
-                        var a = getAlias.apply(n);
-                        if (a.isPrecolored()) {
-                            colored.put(n, a);
-                        } else {
-                            colored.put(n, colored.get(a));
+                    var colored = new MachineOperand[nodeCount];
+                    for (int n = 0; n < nodeCount; n++) {
+                        if (color[n] >= 0) {
+                            colored[n] = func.getAllocatedReg(color[n]);
                         }
-                    });
+                    }
+                    for (int n = nodes.first(COALESCED); n != IndexLists.NONE; n = nodes.next(n)) {
+                        var a = getAlias.applyAsInt(n);
+                        colored[n] = InterferenceGraph.isPrecolored(a) ? regs.get(a) : colored[a];
+                    }
 
                     for (var blockEntry : func.getmbList()) {
                         var block = blockEntry.getVal();
@@ -523,10 +520,18 @@ public class RegAllocator implements MCPass {
                             var defs = new ArrayList<>(instr.getDef());
                             var uses = new ArrayList<>(instr.getUse());
 
-                            defs.stream().filter(colored::containsKey)
-                                    .forEach(def -> replaceReg(instr, def, colored.get(def)));
-                            uses.stream().filter(colored::containsKey)
-                                    .forEach(use -> replaceReg(instr, use, colored.get(use)));
+                            for (var def : defs) {
+                                int n = regs.number(def);
+                                if (n >= 0 && colored[n] != null) {
+                                    replaceReg(instr, def, colored[n]);
+                                }
+                            }
+                            for (var use : uses) {
+                                int n = regs.number(use);
+                                if (n >= 0 && colored[n] != null) {
+                                    replaceReg(instr, use, colored[n]);
+                                }
+                            }
                         }
                     }
                 };
@@ -534,20 +539,20 @@ public class RegAllocator implements MCPass {
                 build.run();
                 makeWorklist.run();
                 do {
-                    if (!simplifyWorklist.isEmpty()) {
+                    if (!nodes.isEmpty(SIMPLIFY)) {
                         simplify.run();
                     }
-                    if (!worklistMoves.isEmpty()) {
+                    if (!moveStates.isEmpty(WORKLIST_MOVES)) {
                         coalesce.run();
                     }
-                    if (!freezeWorklist.isEmpty()) {
+                    if (!nodes.isEmpty(FREEZE)) {
                         freeze.run();
                     }
-                    if (!spillWorklist.isEmpty()) {
+                    if (!nodes.isEmpty(SPILL)) {
                         selectSpill.run();
                     }
-                } while (!(simplifyWorklist.isEmpty() && worklistMoves.isEmpty() &&
-                        freezeWorklist.isEmpty() && spillWorklist.isEmpty()));
+                } while (!(nodes.isEmpty(SIMPLIFY) && moveStates.isEmpty(WORKLIST_MOVES) &&
+                        nodes.isEmpty(FREEZE) && nodes.isEmpty(SPILL)));
 
                 assignColors.run();
 
@@ -567,6 +572,7 @@ public class RegAllocator implements MCPass {
                                 VirtualReg vreg = null;
                                 MachineCode firstUse = null;
                                 MachineCode lastDef = null;
+                                boolean changed = false;
                             };
 
                             Function<VirtualReg, VirtualReg> cloneVReg = oldVReg -> {
@@ -873,6 +879,7 @@ public class RegAllocator implements MCPass {
 
                                     replaceReg(instr, def, ref.vreg);
                                     ref.lastDef = instr;
+                                    ref.changed = true;
                                 });
 
                                 uses.stream().filter(use -> use.equals(n)).forEach(use -> {
@@ -881,6 +888,7 @@ public class RegAllocator implements MCPass {
                                     }
 
                                     replaceReg(instr, use, ref.vreg);
+                                    ref.changed = true;
                                     if (ref.firstUse == null && ref.lastDef == null) {
                                         ref.firstUse = instr;
                                     }
@@ -894,6 +902,9 @@ public class RegAllocator implements MCPass {
                             }
 
                             checkPoint.run();
+                            if (ref.changed) {
+                                liveness.changed(block);
+                            }
                         }
 
                         if (storeInStack) {
@@ -903,13 +914,14 @@ public class RegAllocator implements MCPass {
                     done = false;
                 }
             }
+            MCLiveness.getInstance().invalidate(func);
         }
 
         simplifyRegType(manager);
         manager.getMachineFunctions().forEach(manager::fixStack);
     }
 
-    private void simplifyRegType(CodeGenManager manager) {
+    static void simplifyRegType(CodeGenManager manager) {
         // set isAllocated false
         for (var func : manager.getMachineFunctions()) {
             for (var blockEntry : func.getmbList()) {
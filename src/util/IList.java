@@ -6,13 +6,20 @@ import java.util.Iterator;
 
 /**
  * LinkedList,猫猫都不用
+ * <p>
+ * 每个结点有一个序号，链表里前面的结点序号小，comesBefore 用它 O(1) 比较先后。插入时取前后结点序号的中间值，
+ * 没有空隙了就把整个链表的序号标成失效，下次比较时重排一遍；删除不影响其余结点的先后
  */
 public class IList<T, P> implements Iterable<INode<T, P>> {
 
+  // 重排之后相邻结点序号的间隔，同一个位置连续插入 32 次才需要再重排
+  private static final long ORDER_STEP = 1L << 32;
+
   private INode<T, P> entry;
   private INode<T, P> last;
   private P val;
   private int numNode;
+  private boolean orderValid = true;
 
   public void setVal(P val) {
     this.val = val;
@@ -36,6 +43,16 @@ public class IList<T, P> implements Iterable<INode<T, P>> {
     this.entry = null;
     this.last = null;
     this.numNode = 0;
+    this.orderValid = true;
+  }
+
+  private void renumber() {
+    long order = 0;
+    for (var node = entry; node != null; node = node.next) {
+      node.order = order;
+      order += ORDER_STEP;
+    }
+    orderValid = true;
   }
 
   public INode<T, P> getEntry() {
@@ -61,16 +78,18 @@ public class IList<T, P> implements Iterable<INode<T, P>> {
 
   class IIterator implements Iterator<INode<T, P>> {
 
-    INode<T, P> tmp = new INode<>(null);
-    INode<T, P> nxt = null;
+    // 上一次 next() 返回的结点，还没开始的时候是 null
+    INode<T, P> tmp = null;
+    // 没开始的时候是头结点；tmp 被 remove 之后是它原来的后继
+    INode<T, P> nxt;
 
     IIterator(INode<T, P> head) {
-      tmp.next = head;
+      nxt = head;
     }
 
     @Override
     public boolean hasNext() {
-      return nxt != null || tmp.next != null;
+      return nxt != null || (tmp != null && tmp.next != null);
     }
 
     @Override
@@ -86,25 +105,68 @@ public class IList<T, P> implements Iterable<INode<T, P>> {
 
     @Override
     public void remove() {
-      var prev = tmp.prev;
-      var next = tmp.next;
-      var parent = tmp.getParent();
-      if (prev != null) {
-        prev.next = next;
-      } else {
-        parent.setEntry(next);
-      }
+      nxt = unlink(tmp);
+    }
+  }
 
-      if (next != null) {
-        next.prev = prev;
+  // 迭代器删除当前结点，返回原来的后继
+  private static <T, P> INode<T, P> unlink(INode<T, P> node) {
+    var prev = node.prev;
+    var next = node.next;
+    var parent = node.getParent();
+    if (prev != null) {
+      prev.next = next;
+    } else {
+      parent.setEntry(next);
+    }
+
+    if (next != null) {
+      next.prev = prev;
+    } else {
+      parent.setLast(prev);
+    }
+    --parent.numNode;
+
+    node.next = node.prev = null;
+    node.val = null;
+    return next;
+  }
+
+  /**
+   * 和 iterator() 一样的遍历，但是可以反复 reset 到别的链表上用，不用每次遍历都 new 一个迭代器：
+   * <pre>
+   *   for (cursor.reset(list); cursor.advance(); ) { var node = cursor.node(); ... }
+   * </pre>
+   * 后继在 advance 的时候才取，所以遍历中可以删除、插入当前结点后面的结点，插在后面的结点也会被访问到；
+   * 当前结点要用 cursor.remove() 删，直接 removeSelf 会让遍历在这里结束
+   */
+  public static final class Cursor<T, P> {
+
+    private INode<T, P> cur;
+    private INode<T, P> nxt;
+
+    public Cursor<T, P> reset(IList<T, P> list) {
+      cur = null;
+      nxt = list.entry;
+      return this;
+    }
+
+    public boolean advance() {
+      if (nxt != null) {
+        cur = nxt;
+        nxt = null;
       } else {
-        parent.setLast(prev);
+        cur = cur == null ? null : cur.next;
       }
-      --parent.numNode;
+      return cur != null;
+    }
+
+    public INode<T, P> node() {
+      return cur;
+    }
 
-      nxt = next;
-      tmp.next = tmp.prev = null;
-      tmp.val = null;
+    public void remove() {
+      nxt = unlink(cur);
     }
   }
 
@@ -115,6 +177,7 @@ public class IList<T, P> implements Iterable<INode<T, P>> {
     private INode<T, P> prev = null;//前驱
     private INode<T, P> next = null;//后继
     private IList<T, P> parent;
+    private long order;
 
     public INode(T t) {
       this.val = t;
@@ -143,6 +206,8 @@ public class IList<T, P> implements Iterable<INode<T, P>> {
         father.numNode++;
         father.setEntry(this);
         father.setLast(this);
+        this.order = 0;
+        father.orderValid = true;
       } else {
         insertBefore(father.getEntry());
       }
@@ -156,6 +221,8 @@ public class IList<T, P> implements Iterable<INode<T, P>> {
         father.setLast(this);
         this.prev = null;
         this.next = null;
+        this.order = 0;
+        father.orderValid = true;
       } else {
         insertAfter(father.getLast());
       }
@@ -169,6 +236,8 @@ public class IList<T, P> implements Iterable<INode<T, P>> {
         father.setLast(this);
         this.prev = null;
         this.next = null;
+        this.order = 0;
+        father.orderValid = true;
       } else {
         insertBefore(father.getLast());
       }
@@ -213,6 +282,7 @@ public class IList<T, P> implements Iterable<INode<T, P>> {
       if (this.prev != null) {
         this.prev.next = this;
       }
+      assignOrder();
     }
 
     //insert my self after prev node
@@ -228,6 +298,51 @@ public class IList<T, P> implements Iterable<INode<T, P>> {
       if (this.next != null) {
         this.next.prev = this;
       }
+      assignOrder();
+    }
+
+    // 刚插进来，按前后结点定序号；没有空隙就让整个链表的序号失效
+    private void assignOrder() {
+      if (!parent.orderValid) {
+        return;
+      }
+      if (prev == null) {
+        if (next.order >= Long.MIN_VALUE + ORDER_STEP) {
+          order = next.order - ORDER_STEP;
+          return;
+        }
+      } else if (next == null) {
+        if (prev.order <= Long.MAX_VALUE - ORDER_STEP) {
+          order = prev.order + ORDER_STEP;
+          return;
+        }
+      } else {
+        // 不会溢出的 (prev.order + next.order) / 2
+        long mid = (prev.order >> 1) + (next.order >> 1) + (prev.order & next.order & 1);
+        if (mid > prev.order && mid < next.order) {
+          order = mid;
+          return;
+        }
+      }
+      parent.orderValid = false;
+    }
+
+    /**
+     * 和 other 在同一个链表里，自己是否在 other 前面
+     */
+    public boolean comesBefore(INode<T, P> other) {
+      assert parent != null && parent == other.parent;
+      return getOrder() < other.getOrder();
+    }
+
+    /**
+     * 在链表里的序号，只用来比较先后，插入删除之后不一定连续
+     */
+    public long getOrder() {
+      if (!parent.orderValid) {
+        parent.renumber();
+      }
+      return order;
     }
 
     public INode<T, P> getPrev() {
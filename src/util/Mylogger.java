@@ -1,6 +1,7 @@
 package util;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Formatter;
@@ -23,7 +24,11 @@ public class Mylogger {
     }
   }
 
-  public static void init() {
+  // daemon 里每个请求都会走到这里，只开一次文件
+  public static synchronized void init() {
+    if (fh != null) {
+      return;
+    }
     try {
       fh = new FileHandler("record.log");
     } catch (Exception e) {
@@ -48,9 +53,12 @@ public class Mylogger {
   }
 
 
-  public static Logger getLogger(Class c) {
+  public static synchronized Logger getLogger(Class c) {
     Logger tmp = Logger.getLogger(c.getName());
-    tmp.addHandler(fh);
+    // 同一个 Logger 每 new 一个 pass 就会取一次，handler 只挂一次
+    if (!Arrays.asList(tmp.getHandlers()).contains(fh)) {
+      tmp.addHandler(fh);
+    }
     tmp.setLevel(fh.getLevel());
     return tmp;
   }